@@ -0,0 +1,317 @@
+package com.wcn.jdk.example.io.bio;
+
+import com.wcn.jdk.example.io.mynetty.MyEventLog;
+import com.wcn.jdk.example.io.nio.FrameDecoder;
+import com.wcn.jdk.example.io.nio.ServerConfig;
+import com.wcn.jdk.example.io.nio.ServerSocketChannelTestV5;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 对比ServerSocketTest的三种线程模式和NIO V5在大量长连接、短连接下的表现。
+ *
+ * 每种服务端依次测三项：
+ * 1. 建连：建立connections个长连接，每个连接发一个请求确认服务端已经开始处理，统计总耗时，
+ *    thread模式下这里包含了创建connections个线程的时间；
+ * 2. 长连接：CLIENT_THREADS个客户端线程分摊所有连接，每轮给自己的每个连接发一个请求再依次读响应，
+ *    统计吞吐和延迟，以及此时进程的平台线程数和RSS比开始前增加了多少（堆不会缩回去，只能作为参考）；
+ * 3. 短连接：CLIENT_THREADS个线程不停地 建连->一问一答->关闭，统计每秒完成的连接数。
+ *
+ * 运行：java BioBenchmark [connections] [seconds] [poolSize]
+ * 客户端和服务端在同一个进程里，每个连接占两个文件描述符，connections不能超过ulimit -n的一半。
+ *
+ * 1核机器、jdk17、ulimit -n 20000（所以只能跑9000个连接）上 connections=9000 seconds=5 poolSize=200 的结果：
+ * thread   served= 9000/9000 connect= 9715ms req/s=  27363 p50= 148.9ms p99= 267.7ms threads= 9008 rss=+1632MB churn conn/s=  2944
+ * pool     served=  200/9000 connect= 1856ms req/s=   6551 p50=  12.0ms p99=  27.9ms threads=  208 rss=+  20MB churn conn/s=  7564
+ * virtual  not supported on java 17.0.9
+ * nio V5   served= 9000/9000 connect= 1240ms req/s=  32393 p50= 193.5ms p99= 332.8ms threads=   12 rss=+   2MB churn conn/s=  6714
+ * thread模式能撑住9000个连接，但是创建9000个线程用了将近10秒，线程栈多占了1.6G内存，
+ * 短连接时每个连接都要创建、销毁一个线程，每秒完成的连接数不到V5的一半；
+ * pool模式线程数和内存都是固定的，短连接也快，但同时只能服务poolSize个连接，其余的直接被拒绝，
+ * 200个线程在1个核上来回切换，吞吐反而最低；
+ * V5用12个线程服务全部连接，吞吐最高（p50高是因为每轮1125个请求一起发，排队时间算在延迟里）。
+ * virtual模式需要jdk21运行（这台机器上没有），它保持thread模式的阻塞写法，线程数和内存应该接近V5。
+ */
+public class BioBenchmark {
+    private static final byte[] REQUEST = "ping\n".getBytes(StandardCharsets.UTF_8);
+    private static final int CLIENT_THREADS = 8;
+    private static final int TIMEOUT_MILLIS = 5000;
+    private static final int CHURN_SECONDS = 2;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length>0 ? Integer.parseInt(args[0]) : 10000;
+        int seconds = args.length>1 ? Integer.parseInt(args[1]) : 5;
+        int poolSize = args.length>2 ? Integer.parseInt(args[2]) : 200;
+        System.out.println("connections="+connections+" seconds="+seconds+" poolSize="+poolSize
+                +" cpus="+Runtime.getRuntime().availableProcessors()+" java="+System.getProperty("java.version"));
+        //每个连接的建立、关闭都是INFO日志，压测期间只输出WARN
+        MyEventLog.setLevel(MyEventLog.Level.WARN);
+        System.out.println(run("thread", new BioServer(ServerSocketTest.Mode.THREAD, poolSize), connections, seconds));
+        System.out.println(run("pool", new BioServer(ServerSocketTest.Mode.POOL, poolSize), connections, seconds));
+        if(ServerSocketTest.isVirtualThreadSupported()){
+            System.out.println(run("virtual", new BioServer(ServerSocketTest.Mode.VIRTUAL, poolSize), connections, seconds));
+        }else{
+            System.out.println(String.format("%-8s not supported on java %s", "virtual", System.getProperty("java.version")));
+        }
+        System.out.println(run("nio V5", new NioServer(), connections, seconds));
+    }
+
+    private static String run(String name, Server server, int connections, int seconds) throws Exception {
+        System.gc();
+        long rssBeforeKB = rssKB();
+        InetSocketAddress target = new InetSocketAddress("127.0.0.1", server.start().getPort());
+
+        //1. 建连
+        long connectBegin = System.nanoTime();
+        Socket[] sockets = new Socket[connections];
+        for(int i=0;i<connections;i++){
+            Socket socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            socket.connect(target, TIMEOUT_MILLIS);
+            sockets[i] = socket;
+        }
+        Connection[][] slices = new Connection[CLIENT_THREADS][];
+        for(int t=0;t<CLIENT_THREADS;t++){
+            int from = connections*t/CLIENT_THREADS;
+            int to = connections*(t+1)/CLIENT_THREADS;
+            slices[t] = new Connection[to-from];
+            for(int i=from;i<to;i++){
+                slices[t][i-from] = new Connection(sockets[i]);
+            }
+        }
+        runRounds(slices, 0);
+        long connectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-connectBegin);
+        int served = 0;
+        for(Connection[] slice:slices){
+            for(Connection connection:slice){
+                served += connection.alive ? 1 : 0;
+            }
+        }
+
+        //2. 长连接
+        long begin = System.nanoTime();
+        long[][] latencies = runRounds(slices, TimeUnit.SECONDS.toNanos(seconds));
+        double elapsedSeconds = (System.nanoTime()-begin)/1e9;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        long rssMB = (rssKB()-rssBeforeKB)/1024;
+        for(Socket socket:sockets){
+            socket.close();
+        }
+
+        //3. 短连接
+        double churn = churn(target);
+        server.shutdown();
+
+        long[] sorted = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        return String.format("%-8s served=%5d/%d connect=%5dms req/s=%7.0f p50=%6.1fms p99=%6.1fms threads=%5d rss=+%4dMB churn conn/s=%6.0f",
+                name, served, connections, connectMillis, sorted.length/elapsedSeconds,
+                percentile(sorted, 0.50)/1e6, percentile(sorted, 0.99)/1e6, threads, rssMB, churn);
+    }
+
+    /**
+     * 每个客户端线程负责一组连接，每轮先给所有连接发请求，再依次读响应，直到经过durationNanos。
+     * durationNanos为0时只跑一轮
+     * @return 每个客户端线程的请求延迟
+     */
+    private static long[][] runRounds(Connection[][] slices, long durationNanos) throws InterruptedException {
+        long deadline = System.nanoTime()+durationNanos;
+        long[][] latencies = new long[slices.length][];
+        CountDownLatch done = new CountDownLatch(slices.length);
+        for(int t=0;t<slices.length;t++){
+            int index = t;
+            new Thread(() -> {
+                long[] samples = new long[1024];
+                int count = 0;
+                Connection[] slice = slices[index];
+                do {
+                    for(Connection connection:slice){
+                        connection.send();
+                    }
+                    for(Connection connection:slice){
+                        long latency = connection.receive();
+                        if(latency<0){
+                            continue;
+                        }
+                        if(count==samples.length){
+                            samples = Arrays.copyOf(samples, count<<1);
+                        }
+                        samples[count++] = latency;
+                    }
+                } while(System.nanoTime()<deadline);
+                latencies[index] = Arrays.copyOf(samples, count);
+                done.countDown();
+            }, "bio-bench-client-"+t).start();
+        }
+        done.await();
+        return latencies;
+    }
+
+    /**
+     * @return 每秒完成的 建连->一问一答->关闭 次数
+     */
+    private static double churn(InetSocketAddress target) throws InterruptedException {
+        long deadline = System.nanoTime()+TimeUnit.SECONDS.toNanos(CHURN_SECONDS);
+        AtomicLong completed = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(CLIENT_THREADS);
+        for(int t=0;t<CLIENT_THREADS;t++){
+            new Thread(() -> {
+                while(System.nanoTime()<deadline){
+                    try (Socket socket = new Socket()){
+                        socket.setTcpNoDelay(true);
+                        //关闭时直接发RST，避免大量TIME_WAIT把本地端口用完
+                        socket.setSoLinger(true, 0);
+                        socket.setSoTimeout(TIMEOUT_MILLIS);
+                        socket.connect(target, TIMEOUT_MILLIS);
+                        if(new Connection(socket).call()){
+                            completed.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        //ignore
+                    }
+                }
+                done.countDown();
+            }, "bio-bench-churn-"+t).start();
+        }
+        done.await();
+        return completed.get()/(double)CHURN_SECONDS;
+    }
+
+    private static long rssKB(){
+        try {
+            for(String line:Files.readAllLines(Paths.get("/proc/self/status"))){
+                if(line.startsWith("VmRSS:")){
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            //ignore
+        }
+        return 0;
+    }
+
+    private static long percentile(long[] sorted, double p){
+        if(sorted.length==0){
+            return 0;
+        }
+        int index = (int)Math.ceil(p*sorted.length)-1;
+        return sorted[Math.max(0, Math.min(index, sorted.length-1))];
+    }
+
+    /**
+     * 客户端的一个连接，只在一个线程中使用
+     */
+    private static class Connection {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] readBuffer = new byte[64];
+        private boolean alive = true;
+        private long sendNanos;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = socket.getInputStream();
+            this.out = socket.getOutputStream();
+        }
+
+        void send(){
+            if(!alive){
+                return;
+            }
+            try {
+                sendNanos = System.nanoTime();
+                out.write(REQUEST);
+            } catch (IOException e) {
+                alive = false;
+            }
+        }
+
+        /**
+         * 读一行响应
+         * @return 延迟，连接已经断开时返回-1
+         */
+        long receive(){
+            if(!alive){
+                return -1;
+            }
+            try {
+                int read = 0;
+                while(read==0 || readBuffer[read-1]!='\n'){
+                    int n = in.read(readBuffer, read, readBuffer.length-read);
+                    if(n<0){
+                        //pool模式下被拒绝的连接
+                        alive = false;
+                        return -1;
+                    }
+                    read += n;
+                }
+                return System.nanoTime()-sendNanos;
+            } catch (IOException e) {
+                alive = false;
+                return -1;
+            }
+        }
+
+        boolean call(){
+            send();
+            return receive()>=0;
+        }
+    }
+
+    private interface Server {
+        InetSocketAddress start() throws IOException;
+
+        void shutdown() throws InterruptedException;
+    }
+
+    private static class BioServer implements Server {
+        private final ServerSocketTest server = new ServerSocketTest();
+        private final ServerSocketTest.Mode mode;
+        private final int poolSize;
+
+        BioServer(ServerSocketTest.Mode mode, int poolSize) {
+            this.mode = mode;
+            this.poolSize = poolSize;
+        }
+
+        @Override
+        public InetSocketAddress start() throws IOException {
+            return server.start(0, mode, poolSize);
+        }
+
+        @Override
+        public void shutdown() throws InterruptedException {
+            server.shutdown();
+        }
+    }
+
+    private static class NioServer implements Server {
+        private final ServerSocketChannelTestV5 server = new ServerSocketChannelTestV5();
+
+        @Override
+        public InetSocketAddress start() throws IOException {
+            return server.start(new ServerConfig()
+                    .setPort(0)
+                    .setReadThreads(2)
+                    .setFrameDecoderFactory(() -> FrameDecoder.line(1024)));
+        }
+
+        @Override
+        public void shutdown() throws InterruptedException {
+            server.shutdown();
+        }
+    }
+}
@@ -1,37 +1,194 @@
 package com.wcn.jdk.example.io.bio;
 
+import com.wcn.jdk.example.io.mynetty.MyEventLog;
+
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * 阻塞io的服务端，一个连接占用一个线程，线程阻塞在readLine上。
+ *
+ * 三种线程模式（main的第一个参数）：
+ * 1. thread（默认）：每个连接new一个平台线程。每个平台线程对应一个内核线程和一个栈，
+ *    几千个连接之后内存和调度开销就上来了；短连接时创建、销毁线程的开销比处理请求本身还大。
+ *    创建不了线程（OutOfMemoryError: unable to create native thread）时关闭这个连接，不影响accept。
+ * 2. pool：固定大小的平台线程池，线程可以复用，但连接会一直占着线程直到断开，
+ *    所以同时在线的连接数不能超过poolSize，超过的直接关闭（不能排队，排队的连接可能永远等不到线程）。
+ * 3. virtual：每个连接一个虚拟线程（jdk21+）。还是阻塞的写法，但是阻塞读写时虚拟线程从载体线程上卸载，
+ *    jdk内部用epoll等待socket就绪，一个连接只占一个很小的、按需增长的栈。
+ *    源码要能用jdk8编译，所以通过反射调用Executors.newVirtualThreadPerTaskExecutor()，
+ *    jdk8编译出来的class在jdk21上直接运行即可，jdk21以下运行时启动失败（IllegalStateException）。
+ *    synchronized块中阻塞会把载体线程一起钉住（pinning），可以用-Djdk.tracePinnedThreads=full检查。
+ *
+ * 运行：java ServerSocketTest [thread|pool|virtual] [poolSize]
+ * 和NIO V5在大量连接下的对比见BioBenchmark。
+ */
 public class ServerSocketTest {
+    private static final MyEventLog.Event SOCKET_INCOME = MyEventLog.event(MyEventLog.Level.INFO, "socket income:{} port:{}");
+    private static final MyEventLog.Event RECEIVE_MSG = MyEventLog.event(MyEventLog.Level.DEBUG, "receive msg:{}");
+    private static final MyEventLog.Event CLIENT_BYE = MyEventLog.event(MyEventLog.Level.INFO, "bye----{} port:{}");
+    private static final MyEventLog.Event REJECTED = MyEventLog.event(MyEventLog.Level.INFO, "no thread available, close {}");
+
+    public enum Mode {
+        THREAD, POOL, VIRTUAL
+    }
+
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    //执行每个连接的读写循环，THREAD模式下每次new Thread
+    private Executor connectionExecutor;
+    private final LongAdder rejected = new LongAdder();
+
     public static void main(String[] args) throws Exception {
-        ServerSocket serverSocket = new ServerSocket();
-        serverSocket.bind(new InetSocketAddress(8080));
-        Socket socket = null;
-        while((socket = serverSocket.accept())!=null){//accept()会产生阻塞等待
-            Socket finalSocket = socket;
-            System.out.println("socket income:"+finalSocket.getInetAddress()+" port:"+finalSocket.getPort());
-            Thread thread= new Thread(()->{
+        Mode mode = args.length>0 ? Mode.valueOf(args[0].toUpperCase()) : Mode.THREAD;
+        int poolSize = args.length>1 ? Integer.parseInt(args[1]) : 200;
+        ServerSocketTest test = new ServerSocketTest();
+        InetSocketAddress address = test.start(Integer.getInteger("server.port", 8080), mode, poolSize);
+        System.out.println("bio server started, mode:"+mode+" address:"+address);
+    }
+
+    /**
+     * @param poolSize 只在POOL模式下使用
+     * @return 实际绑定的地址，port为0时由系统分配
+     */
+    public InetSocketAddress start(int port, Mode mode, int poolSize) throws IOException {
+        connectionExecutor = newConnectionExecutor(mode, poolSize);
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(port), 1024);
+        acceptThread = new Thread(this::acceptLoop, "bio-accept");
+        acceptThread.start();
+        return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+    }
+
+    /**
+     * 不再accept新连接，已经建立的连接等客户端关闭后各自结束
+     */
+    public void shutdown() throws InterruptedException {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        acceptThread.join();
+        if(connectionExecutor instanceof ExecutorService){
+            ((ExecutorService) connectionExecutor).shutdown();
+        }
+    }
+
+    /**
+     * 因为线程池满了被关闭的连接数
+     */
+    public long rejected(){
+        return rejected.sum();
+    }
+
+    /**
+     * @return 当前jdk是否支持虚拟线程
+     */
+    public static boolean isVirtualThreadSupported(){
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static Executor newConnectionExecutor(Mode mode, int poolSize){
+        switch (mode){
+            case POOL:
+                //不排队：线程都被占用时新连接直接拒绝
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+                        new SynchronousQueue<>(), namedThreadFactory("bio-pool-"));
+                pool.prestartAllCoreThreads();
+                return pool;
+            case VIRTUAL:
                 try {
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(finalSocket.getInputStream()));
-                    BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(finalSocket.getOutputStream()));
-                    String msg = null;
-                    while((msg=reader.readLine())!=null){//read会产生阻塞
-                        System.out.println("receive msg:"+msg);
-                        writer.write("response_"+msg+"\r\n");
-                        writer.flush();
+                    return (ExecutorService) Executors.class
+                            .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+                    throw new IllegalStateException("virtual threads need java 21+, current: "
+                            +System.getProperty("java.version"), e);
+                }
+            default:
+                AtomicInteger index = new AtomicInteger();
+                return task -> {
+                    try {
+                        new Thread(task, "bio-conn-"+index.getAndIncrement()).start();
+                    } catch (OutOfMemoryError e) {
+                        //unable to create native thread：线程数到了ulimit -u或者内存不够分配栈，
+                        //和pool模式线程用完一样按拒绝处理，关闭这个连接，accept线程继续接收
+                        throw new RejectedExecutionException("can not start connection thread", e);
                     }
-                    System.out.println("byte----"+finalSocket.getInetAddress()+" port:"+finalSocket.getPort());
-                    writer.write("bye\r\n");
-                    finalSocket.close();
-                } catch (IOException e) {
+                };
+        }
+    }
+
+    private static ThreadFactory namedThreadFactory(String prefix){
+        AtomicInteger index = new AtomicInteger();
+        return r -> new Thread(r, prefix+index.getAndIncrement());
+    }
+
+    private void acceptLoop(){
+        while(!serverSocket.isClosed()){
+            Socket socket;
+            try {
+                socket = serverSocket.accept();//accept()会产生阻塞等待
+            } catch (IOException e) {
+                if(!serverSocket.isClosed()){
                     e.printStackTrace();
                 }
-            });
-            thread.start();
+                continue;
+            }
+            MyEventLog.log(SOCKET_INCOME, socket.getInetAddress(), socket.getPort());
+            try {
+                connectionExecutor.execute(() -> handle(socket));
+            } catch (RejectedExecutionException e) {
+                rejected.increment();
+                MyEventLog.log(REJECTED, socket.getRemoteSocketAddress());
+                try {
+                    socket.close();
+                } catch (IOException ignore) {
+                    //ignore
+                }
+            }
+        }
+    }
+
+    private void handle(Socket socket){
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            String msg = null;
+            while((msg=reader.readLine())!=null){//read会产生阻塞
+                MyEventLog.log(RECEIVE_MSG, msg);
+                writer.write("response_"+msg+"\r\n");
+                writer.flush();
+            }
+            MyEventLog.log(CLIENT_BYE, socket.getInetAddress(), socket.getPort());
+            writer.write("bye\r\n");
+        } catch (IOException e) {
+            //客户端重置了连接
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+                //ignore
+            }
         }
     }
 }
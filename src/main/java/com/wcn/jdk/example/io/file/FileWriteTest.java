@@ -174,6 +174,7 @@ public class FileWriteTest {
     /**
      * 采用NIO中的MappedByteBuffer，通过FileChannel.map()方法，将该buffer是和pageCache做了映射了，操作系统的mmap技术，
      * 它的写入就是直接写入了pageCache，就不会再调用系统函数的write来写入了，也就不会有用户态和内核态的转换了。
+     * 这里只是map一块固定大小的区域往里写，分段、记录格式、并发读、刷盘见commitlog.CommitLog。
      *
      * @throws Exception
      */
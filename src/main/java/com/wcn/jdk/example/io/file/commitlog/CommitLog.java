@@ -0,0 +1,469 @@
+package com.wcn.jdk.example.io.file.commitlog;
+
+import com.wcn.jdk.example.io.mynetty.MyEventLog;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * 基于mmap的追加写日志（类似RocketMQ的CommitLog、kafka的log segment），在FileWriteTest.test6的基础上：
+ *
+ * 1. 由多个固定大小的segment文件组成，每个文件整个map，写满之后自动切换到下一个；
+ * 2. 每条记录：[int 长度][int crc32][payload]，append返回记录的全局offset（segment的baseOffset+在segment内的位置），
+ *    一条记录不会跨segment，当前segment放不下时剩余空间留空，下一个segment的baseOffset是上一个的baseOffset+文件大小，
+ *    所以offset是递增的但不连续；
+ * 3. 写入串行（一把锁），读不加锁：segment写完一条记录之后才发布writePosition，任意多个Reader并发读，
+ *    读到的payload是和文件共享内存的只读buffer，没有拷贝；
+ * 4. 当前segment开始使用时，后台线程就创建好下一个并且预先触发缺页（preallocate/warmSegments），
+ *    切换segment时不需要在append的锁里创建文件、map、缺页；
+ * 5. 刷盘由后台线程按FlushPolicy进行，见CommitLogConfig.FlushPolicy；
+ * 6. 重新打开时逐条校验记录，每个segment保留最长的合法前缀，最后一个segment清掉之后的残留数据再继续写；
+ *    比一个记录头还小的文件（创建到一半时崩溃）直接删掉；
+ * 7. 刷盘失败（force抛异常）之后pageCache里的数据是不是还在已经不知道了，不再重试，
+ *    之后所有的append、flush都以IOException失败，需要重新open。
+ *
+ * 不包括删除旧segment（保留策略）和索引，按offset读需要知道记录的起始位置，顺序读用Reader。
+ * 写入性能见CommitLogBenchmark。
+ */
+public class CommitLog implements Closeable {
+    //长度+crc32
+    public static final int RECORD_HEADER_LENGTH = 8;
+    private static final MyEventLog.Event FLUSH_FAILED = MyEventLog.event(MyEventLog.Level.WARN, "commit log flush failed, reject all further writes: {}");
+    private static final Pattern SEGMENT_NAME = Pattern.compile("\\d{20}\\.log");
+
+    private final CommitLogConfig config;
+    private final File directory;
+    //按baseOffset排序，读的时候用floorEntry找offset所在的segment
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    //以下字段只在append的锁里访问
+    private final CRC32 crc = new CRC32();
+    private Future<Segment> preallocated;
+    private long rolls;
+    private long preallocationMisses;
+
+    private volatile Segment active;
+    //所有已经写入的记录的结束位置，也就是下一条记录的offset（不考虑切换segment）
+    private volatile long writeOffset;
+    //这个offset之前的数据已经刷盘
+    private volatile long flushedOffset;
+    private volatile long forces;
+    private volatile IOException flushFailure;
+    private volatile boolean closed;
+    //close中最后一次flush之后为true，之后不会再有刷盘
+    private volatile boolean flushStopped;
+    private final Object flushLock = new Object();
+    //GROUP_COMMIT下等待刷盘的append线程在这上面wait
+    private final Object flushMonitor = new Object();
+    private final ExecutorService allocator;
+    private final Thread flusher;
+
+    private CommitLog(CommitLogConfig config) throws IOException {
+        this.config = config;
+        this.directory = config.getDirectory();
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("can not create directory: "+directory);
+        }
+        recover();
+        writeOffset = active.baseOffset+active.writePosition();
+        flushedOffset = writeOffset;
+
+        if(config.isPreallocate()){
+            allocator = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "commitlog-allocate");
+                thread.setDaemon(true);
+                return thread;
+            });
+            preallocated = allocator.submit(() -> newSegment(active));
+        }else{
+            allocator = null;
+        }
+        if(config.getFlushPolicy()!=CommitLogConfig.FlushPolicy.NONE){
+            flusher = new Thread(this::runFlusher, "commitlog-flush");
+            flusher.setDaemon(true);
+            flusher.start();
+        }else{
+            flusher = null;
+        }
+    }
+
+    public static CommitLog open(CommitLogConfig config) throws IOException {
+        config.validate();
+        return new CommitLog(config);
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> SEGMENT_NAME.matcher(name).matches());
+        if(files==null){
+            throw new IOException("can not list directory: "+directory);
+        }
+        Arrays.sort(files);
+        Segment previous = null;
+        //所有文件都被删掉时，在第一个被删掉的位置重新创建，offset不会倒退
+        long createOffset = 0;
+        for(File file:files){
+            long baseOffset = Long.parseLong(file.getName().substring(0, 20));
+            if(file.length()<RECORD_HEADER_LENGTH){
+                //创建文件之后、setLength之前崩溃留下的，一条记录都放不下，删掉，需要时在同一个位置重新创建
+                if(!file.delete()){
+                    throw new IOException("can not delete truncated segment: "+file);
+                }
+                if(segments.isEmpty() && createOffset==0){
+                    createOffset = baseOffset;
+                }
+                continue;
+            }
+            Segment segment = Segment.recover(file, baseOffset, crc);
+            segments.put(baseOffset, segment);
+            if(previous!=null && previous.baseOffset+previous.capacity>baseOffset){
+                throw new IOException("overlapping segments: "+previous.file+", "+file);
+            }
+            previous = segment;
+        }
+        //末尾没有数据的segment是上次预分配好还没用到的，删掉，继续写前一个
+        while(segments.size()>1 && segments.lastEntry().getValue().writePosition()==0){
+            Segment segment = segments.pollLastEntry().getValue();
+            if(!segment.file.delete()){
+                throw new IOException("can not delete empty segment: "+segment.file);
+            }
+        }
+        if(segments.isEmpty()){
+            Segment segment = Segment.create(directory, createOffset, config.getSegmentSize(), config.isWarmSegments());
+            segments.put(segment.baseOffset, segment);
+            active = segment;
+        }else{
+            active = segments.lastEntry().getValue();
+            active.clearTail();
+        }
+    }
+
+    private Segment newSegment(Segment previous) throws IOException {
+        return Segment.create(directory, previous.baseOffset+previous.capacity, config.getSegmentSize(), config.isWarmSegments());
+    }
+
+    public long append(byte[] record) throws IOException {
+        return append(ByteBuffer.wrap(record));
+    }
+
+    /**
+     * 追加一条记录，record的position会移动到limit。
+     * GROUP_COMMIT策略下等记录刷盘之后才返回，其它策略下返回时记录在pageCache中，已经可以被读到
+     * @return 记录的全局offset，用于read和reader
+     */
+    public long append(ByteBuffer record) throws IOException {
+        int length = record.remaining();
+        if(length<=0 || length>config.getMaxRecordSize()){
+            throw new IllegalArgumentException("record length: "+length+" (expected: 0 < n <= "+config.getMaxRecordSize()+")");
+        }
+        long offset;
+        long end;
+        synchronized (this){
+            if(closed){
+                throw new IOException("commit log closed");
+            }
+            checkFlushFailure();
+            Segment segment = active;
+            if(!segment.hasRoom(length)){
+                segment = roll();
+            }
+            offset = segment.baseOffset+segment.append(record, crc);
+            end = offset+RECORD_HEADER_LENGTH+length;
+            writeOffset = end;
+        }
+        switch (config.getFlushPolicy()){
+            case INTERVAL:
+                int threshold = config.getFlushThresholdBytes();
+                if(threshold>0 && end-flushedOffset>=threshold){
+                    LockSupport.unpark(flusher);
+                }
+                break;
+            case GROUP_COMMIT:
+                awaitFlushed(end);
+                break;
+            default:
+                break;
+        }
+        return offset;
+    }
+
+    /**
+     * 在append的锁里调用：切换到预分配好的下一个segment，同时开始预分配再下一个
+     */
+    private Segment roll() throws IOException {
+        Segment next = null;
+        if(preallocated!=null){
+            if(!preallocated.isDone()){
+                preallocationMisses++;
+            }
+            try {
+                next = preallocated.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for segment preallocation", e);
+            } catch (ExecutionException e) {
+                //预分配失败，下面同步再试一次
+            }
+            preallocated = null;
+        }else{
+            preallocationMisses++;
+        }
+        if(next==null){
+            next = newSegment(active);
+        }
+        segments.put(next.baseOffset, next);
+        //writeOffset跳过旧segment剩下的空间，刷盘时从旧segment一直刷到next
+        active = next;
+        rolls++;
+        if(allocator!=null){
+            Segment current = next;
+            preallocated = allocator.submit(() -> newSegment(current));
+        }
+        return next;
+    }
+
+    /**
+     * 读offset处的一条记录，offset必须是append返回的值（或者Reader.position()）
+     * @return 只读的payload，和文件共享内存；offset处还没有写入记录时返回null
+     */
+    public ByteBuffer read(long offset) throws IOException {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+        if(entry==null || offset-entry.getKey()>=entry.getValue().capacity){
+            throw new IllegalArgumentException("offset out of range: "+offset);
+        }
+        return entry.getValue().read((int) (offset-entry.getKey()));
+    }
+
+    /**
+     * 从offset开始顺序读的Reader，每个线程用自己的Reader，可以和append并发
+     */
+    public Reader reader(long offset){
+        if(offset<segments.firstKey()){
+            throw new IllegalArgumentException("offset out of range: "+offset);
+        }
+        return new Reader(offset);
+    }
+
+    /**
+     * 第一条记录的offset
+     */
+    public long startOffset(){
+        return segments.firstKey();
+    }
+
+    public long writeOffset(){
+        return writeOffset;
+    }
+
+    public long flushedOffset(){
+        return flushedOffset;
+    }
+
+    /**
+     * 把调用时已经写入的记录刷盘，可以和append、刷盘线程并发调用
+     */
+    public void flush() throws IOException {
+        synchronized (flushLock){
+            checkFlushFailure();
+            long target = writeOffset;
+            if(target<=flushedOffset){
+                return;
+            }
+            Long from = segments.floorKey(flushedOffset);
+            for(Segment segment:segments.tailMap(from==null ? segments.firstKey() : from).values()){
+                if(segment.isDirty()){
+                    try {
+                        segment.flush();
+                    } catch (RuntimeException e) {
+                        throw flushFailed(e);
+                    }
+                    forces++;
+                }
+            }
+            flushedOffset = target;
+        }
+        if(config.getFlushPolicy()==CommitLogConfig.FlushPolicy.GROUP_COMMIT){
+            synchronized (flushMonitor){
+                flushMonitor.notifyAll();
+            }
+        }
+    }
+
+    private void checkFlushFailure() throws IOException {
+        IOException failure = flushFailure;
+        if(failure!=null){
+            throw new IOException("commit log is failed since an earlier flush", failure);
+        }
+    }
+
+    /**
+     * 在flushLock里调用：记下失败，唤醒等刷盘的append，让它们和之后的append、flush都失败
+     */
+    private IOException flushFailed(RuntimeException cause){
+        IOException failure = new IOException("flush failed", cause);
+        flushFailure = failure;
+        MyEventLog.log(FLUSH_FAILED, cause);
+        synchronized (flushMonitor){
+            flushMonitor.notifyAll();
+        }
+        return failure;
+    }
+
+    private void awaitFlushed(long end) throws IOException {
+        if(flushedOffset>=end){
+            return;
+        }
+        LockSupport.unpark(flusher);
+        synchronized (flushMonitor){
+            while(flushedOffset<end){
+                if(flushFailure!=null){
+                    throw new IOException("flush failed", flushFailure);
+                }
+                if(flushStopped){
+                    //close中最后一次flush之后仍然没有刷到，不会再有刷盘了
+                    throw new IOException("commit log closed before the record was flushed");
+                }
+                try {
+                    flushMonitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for flush", e);
+                }
+            }
+        }
+    }
+
+    private void runFlusher(){
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getFlushIntervalMillis());
+        boolean groupCommit = config.getFlushPolicy()==CommitLogConfig.FlushPolicy.GROUP_COMMIT;
+        while(!closed){
+            if(groupCommit){
+                //有append在等的时候会被unpark，一次force之后所有在等的线程一起返回
+                if(writeOffset<=flushedOffset){
+                    LockSupport.park(this);
+                }
+            }else{
+                LockSupport.parkNanos(this, intervalNanos);
+            }
+            try {
+                flush();
+            } catch (IOException e) {
+                //force失败时（例如磁盘错误）pageCache里的数据状态未知，不再重试，flush里已经记下失败、唤醒了等待的append
+                return;
+            }
+        }
+    }
+
+    public synchronized long rolls(){
+        return rolls;
+    }
+
+    /**
+     * 切换segment时下一个segment还没有预分配好（或者没有开启预分配）的次数，这时append要等文件创建完
+     */
+    public synchronized long preallocationMisses(){
+        return preallocationMisses;
+    }
+
+    public long forces(){
+        return forces;
+    }
+
+    /**
+     * 停止刷盘线程，把所有数据刷盘，删除预分配了还没用的segment
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this){
+            if(closed){
+                return;
+            }
+            closed = true;
+        }
+        if(flusher!=null){
+            LockSupport.unpark(flusher);
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            flush();
+        } finally {
+            flushStopped = true;
+            synchronized (flushMonitor){
+                flushMonitor.notifyAll();
+            }
+            if(allocator!=null){
+                allocator.shutdown();
+                //roll中同步创建segment失败时，preallocated已经置空，没有再提交新的预分配
+                Future<Segment> pending = preallocated;
+                try {
+                    if(pending!=null){
+                        pending.get().file.delete();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    //预分配失败了，没有文件要删
+                }
+            }
+        }
+    }
+
+    /**
+     * 顺序读，不是线程安全的，每个读线程用自己的Reader
+     */
+    public final class Reader {
+        private long position;
+        //position所在的segment，跨segment时才重新查找
+        private Segment segment;
+
+        private Reader(long position) {
+            this.position = position;
+            this.segment = segments.floorEntry(position).getValue();
+        }
+
+        /**
+         * @return 下一条记录的payload，已经读到最新写入的位置时返回null，之后有新记录写入可以继续调用
+         */
+        public ByteBuffer next() throws IOException {
+            while(true){
+                //先判断是不是已经切换走了再读：切换之前对这个segment的写入一定能读到，不会漏掉切换前最后写入的记录
+                boolean sealed = segment!=active;
+                int relative = (int) Math.min(position-segment.baseOffset, segment.capacity);
+                ByteBuffer record = segment.read(relative);
+                if(record!=null){
+                    position += RECORD_HEADER_LENGTH+record.remaining();
+                    return record;
+                }
+                if(!sealed){
+                    return null;
+                }
+                //切换之前已经把下一个segment放进了segments
+                Map.Entry<Long, Segment> next = segments.higherEntry(segment.baseOffset);
+                position = next.getKey();
+                segment = next.getValue();
+            }
+        }
+
+        /**
+         * 下一条要读的记录的offset
+         */
+        public long position(){
+            return position;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.wcn.jdk.example.io.file.commitlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CommitLog的写入、读取、恢复测试，和FileWriteTest.test6一样每条记录是"0123456789\r\n"。
+ *
+ * 1. raw-mmap：FileWriteTest.test6的写法，一次map整个文件，只put，作为上限；
+ * 2. append：单线程写MAX条，分别是不预分配、预分配、预分配+预先缺页（都不刷盘），以及INTERVAL刷盘；
+ * 3. tail-readers：一个线程写的同时READERS个Reader追着读，统计读到的记录数，校验内容和顺序；
+ * 4. recover：重新打开目录，逐条校验crc，再用Reader读一遍，条数必须和写入的一样；
+ * 5. group-commit：GROUP_COMMIT策略下N个线程并发append，每条记录都落盘之后才返回，统计每秒条数和force次数。
+ *
+ * 运行：java CommitLogBenchmark [目录]，默认在java.io.tmpdir下，每项开始前清空目录。
+ *
+ * 1核机器上（overlay文件系统，segment 64M，MAX=1千万，一条记录20字节）的结果：
+ * <pre>
+ * raw-mmap                     records= 10,000,000 costTime=   181ms records/s=   54,974,762
+ * append no-preallocate        records= 10,000,000 costTime=  1011ms records/s=    9,890,431 rolls=2 preallocationMisses=2 forces=3
+ * append preallocate           records= 10,000,000 costTime=   880ms records/s=   11,362,342 rolls=2 preallocationMisses=0 forces=3
+ * append preallocate+warm      records= 10,000,000 costTime=   960ms records/s=   10,414,853 rolls=2 preallocationMisses=0 forces=3
+ * append interval              records= 10,000,000 costTime=  1148ms records/s=    8,708,461 rolls=2 preallocationMisses=0 forces=27
+ * tail-readers write           records= 10,000,000 costTime=  2432ms records/s=    4,111,204 readers=2
+ * tail-readers read            records= 20,000,000 costTime=  2437ms records/s=    8,206,503 records/s of all readers, until the last record is read
+ * recover+read                 records= 10,000,000 costTime=   798ms records/s=   12,522,962 open=409ms
+ * group-commit threads=1       records=     38,482 costTime=  3000ms records/s=       12,827 forces=38482 records/force=1
+ * group-commit threads=8       records=    127,459 costTime=  3000ms records/s=       42,475 forces=33037 records/force=3
+ * group-commit threads=64      records=    229,126 costTime=  3003ms records/s=       76,280 forces=30235 records/force=7
+ * </pre>
+ * 1. append每条大约100ns，比裸的put慢5倍左右，多出来的是每条记录的锁、crc32、8字节的头和发布writePosition，
+ *    采样看不到单独的热点；换来的是可以切换文件、可以并发读、崩溃之后能找到最后一条完整的记录；
+ * 2. 不预分配时切换segment要在append的锁里创建文件、map，1千万条只切换两次，差别不大，
+ *    segment越小、写入越快，切换越频繁，差别越明显。预先缺页在这里没有收益：1核机器上后台线程缺页和写线程抢的是同一个核，
+ *    多核机器上才能真正把缺页从写线程挪走；
+ * 3. INTERVAL刷盘线程在写的同时force，1核上会抢写线程的时间，多核上影响会小很多；
+ * 4. Reader读到的是和文件共享内存的slice，两个Reader追着写线程读，读完的时间和写完的时间几乎一样，不会越落越远；
+ * 5. GROUP_COMMIT每次append都要等force（这里一次force几十微秒，真实磁盘上是毫秒级），单线程只有1万多条/秒，
+ *    并发线程越多，一次force覆盖的记录越多，但仍然比不等刷盘低两个数量级，只适合确实不能丢数据的写入。
+ */
+public class CommitLogBenchmark {
+    private static final int MAX = 10000000;
+    private static final int SEGMENT_SIZE = 64*1024*1024;
+    private static final int READERS = 2;
+    private static final int GROUP_COMMIT_SECONDS = 3;
+    private static final int[] GROUP_COMMIT_THREADS = {1, 8, 64};
+    private static final byte[] VALUES = "0123456789\r\n".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        File directory = new File(args.length>0 ? args[0] : System.getProperty("java.io.tmpdir"), "commitlog-benchmark");
+
+        rawMmap(directory);
+        CommitLogConfig base = new CommitLogConfig().setDirectory(directory).setSegmentSize(SEGMENT_SIZE);
+        append("no-preallocate", clean(base).setPreallocate(false).setWarmSegments(false).setFlushPolicy(CommitLogConfig.FlushPolicy.NONE));
+        append("preallocate", clean(base).setPreallocate(true).setWarmSegments(false).setFlushPolicy(CommitLogConfig.FlushPolicy.NONE));
+        append("preallocate+warm", clean(base).setPreallocate(true).setWarmSegments(true).setFlushPolicy(CommitLogConfig.FlushPolicy.NONE));
+        append("interval", clean(base).setFlushPolicy(CommitLogConfig.FlushPolicy.INTERVAL));
+        tailReaders(clean(base).setFlushPolicy(CommitLogConfig.FlushPolicy.INTERVAL));
+        recover(base);
+        for(int threads:GROUP_COMMIT_THREADS){
+            groupCommit(clean(base).setFlushPolicy(CommitLogConfig.FlushPolicy.GROUP_COMMIT), threads);
+        }
+        clean(base);
+    }
+
+    private static void rawMmap(File directory) throws IOException {
+        deleteAll(directory);
+        directory.mkdirs();
+        long beginTime = System.nanoTime();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(new File(directory, "raw"), "rw")) {
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) VALUES.length*MAX);
+            for(int i=0;i<MAX;i++){
+                buffer.put(VALUES);
+            }
+        }
+        report("raw-mmap", MAX, System.nanoTime()-beginTime, "");
+    }
+
+    private static void append(String name, CommitLogConfig config) throws IOException {
+        CommitLog log = CommitLog.open(config);
+        long beginTime = System.nanoTime();
+        for(int i=0;i<MAX;i++){
+            log.append(VALUES);
+        }
+        long elapsed = System.nanoTime()-beginTime;
+        log.close();
+        report("append "+name, MAX, elapsed, "rolls="+log.rolls()+" preallocationMisses="+log.preallocationMisses()+" forces="+log.forces());
+    }
+
+    private static void tailReaders(CommitLogConfig config) throws Exception {
+        CommitLog log = CommitLog.open(config);
+        long start = log.startOffset();
+        LongAdder read = new LongAdder();
+        CountDownLatch done = new CountDownLatch(READERS);
+        Throwable[] failure = new Throwable[1];
+        for(int r=0;r<READERS;r++){
+            new Thread(() -> {
+                try {
+                    CommitLog.Reader reader = log.reader(start);
+                    long count = 0;
+                    while(count<MAX){
+                        ByteBuffer record = reader.next();
+                        if(record==null){
+                            //读到了最新的位置，等写线程
+                            Thread.yield();
+                            continue;
+                        }
+                        if(!record.equals(ByteBuffer.wrap(VALUES))){
+                            throw new IllegalStateException("wrong record at "+reader.position());
+                        }
+                        count++;
+                    }
+                    read.add(count);
+                } catch (Throwable e) {
+                    failure[0] = e;
+                } finally {
+                    done.countDown();
+                }
+            }, "reader-"+r).start();
+        }
+        long beginTime = System.nanoTime();
+        for(int i=0;i<MAX;i++){
+            log.append(VALUES);
+        }
+        long writeElapsed = System.nanoTime()-beginTime;
+        done.await();
+        long readElapsed = System.nanoTime()-beginTime;
+        log.close();
+        if(failure[0]!=null){
+            throw new IllegalStateException("reader failed", failure[0]);
+        }
+        report("tail-readers write", MAX, writeElapsed, "readers="+READERS);
+        report("tail-readers read", read.sum(), readElapsed, "records/s of all readers, until the last record is read");
+    }
+
+    /**
+     * 读tailReaders留下的数据
+     */
+    private static void recover(CommitLogConfig config) throws IOException {
+        long beginTime = System.nanoTime();
+        CommitLog log = CommitLog.open(config);
+        long openElapsed = System.nanoTime()-beginTime;
+        CommitLog.Reader reader = log.reader(log.startOffset());
+        long count = 0;
+        while(reader.next()!=null){
+            count++;
+        }
+        long elapsed = System.nanoTime()-beginTime;
+        log.close();
+        if(count!=MAX){
+            throw new IllegalStateException("recovered "+count+" records, expected "+MAX);
+        }
+        report("recover+read", count, elapsed, "open="+TimeUnit.NANOSECONDS.toMillis(openElapsed)+"ms");
+    }
+
+    private static void groupCommit(CommitLogConfig config, int threads) throws Exception {
+        CommitLog log = CommitLog.open(config);
+        long deadline = System.nanoTime()+TimeUnit.SECONDS.toNanos(GROUP_COMMIT_SECONDS);
+        LongAdder appended = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        long beginTime = System.nanoTime();
+        for(int t=0;t<threads;t++){
+            new Thread(() -> {
+                try {
+                    while(System.nanoTime()<deadline){
+                        log.append(VALUES);
+                        appended.increment();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }, "append-"+t).start();
+        }
+        done.await();
+        long elapsed = System.nanoTime()-beginTime;
+        log.close();
+        report("group-commit threads="+threads, appended.sum(), elapsed,
+                "forces="+log.forces()+" records/force="+appended.sum()/Math.max(1, log.forces()));
+    }
+
+    private static CommitLogConfig clean(CommitLogConfig config) throws IOException {
+        deleteAll(config.getDirectory());
+        return config;
+    }
+
+    private static void deleteAll(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if(files==null){
+            return;
+        }
+        for(File file:files){
+            if(!file.delete()){
+                throw new IOException("can not delete "+file);
+            }
+        }
+    }
+
+    private static void report(String name, long records, long elapsedNanos, String extra){
+        double seconds = elapsedNanos/1e9;
+        System.out.printf("%-28s records=%,11d costTime=%6dms records/s=%,13.0f %s%n",
+                name, records, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), records/seconds, extra);
+    }
+}
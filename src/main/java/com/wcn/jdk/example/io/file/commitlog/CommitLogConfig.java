@@ -0,0 +1,132 @@
+package com.wcn.jdk.example.io.file.commitlog;
+
+import java.io.File;
+
+/**
+ * CommitLog的参数，所有setter都返回this，可以链式调用。
+ */
+public class CommitLogConfig {
+    //segment文件所在的目录，不存在时自动创建
+    private File directory = new File(System.getProperty("java.io.tmpdir"), "commitlog");
+    //每个segment文件的大小，整个文件一次map，MappedByteBuffer最大2G
+    private int segmentSize = 64*1024*1024;
+    //单条记录payload的上限，不能超过segmentSize-RECORD_HEADER_LENGTH
+    private int maxRecordSize = 4*1024*1024;
+    //当前segment开始使用时，就在后台线程里创建好下一个，切换segment时不需要在append里创建文件、map
+    private boolean preallocate = true;
+    //创建segment之后每个page写一次，把page fault提前到后台线程，append时不再缺页
+    private boolean warmSegments = true;
+    private FlushPolicy flushPolicy = FlushPolicy.INTERVAL;
+    //INTERVAL：最多间隔多久刷一次盘
+    private long flushIntervalMillis = 500;
+    //INTERVAL：没刷盘的数据超过这么多字节时提前唤醒刷盘线程，0表示只按时间刷
+    private int flushThresholdBytes = 16*1024*1024;
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public CommitLogConfig setDirectory(File directory) {
+        this.directory = directory;
+        return this;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public CommitLogConfig setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    public int getMaxRecordSize() {
+        return maxRecordSize;
+    }
+
+    public CommitLogConfig setMaxRecordSize(int maxRecordSize) {
+        this.maxRecordSize = maxRecordSize;
+        return this;
+    }
+
+    public boolean isPreallocate() {
+        return preallocate;
+    }
+
+    public CommitLogConfig setPreallocate(boolean preallocate) {
+        this.preallocate = preallocate;
+        return this;
+    }
+
+    public boolean isWarmSegments() {
+        return warmSegments;
+    }
+
+    public CommitLogConfig setWarmSegments(boolean warmSegments) {
+        this.warmSegments = warmSegments;
+        return this;
+    }
+
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    public CommitLogConfig setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+        return this;
+    }
+
+    public long getFlushIntervalMillis() {
+        return flushIntervalMillis;
+    }
+
+    public CommitLogConfig setFlushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+        return this;
+    }
+
+    public int getFlushThresholdBytes() {
+        return flushThresholdBytes;
+    }
+
+    public CommitLogConfig setFlushThresholdBytes(int flushThresholdBytes) {
+        this.flushThresholdBytes = flushThresholdBytes;
+        return this;
+    }
+
+    void validate(){
+        if(segmentSize<=CommitLog.RECORD_HEADER_LENGTH){
+            throw new IllegalArgumentException("segmentSize: "+segmentSize);
+        }
+        if(maxRecordSize<=0 || maxRecordSize>segmentSize-CommitLog.RECORD_HEADER_LENGTH){
+            throw new IllegalArgumentException("maxRecordSize: "+maxRecordSize+" (expected: 0 < n <= segmentSize-"+CommitLog.RECORD_HEADER_LENGTH+")");
+        }
+        if(flushIntervalMillis<=0){
+            throw new IllegalArgumentException("flushIntervalMillis: "+flushIntervalMillis+" (expected: > 0)");
+        }
+        if(flushThresholdBytes<0){
+            throw new IllegalArgumentException("flushThresholdBytes: "+flushThresholdBytes+" (expected: >= 0)");
+        }
+    }
+
+    /**
+     * 什么时候把mmap写入的数据从pageCache刷到磁盘（MappedByteBuffer.force，即msync）。
+     * 不管哪种策略，append返回后数据已经在pageCache里，进程崩溃不会丢，区别只在于操作系统崩溃、断电时丢多少
+     */
+    public enum FlushPolicy {
+        /**
+         * 只在flush()和close()时刷盘，其余时候由操作系统的脏页回写决定（/proc/sys/vm/dirty_*）
+         */
+        NONE,
+        /**
+         * 刷盘线程每flushIntervalMillis刷一次，没刷盘的数据超过flushThresholdBytes时提前刷，
+         * append不等待，断电最多丢一个间隔的数据
+         */
+        INTERVAL,
+        /**
+         * append等到自己的记录刷盘之后才返回。刷盘线程一次force覆盖所有已经写入的记录，
+         * 并发append的线程共享同一次force（group commit），线程越多每次force摊到的记录越多
+         */
+        GROUP_COMMIT
+    }
+}
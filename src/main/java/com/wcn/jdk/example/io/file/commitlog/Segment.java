@@ -0,0 +1,198 @@
+package com.wcn.jdk.example.io.file.commitlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * CommitLog的一个segment：一个固定大小的文件，整个map成一个MappedByteBuffer，写入方式和FileWriteTest.test6一样。
+ * 文件名是segment第一个字节的全局offset，20位补0，按文件名排序就是segment的顺序。
+ *
+ * 1. 只有一个写线程（CommitLog持有锁），通过writeBuffer顺序写；
+ * 2. 写完一条记录之后才更新volatile的writePosition，读线程先读writePosition，
+ *    只读它之前的数据，看到的一定是完整的记录，读写之间不需要加锁；
+ * 3. 读线程各自duplicate只读的readView，互不影响position；
+ * 4. map之后就关闭FileChannel，映射不依赖channel，segment不占文件描述符；
+ *    MappedByteBuffer也不主动unmap（jdk8没有公开的api），读线程拿到的slice一直可以安全访问，映射在buffer被GC时释放。
+ */
+final class Segment {
+    //jdk8没有公开的page size，4K是x86和大多数arm的默认值
+    private static final int PAGE_SIZE = 4096;
+
+    final long baseOffset;
+    final int capacity;
+    final File file;
+    //只用来force
+    private final MappedByteBuffer mapped;
+    //写线程专用，position就是下一条记录的位置
+    private final ByteBuffer writeBuffer;
+    //只读，不移动position，读线程duplicate之后使用
+    private final ByteBuffer readView;
+    private volatile int writePosition;
+    private volatile int flushedPosition;
+
+    private Segment(File file, long baseOffset, MappedByteBuffer mapped) {
+        this.file = file;
+        this.baseOffset = baseOffset;
+        this.capacity = mapped.capacity();
+        this.mapped = mapped;
+        this.writeBuffer = mapped.duplicate();
+        this.readView = mapped.asReadOnlyBuffer();
+    }
+
+    static String fileName(long baseOffset){
+        return String.format("%020d.log", baseOffset);
+    }
+
+    /**
+     * 创建一个新的空segment，文件已存在时报错，创建失败时删除文件
+     * @param warm 是否每个page写一次，让缺页在这里发生
+     */
+    static Segment create(File directory, long baseOffset, int capacity, boolean warm) throws IOException {
+        File file = new File(directory, fileName(baseOffset));
+        if(!file.createNewFile()){
+            throw new IOException("segment already exists: "+file);
+        }
+        MappedByteBuffer mapped;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            //setLength只是改文件大小，不分配磁盘块，是个稀疏文件
+            randomAccessFile.setLength(capacity);
+            mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException | RuntimeException e) {
+            //不删的话留下一个没有setLength的空文件，下次在同一个位置创建时会报已存在
+            file.delete();
+            throw e;
+        }
+        if(warm){
+            for(int i=0;i<capacity;i+=PAGE_SIZE){
+                mapped.put(i, (byte) 0);
+            }
+        }
+        return new Segment(file, baseOffset, mapped);
+    }
+
+    /**
+     * 打开已有的segment，从头扫描记录，第一条长度不合法或者校验和对不上的记录之后都视为没有写入
+     */
+    static Segment recover(File file, long baseOffset, CRC32 crc) throws IOException {
+        MappedByteBuffer mapped;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+        Segment segment = new Segment(file, baseOffset, mapped);
+        int position = 0;
+        int length;
+        while((length = segment.validRecordLength(position, crc))>=0){
+            position += CommitLog.RECORD_HEADER_LENGTH+length;
+        }
+        segment.writeBuffer.position(position);
+        segment.writePosition = position;
+        segment.flushedPosition = position;
+        return segment;
+    }
+
+    /**
+     * @return position处完整、校验和正确的记录的payload长度，否则返回-1
+     */
+    private int validRecordLength(int position, CRC32 crc){
+        if(capacity-position<CommitLog.RECORD_HEADER_LENGTH){
+            return -1;
+        }
+        int length = readView.getInt(position);
+        if(length<=0 || length>capacity-position-CommitLog.RECORD_HEADER_LENGTH){
+            return -1;
+        }
+        ByteBuffer payload = readView.duplicate();
+        payload.position(position+CommitLog.RECORD_HEADER_LENGTH).limit(position+CommitLog.RECORD_HEADER_LENGTH+length);
+        crc.reset();
+        crc.update(payload);
+        return (int) crc.getValue()==readView.getInt(position+4) ? length : -1;
+    }
+
+    /**
+     * 恢复之后继续写之前调用：把writePosition之后的内容清零。
+     * mmap的脏页回写没有顺序，崩溃时后面的page可能已经落盘而前面的没有，
+     * 不清掉的话，新记录写完之后下一次恢复可能会把后面残留的旧记录接上
+     */
+    void clearTail(){
+        int i = writePosition;
+        for(;i<capacity && (i&7)!=0;i++){
+            mapped.put(i, (byte) 0);
+        }
+        //一次比较8个字节，只写不为0的部分，没写过的page读一下不会变脏
+        for(;i+8<=capacity;i+=8){
+            if(mapped.getLong(i)!=0){
+                mapped.putLong(i, 0);
+            }
+        }
+        for(;i<capacity;i++){
+            mapped.put(i, (byte) 0);
+        }
+        mapped.force();
+    }
+
+    boolean hasRoom(int payloadLength){
+        return capacity-writePosition>=CommitLog.RECORD_HEADER_LENGTH+payloadLength;
+    }
+
+    /**
+     * 写线程调用，调用前用hasRoom检查过空间
+     * @return 记录在segment内的位置
+     */
+    int append(ByteBuffer payload, CRC32 crc){
+        int position = writePosition;
+        int length = payload.remaining();
+        crc.reset();
+        crc.update(payload.duplicate());
+        writeBuffer.putInt(length).putInt((int) crc.getValue()).put(payload);
+        //记录完整写入之后再发布
+        writePosition = position+CommitLog.RECORD_HEADER_LENGTH+length;
+        return position;
+    }
+
+    /**
+     * @return position处记录的payload，只读、和文件共享内存；position处还没有写入记录时返回null
+     */
+    ByteBuffer read(int position) throws IOException {
+        if(position>=writePosition){
+            return null;
+        }
+        int length = readView.getInt(position);
+        if(length<=0 || position+CommitLog.RECORD_HEADER_LENGTH+length>writePosition){
+            throw new IOException("no record at offset "+(baseOffset+position)+" in "+file);
+        }
+        ByteBuffer payload = readView.duplicate();
+        payload.position(position+CommitLog.RECORD_HEADER_LENGTH).limit(position+CommitLog.RECORD_HEADER_LENGTH+length);
+        return payload.slice();
+    }
+
+    int writePosition(){
+        return writePosition;
+    }
+
+    /**
+     * 可以和写线程并发调用，只保证调用时已经发布的记录落盘
+     */
+    void flush(){
+        int position = writePosition;
+        if(flushedPosition<position){
+            //jdk8只有整个buffer的force，内核只会写回其中的脏页
+            mapped.force();
+            flushedPosition = position;
+        }
+    }
+
+    boolean isDirty(){
+        return flushedPosition<writePosition;
+    }
+
+    @Override
+    public String toString() {
+        return file.getName()+"[writePosition="+writePosition+", flushedPosition="+flushedPosition+", capacity="+capacity+"]";
+    }
+}
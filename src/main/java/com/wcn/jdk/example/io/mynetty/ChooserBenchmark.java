@@ -0,0 +1,143 @@
+package com.wcn.jdk.example.io.mynetty;
+
+import java.io.IOException;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 对比不同MyEventExecutorChooser策略在负载不均衡时的p99延迟。
+ *
+ * 模拟方式：
+ * 1. 用Pipe.SourceChannel代替连接注册到loop上，这样loop的connectionCount是真实的。
+ * 2. 一小部分连接是"重"连接，请求频率是普通连接的很多倍，并且存活时间很长；
+ *    普通连接不停地关闭和新建（churn），新建的连接由chooser决定放到哪个loop。
+ * 3. 请求以固定速率发出（open-loop），每个请求作为任务提交到连接所属的loop执行，忙等一段时间模拟业务处理，
+ *    延迟 = 任务执行完的时间 - 请求计划发出的时间，这样loop积压时的排队时间也会被统计到，不会被低估。
+ *
+ * 运行：java ChooserBenchmark [loops] [seconds]
+ *
+ * 1核机器上4个loop运行5秒的结果（connections为结束时每个loop上的连接数，包括还在排队等待注册的）：
+ * ROUND_ROBIN            p50=  54604.0us p99=  562360.5us p999=  569117.0us connections=[106 97 541 106]
+ * LEAST_CONNECTIONS      p50=    716.1us p99=   52290.9us p999=   60990.4us connections=[100 101 100 101]
+ * POWER_OF_TWO_CHOICES   p50=    932.5us p99=   14247.0us p999=   19356.3us connections=[101 101 99 99]
+ * 轮询时重连接集中的那个loop一直积压，新连接还在不停地分配给它，排队的任务越来越多；
+ * 按负载选择时积压的loop不会再分到新连接。
+ */
+public class ChooserBenchmark {
+    private static final int INITIAL_CONNECTIONS = 400;
+    private static final double HEAVY_RATIO = 0.05;//重连接的比例
+    private static final double HEAVY_TRAFFIC = 0.5;//重连接产生的请求占总请求的比例
+    private static final int CHURN_PER_MS = 2;//每毫秒关闭/新建的普通连接数
+    private static final long SERVICE_NANOS = TimeUnit.MICROSECONDS.toNanos(20);//每个请求的处理时间
+    private static final double UTILIZATION = 0.7;//总请求量占所有loop处理能力的比例
+
+    public static void main(String[] args) throws Exception {
+        int loops = args.length>0 ? Integer.parseInt(args[0]) : 4;
+        int seconds = args.length>1 ? Integer.parseInt(args[1]) : 10;
+        System.out.println("loops="+loops+" seconds="+seconds+" cpus="+Runtime.getRuntime().availableProcessors());
+        for(MyEventExecutorChooser.Strategy strategy:MyEventExecutorChooser.Strategy.values()){
+            run(strategy, loops, seconds);
+        }
+    }
+
+    private static void run(MyEventExecutorChooser.Strategy strategy, int loopNum, int seconds) throws Exception {
+        MyEventLoopGroup group = new MyEventLoopGroup(loopNum, 100, strategy);
+        Random random = new Random(42);//每种策略使用同样的随机序列
+        List<Connection> heavy = new ArrayList<>();
+        List<Connection> light = new ArrayList<>();
+        for(int i=0;i<INITIAL_CONNECTIONS;i++){
+            if(random.nextDouble()<HEAVY_RATIO){
+                heavy.add(Connection.open(group));
+            }else{
+                light.add(Connection.open(group));
+            }
+        }
+
+        //每秒请求数 = 可以并行的loop数 * 每个loop每秒能处理的请求数 * 利用率
+        int parallelism = Math.min(loopNum, Runtime.getRuntime().availableProcessors());
+        double requestsPerSecond = parallelism * (TimeUnit.SECONDS.toNanos(1)/(double)SERVICE_NANOS) * UTILIZATION;
+        long intervalNanos = (long)(TimeUnit.SECONDS.toNanos(1)/requestsPerSecond);
+        int totalRequests = (int)(requestsPerSecond*seconds);
+        long[] latencies = new long[totalRequests];
+        Arrays.fill(latencies, -1);
+
+        long start = System.nanoTime();
+        long lastChurn = start;
+        for(int i=0;i<totalRequests;i++){
+            long intended = start + i*intervalNanos;
+            long now;
+            while((now = System.nanoTime())<intended){
+                LockSupport.parkNanos(intended-now);
+            }
+            //普通连接churn
+            long churn = (now-lastChurn)/TimeUnit.MILLISECONDS.toNanos(1)*CHURN_PER_MS;
+            if(churn>0){
+                lastChurn = now;
+                for(int j=0;j<churn && !light.isEmpty();j++){
+                    light.remove(random.nextInt(light.size())).close();
+                    light.add(Connection.open(group));
+                }
+            }
+            List<Connection> target = random.nextDouble()<HEAVY_TRAFFIC && !heavy.isEmpty() ? heavy : light;
+            Connection connection = target.get(random.nextInt(target.size()));
+            int index = i;
+            connection.loop.execute(()->{
+                long begin = System.nanoTime();
+                while(System.nanoTime()-begin<SERVICE_NANOS){
+                    //模拟业务处理
+                }
+                latencies[index] = System.nanoTime()-intended;
+            });
+        }
+
+        //结束时各个loop上的连接数
+        StringBuilder distribution = new StringBuilder();
+        for(MyEventLoop loop:group.loops()){
+            distribution.append(loop.connectionCount()).append(' ');
+        }
+        group.shutdown();
+        group.awaitTermination(30, TimeUnit.SECONDS);
+
+        long[] sorted = Arrays.stream(latencies).filter(l -> l>=0).sorted().toArray();
+        System.out.printf("%-22s requests=%d p50=%8.1fus p99=%10.1fus p999=%10.1fus max=%10.1fus connections=[%s]%n",
+                strategy, sorted.length,
+                percentile(sorted, 0.50)/1000.0, percentile(sorted, 0.99)/1000.0,
+                percentile(sorted, 0.999)/1000.0, sorted[sorted.length-1]/1000.0, distribution.toString().trim());
+    }
+
+    private static long percentile(long[] sorted, double p){
+        int index = (int)Math.ceil(p*sorted.length)-1;
+        return sorted[Math.max(0, Math.min(index, sorted.length-1))];
+    }
+
+    static class Connection{
+        private final Pipe pipe;
+        private final MyEventLoop loop;
+
+        private Connection(Pipe pipe, MyEventLoop loop) {
+            this.pipe = pipe;
+            this.loop = loop;
+        }
+
+        static Connection open(MyEventLoopGroup group) throws IOException {
+            Pipe pipe = Pipe.open();
+            pipe.source().configureBlocking(false);
+            MyEventLoop loop = group.next();
+            //不会有数据写入，只是为了让loop上有真实注册的channel
+            loop.register(pipe.source(), SelectionKey.OP_READ, key -> {});
+            return new Connection(pipe, loop);
+        }
+
+        void close() throws IOException {
+            //channel.close()会cancel对应的key，loop下一次select之后连接数就减少了
+            pipe.source().close();
+            pipe.sink().close();
+        }
+    }
+}
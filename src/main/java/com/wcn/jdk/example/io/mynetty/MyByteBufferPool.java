@@ -0,0 +1,239 @@
+package com.wcn.jdk.example.io.mynetty;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一个简化版的PooledByteBufAllocator，只池化DirectByteBuffer。
+ *
+ * 为什么要池化DirectByteBuffer：
+ * 1. SocketChannel.read/write传入的如果是HeapByteBuffer，IOUtil内部会先拷贝到一个临时的DirectByteBuffer再做系统调用，
+ *    直接使用DirectByteBuffer就少了这一次拷贝。（可以看FileWriteTest中test5的注释）
+ * 2. DirectByteBuffer的申请和释放都很慢（要走Bits.reserveMemory，释放要等Cleaner），不能每次read都申请一个，
+ *    所以申请一次后反复使用。
+ *
+ * 结构：
+ * 1. 按大小分为多个规格（512、1K、2K ... 64K），申请时向上取整到对应的规格，超过最大规格的不池化。
+ * 2. 每个线程有一个自己的缓存（ThreadLocal），申请和归还优先走线程缓存，不需要任何同步，
+ *    reactor线程上read用的buffer基本都是同一个线程申请和归还的，大部分都能命中线程缓存。
+ * 3. 线程缓存满了或者没有的时候，再走所有线程共享的池（ConcurrentLinkedQueue），
+ *    用于buffer在A线程申请、B线程归还的场景。
+ *
+ * HEAP：同样结构的HeapByteBuffer池。给直接操作byte[]更快的场景用，例如SSLEngine的密文buffer：
+ * jdk的AES-GCM在DirectByteBuffer上走的是逐块读取的慢路径（GHASH.processBlocksDirect），
+ * 换成HeapByteBuffer才能用上intrinsic，多出来的一次socket拷贝相比之下可以忽略。netty的SslHandler对jdk的SSLEngine也是用heap buffer。
+ *
+ * 注意：归还后的buffer就不能再使用了，同一个buffer也不能归还两次。
+ */
+public final class MyByteBufferPool {
+    public static final MyByteBufferPool DEFAULT = new MyByteBufferPool();
+
+    private static final int MIN_SIZE_SHIFT = 9;//最小规格512字节
+    private static final int SIZE_CLASS_NUM = 8;//512 1K 2K 4K 8K 16K 32K 64K
+    private static final int DEFAULT_THREAD_CACHE_SIZE = 64;
+    private static final int DEFAULT_SHARED_CACHE_SIZE = 1024;
+    //用到了上面的常量，放在它们后面
+    public static final MyByteBufferPool HEAP = new MyByteBufferPool(DEFAULT_THREAD_CACHE_SIZE, DEFAULT_SHARED_CACHE_SIZE, false);
+
+    private final boolean direct;
+    private final int maxPooledSize;
+    private final int threadCacheSize;
+    private final int sharedCacheSize;
+    private final Queue<ByteBuffer>[] sharedPools;
+    private final AtomicInteger[] sharedPoolSizes;
+    private final ThreadLocal<ThreadCache> threadCache = ThreadLocal.withInitial(ThreadCache::new);
+
+    //统计数据
+    private final LongAdder threadCacheHits = new LongAdder();
+    private final LongAdder sharedHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder hugeAllocations = new LongAdder();
+    private final LongAdder releases = new LongAdder();
+    private final LongAdder discards = new LongAdder();
+
+    public MyByteBufferPool() {
+        this(DEFAULT_THREAD_CACHE_SIZE, DEFAULT_SHARED_CACHE_SIZE);
+    }
+
+    /**
+     * @param threadCacheSize 每个线程每种规格最多缓存多少个buffer
+     * @param sharedCacheSize 共享池每种规格最多缓存多少个buffer
+     */
+    public MyByteBufferPool(int threadCacheSize, int sharedCacheSize) {
+        this(threadCacheSize, sharedCacheSize, true);
+    }
+
+    /**
+     * @param direct true池化DirectByteBuffer，false池化HeapByteBuffer
+     */
+    @SuppressWarnings("unchecked")
+    public MyByteBufferPool(int threadCacheSize, int sharedCacheSize, boolean direct) {
+        this.direct = direct;
+        this.maxPooledSize = sizeOf(SIZE_CLASS_NUM-1);
+        this.threadCacheSize = threadCacheSize;
+        this.sharedCacheSize = sharedCacheSize;
+        this.sharedPools = (Queue<ByteBuffer>[]) new Queue<?>[SIZE_CLASS_NUM];
+        this.sharedPoolSizes = new AtomicInteger[SIZE_CLASS_NUM];
+        for(int i=0;i<SIZE_CLASS_NUM;i++){
+            sharedPools[i] = new ConcurrentLinkedQueue<>();
+            sharedPoolSizes[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * 申请一个capacity至少为minCapacity的buffer（DirectByteBuffer或者HeapByteBuffer，看这个pool的类型），返回的buffer已经clear过了。
+     * 用完后要调用release归还。
+     */
+    public ByteBuffer allocate(int minCapacity){
+        if(minCapacity<0){
+            throw new IllegalArgumentException("minCapacity: "+minCapacity+" (expected: >= 0)");
+        }
+        if(minCapacity>maxPooledSize){
+            //太大的不池化，归还的时候直接丢弃
+            hugeAllocations.increment();
+            return newBuffer(minCapacity);
+        }
+        int index = sizeClassIndex(minCapacity);
+        ByteBuffer buffer = threadCache.get().poll(index);
+        if(buffer!=null){
+            threadCacheHits.increment();
+            return buffer;
+        }
+        buffer = sharedPools[index].poll();
+        if(buffer!=null){
+            sharedPoolSizes[index].decrementAndGet();
+            sharedHits.increment();
+            return buffer;
+        }
+        misses.increment();
+        return newBuffer(sizeOf(index));
+    }
+
+    private ByteBuffer newBuffer(int capacity){
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * 归还buffer，不是该pool申请出来的类型和规格（例如DEFAULT收到heap buffer、huge buffer）直接丢弃
+     */
+    public void release(ByteBuffer buffer){
+        if(buffer==null){
+            return;
+        }
+        int capacity = buffer.capacity();
+        if(buffer.isDirect()!=direct || buffer.isReadOnly() || capacity>maxPooledSize || Integer.bitCount(capacity)!=1 || capacity<sizeOf(0)){
+            discards.increment();
+            return;
+        }
+        releases.increment();
+        buffer.clear();
+        int index = sizeClassIndex(capacity);
+        if(threadCache.get().offer(index, buffer)){
+            return;
+        }
+        if(sharedPoolSizes[index].incrementAndGet()<=sharedCacheSize){
+            sharedPools[index].offer(buffer);
+        }else{
+            sharedPoolSizes[index].decrementAndGet();
+            discards.increment();
+        }
+    }
+
+    private static int sizeOf(int index){
+        return 1<<(index+MIN_SIZE_SHIFT);
+    }
+
+    private static int sizeClassIndex(int capacity){
+        if(capacity<=sizeOf(0)){
+            return 0;
+        }
+        //向上取整到2的n次方
+        int shift = 32-Integer.numberOfLeadingZeros(capacity-1);
+        return shift-MIN_SIZE_SHIFT;
+    }
+
+    public Stats stats(){
+        return new Stats(threadCacheHits.sum(), sharedHits.sum(), misses.sum(), hugeAllocations.sum(), releases.sum(), discards.sum());
+    }
+
+    /**
+     * 启动一个daemon线程，定时打印统计数据
+     */
+    public void reportEvery(long period, TimeUnit unit){
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "myByteBufferPool-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(()->System.out.println(stats()), period, period, unit);
+    }
+
+    /**
+     * 线程缓存，只会被一个线程访问，不需要同步
+     */
+    private final class ThreadCache{
+        @SuppressWarnings("unchecked")
+        private final ArrayDeque<ByteBuffer>[] caches = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[SIZE_CLASS_NUM];
+
+        ByteBuffer poll(int index){
+            ArrayDeque<ByteBuffer> cache = caches[index];
+            return cache==null ? null : cache.pollLast();
+        }
+
+        boolean offer(int index, ByteBuffer buffer){
+            ArrayDeque<ByteBuffer> cache = caches[index];
+            if(cache==null){
+                cache = caches[index] = new ArrayDeque<>(threadCacheSize);
+            }
+            if(cache.size()>=threadCacheSize){
+                return false;
+            }
+            //后进先出，最近用过的buffer更可能还在cpu缓存中
+            cache.addLast(buffer);
+            return true;
+        }
+    }
+
+    public static final class Stats{
+        public final long threadCacheHits;
+        public final long sharedHits;
+        public final long misses;
+        public final long hugeAllocations;
+        public final long releases;
+        public final long discards;
+
+        Stats(long threadCacheHits, long sharedHits, long misses, long hugeAllocations, long releases, long discards) {
+            this.threadCacheHits = threadCacheHits;
+            this.sharedHits = sharedHits;
+            this.misses = misses;
+            this.hugeAllocations = hugeAllocations;
+            this.releases = releases;
+            this.discards = discards;
+        }
+
+        public double hitRate(){
+            long total = threadCacheHits+sharedHits+misses+hugeAllocations;
+            return total==0 ? 0 : (double)(threadCacheHits+sharedHits)/total;
+        }
+
+        @Override
+        public String toString() {
+            return "MyByteBufferPool.Stats{" +
+                    "threadCacheHits=" + threadCacheHits +
+                    ", sharedHits=" + sharedHits +
+                    ", misses=" + misses +
+                    ", hugeAllocations=" + hugeAllocations +
+                    ", releases=" + releases +
+                    ", discards=" + discards +
+                    ", hitRate=" + String.format("%.4f", hitRate()) +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.wcn.jdk.example.io.mynetty;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * 注册到MyEventLoop上的channel的事件处理器，作为SelectionKey的attachment保存。
+ * MyEventLoop select到就绪的key后，取出attachment回调该接口，类似于netty中NioChannel.unsafe的作用。
+ *
+ * 回调永远在channel所属的MyEventLoop线程中执行，所以实现类里不需要考虑线程安全问题，
+ * 但是也不能在里面做阻塞操作，否则会拖慢该loop上的所有channel。
+ */
+public interface MyChannelHandler {
+    /**
+     * channel有就绪事件，具体是哪种事件通过key.readyOps()判断
+     * 抛出IOException时，MyEventLoop会cancel该key并关闭channel
+     */
+    void channelReady(SelectionKey key) throws IOException;
+}
@@ -0,0 +1,157 @@
+package com.wcn.jdk.example.io.mynetty;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 类似于netty中的EventExecutorChooser，新连接来的时候选择由哪个loop来处理。
+ *
+ * 轮询的问题：长连接的存活时间和繁忙程度都不一样，轮询只保证了分配的次数平均，
+ * 连接关闭一批之后，各个loop上剩下的连接数可能差别很大，忙的连接也可能刚好集中在一个loop上。
+ * 所以提供了几种根据loop当前负载来选择的策略。
+ */
+public interface MyEventExecutorChooser<E> {
+    E next();
+
+    /**
+     * 可以报告自身负载的loop，MyEventLoop和ServerSocketChannelTestV5.ReadThread都实现了该接口。
+     * 这些方法会被accept线程调用，实现类要保证读取是线程安全且廉价的。
+     */
+    interface LoadAware {
+        /**
+         * 注册在该loop上的连接数（包括还在队列里等待注册的）
+         */
+        int connectionCount();
+
+        /**
+         * 任务队列中等待执行的任务数
+         */
+        int pendingTasks();
+    }
+
+    enum Strategy {
+        /**
+         * 轮询，loop数量是2的n次方时用位运算代替取模
+         */
+        ROUND_ROBIN,
+        /**
+         * 选择负载最小的loop，每次都要遍历所有loop
+         */
+        LEAST_CONNECTIONS,
+        /**
+         * 随机选两个，取负载小的那个（power of two random choices），
+         * 效果接近LEAST_CONNECTIONS，但只需要看两个loop，而且不会所有新连接同时涌向同一个最空闲的loop
+         */
+        POWER_OF_TWO_CHOICES
+    }
+
+    static <E extends LoadAware> MyEventExecutorChooser<E> newChooser(Strategy strategy, E[] executors){
+        if(executors.length==0){
+            throw new IllegalArgumentException("executors is empty");
+        }
+        if(executors.length==1){
+            E executor = executors[0];
+            return () -> executor;
+        }
+        switch (strategy){
+            case ROUND_ROBIN:
+                return roundRobin(executors);
+            case LEAST_CONNECTIONS:
+                return new LeastLoadChooser<>(executors);
+            case POWER_OF_TWO_CHOICES:
+                return new PowerOfTwoChoicesChooser<>(executors);
+            default:
+                throw new IllegalArgumentException("unknown strategy: "+strategy);
+        }
+    }
+
+    static <E> MyEventExecutorChooser<E> roundRobin(E[] executors){
+        if((executors.length & -executors.length)==executors.length){
+            return new PowerOfTwoRoundRobinChooser<>(executors);
+        }
+        return new GenericRoundRobinChooser<>(executors);
+    }
+
+    /**
+     * 负载的计算方式：连接数 + 等待执行的任务数。
+     * 任务数反映的是loop当前有多忙，连接数反映的是loop以后可能有多忙。
+     */
+    static int load(LoadAware executor){
+        return executor.connectionCount()+executor.pendingTasks();
+    }
+
+    final class PowerOfTwoRoundRobinChooser<E> implements MyEventExecutorChooser<E>{
+        private final AtomicInteger idx = new AtomicInteger();
+        private final E[] executors;
+
+        PowerOfTwoRoundRobinChooser(E[] executors) {
+            this.executors = executors;
+        }
+
+        @Override
+        public E next() {
+            //int溢出后变成负数，和length-1做与运算依然是正确的下标
+            return executors[idx.getAndIncrement() & executors.length-1];
+        }
+    }
+
+    final class GenericRoundRobinChooser<E> implements MyEventExecutorChooser<E>{
+        private final AtomicInteger idx = new AtomicInteger();
+        private final E[] executors;
+
+        GenericRoundRobinChooser(E[] executors) {
+            this.executors = executors;
+        }
+
+        @Override
+        public E next() {
+            return executors[Math.abs(idx.getAndIncrement() % executors.length)];
+        }
+    }
+
+    final class LeastLoadChooser<E extends LoadAware> implements MyEventExecutorChooser<E>{
+        private final AtomicInteger idx = new AtomicInteger();
+        private final E[] executors;
+
+        LeastLoadChooser(E[] executors) {
+            this.executors = executors;
+        }
+
+        @Override
+        public E next() {
+            //从轮询的位置开始遍历，负载相同时不会总是选中第一个
+            int start = Math.abs(idx.getAndIncrement() % executors.length);
+            E best = executors[start];
+            int bestLoad = load(best);
+            for(int i=1;i<executors.length && bestLoad>0;i++){
+                E executor = executors[(start+i) % executors.length];
+                int load = load(executor);
+                if(load<bestLoad){
+                    best = executor;
+                    bestLoad = load;
+                }
+            }
+            return best;
+        }
+    }
+
+    final class PowerOfTwoChoicesChooser<E extends LoadAware> implements MyEventExecutorChooser<E>{
+        private final E[] executors;
+
+        PowerOfTwoChoicesChooser(E[] executors) {
+            this.executors = executors;
+        }
+
+        @Override
+        public E next() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int length = executors.length;
+            int a = random.nextInt(length);
+            //保证b和a不相同
+            int b = (a + 1 + random.nextInt(length-1)) % length;
+            E first = executors[a];
+            E second = executors[b];
+            return load(first)<=load(second) ? first : second;
+        }
+    }
+}
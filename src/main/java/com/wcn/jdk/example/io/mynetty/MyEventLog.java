@@ -0,0 +1,292 @@
+package com.wcn.jdk.example.io.mynetty;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步事件日志，用来代替io线程里的System.out.println。
+ *
+ * System.out.println的问题：
+ * 1. PrintStream内部是synchronized的，多个io线程同时打印会互相阻塞；
+ * 2. 每次都同步write到stdout，终端或者管道慢的时候io线程跟着卡住；
+ * 3. 字符串拼接每次都要分配内存。
+ *
+ * 做法（类似于log4j2的AsyncLogger/disruptor）：
+ * 1. 日志格式提前定义好（Event），io线程只把 事件类型+最多一个对象参数+两个long参数+时间+线程 写进一个预先分配好的环形数组，
+ *    不拼接字符串、不分配内存，多个线程通过CAS抢占槽位，不加锁；
+ * 2. 一个后台线程按顺序读取，拼接成字符串，攒一批一次写出到System.out；
+ * 3. 环形数组满了（后台线程跟不上）直接丢弃并计数，绝不阻塞io线程；
+ * 4. 级别过滤：低于当前级别的事件在调用处第一行就返回；
+ * 5. 采样：高频事件可以设置每N次只记录1次（随机采样，不需要共享计数器）。
+ *
+ * 对象参数（例如远端地址）的toString()是在后台线程中调用的，所以只能传不可变对象。
+ * 对象参数是Throwable时，在这一行后面打印它的堆栈，和printStackTrace一样，同样是在后台线程中。
+ *
+ * 启动参数：-Dmynetty.eventlog.level=DEBUG（默认INFO），-Dmynetty.eventlog.capacity=8192
+ */
+public final class MyEventLog {
+    public enum Level {
+        DEBUG, INFO, WARN
+    }
+
+    private static final int CAPACITY = normalize(Integer.getInteger("mynetty.eventlog.capacity", 8192));
+    private static final int MASK = CAPACITY-1;
+    private static final int MAX_BATCH = 256;
+
+    private static volatile Level level = Level.valueOf(System.getProperty("mynetty.eventlog.level", "INFO").toUpperCase());
+
+    //每个槽位的字段分开存成数组，published[i]==序号 表示该槽位已经写完，可以读取
+    private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private static final Event[] events = new Event[CAPACITY];
+    private static final Thread[] threads = new Thread[CAPACITY];
+    private static final Object[] refs = new Object[CAPACITY];
+    private static final long[] args0 = new long[CAPACITY];
+    private static final long[] args1 = new long[CAPACITY];
+    private static final long[] times = new long[CAPACITY];
+    private static final byte[] shapes = new byte[CAPACITY];//低两位是long参数的个数，HAS_REF表示有对象参数
+    private static final int HAS_REF = 4;
+
+    private static final AtomicLong tail = new AtomicLong();//下一个要写的序号，生产者CAS递增
+    private static volatile long head;//下一个要读的序号，只有后台线程写
+    private static final LongAdder dropped = new LongAdder();
+    private static final Thread writer;
+    private static volatile boolean shutdown;
+
+    static {
+        for(int i=0;i<CAPACITY;i++){
+            published.set(i, -1);
+        }
+        writer = new Thread(MyEventLog::runWriter, "my-event-log");
+        writer.setDaemon(true);
+        writer.start();
+        //进程退出前把剩下的写完
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            shutdown = true;
+            LockSupport.unpark(writer);
+            try {
+                writer.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "my-event-log-shutdown"));
+    }
+
+    private MyEventLog() {
+    }
+
+    /**
+     * 定义一种事件，应该保存为static final字段，不要每次记录时创建
+     * @param format 用{}作为参数的占位符，例如 "selectNumRead:{}"
+     */
+    public static Event event(Level level, String format){
+        return new Event(level, format, 1);
+    }
+
+    /**
+     * @param sampleRate 每sampleRate次只记录1次，1表示全部记录
+     */
+    public static Event event(Level level, String format, int sampleRate){
+        return new Event(level, format, sampleRate);
+    }
+
+    public static void setLevel(Level newLevel){
+        level = newLevel;
+    }
+
+    public static boolean isEnabled(Level eventLevel){
+        return eventLevel.ordinal()>=level.ordinal();
+    }
+
+    public static long dropped(){
+        return dropped.sum();
+    }
+
+    public static void log(Event event){
+        if(event.shouldLog()){
+            publish(event, null, 0, 0, 0);
+        }
+    }
+
+    public static void log(Event event, long arg0){
+        if(event.shouldLog()){
+            publish(event, null, arg0, 0, 1);
+        }
+    }
+
+    public static void log(Event event, long arg0, long arg1){
+        if(event.shouldLog()){
+            publish(event, null, arg0, arg1, 2);
+        }
+    }
+
+    /**
+     * @param ref 第一个占位符，toString()在后台线程中调用，是Throwable时还会打印堆栈
+     */
+    public static void log(Event event, Object ref){
+        if(event.shouldLog()){
+            publish(event, ref, 0, 0, HAS_REF);
+        }
+    }
+
+    public static void log(Event event, Object ref, long arg0){
+        if(event.shouldLog()){
+            publish(event, ref, arg0, 0, HAS_REF|1);
+        }
+    }
+
+    private static void publish(Event event, Object ref, long arg0, long arg1, int shape){
+        long sequence;
+        do {
+            sequence = tail.get();
+            if(sequence-head>=CAPACITY){
+                //后台线程跟不上，丢弃，不能阻塞io线程
+                dropped.increment();
+                return;
+            }
+        } while(!tail.compareAndSet(sequence, sequence+1));
+        int index = (int)(sequence & MASK);
+        events[index] = event;
+        threads[index] = Thread.currentThread();
+        refs[index] = ref;
+        args0[index] = arg0;
+        args1[index] = arg1;
+        shapes[index] = (byte) shape;
+        times[index] = System.currentTimeMillis();
+        //lazySet保证上面的普通写在它之前对后台线程可见
+        published.lazySet(index, sequence);
+    }
+
+    private static void runWriter(){
+        StringBuilder sb = new StringBuilder(4096);
+        SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+        Date date = new Date();
+        long reportedDropped = 0;
+        int idle = 0;
+        while(true){
+            int count = 0;
+            long sequence = head;
+            while(count<MAX_BATCH){
+                int index = (int)(sequence & MASK);
+                if(published.get(index)!=sequence){
+                    //没有新事件，或者生产者抢到了槽位还没写完
+                    break;
+                }
+                date.setTime(times[index]);
+                sb.append(dateFormat.format(date)).append(" [").append(threads[index].getName()).append("] ");
+                Event event = events[index];
+                Object ref = refs[index];
+                event.format(sb, ref, args0[index], args1[index], shapes[index]);
+                sb.append('\n');
+                if(ref instanceof Throwable){
+                    StringWriter stackTrace = new StringWriter();
+                    ((Throwable) ref).printStackTrace(new PrintWriter(stackTrace));
+                    sb.append(stackTrace);
+                }
+                //不再引用，可以被回收
+                threads[index] = null;
+                refs[index] = null;
+                sequence++;
+                count++;
+            }
+            head = sequence;
+            if(count>0){
+                idle = 0;
+                PrintStream out = System.out;
+                out.print(sb);
+                sb.setLength(0);
+                continue;
+            }
+            long droppedNow = dropped.sum();
+            if(droppedNow!=reportedDropped){
+                System.out.println("MyEventLog dropped "+(droppedNow-reportedDropped)+" events");
+                reportedDropped = droppedNow;
+            }
+            if(shutdown){
+                System.out.flush();
+                return;
+            }
+            //空闲时逐渐退避，生产者不负责唤醒（unpark是系统调用），
+            //最多sleep 10ms，按默认容量每秒80万条以内不会丢
+            if(++idle<100){
+                Thread.yield();
+            }else{
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(idle<200 ? 1 : 10));
+            }
+        }
+    }
+
+    private static int normalize(int capacity){
+        capacity = Math.max(capacity, 64);
+        int n = Integer.highestOneBit(capacity);
+        return n==capacity ? n : n<<1;
+    }
+
+    /**
+     * 一种事件：级别、格式、采样率
+     */
+    public static final class Event {
+        private final Level level;
+        private final String[] parts;//format按{}切分后的各段，parts.length-1个占位符
+        private final int sampleRate;
+
+        private Event(Level level, String format, int sampleRate) {
+            if(sampleRate<=0){
+                throw new IllegalArgumentException("sampleRate: "+sampleRate+" (expected: > 0)");
+            }
+            this.level = level;
+            this.sampleRate = sampleRate;
+            List<String> list = new ArrayList<>();
+            int from = 0;
+            int index;
+            while((index = format.indexOf("{}", from))>=0){
+                list.add(format.substring(from, index));
+                from = index+2;
+            }
+            list.add(format.substring(from));
+            this.parts = list.toArray(new String[0]);
+        }
+
+        private boolean shouldLog(){
+            if(!isEnabled(level)){
+                return false;
+            }
+            return sampleRate==1 || ThreadLocalRandom.current().nextInt(sampleRate)==0;
+        }
+
+        private void format(StringBuilder sb, Object ref, long arg0, long arg1, int shape){
+            sb.append(level).append(' ');
+            int arg = 0;
+            int argCount = shape & 3;
+            boolean hasRef = (shape & HAS_REF)!=0;
+            for(int i=0;i<parts.length;i++){
+                sb.append(parts[i]);
+                if(i==parts.length-1){
+                    break;
+                }
+                //占位符依次填入ref、arg0、arg1
+                if(hasRef){
+                    sb.append(ref);
+                    hasRef = false;
+                }else if(arg<argCount){
+                    sb.append(arg++==0 ? arg0 : arg1);
+                }else{
+                    sb.append("{}");
+                }
+            }
+            if(sampleRate>1){
+                sb.append(" (sampled 1/").append(sampleRate).append(')');
+            }
+        }
+    }
+}
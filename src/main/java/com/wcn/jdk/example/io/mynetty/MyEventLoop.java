@@ -1,18 +1,260 @@
 package com.wcn.jdk.example.io.mynetty;
 
 import java.io.IOException;
-import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectableChannel;
-import java.nio.channels.Selector;
+import java.nio.channels.SelectionKey;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 
-public class MyEventLoop {
-    private Selector selector;
+/**
+ * 类似于netty中的NioEventLoop，是ServerSocketChannelTestV5中ReadThread的通用版本。
+ *
+ * 每个MyEventLoop拥有：
+ * 1. 一个Selector，注册到该loop上的channel的所有事件都由它来select。
+ * 2. 一个独立的线程，循环执行 select -> 处理就绪的key -> 执行任务队列里的任务。
+ * 3. 一个任务队列，其它线程想要操作该loop上的channel（例如register）时，都是封装成任务放入队列，
+ *    由loop线程自己来执行，这样selector和channel永远只会被一个线程操作，不需要加锁。
+ *
+ * ioRatio：一次循环中处理io事件和执行任务的时间比例，和netty中的含义一样。
+ * 例如ioRatio=50，处理key用了1ms，那么执行任务的时间最多也只有1ms，剩下的任务下次循环再执行，
+ * 避免任务太多导致io事件处理不及时。ioRatio=100时不限制任务的执行时间。
+ */
+public class MyEventLoop implements Executor, MyEventExecutorChooser.LoadAware {
+    public static final int DEFAULT_IO_RATIO = 50;
+    //每执行多少个任务检查一次是否超时，System.nanoTime()本身也是有开销的
+    private static final int CHECK_TIMEOUT_INTERVAL = 64;
 
-    MyEventLoop() throws IOException {
-        selector = Selector.open();
+    private final MyEventLoopGroup parent;
+    private final MySelector selector;
+    private final BooleanSupplier hasTasks = this::hasTasks;
+    //处理select出来的key：交给注册时attach的MyChannelHandler
+    private final MyChannelHandler dispatcher = key -> ((MyChannelHandler) key.attachment()).channelReady(key);
+    private final Thread thread;
+    private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+    //ConcurrentLinkedQueue.size()需要遍历整个队列，单独计数
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+    //已经调用了register但是还没有在loop线程中真正注册的channel数
+    private final AtomicInteger pendingRegistrations = new AtomicInteger();
+    //selector上注册的channel数，只有loop线程会更新，其它线程读取
+    private volatile int registeredChannels;
+    private final CountDownLatch terminationLatch = new CountDownLatch(1);
+    private volatile int ioRatio;
+    private volatile boolean shutdown;
+    //loop线程开始最后一次执行任务之前设置，之后放入队列的任务可能没人执行
+    private volatile boolean terminated;
+
+    MyEventLoop(MyEventLoopGroup parent, String threadName, int ioRatio) throws IOException {
+        this.parent = parent;
+        this.selector = MySelector.open();
+        setIoRatio(ioRatio);
+        this.thread = new Thread(this::run, threadName);
+    }
+
+    void start(){
+        thread.start();
+    }
+
+    public MyEventLoopGroup parent(){
+        return parent;
+    }
+
+    public boolean inEventLoop(){
+        return Thread.currentThread()==thread;
+    }
+
+    public int getIoRatio() {
+        return ioRatio;
+    }
+
+    public void setIoRatio(int ioRatio) {
+        if(ioRatio<=0 || ioRatio>100){
+            throw new IllegalArgumentException("ioRatio: "+ioRatio+" (expected: 0 < ioRatio <= 100)");
+        }
+        this.ioRatio = ioRatio;
+    }
+
+    @Override
+    public int pendingTasks(){
+        return pendingTasks.get();
+    }
+
+    private boolean hasTasks(){
+        return !taskQueue.isEmpty();
+    }
+
+    public MySelector selector(){
+        return selector;
+    }
+
+    @Override
+    public int connectionCount() {
+        return registeredChannels+pendingRegistrations.get();
+    }
+
+    /**
+     * 提交一个任务到该loop的线程中执行，可以在任意线程中调用，
+     * loop已经关闭时抛出IllegalStateException，不会出现放进了队列却没有被执行的任务
+     */
+    @Override
+    public void execute(Runnable task) {
+        if(task==null){
+            throw new NullPointerException("task");
+        }
+        if(shutdown){
+            throw new IllegalStateException("event loop shut down");
+        }
+        pendingTasks.incrementAndGet();
+        taskQueue.add(task);
+        if(terminated && taskQueue.remove(task)){
+            //检查shutdown之后loop线程已经做完了最后一次runAllTasks，移除成功说明loop线程没有取到它，拒绝；
+            //移除失败说明已经被loop线程取走执行了
+            pendingTasks.decrementAndGet();
+            throw new IllegalStateException("event loop terminated");
+        }
+        if(!inEventLoop()){
+            //loop线程可能正阻塞在select()上，唤醒它来执行任务，loop醒着的时候不会真的调用selector.wakeup()
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 将channel注册到该loop的selector上，handler作为attachment，有事件就绪时回调。
+     * 和V5中ReadThread一样，注册动作是放到loop线程中执行的，避免V3中的死锁问题。
+     * 注册失败（包括loop已经关闭）时channel会被关闭，future以异常结束。
+     */
+    public CompletableFuture<SelectionKey> register(SelectableChannel channel, int ops, MyChannelHandler handler){
+        CompletableFuture<SelectionKey> future = new CompletableFuture<>();
+        pendingRegistrations.incrementAndGet();
+        Runnable task = ()->{
+            pendingRegistrations.decrementAndGet();
+            try {
+                if(channel.isBlocking()){
+                    channel.configureBlocking(false);
+                }
+                SelectionKey key = channel.register(selector.unwrap(), ops, handler);
+                registeredChannels = selector.unwrap().keys().size();
+                future.complete(key);
+            } catch (IOException | RuntimeException e) {
+                //例如channel已经关闭（ClosedChannelException）、selector已经关闭（ClosedSelectorException），
+                //调用方可能不会去看future，这里关掉channel，不让它泄漏
+                closeQuietly(channel);
+                future.completeExceptionally(e);
+            }
+        };
+        try {
+            execute(task);
+        } catch (IllegalStateException e) {
+            pendingRegistrations.decrementAndGet();
+            closeQuietly(channel);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private static void closeQuietly(SelectableChannel channel){
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //ignore
+        }
+    }
+
+    private void run(){
+        try{
+            while(!shutdown){
+                try {
+                    //有任务要执行时不能阻塞
+                    selector.select(hasTasks);
+                    //select之后cancel的key已经从keys中移除了
+                    registeredChannels = selector.unwrap().keys().size();
+
+                    int ratio = ioRatio;
+                    if(ratio==100){
+                        selector.processSelectedKeys(dispatcher);
+                        runAllTasks(-1);
+                    }else{
+                        long ioStartTime = System.nanoTime();
+                        selector.processSelectedKeys(dispatcher);
+                        long ioTime = System.nanoTime() - ioStartTime;
+                        runAllTasks(ioTime * (100 - ratio) / ratio);
+                    }
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+        }finally {
+            //关闭前把剩下的任务执行掉，selector还没关闭，剩下的register也会正常注册，随后被closeAll关闭。
+            //execute是先放入队列再检查terminated：检查时还是false的任务，在这里一定能取到；
+            //是true的任务，没被这里取走的由execute自己移除并拒绝，不会有任务一直留在队列里
+            terminated = true;
+            runAllTasks(-1);
+            closeAll();
+            terminationLatch.countDown();
+        }
+    }
+
+    /**
+     * @param timeoutNanos 最多执行多久，小于0表示执行完队列里的所有任务
+     */
+    private void runAllTasks(long timeoutNanos){
+        Runnable task = pollTask();
+        if(task==null){
+            return;
+        }
+        long deadline = timeoutNanos<0 ? 0 : System.nanoTime()+timeoutNanos;
+        long runTasks = 0;
+        for(;;){
+            safeExecute(task);
+            runTasks++;
+            if(timeoutNanos>=0 && (runTasks % CHECK_TIMEOUT_INTERVAL)==0 && System.nanoTime()>=deadline){
+                break;
+            }
+            task = pollTask();
+            if(task==null){
+                break;
+            }
+        }
+    }
+
+    private Runnable pollTask(){
+        Runnable task = taskQueue.poll();
+        if(task!=null){
+            pendingTasks.decrementAndGet();
+        }
+        return task;
+    }
+
+    private static void safeExecute(Runnable task){
+        try {
+            task.run();
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+
+    private void closeAll(){
+        for(SelectionKey key:selector.unwrap().keys()){
+            MySelector.closeQuietly(key);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void shutdown(){
+        shutdown = true;
+        selector.unwrap().wakeup();
     }
 
-    void register(SelectableChannel channel, int ops, Object atr) throws ClosedChannelException {
-        channel.register(selector, ops, atr);
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminationLatch.await(timeout, unit);
     }
 }
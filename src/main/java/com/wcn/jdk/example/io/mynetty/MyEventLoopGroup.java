@@ -1,23 +1,93 @@
 package com.wcn.jdk.example.io.mynetty;
 
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicLong;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * 类似于netty中的NioEventLoopGroup，管理一组MyEventLoop，每个loop一个线程。
+ * 用法和ServerSocketChannelTestV5中的ReadThreadGroup一样：
+ * accept到的channel通过register()分配到其中一个loop上，之后该channel的所有事件都在这个loop的线程中处理。
+ */
 public class MyEventLoopGroup {
-    private AtomicLong atomicLong = new AtomicLong(0);
+    private static final AtomicInteger poolId = new AtomicInteger();
+
     private MyEventLoop[] child;
+    private MyEventExecutorChooser<MyEventLoop> chooser;
+
+    /**
+     * 默认线程数为cpu核数
+     */
+    public MyEventLoopGroup() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
 
     public MyEventLoopGroup(int threadNum) throws IOException {
-        assert threadNum>0;
+        this(threadNum, MyEventLoop.DEFAULT_IO_RATIO);
+    }
+
+    public MyEventLoopGroup(int threadNum, int ioRatio) throws IOException {
+        this(threadNum, ioRatio, MyEventExecutorChooser.Strategy.ROUND_ROBIN);
+    }
+
+    public MyEventLoopGroup(int threadNum, int ioRatio, MyEventExecutorChooser.Strategy strategy) throws IOException {
+        if(threadNum<=0){
+            throw new IllegalArgumentException("threadNum: "+threadNum+" (expected: > 0)");
+        }
+        String prefix = "myEventLoop-"+poolId.incrementAndGet()+"-";
         child = new MyEventLoop[threadNum];
         for(int i=0;i<threadNum;i++){
-            child[i] = new MyEventLoop();
+            child[i] = new MyEventLoop(this, prefix+i, ioRatio);
+        }
+        chooser = MyEventExecutorChooser.newChooser(strategy, child);
+        for(MyEventLoop loop:child){
+            loop.start();
         }
     }
 
-//    public void register()
+    public CompletableFuture<SelectionKey> register(SelectableChannel channel, int ops, MyChannelHandler handler){
+        return next().register(channel, ops, handler);
+    }
 
-    private MyEventLoop next(){
-        return child[(int)(atomicLong.getAndIncrement()%child.length)];
+    public void setIoRatio(int ioRatio){
+        for(MyEventLoop loop:child){
+            loop.setIoRatio(ioRatio);
+        }
+    }
+
+    //选择一个下次使用到的MyEventLoop，具体策略见MyEventExecutorChooser
+    public MyEventLoop next(){
+        return chooser.next();
+    }
+
+    public MyEventLoop[] loops(){
+        return child.clone();
+    }
+
+    public int size(){
+        return child.length;
+    }
+
+    /**
+     * 通知所有loop退出，loop线程会执行完剩下的任务，关闭所有channel和selector后结束
+     */
+    public void shutdown(){
+        for(MyEventLoop loop:child){
+            loop.shutdown();
+        }
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime()+unit.toNanos(timeout);
+        for(MyEventLoop loop:child){
+            long left = deadline-System.nanoTime();
+            if(left<=0 || !loop.awaitTermination(left, TimeUnit.NANOSECONDS)){
+                return false;
+            }
+        }
+        return true;
     }
 }
@@ -0,0 +1,80 @@
+package com.wcn.jdk.example.io.mynetty;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 使用MyEventLoopGroup实现ServerSocketChannelTestV5同样的功能，
+ * 不需要再自己写accept线程、read线程、队列这些东西了。
+ *
+ * boss：一个loop，只负责accept。
+ * worker：cpu核数个loop，负责accept到的连接的read。
+ */
+public class MyNettyServer {
+    private static final byte[] RESPONSE_PREFIX = "response_".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws Exception{
+        MyEventLoopGroup boss = new MyEventLoopGroup(1);
+        MyEventLoopGroup worker = new MyEventLoopGroup();
+
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.configureBlocking(false);
+        ssc.bind(new InetSocketAddress(8080), 128);
+        boss.register(ssc, SelectionKey.OP_ACCEPT, new AcceptHandler(worker)).get();//阻塞到注册完成
+        System.out.println("server start success.");
+        MyByteBufferPool.DEFAULT.reportEvery(10, TimeUnit.SECONDS);
+    }
+
+    static class AcceptHandler implements MyChannelHandler{
+        private MyEventLoopGroup worker;
+
+        AcceptHandler(MyEventLoopGroup worker) {
+            this.worker = worker;
+        }
+
+        @Override
+        public void channelReady(SelectionKey key) throws IOException {
+            ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
+            SocketChannel socketChannel = serverSocketChannel.accept();
+            if(socketChannel==null){
+                return;
+            }
+            System.out.println("socket accept:"+socketChannel.getRemoteAddress());
+            socketChannel.configureBlocking(false);
+            //具体注册到哪个loop上此处不关心
+            worker.register(socketChannel, SelectionKey.OP_READ, new EchoHandler());
+        }
+    }
+
+    static class EchoHandler implements MyChannelHandler{
+        @Override
+        public void channelReady(SelectionKey key) throws IOException {
+            SocketChannel socketChannel = (SocketChannel) key.channel();
+            ByteBuffer byteBuffer = MyByteBufferPool.DEFAULT.allocate(1024);
+            try {
+                int readNum = socketChannel.read(byteBuffer);
+                if(readNum>0){
+                    byteBuffer.flip();
+                    ByteBuffer response = MyByteBufferPool.DEFAULT.allocate(RESPONSE_PREFIX.length+readNum);
+                    response.put(RESPONSE_PREFIX).put(byteBuffer);
+                    response.flip();
+                    socketChannel.write(response);
+                    MyByteBufferPool.DEFAULT.release(response);
+                }else if(readNum<0){
+                    //-1表示客户端关闭
+                    System.out.println(Thread.currentThread().getName()+" clint close: "+socketChannel.getRemoteAddress());
+                    key.cancel();
+                    socketChannel.close();
+                }
+            } finally {
+                MyByteBufferPool.DEFAULT.release(byteBuffer);
+            }
+        }
+    }
+}
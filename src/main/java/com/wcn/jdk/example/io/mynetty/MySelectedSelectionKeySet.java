@@ -0,0 +1,87 @@
+package com.wcn.jdk.example.io.mynetty;
+
+import java.nio.channels.SelectionKey;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 类似于netty中的SelectedSelectionKeySet，用数组代替jdk SelectorImpl中的HashSet保存select出来的key。
+ *
+ * jdk的selectedKeys是一个HashSet，每次select都要往里add（计算hash、可能还要创建Node对象），
+ * 遍历时还要创建Iterator，一个一个remove。
+ * select出来的key本身是不会重复的（SelectorImpl会先判断contains），所以用数组就够了：
+ * add就是追加到数组末尾，处理完一批后整体清空。
+ *
+ * 只有SelectorImpl内部会调用add，处理key的地方直接访问数组，不走Set的接口。
+ */
+final class MySelectedSelectionKeySet extends AbstractSet<SelectionKey> {
+    SelectionKey[] keys;
+    int size;
+
+    MySelectedSelectionKeySet() {
+        keys = new SelectionKey[1024];
+    }
+
+    @Override
+    public boolean add(SelectionKey o) {
+        if(o==null){
+            return false;
+        }
+        if(size==keys.length){
+            keys = Arrays.copyOf(keys, size<<1);
+        }
+        keys[size++] = o;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return false;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        //SelectorImpl在add之前会调用contains判断是否已经在集合中，
+        //我们每次处理完都会清空，所以这里返回false是安全的
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<SelectionKey> iterator() {
+        return new Iterator<SelectionKey>() {
+            private int idx;
+
+            @Override
+            public boolean hasNext() {
+                return idx<size;
+            }
+
+            @Override
+            public SelectionKey next() {
+                if(!hasNext()){
+                    throw new NoSuchElementException();
+                }
+                return keys[idx++];
+            }
+        };
+    }
+
+    void reset(){
+        reset(0);
+    }
+
+    /**
+     * 清空，start之前的元素已经被置为null了
+     */
+    void reset(int start){
+        Arrays.fill(keys, start, size, null);
+        size = 0;
+    }
+}
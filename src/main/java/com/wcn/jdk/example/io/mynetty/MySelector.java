@@ -0,0 +1,277 @@
+package com.wcn.jdk.example.io.mynetty;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 对jdk Selector的包装，类似于netty中NioEventLoop里和selector相关的那部分逻辑。
+ *
+ * 1. 合并跨线程的wakeup调用（wakenUp/nextWakeupNanos）
+ * selector.wakeup()在linux上是往eventfd/pipe写一个字节，是一次系统调用，
+ * 而V4、V5中每accept一个连接都会调用一次，accept风暴时loop线程本来就是醒着的，这些wakeup全是浪费。
+ * 用一个原子变量awake表示loop线程当前是不是醒着：
+ * loop线程select前把awake设为false，select返回后设为true；
+ * 其它线程往队列里放任务后调用wakeup()，只有把awake从false改为true成功的那个线程才真正调用selector.wakeup()。
+ * 为什么不会漏掉唤醒：loop线程是先设置awake=false，再检查队列是否为空；放任务的线程是先放入队列，再检查awake。
+ * 两边都是先写后读，不管怎么交错，至少有一方能看到对方的写入：要么loop看到队列不为空用selectNow，要么放任务的线程唤醒loop。
+ *
+ * 2. 用数组代替selectedKeys的HashSet（SelectedSelectionKeySet）
+ * 通过反射替换SelectorImpl中的selectedKeys和publicSelectedKeys字段，见MySelectedSelectionKeySet。
+ * jdk9以后需要加启动参数 --add-opens java.base/sun.nio.ch=ALL-UNNAMED 才能反射，失败时自动退回到HashSet。
+ *
+ * 3. 空轮询检测（epoll bug）
+ * 某些linux内核下epoll_wait会在没有任何事件的时候不停地立即返回0，select()不再阻塞，loop线程cpu 100%。
+ * 检测方式：阻塞的select返回了0，既没有被wakeup、也没有到超时时间，连续发生SELECTOR_AUTO_REBUILD_THRESHOLD次，
+ * 就认为发生了空轮询，新建一个selector，把所有channel重新注册过去，关闭旧的selector。
+ */
+public class MySelector {
+    private static final int SELECTOR_AUTO_REBUILD_THRESHOLD = 512;
+    private static final MyEventLog.Event HANDLER_FAILED = MyEventLog.event(MyEventLog.Level.WARN, "channel handler failed, close channel: {}");
+
+    private volatile Selector selector;
+    private MySelectedSelectionKeySet selectedKeySet;//null表示没有优化成功
+    private final AtomicBoolean awake = new AtomicBoolean(true);
+    private final AtomicLong wakeups = new AtomicLong();
+    private final LongAdder avoidedWakeups = new LongAdder();
+    private int selectCnt;//连续的"提前返回0"次数，只有loop线程访问
+    private volatile long rebuilds;
+
+    private MySelector() {
+    }
+
+    public static MySelector open() throws IOException {
+        MySelector mySelector = new MySelector();
+        mySelector.openSelector();
+        return mySelector;
+    }
+
+    private void openSelector() throws IOException {
+        Selector newSelector = Selector.open();
+        MySelectedSelectionKeySet keySet = new MySelectedSelectionKeySet();
+        try {
+            Class<?> selectorImplClass = Class.forName("sun.nio.ch.SelectorImpl", false, ClassLoader.getSystemClassLoader());
+            if(selectorImplClass.isAssignableFrom(newSelector.getClass())){
+                Field selectedKeysField = selectorImplClass.getDeclaredField("selectedKeys");
+                Field publicSelectedKeysField = selectorImplClass.getDeclaredField("publicSelectedKeys");
+                selectedKeysField.setAccessible(true);
+                publicSelectedKeysField.setAccessible(true);
+                selectedKeysField.set(newSelector, keySet);
+                publicSelectedKeysField.set(newSelector, keySet);
+            }else{
+                keySet = null;
+            }
+        } catch (Throwable t) {
+            //jdk9+没有--add-opens时会抛InaccessibleObjectException，使用jdk原来的HashSet
+            keySet = null;
+        }
+        this.selectedKeySet = keySet;
+        this.selector = newSelector;
+    }
+
+    /**
+     * 注册channel、获取keys等操作还是直接使用jdk的Selector。
+     * 注意selector重建之后会换成一个新的对象，所以不要缓存该方法的返回值。
+     */
+    public Selector unwrap(){
+        return selector;
+    }
+
+    /**
+     * 是否成功替换成了数组实现的selectedKeys
+     */
+    public boolean isOptimized(){
+        return selectedKeySet!=null;
+    }
+
+    /**
+     * 阻塞select，只能在loop线程中调用
+     */
+    public int select() throws IOException {
+        return select(null, 0);
+    }
+
+    /**
+     * 只能在loop线程中调用
+     * @param hasTasks 判断是否有待执行的任务，有的话不阻塞，一定要在awake设置为false之后才判断
+     */
+    public int select(BooleanSupplier hasTasks) throws IOException {
+        return select(hasTasks, 0);
+    }
+
+    /**
+     * 只能在loop线程中调用
+     * @param hasTasks 判断是否有待执行的任务，有的话不阻塞，可以为null
+     * @param timeoutMillis 最多阻塞多久，0表示一直阻塞到有事件或者被wakeup
+     */
+    public int select(BooleanSupplier hasTasks, long timeoutMillis) throws IOException {
+        awake.set(false);
+        try{
+            if(hasTasks!=null && hasTasks.getAsBoolean()){
+                selectCnt = 0;
+                return selector.selectNow();
+            }
+            long wakeupsBefore = wakeups.get();
+            long beginNanos = System.nanoTime();
+            int selected = timeoutMillis>0 ? selector.select(timeoutMillis) : selector.select();
+            if(selected>0 || wakeups.get()!=wakeupsBefore
+                    || (timeoutMillis>0 && System.nanoTime()-beginNanos>=TimeUnit.MILLISECONDS.toNanos(timeoutMillis))){
+                selectCnt = 0;
+            }else if(Thread.interrupted()){
+                //线程被中断时select会一直立即返回，清除中断标记，否则也会空转
+                selectCnt = 0;
+            }else if(++selectCnt>=SELECTOR_AUTO_REBUILD_THRESHOLD){
+                System.out.println("selector returned prematurely "+selectCnt+" times in a row, rebuilding selector "+selector);
+                rebuildSelector();
+                selectCnt = 0;
+            }
+            return selected;
+        }finally {
+            awake.set(true);
+        }
+    }
+
+    /**
+     * 新建一个selector，把旧selector上所有有效的key重新注册过去，只能在loop线程中调用
+     */
+    public void rebuildSelector() throws IOException {
+        Selector oldSelector = selector;
+        openSelector();
+        Selector newSelector = selector;
+        for(SelectionKey key:oldSelector.keys()){
+            if(!key.isValid()){
+                continue;
+            }
+            Object attachment = key.attachment();
+            try {
+                int interestOps = key.interestOps();
+                key.cancel();
+                SelectionKey newKey = key.channel().register(newSelector, interestOps, attachment);
+                if(attachment instanceof KeyAware){
+                    ((KeyAware) attachment).selectionKeyChanged(newKey);
+                }
+            } catch (Exception e) {
+                System.out.println("failed to re-register a channel to the new selector: "+e);
+                closeQuietly(key);
+            }
+        }
+        rebuilds++;
+        try {
+            oldSelector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 依次处理select出来的key并清空，只能在loop线程中调用。
+     * handler抛出IOException时关闭该key对应的连接，不影响其它key的处理。
+     */
+    public void processSelectedKeys(MyChannelHandler handler){
+        MySelectedSelectionKeySet keySet = selectedKeySet;
+        if(keySet!=null){
+            int i = 0;
+            try{
+                for(;i<keySet.size;i++){
+                    SelectionKey key = keySet.keys[i];
+                    //尽早置为null，连接关闭后key和attachment可以被回收
+                    keySet.keys[i] = null;
+                    processSelectedKey(key, handler);
+                }
+            }finally {
+                keySet.reset(i);
+            }
+        }else{
+            Set<SelectionKey> keys = selector.selectedKeys();
+            if(keys.isEmpty()){
+                return;
+            }
+            Iterator<SelectionKey> iterator = keys.iterator();
+            while(iterator.hasNext()){
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                processSelectedKey(key, handler);
+            }
+        }
+    }
+
+    private static void processSelectedKey(SelectionKey key, MyChannelHandler handler){
+        if(!key.isValid()){
+            closeQuietly(key);
+            return;
+        }
+        try {
+            handler.channelReady(key);
+        } catch (IOException e) {
+            closeQuietly(key);
+        } catch (RuntimeException e) {
+            //handler的bug只影响这一个连接，不能让同一批就绪的其它key得不到处理
+            MyEventLog.log(HANDLER_FAILED, e);
+            closeQuietly(key);
+        }
+    }
+
+    /**
+     * 关闭key对应的连接，attachment是Closeable的话（例如ConnectionContext）交给它来关闭，以便归还buffer等资源
+     */
+    public static void closeQuietly(SelectionKey key){
+        key.cancel();
+        try {
+            Object attachment = key.attachment();
+            if(attachment instanceof Closeable){
+                ((Closeable) attachment).close();
+            }else{
+                key.channel().close();
+            }
+        } catch (IOException e) {
+            //ignore
+        }
+    }
+
+    /**
+     * 可以在任意线程中调用，放入任务之后调用
+     */
+    public void wakeup(){
+        if(!awake.get() && awake.compareAndSet(false, true)){
+            wakeups.incrementAndGet();
+            selector.wakeup();
+        }else{
+            avoidedWakeups.increment();
+        }
+    }
+
+    public long wakeups(){
+        return wakeups.get();
+    }
+
+    public long avoidedWakeups(){
+        return avoidedWakeups.sum();
+    }
+
+    /**
+     * 因为空轮询重建selector的次数
+     */
+    public long rebuilds(){
+        return rebuilds;
+    }
+
+    public void close() throws IOException {
+        selector.close();
+    }
+
+    /**
+     * 作为attachment时，selector重建后通知新的SelectionKey
+     */
+    public interface KeyAware {
+        void selectionKeyChanged(SelectionKey newKey);
+    }
+}
@@ -0,0 +1,76 @@
+package com.wcn.jdk.example.io.mynetty;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 串行executor：提交给它的任务按提交顺序一个一个执行，但不独占线程，而是借用底层线程池的线程。
+ * 每个连接一个，这样同一个连接的请求按顺序处理（响应顺序和请求顺序一致），不同连接的请求在线程池中并行。
+ * 类似于netty中给handler指定EventExecutorGroup时，每个channel绑定一个executor的效果。
+ *
+ * 同一时间最多只有一个drain任务在线程池中（running标记），
+ * 每次最多执行MAX_TASKS_PER_RUN个任务就把线程让出去，避免一个请求很多的连接一直占着worker线程。
+ */
+public final class MySerialExecutor implements Executor {
+    private static final int MAX_TASKS_PER_RUN = 16;
+    private static final MyEventLog.Event TASK_FAILED = MyEventLog.event(MyEventLog.Level.WARN, "serial executor task failed: {}");
+
+    private final Executor executor;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final Runnable drainer = this::drain;
+
+    public MySerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * 底层线程池拒绝时（例如已经shutdown）任务被移除，RejectedExecutionException抛给调用方，这个任务之后也不会被执行
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        try {
+            schedule();
+        } catch (RejectedExecutionException e) {
+            //调用方看到的是失败，不能再留在队列里等下一次execute把它带出去执行
+            tasks.remove(task);
+            throw e;
+        }
+    }
+
+    private void schedule(){
+        if(running.compareAndSet(false, true)){
+            try {
+                executor.execute(drainer);
+            } catch (RejectedExecutionException e) {
+                running.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private void drain(){
+        try {
+            for(int i=0;i<MAX_TASKS_PER_RUN;i++){
+                Runnable task = tasks.poll();
+                if(task==null){
+                    break;
+                }
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    MyEventLog.log(TASK_FAILED, t);
+                }
+            }
+        } finally {
+            running.set(false);
+            //先清除标记再检查队列：清除之前放入的任务由这里重新调度，之后放入的由execute调度
+            if(!tasks.isEmpty()){
+                schedule();
+            }
+        }
+    }
+}
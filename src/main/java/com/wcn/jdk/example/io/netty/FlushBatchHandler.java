@@ -0,0 +1,171 @@
+package com.wcn.jdk.example.io.netty;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 合并flush：handler里每条响应都writeAndFlush的话，客户端pipeline过来的一批请求在一次读里被拆成多条消息，
+ * 每条消息一次flush，也就是一次write系统调用。
+ *
+ * 放在pipeline中业务handler的前面（靠近head），在一个读周期内（channelRead到channelReadComplete之间）
+ * 只记下flush请求不往下传，到channelReadComplete时再flush一次；
+ * 一个读周期内积累了explicitFlushAfterMessages条消息时也会提前flush，避免第一条响应等太久、出站缓冲区积压太多。
+ * 不在读周期内的flush（例如业务线程池里写回的响应）照常立即flush。
+ * 真正flush时netty的ChannelOutboundBuffer把积累的消息转成ByteBuffer数组，用一次writev（gathering write）写出去。
+ *
+ * 和netty自带的FlushConsolidationHandler思路一样，多了每次flush的消息数统计（Metrics）。
+ * 每个连接一个实例（有状态），Metrics可以多个连接共用。
+ *
+ * 效果：NettyServer默认（flushAfterMessages=64）和 -Dnetty.flushAfterMessages=0（不合并）各跑两次，
+ * LoadGenerator 10个连接、每个连接16个请求在途、请求32字节、10秒，1核、jdk17、epoll。
+ * write系统调用数是服务端进程/proc/[pid]/io中syscw在统计期间的差值（也包括eventfd唤醒等其它write，是个上限），
+ * messagesPerFlush是NettyServer每10秒打印的flush metrics（INFO）：
+ * <pre>
+ * flushAfterMessages   requests/s   write系统调用/请求   messagesPerFlush
+ * 64                       418102                0.063              32.00
+ * 64                       376786                0.063              32.00
+ * 0                        106061                1.00                   -
+ * 0                        162604                1.00                   -
+ * </pre>
+ * 一次读到的16个请求的响应（零拷贝时每个响应是前缀和body两条消息，所以是32条）合并成一次writev，
+ * 系统调用少了16倍，吞吐是不合并的2~4倍。EchoBenchmark中netty、nettyNoBatch的pipelined轮流跑5次的中位数是292800、116012。
+ * 100个连接一问一答时每次读只有一个请求，没有可合并的：两种都是每个请求一次write，
+ * 吞吐互有高低（合并的两次66678、107916，不合并的两次79148、96049），看不出多一个handler的开销。
+ */
+public class FlushBatchHandler extends ChannelDuplexHandler {
+    private final int explicitFlushAfterMessages;
+    private final Metrics metrics;
+    private boolean readInProgress;
+    //上次flush之后write的消息数
+    private int pendingMessages;
+    //读周期内被推迟的flush请求数
+    private int pendingFlushes;
+
+    /**
+     * @param explicitFlushAfterMessages 一个读周期内积累了这么多条消息就flush，必须大于0
+     */
+    public FlushBatchHandler(int explicitFlushAfterMessages, Metrics metrics) {
+        if(explicitFlushAfterMessages<=0){
+            throw new IllegalArgumentException("explicitFlushAfterMessages must be positive: "+explicitFlushAfterMessages);
+        }
+        this.explicitFlushAfterMessages = explicitFlushAfterMessages;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        readInProgress = true;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        readInProgress = false;
+        flushIfPending(ctx);
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        pendingMessages++;
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        if(readInProgress && pendingMessages<explicitFlushAfterMessages){
+            pendingFlushes++;
+            return;
+        }
+        flushNow(ctx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        //出站缓冲区超过高水位了，推迟的数据先写出去
+        if(!ctx.channel().isWritable()){
+            flushIfPending(ctx);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        flushIfPending(ctx);
+        ctx.fireExceptionCaught(cause);
+    }
+
+    @Override
+    public void disconnect(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        flushIfPending(ctx);
+        ctx.disconnect(promise);
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        flushIfPending(ctx);
+        ctx.close(promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        flushIfPending(ctx);
+    }
+
+    private void flushIfPending(ChannelHandlerContext ctx){
+        if(pendingFlushes>0){
+            flushNow(ctx);
+        }
+    }
+
+    private void flushNow(ChannelHandlerContext ctx){
+        if(pendingMessages>0){
+            metrics.record(pendingMessages);
+        }
+        pendingMessages = 0;
+        pendingFlushes = 0;
+        ctx.flush();
+    }
+
+    /**
+     * 每次flush写出的消息数，多个连接、多个eventLoop线程共用
+     */
+    public static class Metrics {
+        private final LongAdder flushes = new LongAdder();
+        private final LongAdder messages = new LongAdder();
+        private final LongAccumulator maxMessagesPerFlush = new LongAccumulator(Math::max, 0);
+
+        void record(int messagesFlushed){
+            flushes.increment();
+            messages.add(messagesFlushed);
+            maxMessagesPerFlush.accumulate(messagesFlushed);
+        }
+
+        public long flushes(){
+            return flushes.sum();
+        }
+
+        public long messages(){
+            return messages.sum();
+        }
+
+        public double messagesPerFlush(){
+            long flushes = flushes();
+            return flushes==0 ? 0 : (double) messages()/flushes;
+        }
+
+        public long maxMessagesPerFlush(){
+            return maxMessagesPerFlush.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("flushes=%d messages=%d messagesPerFlush=%.2f max=%d",
+                    flushes(), messages(), messagesPerFlush(), maxMessagesPerFlush());
+        }
+    }
+}
@@ -4,23 +4,23 @@ import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 
 public class NettyClient {
     public static void main(String[] args) throws InterruptedException {
-        NioEventLoopGroup nioEventLoopGroup = new NioEventLoopGroup();
+        //和服务端一样通过NettyTransport选择epoll或者nio
+        NettyTransport transport = NettyTransport.get();
+        EventLoopGroup eventLoopGroup = transport.newEventLoopGroup(0);
         Bootstrap bootstrap = new Bootstrap();
         ChannelFuture connectFuture = bootstrap
-                .group(nioEventLoopGroup)
-                .channel(NioSocketChannel.class)
-                .handler(new ChannelInitializer<NioSocketChannel>() {
+                .group(eventLoopGroup)
+                .channel(transport.socketChannelClass())
+                .handler(new ChannelInitializer<SocketChannel>() {
                     @Override
-                    protected void initChannel(NioSocketChannel ch) throws Exception {
+                    protected void initChannel(SocketChannel ch) throws Exception {
                         ch.pipeline().addLast(new ChannelInboundHandlerAdapter(){
                             @Override
                             public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
@@ -43,9 +43,9 @@ public class NettyClient {
 
         ChannelFuture closeFuture = connectFuture.channel().closeFuture();
         closeFuture.sync();//阻塞到close
-        System.out.println("NioSocketChannel shutdown.");
-        nioEventLoopGroup.shutdownGracefully();//关闭NioEventLoopGroup，其是一个线程池
-        System.out.println("NioEventLoopGroup shutdown.");
+        System.out.println("SocketChannel shutdown.");
+        eventLoopGroup.shutdownGracefully();//关闭EventLoopGroup，其是一个线程池
+        System.out.println("EventLoopGroup shutdown.");
         System.out.println("client shutdown.");
     }
 }
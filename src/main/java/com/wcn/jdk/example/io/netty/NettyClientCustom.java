@@ -5,8 +5,8 @@ import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
 
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
@@ -17,12 +17,13 @@ import java.nio.charset.StandardCharsets;
  */
 public class NettyClientCustom {
     public static void main(String[] args) throws InterruptedException {
-        //相当鱼jdk的selector
-        NioEventLoopGroup selectorThread = new NioEventLoopGroup();
+        //相当鱼jdk的selector，epoll可用时是EpollEventLoopGroup，见NettyTransport
+        NettyTransport transport = NettyTransport.get();
+        EventLoopGroup selectorThread = transport.newEventLoopGroup(0);
 
-        NioSocketChannel nioSocketChannel = new NioSocketChannel();
-        selectorThread.register(nioSocketChannel);//将SocketChannel注册到selector
-        nioSocketChannel.pipeline().addLast(new ChannelInboundHandlerAdapter(){
+        SocketChannel socketChannel = transport.newSocketChannel();
+        selectorThread.register(socketChannel);//将SocketChannel注册到selector
+        socketChannel.pipeline().addLast(new ChannelInboundHandlerAdapter(){
             @Override
             public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
                 ByteBuf byteBuf = (ByteBuf) msg;
@@ -32,17 +33,17 @@ public class NettyClientCustom {
             }
         });//pipeline中添加一个响应返回报文的handler
 
-        ChannelFuture channelFuture = nioSocketChannel.connect(new InetSocketAddress("127.0.0.1", 8080));
+        ChannelFuture channelFuture = socketChannel.connect(new InetSocketAddress("127.0.0.1", 8080));
         channelFuture.sync();//阻塞到连接成功
 
         ByteBuf byteBuf = Unpooled.copiedBuffer("123".getBytes(StandardCharsets.UTF_8));
-        ChannelFuture sendFuture = nioSocketChannel.writeAndFlush(byteBuf);
+        ChannelFuture sendFuture = socketChannel.writeAndFlush(byteBuf);
         sendFuture.sync();//阻塞到发送完成
         System.out.println("send msg success.");
 //        sendFuture.addListener();//也可以注册异步监听器
 
-        nioSocketChannel.closeFuture().sync();//阻塞到关闭
-        selectorThread.shutdownGracefully().sync();//NioEventLoopGroup 这个线程池也要关闭
+        socketChannel.closeFuture().sync();//阻塞到关闭
+        selectorThread.shutdownGracefully().sync();//EventLoopGroup 这个线程池也要关闭
         System.out.println("client shutdown.");
     }
 }
@@ -0,0 +1,144 @@
+package com.wcn.jdk.example.io.netty;
+
+import com.wcn.jdk.example.io.mynetty.MyEventLog;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.AsciiString;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 用netty自带的http编解码实现的http服务端，和ServerSocketChannelTestV5的http模式功能一样，
+ * 作为HttpBenchmark的对照：GET/HEAD /plaintext（或者/）返回Hello, World!，POST /echo 返回请求体，其它404/405。
+ *
+ * pipeline：FlushBatchHandler -> HttpServerCodec -> HttpObjectAggregator -> HttpHandler。
+ * HttpServerCodec把请求解码成HttpRequest（请求行和请求头都变成String）和HttpContent，
+ * HttpObjectAggregator再聚合成FullHttpRequest，这是netty里写http服务最常见的方式，
+ * 每个请求都会产生若干对象，和V5的零拷贝解析形成对比。
+ * 响应头的值用预先创建好的AsciiString，Date每秒更新一次；keep-alive由HttpUtil.isKeepAlive判断，
+ * 不保持连接时写完响应关闭连接。pipeline过来的多个请求的响应由FlushBatchHandler合并成一次flush。
+ */
+public class NettyHttpServer {
+    private static final MyEventLog.Event FLUSH_METRICS = MyEventLog.event(MyEventLog.Level.INFO, "flush metrics:{}");
+    private static final int MAX_CONTENT_LENGTH = 1024*1024;
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    //由boss线程每秒更新
+    private static volatile AsciiString date = newDate();
+
+    public static void main(String[] args) throws InterruptedException {
+        int flushAfterMessages = Integer.getInteger("netty.flushAfterMessages", 64);
+        FlushBatchHandler.Metrics flushMetrics = new FlushBatchHandler.Metrics();
+        ChannelHandler httpHandler = new HttpHandler();
+
+        NettyTransport transport = NettyTransport.get();
+        EventLoopGroup boss = transport.newEventLoopGroup(1);
+        EventLoopGroup worker = transport.newEventLoopGroup(4);
+
+        ServerBootstrap serverBootstrap = new ServerBootstrap();
+        serverBootstrap
+                .group(boss, worker)
+                .channel(transport.serverChannelClass())
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        if(flushAfterMessages>0){
+                            ch.pipeline().addLast(new FlushBatchHandler(flushAfterMessages, flushMetrics));
+                        }
+                        ch.pipeline().addLast(new HttpServerCodec());
+                        ch.pipeline().addLast(new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+                        ch.pipeline().addLast(httpHandler);
+                    }
+                })
+                .option(ChannelOption.SO_BACKLOG, 1024)
+                .childOption(ChannelOption.TCP_NODELAY, true);
+        ChannelFuture ch = serverBootstrap.bind(Integer.getInteger("server.port", 8080)).sync();
+        boss.scheduleAtFixedRate(() -> date = newDate(), 1, 1, TimeUnit.SECONDS);
+        if(flushAfterMessages>0){
+            boss.scheduleAtFixedRate(() -> MyEventLog.log(FLUSH_METRICS, flushMetrics), 10, 10, TimeUnit.SECONDS);
+        }
+        ch.channel().closeFuture().sync();
+    }
+
+    private static AsciiString newDate(){
+        return AsciiString.cached(DATE_FORMAT.format(Instant.now()));
+    }
+
+    @ChannelHandler.Sharable
+    static class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        private static final byte[] HELLO_BYTES = "Hello, World!".getBytes(StandardCharsets.US_ASCII);
+        //所有响应共用，每次写的是retainedDuplicate
+        private static final ByteBuf HELLO = Unpooled.unreleasableBuffer(
+                Unpooled.directBuffer(HELLO_BYTES.length).writeBytes(HELLO_BYTES));
+        private static final AsciiString SERVER = AsciiString.cached("netty");
+        private static final AsciiString TEXT_PLAIN = AsciiString.cached("text/plain; charset=UTF-8");
+        private static final AsciiString HELLO_LENGTH = AsciiString.cached(String.valueOf(HELLO_BYTES.length));
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) throws Exception {
+            if(!request.decoderResult().isSuccess()){
+                //格式错误、请求头太大等，HttpServerCodec不会抛异常，而是把错误放在decoderResult里
+                ctx.writeAndFlush(response(HttpResponseStatus.BAD_REQUEST, Unpooled.EMPTY_BUFFER))
+                        .addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+            String uri = request.uri();
+            int query = uri.indexOf('?');
+            String path = query<0 ? uri : uri.substring(0, query);
+            HttpMethod method = request.method();
+            FullHttpResponse response;
+            if("/plaintext".equals(path) || "/".equals(path)){
+                if(HttpMethod.GET.equals(method)){
+                    response = response(HttpResponseStatus.OK, HELLO.retainedDuplicate());
+                }else if(HttpMethod.HEAD.equals(method)){
+                    response = response(HttpResponseStatus.OK, Unpooled.EMPTY_BUFFER);
+                    response.headers().set(HttpHeaderNames.CONTENT_LENGTH, HELLO_LENGTH);
+                }else{
+                    response = response(HttpResponseStatus.METHOD_NOT_ALLOWED, Unpooled.EMPTY_BUFFER);
+                }
+            }else if("/echo".equals(path)){
+                if(HttpMethod.POST.equals(method)){
+                    response = response(HttpResponseStatus.OK, request.content().retain());
+                }else{
+                    response = response(HttpResponseStatus.METHOD_NOT_ALLOWED, Unpooled.EMPTY_BUFFER);
+                }
+            }else{
+                response = response(HttpResponseStatus.NOT_FOUND, Unpooled.EMPTY_BUFFER);
+            }
+
+            boolean keepAlive = HttpUtil.isKeepAlive(request);
+            //HTTP/1.0要保持连接时带上keep-alive，HTTP/1.1要关闭时带上close
+            HttpUtil.setKeepAlive(response.headers(), request.protocolVersion(), keepAlive);
+            if(keepAlive){
+                ctx.writeAndFlush(response, ctx.voidPromise());
+            }else{
+                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        private static FullHttpResponse response(HttpResponseStatus status, ByteBuf content){
+            //响应头都是自己设置的，不用校验名字和值，省掉每个头一次遍历
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, content, false);
+            response.headers()
+                    .set(HttpHeaderNames.SERVER, SERVER)
+                    .set(HttpHeaderNames.CONTENT_TYPE, TEXT_PLAIN)
+                    .set(HttpHeaderNames.DATE, date)
+                    .setInt(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+            return response;
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,654 @@
+package com.wcn.jdk.example.io.netty;
+
+import com.wcn.jdk.example.io.mynetty.MyEventLog;
+import com.wcn.jdk.example.io.nio.LatencyHistogram;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 连接池 + 多路复用的netty客户端。NettyClient每次请求都新建连接、发一条、关闭，每个请求都要付一次三次握手，
+ * 这里每个远端地址固定connectionsPerAddress个长连接，并发的请求按请求id复用到这几个连接上，响应不要求按顺序返回。
+ *
+ * 帧格式：[int 长度][long 请求id][body]，长度不包括自己这4个字节。对端原样回显整帧即可，见NettyServer frame。
+ *
+ * 1. send返回CompletableFuture，响应回来时在eventLoop线程里complete，
+ *    所以thenApply等回调不能阻塞，耗时的处理用thenApplyAsync放到自己的线程池；响应body由调用方release。
+ * 2. 每个连接最多maxPendingPerConnection个在途请求（包括还在写队列里的），所有连接都满了直接以RejectedExecutionException失败，不排队；
+ * 3. 请求超过requestTimeoutMillis没有响应以TimeoutException失败，迟到的响应直接丢弃；
+ * 4. 健康检查：每healthCheckIntervalMillis检查一次，空闲的连接发一个空body的ping，
+ *    ping超时，或者有在途请求、但是从在途请求数由0变成1（或者上一次收到响应，取较晚的）起超过requestTimeoutMillis
+ *    一个响应都没收到的连接直接关闭。连接关闭时已经写到它上面的请求都以ClosedChannelException失败，
+ *    还在写队列里没写出去的请求重新连接之后再写；客户端close时没有完成的请求都以ClosedChannelException失败；
+ * 5. 多个线程同时send时，直接channel.write的话netty会把每次write包装成一个任务（还要分配一个promise），
+ *    这里send只把请求放进连接的写队列，每个连接同一时刻最多挂一个drain任务，
+ *    在eventLoop线程里把队列里的请求一次写完再flush一次，多个请求一次writev。
+ *
+ * 压测：先启动 java NettyServer frame，再 java NettyPooledClient [host] [port] [connections] [threads] [window] [seconds]，
+ * threads个线程各自保持window个请求在途，body 32字节。
+ * 1核、jdk17、epoll，服务端（4个worker）和客户端（2个eventLoop）在同一台机器上抢同一个核：
+ * <pre>
+ * connections threads window   requests/s    p50(us)    p99(us)   p999(us)
+ *           1       1     16       133780       52.2     1490.9     4128.8
+ *           1       1     64       128095      143.4     4161.5     7536.6
+ *           1       1    256       107130      745.5    11665.4    19398.7
+ *           2       2    128        94950     1327.1     8519.7    17825.8
+ *           4       1    256        76689     1589.2     9699.3    29360.1
+ * </pre>
+ * 只有一个核时线程、连接越多切换越多，在途请求多了只是排队；多核机器上应该按核数增加连接和调用线程。
+ * 同样的机器上NettyClient那样每次新建连接，每秒只能完成几千个请求（见EchoBenchmark的churn）。
+ */
+public class NettyPooledClient implements Closeable {
+    private static final MyEventLog.Event CONNECTED = MyEventLog.event(MyEventLog.Level.INFO, "connected:{}");
+    private static final MyEventLog.Event UNHEALTHY = MyEventLog.event(MyEventLog.Level.WARN, "close unhealthy connection:{}");
+    static final int MAX_FRAME_LENGTH = 16*1024*1024;
+    private static final int HEADER_LENGTH = 12;
+    //body不超过这个大小时和帧头拷到同一个buffer里，否则帧头和body分两次写，不拷贝
+    private static final int COPY_THRESHOLD = 1024;
+    private static final long TIMEOUT_SCAN_MILLIS = 100;
+
+    private int connectionsPerAddress = 4;
+    private int maxPendingPerConnection = 1024;
+    private int connectTimeoutMillis = 3000;
+    private long requestTimeoutMillis = 3000;
+    private long healthCheckIntervalMillis = 5000;
+    private int eventLoopThreads = 0;
+
+    private EventLoopGroup group;
+    private Bootstrap bootstrap;
+    private ScheduledFuture<?> timeoutScanner;
+    private final Map<InetSocketAddress, ConnectionPool> pools = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    //只在scan中访问，scan总是在同一个eventLoop线程里执行
+    private long lastHealthCheckNanos = System.nanoTime();
+    private volatile boolean closed;
+
+    public NettyPooledClient setConnectionsPerAddress(int connectionsPerAddress) {
+        this.connectionsPerAddress = connectionsPerAddress;
+        return this;
+    }
+
+    public NettyPooledClient setMaxPendingPerConnection(int maxPendingPerConnection) {
+        this.maxPendingPerConnection = maxPendingPerConnection;
+        return this;
+    }
+
+    public NettyPooledClient setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        return this;
+    }
+
+    public NettyPooledClient setRequestTimeoutMillis(long requestTimeoutMillis) {
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        return this;
+    }
+
+    public NettyPooledClient setHealthCheckIntervalMillis(long healthCheckIntervalMillis) {
+        this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+        return this;
+    }
+
+    /**
+     * @param eventLoopThreads 0表示netty的默认值
+     */
+    public NettyPooledClient setEventLoopThreads(int eventLoopThreads) {
+        this.eventLoopThreads = eventLoopThreads;
+        return this;
+    }
+
+    /**
+     * 设置完参数之后调用一次，连接在第一次send到某个地址时才建立
+     */
+    public NettyPooledClient start(){
+        NettyTransport transport = NettyTransport.get();
+        group = transport.newEventLoopGroup(eventLoopThreads);
+        bootstrap = new Bootstrap()
+                .group(group)
+                .channel(transport.socketChannelClass())
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMillis)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+        timeoutScanner = group.next().scheduleWithFixedDelay(this::scan,
+                TIMEOUT_SCAN_MILLIS, TIMEOUT_SCAN_MILLIS, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * @param body 发送完之后由netty释放，调用方不要再使用
+     * @return 响应的body，调用方负责release
+     */
+    public CompletableFuture<ByteBuf> send(InetSocketAddress address, ByteBuf body){
+        if(closed){
+            body.release();
+            return failed(new ClosedChannelException());
+        }
+        ConnectionPool pool = pools.computeIfAbsent(address, ConnectionPool::new);
+        Connection connection = pool.acquire();
+        if(connection==null){
+            body.release();
+            rejected.increment();
+            return failed(new RejectedExecutionException("too many pending requests to "+address));
+        }
+        PendingRequest request = new PendingRequest(nextRequestId.incrementAndGet(),
+                System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(requestTimeoutMillis));
+        connection.send(request, body);
+        return request;
+    }
+
+    /**
+     * 因为在途请求太多被拒绝的请求数
+     */
+    public long rejected(){
+        return rejected.sum();
+    }
+
+    public long timeouts(){
+        return timeouts.sum();
+    }
+
+    @Override
+    public void close(){
+        closed = true;
+        if(timeoutScanner!=null){
+            timeoutScanner.cancel(false);
+        }
+        for(ConnectionPool pool:pools.values()){
+            for(Connection connection:pool.connections){
+                connection.close();
+            }
+        }
+        if(group!=null){
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        }
+        //eventLoop已经停了，还在写队列里的、还在等连接的请求不会再有人处理
+        ClosedChannelException cause = new ClosedChannelException();
+        for(ConnectionPool pool:pools.values()){
+            for(Connection connection:pool.connections){
+                connection.failAll(cause);
+            }
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable cause){
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+
+    /**
+     * 每TIMEOUT_SCAN_MILLIS扫一遍在途请求找超时的，每healthCheckIntervalMillis做一次健康检查。
+     * 每个请求单独schedule一个超时任务的话，十几万请求/秒就是十几万个定时任务，这里用一次扫描代替
+     */
+    private void scan(){
+        long now = System.nanoTime();
+        boolean healthCheck = now-lastHealthCheckNanos>=TimeUnit.MILLISECONDS.toNanos(healthCheckIntervalMillis);
+        if(healthCheck){
+            lastHealthCheckNanos = now;
+        }
+        for(ConnectionPool pool:pools.values()){
+            for(Connection connection:pool.connections){
+                connection.expire(now);
+                if(healthCheck){
+                    connection.healthCheck(now);
+                }
+            }
+        }
+    }
+
+    /**
+     * 请求本身就是返回给调用方的future，少一个对象
+     */
+    static final class PendingRequest extends CompletableFuture<ByteBuf> {
+        final long id;
+        final long deadlineNanos;
+        //写到了哪个channel上，这个channel关闭时请求失败
+        volatile Channel channel;
+        //在写队列里等待时的body，写出去之后置空
+        ByteBuf body;
+
+        PendingRequest(long id, long deadlineNanos) {
+            this.id = id;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    /**
+     * 一个远端地址的固定大小的连接池
+     */
+    final class ConnectionPool {
+        final InetSocketAddress address;
+        final Connection[] connections;
+        private final AtomicInteger next = new AtomicInteger();
+
+        ConnectionPool(InetSocketAddress address) {
+            this.address = address;
+            this.connections = new Connection[connectionsPerAddress];
+            for(int i=0;i<connections.length;i++){
+                connections[i] = new Connection(address);
+            }
+        }
+
+        /**
+         * 从轮询的位置开始找一个在途请求没满的连接，并占一个名额
+         * @return 都满了返回null
+         */
+        Connection acquire(){
+            int start = next.getAndIncrement();
+            for(int i=0;i<connections.length;i++){
+                Connection connection = connections[Math.floorMod(start+i, connections.length)];
+                if(connection.tryReserve()){
+                    return connection;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 连接池中的一个位置，底层的channel断开之后下次send时重新连接
+     */
+    final class Connection {
+        private final InetSocketAddress address;
+        private final Map<Long, PendingRequest> pending = new ConcurrentHashMap<>();
+        private final AtomicInteger pendingCount = new AtomicInteger();
+        private final Queue<PendingRequest> writeQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean drainScheduled = new AtomicBoolean();
+        private final Runnable drainTask = this::drain;
+        private volatile ChannelFuture connectFuture;
+        //在途请求数由0变成1的时间，收到响应时更新，健康检查用它判断连接是不是卡住了
+        private volatile long waitingSinceNanos;
+        //健康检查发出的ping，null表示没有在途的ping
+        private volatile PendingRequest ping;
+
+        Connection(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        boolean tryReserve(){
+            while(true){
+                int count = pendingCount.get();
+                if(count>=maxPendingPerConnection){
+                    return false;
+                }
+                if(pendingCount.compareAndSet(count, count+1)){
+                    if(count==0){
+                        waitingSinceNanos = System.nanoTime();
+                    }
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * 任意线程调用：请求先放进写队列，由eventLoop线程统一写出去
+         */
+        void send(PendingRequest request, ByteBuf body){
+            request.body = body;
+            pending.put(request.id, request);
+            writeQueue.offer(request);
+            if(closed){
+                //和close并发，eventLoop可能已经停了
+                failAll(new ClosedChannelException());
+                return;
+            }
+            ChannelFuture future = channelFuture();
+            if(future.isDone()){
+                scheduleDrain(future);
+            }
+            //还在连接中的，连接完成时的listener会调度
+        }
+
+        /**
+         * 同一时刻只挂一个drain任务。drain先清标记再取队列，
+         * 所以看到标记还在、没有再调度的线程，它放进队列的请求一定会被这次drain取到
+         */
+        private void scheduleDrain(ChannelFuture future){
+            if(drainScheduled.compareAndSet(false, true)){
+                Channel channel = future.channel();
+                (channel.isRegistered() ? channel.eventLoop() : group.next()).execute(drainTask);
+            }
+        }
+
+        private void drain(){
+            drainScheduled.set(false);
+            ChannelFuture future = connectFuture;
+            if(future==null || !future.isDone()){
+                return;
+            }
+            Channel channel = future.channel();
+            if(future.isSuccess() && !channel.isActive()){
+                //连上之后又断开了：重新连接，队列里的请求等新连接
+                scheduleDrainOnConnected(channelFuture());
+                return;
+            }
+            int written = 0;
+            PendingRequest request;
+            while((request = writeQueue.poll())!=null){
+                ByteBuf body = request.body;
+                request.body = null;
+                if(pending.get(request.id)!=request){
+                    //在队列里等的时候已经超时了
+                    body.release();
+                    continue;
+                }
+                if(!future.isSuccess()){
+                    body.release();
+                    fail(request, future.cause());
+                    continue;
+                }
+                request.channel = channel;
+                write(channel, request.id, body);
+                written++;
+            }
+            if(written>0){
+                channel.flush();
+            }
+        }
+
+        private void scheduleDrainOnConnected(ChannelFuture future){
+            future.addListener((ChannelFutureListener) this::scheduleDrain);
+        }
+
+        /**
+         * 在eventLoop线程中执行，没有别的线程同时写，帧头和body可以分两次write。
+         * 用voidPromise，写失败时触发exceptionCaught关闭连接，channelInactive里让这个连接上的请求失败
+         */
+        private void write(Channel channel, long id, ByteBuf body){
+            int bodyLength = body.readableBytes();
+            if(bodyLength<=COPY_THRESHOLD){
+                ByteBuf frame = channel.alloc().directBuffer(HEADER_LENGTH+bodyLength);
+                frame.writeInt(8+bodyLength).writeLong(id).writeBytes(body);
+                body.release();
+                channel.write(frame, channel.voidPromise());
+                return;
+            }
+            //大body不拷贝
+            ByteBuf header = channel.alloc().directBuffer(HEADER_LENGTH);
+            header.writeInt(8+bodyLength).writeLong(id);
+            channel.write(header, channel.voidPromise());
+            channel.write(body, channel.voidPromise());
+        }
+
+        /**
+         * @return 当前的连接，没有或者已经断开时发起新的连接
+         */
+        private ChannelFuture channelFuture(){
+            ChannelFuture future = connectFuture;
+            if(future!=null && (!future.isDone() || future.channel().isActive())){
+                return future;
+            }
+            synchronized (this){
+                future = connectFuture;
+                if(future==null || (future.isDone() && !future.channel().isActive())){
+                    future = connect();
+                    connectFuture = future;
+                }
+                return future;
+            }
+        }
+
+        private ChannelFuture connect(){
+            return bootstrap.clone()
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) throws Exception {
+                            //去掉长度字段，剩下 [id][body]
+                            ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(MAX_FRAME_LENGTH, 0, 4, 0, 4));
+                            ch.pipeline().addLast(new ResponseHandler(Connection.this));
+                        }
+                    })
+                    .connect(address)
+                    .addListener((ChannelFutureListener) f -> {
+                        if(f.isSuccess()){
+                            MyEventLog.log(CONNECTED, f.channel());
+                        }
+                        //连接成功就把等着的请求写出去，失败就让它们失败
+                        scheduleDrain(f);
+                    });
+        }
+
+        void onResponse(ByteBuf frame){
+            waitingSinceNanos = System.nanoTime();
+            long id = frame.readLong();
+            PendingRequest request = remove(id);
+            if(request==null){
+                //已经超时了
+                frame.release();
+                return;
+            }
+            if(request==ping){
+                ping = null;
+                frame.release();
+                request.complete(null);
+                return;
+            }
+            if(!request.complete(frame)){
+                frame.release();
+            }
+        }
+
+        private PendingRequest remove(long id){
+            PendingRequest request = pending.remove(id);
+            if(request!=null){
+                pendingCount.decrementAndGet();
+            }
+            return request;
+        }
+
+        private void fail(PendingRequest request, Throwable cause){
+            if(remove(request.id)!=null){
+                request.completeExceptionally(cause);
+            }
+        }
+
+        /**
+         * 只让写到这个channel上的请求失败，已经在等新连接的请求不受影响
+         */
+        void channelClosed(Channel channel){
+            ClosedChannelException cause = new ClosedChannelException();
+            for(PendingRequest request:pending.values()){
+                if(request.channel==channel){
+                    fail(request, cause);
+                }
+            }
+            PendingRequest ping = this.ping;
+            if(ping!=null && ping.channel==channel){
+                this.ping = null;
+            }
+            if(!closed && !writeQueue.isEmpty()){
+                //还没写出去的请求不受影响，重新连接之后写出去
+                scheduleDrainOnConnected(channelFuture());
+            }
+        }
+
+        /**
+         * 客户端关闭时调用：写队列里的请求和在途的请求都失败
+         */
+        void failAll(Throwable cause){
+            PendingRequest request;
+            while((request = writeQueue.poll())!=null){
+                ByteBuf body = request.body;
+                request.body = null;
+                if(body!=null){
+                    body.release();
+                }
+                fail(request, cause);
+            }
+            for(PendingRequest pendingRequest:pending.values()){
+                fail(pendingRequest, cause);
+            }
+            ping = null;
+        }
+
+        void expire(long now){
+            if(pending.isEmpty()){
+                return;
+            }
+            List<PendingRequest> expired = null;
+            for(PendingRequest request:pending.values()){
+                if(now-request.deadlineNanos>=0){
+                    if(expired==null){
+                        expired = new ArrayList<>();
+                    }
+                    expired.add(request);
+                }
+            }
+            if(expired==null){
+                return;
+            }
+            TimeoutException cause = new TimeoutException("no response in "+requestTimeoutMillis+"ms from "+address);
+            for(PendingRequest request:expired){
+                if(remove(request.id)!=null){
+                    timeouts.increment();
+                    request.completeExceptionally(cause);
+                }
+            }
+        }
+
+        void healthCheck(long now){
+            ChannelFuture future = connectFuture;
+            if(future==null || !future.isSuccess() || !future.channel().isActive()){
+                return;
+            }
+            Channel channel = future.channel();
+            boolean stuck = pendingCount.get()>0
+                    && now-waitingSinceNanos>TimeUnit.MILLISECONDS.toNanos(requestTimeoutMillis);
+            if(stuck || (ping!=null && ping.isCompletedExceptionally())){
+                MyEventLog.log(UNHEALTHY, channel);
+                channel.close();
+                return;
+            }
+            if(ping==null && pendingCount.get()==0 && tryReserve()){
+                //空闲的连接：发一个空body的ping，失败（超时）后下次检查时关闭
+                PendingRequest request = new PendingRequest(nextRequestId.incrementAndGet(),
+                        now+TimeUnit.MILLISECONDS.toNanos(requestTimeoutMillis));
+                ping = request;
+                send(request, channel.alloc().directBuffer(0));
+            }
+        }
+
+        void close(){
+            ChannelFuture future = connectFuture;
+            if(future!=null){
+                future.channel().close();
+            }
+        }
+    }
+
+    static final class ResponseHandler extends ChannelInboundHandlerAdapter {
+        private final Connection connection;
+
+        ResponseHandler(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            connection.onResponse((ByteBuf) msg);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            connection.channelClosed(ctx.channel());
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            //例如对端重置了连接，关闭之后channelInactive里让在途的请求失败
+            ctx.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length>0 ? args[0] : "127.0.0.1";
+        int port = args.length>1 ? Integer.parseInt(args[1]) : 8080;
+        int connections = args.length>2 ? Integer.parseInt(args[2]) : 4;
+        int threads = args.length>3 ? Integer.parseInt(args[3]) : 4;
+        int window = args.length>4 ? Integer.parseInt(args[4]) : 256;
+        int seconds = args.length>5 ? Integer.parseInt(args[5]) : 10;
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        byte[] payload = new byte[32];
+
+        try (NettyPooledClient client = new NettyPooledClient()
+                .setConnectionsPerAddress(connections)
+                .setMaxPendingPerConnection(Math.max(1024, threads*window/connections+1))
+                .start()){
+            //预热1秒，之后的计入统计
+            long measureStart = System.nanoTime()+TimeUnit.SECONDS.toNanos(1);
+            long end = measureStart+TimeUnit.SECONDS.toNanos(seconds);
+            LatencyHistogram[] histograms = new LatencyHistogram[threads];
+            LongAdder errors = new LongAdder();
+            Thread[] workers = new Thread[threads];
+            for(int i=0;i<threads;i++){
+                LatencyHistogram histogram = histograms[i] = new LatencyHistogram();
+                workers[i] = new Thread(() -> {
+                    Semaphore inFlight = new Semaphore(window);
+                    while(System.nanoTime()<end){
+                        inFlight.acquireUninterruptibly();
+                        long sendNanos = System.nanoTime();
+                        ByteBuf body = PooledByteBufAllocator.DEFAULT.directBuffer(payload.length).writeBytes(payload);
+                        client.send(address, body).whenComplete((response, cause) -> {
+                            long now = System.nanoTime();
+                            if(cause!=null){
+                                errors.increment();
+                            }else{
+                                response.release();
+                                if(sendNanos>=measureStart && now<end){
+                                    //回调在eventLoop线程里，直方图不是线程安全的
+                                    synchronized (histogram){
+                                        histogram.record(now-sendNanos);
+                                    }
+                                }
+                            }
+                            inFlight.release();
+                        });
+                    }
+                    inFlight.acquireUninterruptibly(window);
+                }, "pooled-client-"+i);
+                workers[i].start();
+            }
+            LatencyHistogram total = new LatencyHistogram();
+            for(int i=0;i<threads;i++){
+                workers[i].join();
+                synchronized (histograms[i]){
+                    total.add(histograms[i]);
+                }
+            }
+            System.out.println(String.format("requests/s=%.0f %s errors=%d rejected=%d timeouts=%d",
+                    total.totalCount()/(double)seconds, total.summary(), errors.sum(), client.rejected(), client.timeouts()));
+        }
+    }
+}
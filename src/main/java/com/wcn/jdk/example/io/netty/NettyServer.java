@@ -1,45 +1,190 @@
 package com.wcn.jdk.example.io.netty;
 
+import com.wcn.jdk.example.io.mynetty.MyEventLog;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LineBasedFrameDecoder;
 
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * 用ServerBootstrap启动的echo服务端，响应为 "response:"+收到的报文。
+ *
+ * 三种响应方式（main的第一个参数）：
+ * 1. zerocopy（默认）：收到的ByteBuf不拷贝、不解码，先写一个所有连接共用的前缀buffer，再把收到的ByteBuf原样写回去，
+ *    flush时netty把出站缓冲区里的多个ByteBuf转成nio ByteBuffer数组用一次writev（gathering write）发出去，
+ *    整个过程没有byte[]和String；收到的ByteBuf写完之后释放，回到内存池。
+ *    没有用CompositeByteBuf：每条消息都要new一个CompositeByteBuf和它的组件数组，小报文时分配的比拷贝还多，
+ *    前缀用池化buffer的retainedDuplicate，duplicate对象从Recycler中取，写出的两个ByteBuf都不产生垃圾。
+ * 2. copy：原来的写法，每条报文先readBytes到byte[]，再把前缀和byte[]写回同一个ByteBuf，
+ *    每个请求至少分配一个byte[]，打开DEBUG日志时还要多一个String。
+ * 3. frame：不按行拆包，按NettyPooledClient的帧格式 [int 长度][long 请求id][body] 拆包，整帧原样写回去（不加前缀），
+ *    给NettyPooledClient做多路复用的对端。
+ *
+ * 第二个参数是child channel的ByteBufAllocator：pooled（默认，池化的direct内存）或者unpooled，
+ * unpooled时每次读都要新申请一块direct内存，释放时再还给操作系统，用来对比内存池的效果。
+ *
+ * 对比：java EchoBenchmark 3 netty,nettyCopy,nettyUnpooled，看每个请求分配的字节数（B/request）和吞吐。
+ * 1核、jdk17、epoll、每个负载3秒，压测客户端和服务端抢同一个核，单次运行的吞吐能差到1.5倍，
+ * 所以轮流跑了5次，requests/s取中位数，括号里是最小值~最大值：
+ * <pre>
+ * server        workload       requests/s(median)   (min ~ max)        cpu  B/request
+ * netty         small RPC           39547       (35676 ~  51856)    62%          0
+ * netty         pipelined          292800      (256837 ~ 333467)    78%         11
+ * netty         large payload       16505       (14563 ~  17792)    68%          0
+ * nettyCopy     small RPC           48747       (43834 ~  60161)    70%        135
+ * nettyCopy     pipelined          235611      (184181 ~ 254368)    84%        138
+ * nettyCopy     large payload       14654       (13082 ~  19413)    70%      16747
+ * nettyUnpooled small RPC           47581       (40414 ~  58912)    72%        266
+ * nettyUnpooled pipelined          340571      (271147 ~ 427072)    81%         66
+ * nettyUnpooled large payload       19020       (17170 ~  28214)    62%        339
+ * </pre>
+ * 零拷贝之后每个请求基本不产生垃圾，16KB的请求拷贝时每次都要一个16KB的byte[]，这是唯一稳定的收益。
+ * 吞吐上池化+零拷贝在这台机器上并不占优：一问一答的小请求比拷贝慢两成左右（每条响应两个ByteBuf、一次writev，
+ * 拷贝的写法是一个ByteBuf、一次write），大包反而是unpooled最快，原因没有单独分析；
+ * 只有pipelined比拷贝快，但和unpooled的区间重叠，分不出高低。
+ * 试过1KB以下的报文和前缀一起拷贝到一个池化的ByteBuf里再写，轮流跑了8次，和拷贝的写法还是分不出高低，没有保留。
+ * 分配少的好处在GC压力大、多核跑满的时候才会体现到吞吐上，这里服务端最多只用了不到一个核。
+ *
+ * 请求按行拆包（LineBasedFrameDecoder，拆出来的是原ByteBuf的retainedSlice，不拷贝），每行一个响应。
+ * 客户端pipeline发过来的多个请求在一个读周期内的响应由FlushBatchHandler合并成一次flush，
+ * -Dnetty.flushAfterMessages=N 设置一个读周期内最多积累多少条消息就flush（默认64），0表示不合并，每条响应各自flush。
+ */
 public class NettyServer {
+    //在eventLoop线程中打印，使用异步的MyEventLog，-Dmynetty.eventlog.level=DEBUG 可以看到收到的报文
+    private static final MyEventLog.Event RECEIVE_MSG = MyEventLog.event(MyEventLog.Level.DEBUG, "receive msg:{}");
+    private static final MyEventLog.Event FLUSH_METRICS = MyEventLog.event(MyEventLog.Level.INFO, "flush metrics:{}");
+    private static final String RESPONSE_PREFIX = "response:";
+    static final int MAX_LINE_LENGTH = 64*1024;
+
     public static void main(String[] args) throws InterruptedException {
-        NioEventLoopGroup boss = new NioEventLoopGroup(1);
-        NioEventLoopGroup worker = new NioEventLoopGroup(4);
+        String mode = args.length>0 ? args[0] : "zerocopy";
+        boolean frame = "frame".equals(mode);
+        ByteBufAllocator allocator = args.length>1 && "unpooled".equals(args[1])
+                ? new UnpooledByteBufAllocator(true) : new PooledByteBufAllocator(true);
+        //handler是无状态的，所有连接共用一个实例
+        ChannelHandler echoHandler = frame ? new FrameEchoHandler()
+                : "copy".equals(mode) ? new CopyEchoHandler() : new ZeroCopyEchoHandler(RESPONSE_PREFIX);
+        int flushAfterMessages = Integer.getInteger("netty.flushAfterMessages", 64);
+        FlushBatchHandler.Metrics flushMetrics = new FlushBatchHandler.Metrics();
+
+        //-Dnetty.transport=auto|epoll|nio，见NettyTransport
+        NettyTransport transport = NettyTransport.get();
+        EventLoopGroup boss = transport.newEventLoopGroup(1);
+        EventLoopGroup worker = transport.newEventLoopGroup(4);
 
         ServerBootstrap serverBootstrap = new ServerBootstrap();
         serverBootstrap
                 .group(boss, worker)
-                .channel(NioServerSocketChannel.class)
+                .channel(transport.serverChannelClass())
                 .childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel ch) throws Exception {
-                        ch.pipeline().addLast(new ChannelInboundHandlerAdapter(){
-                            @Override
-                            public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-                                ByteBuf byteBuf = (ByteBuf)msg;
-                                int byteNum = byteBuf.readableBytes();
-                                byte[] bytes = new byte[byteNum];
-                                byteBuf.readBytes(bytes);
-                                System.out.println("receive msg:"+new String(bytes));
-
-                                byteBuf.writeBytes("response:".getBytes(StandardCharsets.UTF_8));
-                                byteBuf.writeBytes(bytes);
-                                ctx.channel().writeAndFlush(byteBuf);
-                            }
-                        });
+                        if(flushAfterMessages>0){
+                            //放在最前面，才能看到一个读周期的开始和结束
+                            ch.pipeline().addLast(new FlushBatchHandler(flushAfterMessages, flushMetrics));
+                        }
+                        if(frame){
+                            //不去掉长度字段，整帧写回去
+                            ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(NettyPooledClient.MAX_FRAME_LENGTH, 0, 4));
+                        }else{
+                            //保留换行符，响应原样带回去
+                            ch.pipeline().addLast(new LineBasedFrameDecoder(MAX_LINE_LENGTH, false, false));
+                        }
+                        ch.pipeline().addLast(echoHandler);
                     }
                 })
                 .option(ChannelOption.SO_BACKLOG, 128)
-                .option(ChannelOption.SO_KEEPALIVE, true);
-        ChannelFuture ch = serverBootstrap.bind(8080).sync();//阻塞到服务启动完成
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.ALLOCATOR, allocator);
+        ChannelFuture ch = serverBootstrap.bind(Integer.getInteger("server.port", 8080)).sync();//阻塞到服务启动完成
+        if(flushAfterMessages>0){
+            boss.scheduleAtFixedRate(() -> MyEventLog.log(FLUSH_METRICS, flushMetrics), 10, 10, TimeUnit.SECONDS);
+        }
         ch.channel().closeFuture().sync();//阻塞到channel关闭
     }
+
+    /**
+     * 零拷贝的echo：先写前缀，再把收到的ByteBuf原样写回去
+     */
+    @ChannelHandler.Sharable
+    static class ZeroCopyEchoHandler extends ChannelInboundHandlerAdapter {
+        //所有连接共用的前缀
+        private final ByteBuf prefix;
+
+        ZeroCopyEchoHandler(String prefix) {
+            this.prefix = newSharedPrefix(prefix);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            ByteBuf byteBuf = (ByteBuf)msg;
+            if(MyEventLog.isEnabled(MyEventLog.Level.DEBUG)){
+                MyEventLog.log(RECEIVE_MSG, byteBuf.toString(StandardCharsets.UTF_8));
+            }
+            writeWithPrefix(ctx, prefix, byteBuf);
+        }
+    }
+
+    /**
+     * 池化的direct buffer，自己持有的那一次引用永远不释放，所以不会回到池里被别人用
+     */
+    static ByteBuf newSharedPrefix(String prefix){
+        byte[] bytes = prefix.getBytes(StandardCharsets.UTF_8);
+        return PooledByteBufAllocator.DEFAULT.directBuffer(bytes.length).writeBytes(bytes);
+    }
+
+    /**
+     * 写 前缀+body，body写完后由netty释放。
+     * retainedDuplicate共享内存，只是一份独立的读写下标，多个连接同时写同一个前缀互不影响，写完release掉的是这次retain。
+     * 从当前handler往前写，不用再从pipeline的tail走一遍；不关心写的结果，用voidPromise省掉每次写一个promise对象，
+     * 写失败时会触发exceptionCaught
+     */
+    static void writeWithPrefix(ChannelHandlerContext ctx, ByteBuf prefix, ByteBuf body){
+        ctx.write(prefix.retainedDuplicate(), ctx.voidPromise());
+        ctx.writeAndFlush(body, ctx.voidPromise());
+    }
+
+    /**
+     * 整帧原样写回去，请求id在帧里，客户端按id找到对应的请求
+     */
+    @ChannelHandler.Sharable
+    static class FrameEchoHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            ctx.writeAndFlush(msg, ctx.voidPromise());
+        }
+    }
+
+    /**
+     * 拷贝到byte[]再写回去，作为对比
+     */
+    @ChannelHandler.Sharable
+    static class CopyEchoHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            ByteBuf byteBuf = (ByteBuf)msg;
+            int byteNum = byteBuf.readableBytes();
+            byte[] bytes = new byte[byteNum];
+            byteBuf.readBytes(bytes);
+            //拆包出来的是slice，容量固定，不能再往里写，响应另外申请
+            byteBuf.release();
+            if(MyEventLog.isEnabled(MyEventLog.Level.DEBUG)){
+                MyEventLog.log(RECEIVE_MSG, new String(bytes, StandardCharsets.UTF_8));
+            }
+
+            byte[] prefix = RESPONSE_PREFIX.getBytes(StandardCharsets.UTF_8);
+            ByteBuf response = ctx.alloc().buffer(prefix.length+byteNum);
+            response.writeBytes(prefix);
+            response.writeBytes(bytes);
+            ctx.channel().writeAndFlush(response);
+        }
+    }
 }
@@ -1,78 +1,237 @@
 package com.wcn.jdk.example.io.netty;
 
+import com.wcn.jdk.example.io.mynetty.MyEventLog;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
-import io.netty.channel.nio.NioEventLoop;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import io.netty.util.concurrent.GlobalEventExecutor;
 
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * 不使用netty传统的ServerBootstrap来启动，
  * 采用传统的jdk nio模式来启动，更好立刻netty的不见
+ *
+ * 背压：客户端只发不收（或者收得慢）时，响应堆在netty的出站缓冲区（ChannelOutboundBuffer）里，
+ * 不加控制会一直涨到worker的堆外/堆内存耗尽。
+ * 出站缓冲区超过高水位（-Dnetty.writeBuffer.high，默认64KB）时channel变为不可写，ReadHandler关掉这个channel的autoRead，
+ * 不再读它的请求，对端的发送缓冲区满了之后自然就发不过来了（TCP流控）；
+ * 降到低水位（-Dnetty.writeBuffer.low，默认32KB）以下时channel重新可写，在channelWritabilityChanged里恢复autoRead。
+ * 每个连接最多占用大约 高水位+一次读出来的请求对应的响应 这么多内存。
+ * Backpressure每10秒输出一次：暂停/恢复读的次数、当前不可写的连接数、积压字节数（按水位线估算，见pendingBytes）最多的几个连接。
  */
 public class NettyServerCustom {
+    private static final MyEventLog.Event FLUSH_METRICS = MyEventLog.event(MyEventLog.Level.INFO, "flush metrics:{}");
+    private static final MyEventLog.Event BACKPRESSURE_METRICS = MyEventLog.event(MyEventLog.Level.INFO, "backpressure:{}");
+    static final Backpressure BACKPRESSURE = new Backpressure();
+
     public static void main(String[] args) throws InterruptedException {
-        //相当于jdk中的selector
-        NioEventLoopGroup bossSelector = new NioEventLoopGroup(1);//用于接受处理accept
-        NioEventLoopGroup workerSelector = new NioEventLoopGroup(4);//用于接受处理read
+        //相当于jdk中的selector，epoll可用时是EpollEventLoopGroup，见NettyTransport
+        NettyTransport transport = NettyTransport.get();
+        EventLoopGroup bossSelector = transport.newEventLoopGroup(1);//用于接受处理accept
+        EventLoopGroup workerSelector = transport.newEventLoopGroup(4);//用于接受处理read
         System.out.println("bossSelector:"+bossSelector);
         System.out.println("workerSelector:"+workerSelector);
 
 
-        NioServerSocketChannel nioServerSocketChannel = new NioServerSocketChannel();
-        bossSelector.register(nioServerSocketChannel);//将ServerSocketChannel注册到selector上
+        ServerChannel serverChannel = transport.newServerChannel();
+        bossSelector.register(serverChannel);//将ServerSocketChannel注册到selector上
 
-        nioServerSocketChannel.pipeline().addLast(new AcceptHandler(workerSelector));//pipeline中注册一个处理器
-        ChannelFuture channelFuture = nioServerSocketChannel.bind(new InetSocketAddress(8080));
+        serverChannel.pipeline().addLast(new AcceptHandler(workerSelector));//pipeline中注册一个处理器
+        ChannelFuture channelFuture = serverChannel.bind(new InetSocketAddress(Integer.getInteger("server.port", 8080)));
         channelFuture.sync();//同步阻塞到bind成功
         System.out.println("server start success.");
+        bossSelector.scheduleAtFixedRate(() -> {
+            if(AcceptHandler.FLUSH_AFTER_MESSAGES>0){
+                MyEventLog.log(FLUSH_METRICS, AcceptHandler.FLUSH_METRICS);
+            }
+            MyEventLog.log(BACKPRESSURE_METRICS, BACKPRESSURE.report(5));
+        }, 10, 10, TimeUnit.SECONDS);
 
-        nioServerSocketChannel.closeFuture().sync();//阻塞到关闭
-        bossSelector.shutdownGracefully().sync();//关闭NioEventLoopGroup，其也是一个线程池
+        serverChannel.closeFuture().sync();//阻塞到关闭
+        bossSelector.shutdownGracefully().sync();//关闭EventLoopGroup，其也是一个线程池
         workerSelector.shutdownGracefully().sync();
         System.out.println("server shutdown.");
     }
 
     static class AcceptHandler extends ChannelInboundHandlerAdapter{
-        public NioEventLoopGroup workerSelector;
+        //在eventLoop线程中打印，使用异步的MyEventLog，-Dmynetty.eventlog.level=DEBUG 可以看到所在的EventLoopGroup
+        private static final MyEventLog.Event ACCEPT_SELECTOR = MyEventLog.event(MyEventLog.Level.DEBUG, "acceptHandler use Selector is :{}");
+        private static final MyEventLog.Event ACCEPT_CLIENT = MyEventLog.event(MyEventLog.Level.INFO, "accept new client:{}");
+        private static final PooledByteBufAllocator ALLOCATOR = new PooledByteBufAllocator(true);
+        //和NettyServer一样，-Dnetty.flushAfterMessages=0 关闭flush合并
+        static final int FLUSH_AFTER_MESSAGES = Integer.getInteger("netty.flushAfterMessages", 64);
+        static final FlushBatchHandler.Metrics FLUSH_METRICS = new FlushBatchHandler.Metrics();
+        private static final WriteBufferWaterMark WATER_MARK = new WriteBufferWaterMark(
+                Integer.getInteger("netty.writeBuffer.low", 32*1024), Integer.getInteger("netty.writeBuffer.high", 64*1024));
+        public EventLoopGroup workerSelector;
 
-        public AcceptHandler(NioEventLoopGroup workerSelector) {
+        public AcceptHandler(EventLoopGroup workerSelector) {
             this.workerSelector = workerSelector;
         }
 
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
             //这里打印出EventLoopGroup可以看出ReadHandler是在bossSelector中执行的
-            System.out.println("acceptHandler use Selector is :"+ctx.channel().eventLoop().parent());
-            //有新的客户端连接过来，可以accept了此时的msg是一个NioSocketChannel
-            NioSocketChannel nioSocketChannel = (NioSocketChannel) msg;
-            System.out.println("accept new client:"+nioSocketChannel.remoteAddress());
-            //socketChannel的pipeline中注册一个handler处理其
-            nioSocketChannel.pipeline().addLast(new ReadHandler());
-            workerSelector.register(nioSocketChannel);//将accept的新连接注册到workerSelector中
+            MyEventLog.log(ACCEPT_SELECTOR, ctx.channel().eventLoop().parent());
+            //有新的客户端连接过来，可以accept了此时的msg是一个NioSocketChannel或者EpollSocketChannel
+            SocketChannel socketChannel = (SocketChannel) msg;
+            MyEventLog.log(ACCEPT_CLIENT, socketChannel.remoteAddress());
+            //socketChannel的pipeline中注册handler处理其：合并flush、按行拆包、响应
+            if(FLUSH_AFTER_MESSAGES>0){
+                socketChannel.pipeline().addLast(new FlushBatchHandler(FLUSH_AFTER_MESSAGES, FLUSH_METRICS));
+            }
+            socketChannel.pipeline().addLast(new LineBasedFrameDecoder(NettyServer.MAX_LINE_LENGTH, false, false));
+            socketChannel.pipeline().addLast(new ReadHandler());
+            //不经过ServerBootstrap，childOption要自己设置：池化的direct内存
+            socketChannel.config().setAllocator(ALLOCATOR);
+            socketChannel.config().setWriteBufferWaterMark(WATER_MARK);
+            BACKPRESSURE.track(socketChannel);
+            workerSelector.register(socketChannel);//将accept的新连接注册到workerSelector中
         }
     }
 
+    /**
+     * 响应为 "response"+收到的报文，和NettyServer.ZeroCopyEchoHandler一样不拷贝、不解码：
+     * 先写共用的前缀再把收到的ByteBuf原样写回去，只有打开DEBUG日志时才解码成字符串。
+     * channel不可写时停止读取，可写时恢复
+     */
     static class ReadHandler extends ChannelInboundHandlerAdapter{
+        private static final MyEventLog.Event READ_SELECTOR = MyEventLog.event(MyEventLog.Level.DEBUG, "readHandler use Selector is :{}");
+        private static final MyEventLog.Event RECEIVE_MSG = MyEventLog.event(MyEventLog.Level.DEBUG, "receive msg:{}");
+        private static final MyEventLog.Event SEND_SUCCESS = MyEventLog.event(MyEventLog.Level.DEBUG, "send msg to client success.");
+        private static final ByteBuf RESPONSE_PREFIX = NettyServer.newSharedPrefix("response");
+
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
             //这里打印出EventLoopGroup可以看出ReadHandler是在workerSelector中执行的
-            System.out.println("readHandler use Selector is :"+ctx.channel().eventLoop().parent());
+            MyEventLog.log(READ_SELECTOR, ctx.channel().eventLoop().parent());
             //接收到客户端报文，可以read了
             ByteBuf byteBuf = (ByteBuf) msg;
-            CharSequence charSequence = byteBuf.readCharSequence(byteBuf.readableBytes(), StandardCharsets.UTF_8);
-            System.out.println("receive msg:"+charSequence.toString());
+            if(MyEventLog.isEnabled(MyEventLog.Level.DEBUG)){
+                MyEventLog.log(RECEIVE_MSG, byteBuf.toString(StandardCharsets.UTF_8));
+            }
+
+            NettyServer.writeWithPrefix(ctx, RESPONSE_PREFIX, byteBuf);//byteBuf写完后释放
+            MyEventLog.log(SEND_SUCCESS);
+            //超过高水位时netty稍后才触发channelWritabilityChanged，这里先停，同一次读里剩下的请求也不用再读更多
+            updateAutoRead(ctx.channel());
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            updateAutoRead(ctx.channel());
+            ctx.fireChannelWritabilityChanged();
+        }
+
+        private static void updateAutoRead(Channel channel){
+            if(!channel.isActive()){
+                //关闭之后outboundBuffer为null，isWritable也是false
+                return;
+            }
+            boolean writable = channel.isWritable();
+            if(channel.config().isAutoRead()==writable){
+                return;
+            }
+            channel.config().setAutoRead(writable);
+            if(writable){
+                BACKPRESSURE.resumed(channel);
+            }else{
+                BACKPRESSURE.paused(channel);
+            }
+        }
+    }
+
+    /**
+     * 每个连接出站缓冲区里积压的字节数，用来找出是哪个客户端读得慢
+     */
+    static class Backpressure {
+        private static final MyEventLog.Event READ_PAUSED = MyEventLog.event(MyEventLog.Level.INFO, "pause read, channel unwritable:{} pendingBytes:{}");
+        private static final MyEventLog.Event READ_RESUMED = MyEventLog.event(MyEventLog.Level.INFO, "resume read, channel writable:{} pendingBytes:{}");
+        //关闭的channel会自动移除
+        private final ChannelGroup channels = new DefaultChannelGroup("backpressure", GlobalEventExecutor.INSTANCE);
+        private final LongAdder pauses = new LongAdder();
+        private final LongAdder resumes = new LongAdder();
+
+        void track(Channel channel){
+            channels.add(channel);
+        }
+
+        void paused(Channel channel){
+            pauses.increment();
+            MyEventLog.log(READ_PAUSED, channel.remoteAddress(), pendingBytes(channel));
+        }
+
+        void resumed(Channel channel){
+            resumes.increment();
+            MyEventLog.log(READ_RESUMED, channel.remoteAddress(), pendingBytes(channel));
+        }
+
+        /**
+         * 出站缓冲区里还没写到socket的字节数（估算），channel关闭之后为0。
+         * 在reporter线程里调用，不能碰unsafe().outboundBuffer()（netty内部api，只能在channel的eventLoop里用），
+         * 只用公开的bytesBeforeUnwritable/bytesBeforeWritable推算：
+         * 可写时是 高水位-bytesBeforeUnwritable，不可写时是 低水位+bytesBeforeWritable，
+         * 所以可写时最多显示到高水位，不可写时最少显示低水位，够用来找出读得慢的客户端
+         */
+        static long pendingBytes(Channel channel){
+            if(!channel.isActive()){
+                return 0;
+            }
+            WriteBufferWaterMark waterMark = channel.config().getWriteBufferWaterMark();
+            if(channel.isWritable()){
+                return Math.max(0, waterMark.high()-channel.bytesBeforeUnwritable());
+            }
+            return waterMark.low()+channel.bytesBeforeWritable();
+        }
 
-            byteBuf.writeBytes("response".getBytes(StandardCharsets.UTF_8));
-            byteBuf.writeBytes(charSequence.toString().getBytes(StandardCharsets.UTF_8));
-            ctx.channel().writeAndFlush(byteBuf);
-            System.out.println("send msg to client success.");
+        /**
+         * @param top 列出积压最多的几个连接
+         */
+        String report(int top){
+            List<Channel> snapshot = new ArrayList<>(channels);
+            long totalPending = 0;
+            int unwritable = 0;
+            long[] pending = new long[snapshot.size()];
+            for(int i=0;i<snapshot.size();i++){
+                pending[i] = pendingBytes(snapshot.get(i));
+                totalPending += pending[i];
+                if(!snapshot.get(i).isWritable()){
+                    unwritable++;
+                }
+            }
+            StringBuilder builder = new StringBuilder();
+            builder.append("channels=").append(snapshot.size())
+                    .append(" unwritable=").append(unwritable)
+                    .append(" pendingBytes=").append(totalPending)
+                    .append(" pauses=").append(pauses.sum())
+                    .append(" resumes=").append(resumes.sum());
+            Integer[] order = new Integer[snapshot.size()];
+            for(int i=0;i<order.length;i++){
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(pending[b], pending[a]));
+            for(int i=0;i<Math.min(top, order.length) && pending[order[i]]>0;i++){
+                builder.append(i==0 ? " slowest:" : ",")
+                        .append(snapshot.get(order[i]).remoteAddress()).append('=').append(pending[order[i]]);
+            }
+            return builder.toString();
         }
     }
 }
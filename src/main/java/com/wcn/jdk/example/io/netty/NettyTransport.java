@@ -0,0 +1,161 @@
+package com.wcn.jdk.example.io.netty;
+
+import com.wcn.jdk.example.io.mynetty.MyEventLog;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * netty的传输层实现，所有的netty服务端、客户端都通过它创建EventLoopGroup和channel，
+ * 用一个开关 -Dnetty.transport=auto|epoll|nio 统一切换，默认auto。
+ *
+ * NIO：jdk的Selector，跨平台。jdk的epoll实现是水平触发的，每次select都要把就绪的key放进selectedKeys（HashSet），
+ * 还要经过jdk的一层锁和同步。
+ * EPOLL：netty自己的jni实现（netty-all里带了linux x86_64/aarch64的so），直接调用epoll_wait，
+ * 默认边缘触发，读写直接用fd和内存地址，少了jdk那一层的对象和锁；还支持SO_REUSEPORT、TCP_CORK等jdk不支持的选项。
+ * 只有linux上并且native库能加载时才可用（Epoll.isAvailable()），auto模式下不可用就退回NIO，
+ * 指定epoll但是不可用时启动失败，原因见Epoll.unavailabilityCause()。
+ *
+ * 两者的对比：java EchoBenchmark 3 netty,nettyNio（NettyServer，-Dnetty.transport=nio），
+ * 1核、jdk17、每个负载3秒，轮流跑了5次，requests/s取中位数，括号里是最小值~最大值：
+ * <pre>
+ * server        workload       requests/s(median)   (min ~ max)        cpu  B/request
+ * netty         small RPC           39547       (35676 ~  51856)    62%          0
+ * netty         pipelined          292800      (256837 ~ 333467)    78%         11
+ * netty         large payload       16505       (14563 ~  17792)    68%          0
+ * nettyNio      small RPC           40822       (38909 ~  45220)    74%        273
+ * nettyNio      pipelined          324976      (271675 ~ 385291)    82%        270
+ * nettyNio      large payload       18497       (16114 ~  21875)    66%        282
+ * </pre>
+ * 1. 长连接下吞吐分不出高低，1核上瓶颈不在事件通知这一层；
+ * 2. NIO每个请求多分配两百多字节，CPU也高一些，GC压力大的时候才会体现到吞吐上，分配来自哪里没有单独分析；
+ * 3. 短连接（EchoBenchmark的churn，两次单独的运行）epoll每秒3384、2335个连接，NIO只有1473、1415个，
+ *    每个连接分配的内存是epoll的3倍（38KB对12KB），差别最明显的是短连接。
+ */
+public enum NettyTransport {
+    NIO {
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads) {
+            return new NioEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return NioSocketChannel.class;
+        }
+
+        @Override
+        public ServerChannel newServerChannel() {
+            return new NioServerSocketChannel();
+        }
+
+        @Override
+        public SocketChannel newSocketChannel() {
+            return new NioSocketChannel();
+        }
+    },
+    EPOLL {
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads) {
+            return new EpollEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannelClass() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        public ServerChannel newServerChannel() {
+            return new EpollServerSocketChannel();
+        }
+
+        @Override
+        public SocketChannel newSocketChannel() {
+            return new EpollSocketChannel();
+        }
+    };
+
+    private static final MyEventLog.Event TRANSPORT_SELECTED = MyEventLog.event(MyEventLog.Level.INFO, "netty transport:{}");
+    private static final MyEventLog.Event EPOLL_UNAVAILABLE = MyEventLog.event(MyEventLog.Level.INFO, "epoll unavailable, fall back to nio:{}");
+
+    private static volatile NettyTransport selected;
+
+    /**
+     * @return 按 -Dnetty.transport 选出来的实现，第一次调用时确定，之后都返回同一个
+     */
+    public static NettyTransport get(){
+        NettyTransport transport = selected;
+        if(transport==null){
+            synchronized (NettyTransport.class){
+                transport = selected;
+                if(transport==null){
+                    String name = System.getProperty("netty.transport", "auto");
+                    transport = select(name);
+                    MyEventLog.log(TRANSPORT_SELECTED, transport);
+                    selected = transport;
+                }
+            }
+        }
+        return transport;
+    }
+
+    static NettyTransport select(String name){
+        switch (name.toLowerCase()){
+            case "nio":
+                return NIO;
+            case "epoll":
+                if(!Epoll.isAvailable()){
+                    throw new IllegalStateException("epoll transport unavailable", Epoll.unavailabilityCause());
+                }
+                return EPOLL;
+            case "auto":
+                if(Epoll.isAvailable()){
+                    return EPOLL;
+                }
+                MyEventLog.log(EPOLL_UNAVAILABLE, Epoll.unavailabilityCause());
+                return NIO;
+            default:
+                throw new IllegalArgumentException("netty.transport must be auto, epoll or nio: "+name);
+        }
+    }
+
+    /**
+     * @param threads 0表示netty的默认值（cpu核数*2）
+     */
+    public abstract EventLoopGroup newEventLoopGroup(int threads);
+
+    /**
+     * 给ServerBootstrap.channel用
+     */
+    public abstract Class<? extends ServerChannel> serverChannelClass();
+
+    /**
+     * 给Bootstrap.channel用
+     */
+    public abstract Class<? extends SocketChannel> socketChannelClass();
+
+    /**
+     * 不通过Bootstrap，自己创建channel再注册到EventLoopGroup时使用
+     */
+    public abstract ServerChannel newServerChannel();
+
+    public abstract SocketChannel newSocketChannel();
+}
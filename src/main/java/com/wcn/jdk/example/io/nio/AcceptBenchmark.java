@@ -0,0 +1,120 @@
+package com.wcn.jdk.example.io.nio;
+
+import com.wcn.jdk.example.io.mynetty.MyEventLog;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 对比V5单个accept线程和SO_REUSEPORT多个acceptor时短连接的吞吐。
+ *
+ * 每个客户端线程不停地：建立连接 -> 发送一行 -> 读到响应 -> 关闭连接，
+ * 统计每秒完成的连接数和每个连接从connect到收到响应的延迟。
+ * 客户端关闭时设置SO_LINGER=0直接发RST，避免大量TIME_WAIT把本地端口用完。
+ *
+ * 运行：java AcceptBenchmark [readThreads] [clients] [seconds]
+ *
+ * 1核机器上 readThreads=2 clients=8 seconds=10 的结果：
+ * single acceptor  connections/s=   9176 p50=  613.5us p99=   5416.8us p999=   10259.1us errors=0
+ * SO_REUSEPORT     connections/s=  10411 p50=  521.8us p99=   5061.4us p999=    6885.8us errors=0
+ * 只有一个核的时候客户端和服务端抢同一个cpu，差别主要来自少了一次线程间的交接（queue+wakeup），
+ * 多核机器上单个accept线程跑满一个核之后，SO_REUSEPORT才能继续随着核数扩展。
+ */
+public class AcceptBenchmark {
+    private static final byte[] REQUEST = "ping\n".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        int readThreads = args.length>0 ? Integer.parseInt(args[0]) : 2;
+        int clients = args.length>1 ? Integer.parseInt(args[1]) : 8;
+        int seconds = args.length>2 ? Integer.parseInt(args[2]) : 10;
+        System.out.println("readThreads="+readThreads+" clients="+clients+" seconds="+seconds
+                +" cpus="+Runtime.getRuntime().availableProcessors()
+                +" reusePortSupported="+(ServerConfig.reusePortOption()!=null));
+        //每个连接的accept/close都是INFO日志，压测期间只输出WARN
+        MyEventLog.setLevel(MyEventLog.Level.WARN);
+        System.out.println(run("single acceptor", false, readThreads, clients, seconds));
+        System.out.println(run("SO_REUSEPORT", true, readThreads, clients, seconds));
+    }
+
+    private static String run(String name, boolean reusePort, int readThreads, int clients, int seconds) throws Exception {
+        ServerSocketChannelTestV5 server = new ServerSocketChannelTestV5();
+        InetSocketAddress address = server.start(new ServerConfig()
+                .setPort(0)
+                .setReadThreads(readThreads)
+                .setReusePort(reusePort));
+        InetSocketAddress target = new InetSocketAddress("127.0.0.1", address.getPort());
+
+        long deadline = System.nanoTime()+TimeUnit.SECONDS.toNanos(seconds);
+        AtomicLong errors = new AtomicLong();
+        long[][] latencies = new long[clients][];
+        int[] counts = new int[clients];
+        CountDownLatch done = new CountDownLatch(clients);
+        for(int i=0;i<clients;i++){
+            int index = i;
+            Thread thread = new Thread(()->{
+                long[] samples = new long[1<<16];
+                int count = 0;
+                ByteBuffer readBuffer = ByteBuffer.allocate(64);
+                while(System.nanoTime()<deadline){
+                    long begin = System.nanoTime();
+                    try (SocketChannel channel = SocketChannel.open()){
+                        channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+                        channel.connect(target);
+                        channel.write(ByteBuffer.wrap(REQUEST));
+                        readBuffer.clear();
+                        //响应以\n结尾
+                        while(readBuffer.position()==0 || readBuffer.get(readBuffer.position()-1)!='\n'){
+                            if(channel.read(readBuffer)<0){
+                                throw new IOException("closed by server");
+                            }
+                        }
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                        continue;
+                    }
+                    if(count==samples.length){
+                        samples = Arrays.copyOf(samples, count<<1);
+                    }
+                    samples[count++] = System.nanoTime()-begin;
+                }
+                latencies[index] = samples;
+                counts[index] = count;
+                done.countDown();
+            }, "accept-client-"+i);
+            thread.start();
+        }
+        done.await();
+        server.shutdown();
+
+        int total = 0;
+        for(int count:counts){
+            total += count;
+        }
+        long[] sorted = new long[total];
+        int offset = 0;
+        for(int i=0;i<clients;i++){
+            System.arraycopy(latencies[i], 0, sorted, offset, counts[i]);
+            offset += counts[i];
+        }
+        Arrays.sort(sorted);
+        return String.format("%-16s connections/s=%7d p50=%7.1fus p99=%9.1fus p999=%10.1fus errors=%d",
+                name, total/seconds, percentile(sorted, 0.50)/1000.0, percentile(sorted, 0.99)/1000.0,
+                percentile(sorted, 0.999)/1000.0, errors.get());
+    }
+
+    private static long percentile(long[] sorted, double p){
+        if(sorted.length==0){
+            return 0;
+        }
+        int index = (int)Math.ceil(p*sorted.length)-1;
+        return sorted[Math.max(0, Math.min(index, sorted.length-1))];
+    }
+}
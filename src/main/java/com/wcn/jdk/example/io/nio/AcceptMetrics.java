@@ -0,0 +1,140 @@
+package com.wcn.jdk.example.io.nio;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * accept相关的统计：
+ * 1. accept速率：每次report时计算距离上次report的 accept数/秒。
+ * 2. accept错误：例如文件描述符用完了（Too many open files），accept会一直失败。
+ * 3. 全连接队列（backlog）溢出：内核的统计，读取/proc/net/netstat中TcpExt的ListenOverflows和ListenDrops，
+ *    注意这是整个系统的计数，不只是该端口的，只在linux上有。
+ *    溢出说明accept得不够快，或者backlog太小，客户端会表现为SYN重传、连接超时。
+ * 4. 准入控制：因为连接数达到上限、read线程待处理任务达到上限而拒绝的连接数，以及暂停accept的次数。
+ *
+ * report()只应该由一个线程定时调用。
+ */
+public class AcceptMetrics {
+    private static final Path NETSTAT = Paths.get("/proc/net/netstat");
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder acceptErrors = new LongAdder();
+    private final LongAdder budgetExhausted = new LongAdder();
+    private final LongAdder rejectedMaxConnections = new LongAdder();
+    private final LongAdder rejectedPendingTasks = new LongAdder();
+    private final LongAdder acceptPauses = new LongAdder();
+
+    private long lastReportNanos = System.nanoTime();
+    private long lastAccepted;
+    private long[] lastListenStats = readListenStats();
+
+    public void accepted(){
+        accepted.increment();
+    }
+
+    public void acceptError(){
+        acceptErrors.increment();
+    }
+
+    /**
+     * 一次唤醒中accept的连接数达到了acceptBudget，说明还有连接在排队
+     */
+    public void budgetExhausted(){
+        budgetExhausted.increment();
+    }
+
+    /**
+     * 连接数达到maxConnections，accept之后直接关闭
+     */
+    public void rejectedMaxConnections(){
+        rejectedMaxConnections.increment();
+    }
+
+    /**
+     * 选中的read线程待处理任务达到maxPendingTasksPerLoop，accept之后直接关闭
+     */
+    public void rejectedPendingTasks(){
+        rejectedPendingTasks.increment();
+    }
+
+    public void acceptPaused(){
+        acceptPauses.increment();
+    }
+
+    public long rejectedTotal(){
+        return rejectedMaxConnections.sum()+rejectedPendingTasks.sum();
+    }
+
+    public long acceptPausesTotal(){
+        return acceptPauses.sum();
+    }
+
+    public long acceptedTotal(){
+        return accepted.sum();
+    }
+
+    public String report(){
+        long now = System.nanoTime();
+        long acceptedTotal = accepted.sum();
+        double seconds = (now-lastReportNanos)/1e9;
+        double acceptsPerSecond = seconds>0 ? (acceptedTotal-lastAccepted)/seconds : 0;
+        lastReportNanos = now;
+        lastAccepted = acceptedTotal;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("accepted:").append(acceptedTotal)
+                .append(" acceptsPerSecond:").append(String.format("%.1f", acceptsPerSecond))
+                .append(" acceptErrors:").append(acceptErrors.sum())
+                .append(" budgetExhausted:").append(budgetExhausted.sum())
+                .append(" rejectedMaxConnections:").append(rejectedMaxConnections.sum())
+                .append(" rejectedPendingTasks:").append(rejectedPendingTasks.sum())
+                .append(" acceptPauses:").append(acceptPauses.sum());
+        long[] listenStats = readListenStats();
+        if(listenStats!=null && lastListenStats!=null){
+            sb.append(" listenOverflows:+").append(listenStats[0]-lastListenStats[0])
+                    .append(" listenDrops:+").append(listenStats[1]-lastListenStats[1]);
+        }
+        lastListenStats = listenStats;
+        return sb.toString();
+    }
+
+    /**
+     * /proc/net/netstat的格式是两行一组，第一行是字段名，第二行是对应的值：
+     * TcpExt: SyncookiesSent SyncookiesRecv ... ListenOverflows ListenDrops ...
+     * TcpExt: 0 0 ... 12 12 ...
+     * @return [ListenOverflows, ListenDrops]，读取失败返回null
+     */
+    static long[] readListenStats(){
+        if(!Files.isReadable(NETSTAT)){
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(NETSTAT, StandardCharsets.US_ASCII)){
+            String names;
+            while((names = reader.readLine())!=null){
+                String values = reader.readLine();
+                if(values==null || !names.startsWith("TcpExt:")){
+                    continue;
+                }
+                String[] nameArray = names.split(" ");
+                String[] valueArray = values.split(" ");
+                long[] result = new long[2];
+                for(int i=1;i<nameArray.length && i<valueArray.length;i++){
+                    if("ListenOverflows".equals(nameArray[i])){
+                        result[0] = Long.parseLong(valueArray[i]);
+                    }else if("ListenDrops".equals(nameArray[i])){
+                        result[1] = Long.parseLong(valueArray[i]);
+                    }
+                }
+                return result;
+            }
+        } catch (IOException | NumberFormatException e) {
+            //ignore
+        }
+        return null;
+    }
+}
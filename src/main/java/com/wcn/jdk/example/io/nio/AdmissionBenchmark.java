@@ -0,0 +1,152 @@
+package com.wcn.jdk.example.io.nio;
+
+import com.wcn.jdk.example.io.mynetty.MyByteBufferPool;
+import com.wcn.jdk.example.io.mynetty.MyEventLog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 演示V5准入控制在过载时的效果。
+ *
+ * 服务端2个业务线程，每个请求处理1ms，最多大约2000请求/秒；
+ * clients个客户端各自一问一答，连接失败（被RST、超时）后等待BACKOFF_MILLIS重连。
+ * 客户端数远大于服务端能及时处理的数量时：
+ * 不限制的话所有连接都被接受，请求在业务线程池里排队，每个请求的延迟随着客户端数线性增长；
+ * 限制连接数之后，被接受的连接延迟稳定，多出来的客户端被快速拒绝（CLOSE）或者建连等待（PAUSE_ACCEPT）。
+ *
+ * 运行：java AdmissionBenchmark [clients] [maxConnections] [seconds]
+ *
+ * 1核机器上 clients=400 maxConnections=40 seconds=5 的结果：
+ * unlimited     requests=     7820 p50=  290445.5us p99=  431206.6us connectFailures=     0 rejected=     0 acceptPauses=   0
+ * CLOSE         requests=     6771 p50=   28787.8us p99=   67159.5us connectFailures= 26298 rejected= 26298 acceptPauses=   0
+ * PAUSE_ACCEPT  requests=     7910 p50=   24315.8us p99=   84522.1us connectFailures=  1789 rejected=     0 acceptPauses=  20
+ * 吞吐基本一样（瓶颈在业务线程），区别在于延迟：不限制时每个请求都要等200多ms；
+ * 限制之后被接受的连接在25ms左右，CLOSE模式下其余客户端立即失败，不停重试，
+ * PAUSE_ACCEPT模式下其余客户端的连接停在内核队列里，读超时才失败，服务端几乎不为它们花CPU。
+ */
+public class AdmissionBenchmark {
+    private static final byte[] REQUEST = "ping\n".getBytes(StandardCharsets.UTF_8);
+    private static final long HANDLE_MILLIS = 1;
+    private static final int TIMEOUT_MILLIS = 1000;
+    private static final long BACKOFF_MILLIS = 20;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length>0 ? Integer.parseInt(args[0]) : 400;
+        int maxConnections = args.length>1 ? Integer.parseInt(args[1]) : 40;
+        int seconds = args.length>2 ? Integer.parseInt(args[2]) : 5;
+        //被拒绝的连接很多，压测期间只输出WARN
+        MyEventLog.setLevel(MyEventLog.Level.WARN);
+        System.out.println(run("unlimited", new ServerConfig(), clients, seconds));
+        System.out.println(run("CLOSE", new ServerConfig()
+                .setMaxConnections(maxConnections)
+                .setRejectMode(ServerConfig.RejectMode.CLOSE), clients, seconds));
+        System.out.println(run("PAUSE_ACCEPT", new ServerConfig()
+                .setMaxConnections(maxConnections)
+                .setRejectMode(ServerConfig.RejectMode.PAUSE_ACCEPT), clients, seconds));
+    }
+
+    private static String run(String name, ServerConfig config, int clients, int seconds) throws Exception {
+        ServerSocketChannelTestV5 server = new ServerSocketChannelTestV5();
+        InetSocketAddress address = server.start(config
+                .setPort(0)
+                .setReadThreads(2)
+                .setBusinessThreads(2)
+                .setFrameDecoderFactory(() -> FrameDecoder.line(1024))
+                .setRequestHandler((frameDecoder, request) -> {
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(HANDLE_MILLIS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    ByteBuffer response = MyByteBufferPool.DEFAULT.allocate(request.remaining()+frameDecoder.frameOverhead());
+                    response.put(request);
+                    frameDecoder.writeTrailer(response);
+                    response.flip();
+                    return response;
+                }));
+        InetSocketAddress target = new InetSocketAddress("127.0.0.1", address.getPort());
+
+        long deadline = System.nanoTime()+TimeUnit.SECONDS.toNanos(seconds);
+        AtomicLong connectFailures = new AtomicLong();
+        long[][] latencies = new long[clients][];
+        CountDownLatch done = new CountDownLatch(clients);
+        for(int i=0;i<clients;i++){
+            int index = i;
+            new Thread(() -> {
+                latencies[index] = call(target, deadline, connectFailures);
+                done.countDown();
+            }, "admission-client-"+i).start();
+        }
+        done.await();
+        AcceptMetrics metrics = server.acceptMetrics();
+        server.shutdown();
+
+        long[] sorted = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        return String.format("%-13s requests=%9d p50=%11.1fus p99=%11.1fus connectFailures=%6d rejected=%6d acceptPauses=%4d",
+                name, sorted.length, percentile(sorted, 0.50)/1000.0, percentile(sorted, 0.99)/1000.0,
+                connectFailures.get(), metrics.rejectedTotal(), metrics.acceptPausesTotal());
+    }
+
+    /**
+     * 一问一答直到deadline，连接失败后退避重连
+     * @return 每个成功请求的延迟
+     */
+    private static long[] call(InetSocketAddress target, long deadline, AtomicLong connectFailures){
+        long[] samples = new long[256];
+        int count = 0;
+        byte[] readBuffer = new byte[64];
+        while(System.nanoTime()<deadline){
+            try (Socket socket = new Socket()){
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(TIMEOUT_MILLIS);
+                socket.connect(target, TIMEOUT_MILLIS);
+                OutputStream out = socket.getOutputStream();
+                InputStream in = socket.getInputStream();
+                while(System.nanoTime()<deadline){
+                    long begin = System.nanoTime();
+                    out.write(REQUEST);
+                    int read = 0;
+                    while(read==0 || readBuffer[read-1]!='\n'){
+                        int n = in.read(readBuffer, read, readBuffer.length-read);
+                        if(n<0){
+                            throw new IOException("closed by server");
+                        }
+                        read += n;
+                    }
+                    if(count==samples.length){
+                        samples = Arrays.copyOf(samples, count<<1);
+                    }
+                    samples[count++] = System.nanoTime()-begin;
+                }
+            } catch (IOException e) {
+                //被RST、读超时
+                connectFailures.incrementAndGet();
+                try {
+                    TimeUnit.MILLISECONDS.sleep(BACKOFF_MILLIS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        return Arrays.copyOf(samples, count);
+    }
+
+    private static long percentile(long[] sorted, double p){
+        if(sorted.length==0){
+            return 0;
+        }
+        int index = (int)Math.ceil(p*sorted.length)-1;
+        return sorted[Math.max(0, Math.min(index, sorted.length-1))];
+    }
+}
@@ -0,0 +1,228 @@
+package com.wcn.jdk.example.io.nio;
+
+import com.wcn.jdk.example.io.mynetty.MySelector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+/**
+ * 每个连接的上下文，作为SelectionKey的attachment保存，类似于netty中的Channel。
+ * 只能在连接所属的reactor线程中使用。
+ *
+ * OP_WRITE的注册规则：
+ * socket的发送缓冲区绝大部分时间都是可写的，如果一直注册OP_WRITE，select()会一直立即返回，cpu空转。
+ * 所以只有在outboundBuffer里有没写完的数据时才注册OP_WRITE，写完了马上取消。
+ *
+ * 读暂停：outboundBuffer超过高水位线后取消OP_READ，不再读取该连接的请求，
+ * 等数据写出去降到低水位线以下后再恢复OP_READ，这样慢客户端只会拖慢自己。
+ * 开启了业务线程池时，交给业务线程还没写回响应的请求达到maxInFlightRequests也会暂停读，见requestStarted。
+ *
+ * TLS连接（有TlsSession时）：outboundBuffer里放的还是明文，flush时由TlsSession加密后再写出，
+ * 读的时候也是TlsSession先解密到frameDecoder的cumulation里，拆包和业务处理感知不到TLS。
+ */
+public class ConnectionContext implements Closeable, MySelector.KeyAware {
+    private final SocketChannel socketChannel;
+    private SelectionKey key;
+    private final OutboundBuffer outboundBuffer;
+    private final FrameDecoder frameDecoder;
+    //outboundBuffer超过高水位线导致的读暂停
+    private boolean readPaused;
+    //交给业务线程、还没写回响应的请求数，达到maxInFlightRequests时暂停读，0表示不限制
+    private int inFlightRequests;
+    private int maxInFlightRequests;
+    //发送队列写空之后关闭连接，见closeAfterFlush
+    private boolean closeAfterFlush;
+    //开启了空闲检测时才有，见IdleTimeoutWheel
+    private IdleTimeoutWheel.IdleState idleState;
+    //开启了业务线程池时才有，该连接的请求在这个串行executor中按顺序处理
+    private Executor businessExecutor;
+    //配置了TLS时才有
+    private TlsSession tls;
+
+    public ConnectionContext(SocketChannel socketChannel, SelectionKey key, FrameDecoder frameDecoder) {
+        this.socketChannel = socketChannel;
+        this.key = key;
+        this.outboundBuffer = new OutboundBuffer();
+        this.frameDecoder = frameDecoder;
+    }
+
+    public SocketChannel channel(){
+        return socketChannel;
+    }
+
+    public SelectionKey key(){
+        return key;
+    }
+
+    /**
+     * selector因为空轮询重建之后，换成新selector上的key
+     */
+    @Override
+    public void selectionKeyChanged(SelectionKey newKey) {
+        this.key = newKey;
+    }
+
+    public OutboundBuffer outboundBuffer(){
+        return outboundBuffer;
+    }
+
+    public FrameDecoder frameDecoder(){
+        return frameDecoder;
+    }
+
+    void idleState(IdleTimeoutWheel.IdleState idleState){
+        this.idleState = idleState;
+    }
+
+    void businessExecutor(Executor businessExecutor){
+        this.businessExecutor = businessExecutor;
+    }
+
+    public Executor businessExecutor(){
+        return businessExecutor;
+    }
+
+    void maxInFlightRequests(int maxInFlightRequests){
+        this.maxInFlightRequests = maxInFlightRequests;
+    }
+
+    /**
+     * 一个请求交给业务线程之前调用，达到maxInFlightRequests时取消OP_READ。
+     * 同一次read拆出来的剩下的帧还是会交出去，所以最多超出一次read的量
+     */
+    public void requestStarted(){
+        if(++inFlightRequests==maxInFlightRequests){
+            updateReadInterest();
+        }
+    }
+
+    /**
+     * 请求的响应回到read线程之后调用（不管连接是否已经关闭），降到maxInFlightRequests以下时恢复OP_READ
+     */
+    public void requestCompleted(){
+        if(inFlightRequests--==maxInFlightRequests){
+            updateReadInterest();
+        }
+    }
+
+    private boolean tooManyInFlightRequests(){
+        return maxInFlightRequests>0 && inFlightRequests>=maxInFlightRequests;
+    }
+
+    private void updateReadInterest(){
+        if(!key.isValid()){
+            return;
+        }
+        int ops = key.interestOps();
+        //TLS的delegated task执行完之后会自己恢复OP_READ
+        boolean read = !isReadPaused() && (tls==null || !tls.isTaskRunning());
+        int newOps = read ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ;
+        if(newOps!=ops){
+            key.interestOps(newOps);
+        }
+    }
+
+    void tls(TlsSession tls){
+        this.tls = tls;
+    }
+
+    public TlsSession tls(){
+        return tls;
+    }
+
+    /**
+     * 读到数据之后调用，更新空闲检测的最后读时间
+     */
+    public void touchRead(){
+        if(idleState!=null){
+            idleState.touchRead();
+        }
+    }
+
+    /**
+     * 只加入发送队列，不写出，多次write后调用一次flush可以合并成一次writev
+     * @param buffer 已经flip过的buffer，之后归outboundBuffer所有
+     */
+    public void write(ByteBuffer buffer){
+        if(idleState!=null && outboundBuffer.isEmpty()){
+            //writeTimeout从有数据待发送开始计算
+            idleState.touchWrite();
+        }
+        outboundBuffer.add(buffer);
+    }
+
+    public void writeAndFlush(ByteBuffer buffer) throws IOException {
+        write(buffer);
+        flush();
+    }
+
+    /**
+     * 已经在发送队列里的数据都写出去之后关闭连接，例如http的Connection: close，
+     * 关闭发生在之后的某次flush里（可能要等OP_WRITE）
+     */
+    public void closeAfterFlush(){
+        closeAfterFlush = true;
+    }
+
+    /**
+     * 尝试写出发送队列里的数据，写不完就注册OP_WRITE，OP_WRITE就绪后reactor会再次调用该方法
+     */
+    public void flush() throws IOException {
+        if(!key.isValid()){
+            return;
+        }
+        long pendingBefore = outboundBuffer.pendingBytes();
+        boolean done = tls==null ? outboundBuffer.flushTo(socketChannel) : tls.flush(this);
+        if(done && closeAfterFlush){
+            if(tls!=null && tls.closeOutbound()){
+                //先把close_notify发出去
+                done = tls.flush(this);
+            }
+            if(done){
+                close();
+                return;
+            }
+        }
+        if(idleState!=null && outboundBuffer.pendingBytes()<pendingBefore){
+            idleState.touchWrite();
+        }
+        int ops = key.interestOps();
+        int newOps = done ? ops & ~SelectionKey.OP_WRITE : ops | SelectionKey.OP_WRITE;
+        if(outboundBuffer.isWritable()){
+            if(readPaused){
+                readPaused = false;
+                if(!tooManyInFlightRequests()){
+                    newOps |= SelectionKey.OP_READ;
+                }
+            }
+        }else if(!readPaused){
+            readPaused = true;
+            newOps &= ~SelectionKey.OP_READ;
+        }
+        if(newOps!=ops){
+            key.interestOps(newOps);
+        }
+    }
+
+    public boolean isReadPaused(){
+        return readPaused || tooManyInFlightRequests();
+    }
+
+    @Override
+    public void close() throws IOException {
+        key.cancel();
+        if(idleState!=null){
+            idleState.remove();
+        }
+        outboundBuffer.release();
+        frameDecoder.release();
+        if(tls!=null){
+            tls.release();
+        }
+        socketChannel.close();
+    }
+}
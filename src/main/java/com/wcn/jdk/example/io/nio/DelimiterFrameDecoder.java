@@ -0,0 +1,101 @@
+package com.wcn.jdk.example.io.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 分隔符拆包器，类似于netty中的DelimiterBasedFrameDecoder/LineBasedFrameDecoder。
+ * 解码后的帧不包括分隔符。
+ *
+ * 半包时会记住已经扫描过的字节数，下次read之后从上次扫描结束的地方继续找分隔符，
+ * 不会每次都从头扫描，大帧分很多次read到的时候不会退化成O(n^2)。
+ */
+public class DelimiterFrameDecoder extends FrameDecoder {
+    public static final byte[] LINE_DELIMITER = "\n".getBytes(StandardCharsets.UTF_8);
+
+    private final int maxFrameLength;
+    private final byte[] delimiter;
+    //分隔符为\n时，帧内容末尾的\r也去掉
+    private final boolean stripCarriageReturn;
+    //相对于in.position()已经扫描过、确定没有分隔符的字节数，cumulation compact之后依然有效
+    private int scannedBytes;
+
+    public DelimiterFrameDecoder(int maxFrameLength, byte[] delimiter) {
+        if(maxFrameLength<=0){
+            throw new IllegalArgumentException("maxFrameLength: "+maxFrameLength+" (expected: > 0)");
+        }
+        if(delimiter==null || delimiter.length==0){
+            throw new IllegalArgumentException("empty delimiter");
+        }
+        this.maxFrameLength = maxFrameLength;
+        this.delimiter = delimiter.clone();
+        this.stripCarriageReturn = delimiter.length==1 && delimiter[0]=='\n';
+    }
+
+    @Override
+    protected boolean decodeFrame(ByteBuffer in, ByteBuffer frame) throws IOException {
+        int start = in.position();
+        int limit = in.limit();
+        //分隔符可能跨越了上次扫描的边界，往回退delimiter.length-1个字节
+        int from = start+Math.max(0, scannedBytes-delimiter.length+1);
+        int index = indexOf(in, from, limit);
+        if(index<0){
+            scannedBytes = limit-start;
+            if(scannedBytes>maxFrameLength+delimiter.length){
+                throw new IOException("frame length exceeds "+maxFrameLength+" without delimiter");
+            }
+            return false;
+        }
+        scannedBytes = 0;
+        int end = index;
+        if(stripCarriageReturn && end>start && in.get(end-1)=='\r'){
+            end--;
+        }
+        if(end-start>maxFrameLength){
+            throw new IOException("frame length "+(end-start)+" exceeds "+maxFrameLength);
+        }
+        frame.limit(end);
+        frame.position(start);
+        in.position(index+delimiter.length);
+        return true;
+    }
+
+    private int indexOf(ByteBuffer in, int from, int limit){
+        byte first = delimiter[0];
+        int last = limit-delimiter.length;
+        outer:
+        for(int i=from;i<=last;i++){
+            if(in.get(i)!=first){
+                continue;
+            }
+            for(int j=1;j<delimiter.length;j++){
+                if(in.get(i+j)!=delimiter[j]){
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int frameOverhead() {
+        return delimiter.length;
+    }
+
+    @Override
+    public void writeHeader(ByteBuffer out, int frameLength) {
+    }
+
+    @Override
+    public void writeTrailer(ByteBuffer out) {
+        out.put(delimiter);
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        scannedBytes = 0;
+    }
+}
@@ -0,0 +1,462 @@
+package com.wcn.jdk.example.io.nio;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.OperatingSystemMXBean;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * 所有echo服务端的横向对比：ServerSocketTest、ServerSocketChannelTestV1~V5、NettyServer、NettyServerCustom。
+ *
+ * 每个服务端在一个单独的子进程中启动（-Dserver.port指定一个临时分配的空闲端口，只监听回环地址上的压测），
+ * 这样各服务端的CPU、内存互不影响，也能单独统计：
+ * 子进程的入口是ServerLauncher，它反射调用服务端的main，同时统计本进程的CPU时间和分配的内存，
+ * 压测进程通过子进程的stdin发送stats命令，在每个负载前后各取一次，相减得到该负载期间服务端的开销。
+ *
+ * 四种负载，都先预热WARMUP_SECONDS再统计：
+ * 1. small RPC：100个连接，每个连接一问一答（pipelineDepth=1），请求32字节，用LoadGenerator闭环压测；
+ * 2. pipelined：10个连接，每个连接同时有16个请求在路上，请求32字节，一次读到多个请求，看服务端能不能把响应合并着写；
+ * 3. large payload：10个连接，一问一答，请求16KB；
+ * 4. connection churn：4个线程不停地 建连->一问一答->关闭，统计每秒完成的连接数和每次的耗时。
+ *
+ * 输出：每秒请求数、延迟分位（闭环未修正，修正后的见LoadGenerator）、服务端进程的CPU占用（100%为一个核）、
+ * 分配速率和平均每个请求分配的字节数。
+ * 分配是根据每次GC前后eden区的使用量累加出来的（直接分配到老年代的大对象不算），只能作为相对比较。
+ *
+ * 运行：java EchoBenchmark [seconds] [服务端名字，逗号分隔，默认全部]
+ * 需要的jar（netty）都要在当前的classpath上，例如 java -cp "target/classes:netty的jar目录/*" EchoBenchmark 3，
+ * 子进程使用同样的classpath；netty不在classpath上时对应的服务端会被跳过。
+ *
+ * 1核、jdk17、每个负载3秒的一次结果，netty是4.1.75、linux上默认的epoll：
+ * <pre>
+ * server       workload         requests/s    p50(us)    p99(us)   p999(us)     cpu alloc MB/s  B/request
+ * bio          small RPC             34776     2424.8    14286.8    36700.2     53%       16.2        494
+ * bio          pipelined            337290      417.8     2490.4     4980.7     60%       64.4        201
+ * bio          large payload           225    44040.2    49283.1    65096.0      3%       23.5     110568
+ * bio          churn                  2152     1245.2     8257.5    11272.2     65%      453.8     220895
+ * V1           small RPC             84969      139.3      299.0     3178.5     51%        8.2        101
+ * V1           pipelined           1364571      109.6      231.4     1409.0     45%        8.2          6
+ * V1           large payload           226    44040.2    45029.6    45029.6      3%        0.5       2109
+ * V1           churn                 13578       78.8     2359.3     6946.8     37%       27.7       2757
+ * V2           small RPC               106    31195.1  1667653.1  1667653.1      2%        0.5       4505
+ * V2           pipelined               512   255852.5   502219.6   502219.6      1%        0.0          0
+ * V2           large payload             0        0.0        0.0        0.0      1%        0.0          0
+ * V2           churn                  4220      120.8     3211.3     5767.2     25%        9.4       2829
+ * V3           small RPC                 0        0.0        0.0        0.0      1%        0.0          0
+ * V3           pipelined                 0        0.0        0.0        0.0      1%        0.0          0
+ * V3           large payload             0        0.0        0.0        0.0      1%        0.0          0
+ * V3           churn                     0        0.0        0.0        0.0      1%        0.0          0
+ * V4           small RPC             80043      204.8     1294.3     5111.8     50%        7.3         95
+ * V4           pipelined           1374160      102.4      282.6      999.4     44%        7.7          6
+ * V4           large payload          1653      405.5    44564.5    48234.5     23%        3.5       2253
+ * V4           churn                 12825      133.1      389.1     2883.6     48%       33.0       2777
+ * V5           small RPC             82826      991.2     5374.0     7602.2     55%        7.3         92
+ * V5           pipelined           1204789      115.7      524.3     3997.7     53%        8.8          8
+ * V5           large payload          7289     1359.9     3244.0     6357.0     61%       11.7       1684
+ * V5           churn                 12704      245.8     2031.6     4522.0     54%       35.1       2899
+ * netty        small RPC             50216     1638.4     6684.7     9044.0     71%        0.0          0
+ * netty        pipelined            370379      315.4     3899.4     5570.6     81%        4.1         12
+ * netty        large payload         20078      376.8     3964.9     5832.7     66%        0.0          0
+ * netty        churn                  3384      753.7     6488.1    13762.6     74%       40.3      12471
+ * nettyCopy    small RPC             53995     1523.7     6881.3     8781.8     71%        7.3        142
+ * nettyCopy    pipelined            235232      503.8     4587.5     5963.8     87%       53.5        239
+ * nettyCopy    large payload         18237      372.7     4390.9    12582.9     71%      291.3      16761
+ * nettyCopy    churn                  2068     1409.0     8257.5    13107.2     76%       23.9      12155
+ * nettyUnpooled small RPC             49096     1638.4     7077.9     9175.0     71%       11.4        243
+ * nettyUnpooled pipelined            424016      274.4     3637.2     5636.1     79%       26.2         65
+ * nettyUnpooled large payload         20593      401.4     3342.3     5242.9     62%        6.1        309
+ * nettyUnpooled churn                  2427     1130.5     8192.0    16384.0     76%       29.5      12704
+ * nettyNio     small RPC             38420     2129.9     8060.9    16515.1     73%       10.0        273
+ * nettyNio     pipelined            277595      409.6     4522.0     7405.6     83%       71.9        272
+ * nettyNio     large payload         17892      417.8     4128.8     5636.1     67%        4.6        270
+ * nettyNio     churn                  1473     1851.4    12976.1    21233.7     80%       54.4      38745
+ * nettyNoBatch small RPC             48437     1687.6     6619.1     8323.1     69%        0.5         10
+ * nettyNoBatch pipelined             99219     1212.4     6225.9     7471.1     80%        0.0          0
+ * nettyNoBatch large payload         21935      331.8     3506.2     5177.3     65%        0.0          0
+ * nettyNoBatch churn                  2997      884.7     6750.2    14024.7     77%       35.0      12272
+ * nettyCustom  small RPC             46466     1769.5     6815.7     9830.4     72%        0.0          0
+ * nettyCustom  pipelined            269296      450.6     4325.4     5439.5     84%        3.6         14
+ * nettyCustom  large payload         15091      417.8     4849.7     7798.8     72%        0.0          0
+ * nettyCustom  churn                  2945      884.7     7077.9    16515.1     77%       34.9      12438
+ * </pre>
+ * 压测客户端和服务端抢同一个核，同一个服务端多跑几次吞吐能差到1.5~2倍，只能看数量级和分配，不能看百分之几十的差别。
+ * 1. bio每个连接一个线程，100个连接时p50就到了2ms，16KB的请求每次readLine都要解码成String再拼回去，分配是NIO的几十倍；
+ * 2. V2在accept的selector上select(500)，没有新连接时读事件要等500ms才处理，长连接负载下几乎不可用；
+ *    V3的读线程阻塞在select上，accept线程register时互相等待，按设计就是不能工作的（见V3的注释）；
+ * 3. pipelined负载下NIO的几个版本一次读到的多个请求的响应都追加到同一个写缓冲区，一次write写出去，
+ *    吞吐是一问一答的十几倍；bio每条响应flush一次，pipelined的吞吐只有NIO的四分之一左右；
+ * 4. V1、V4单线程处理少量连接时延迟最低，但大包的p99在44ms以上：一次写不完的响应要等OP_WRITE，
+ *    和客户端的延迟确认叠在一起，吞吐也很不稳定；V5的读写分组和写队列让大包稳定在7000/s左右；
+ * 5. 短连接时V1、V4、V5差不多，都在1.3万/秒左右，V5多出来的accept到读线程的交接在1核上看不出来；
+ * 6. netty（1个boss、4个worker线程挤在1个核上）一问一答和pipelined都明显比V5慢，服务端CPU也更高，
+ *    短连接每个连接要分配12KB左右（channel、pipeline、handler）；只有大包反过来是V5的将近3倍，原因没有单独分析。
+ *    nettyNoBatch的pipelined不到netty的一半，见FlushBatchHandler；
+ *    nettyNio（jdk的nio selector）多跑几次之后吞吐和epoll分不出高低，但每个请求多分配两三百字节，见NettyTransport；
+ *    netty几种写响应方式（零拷贝、拷贝、不池化）之间的对比见NettyServer。
+ */
+public class EchoBenchmark {
+    static final int WARMUP_SECONDS = 1;
+    private static final int CHURN_THREADS = 4;
+    private static final long STARTUP_TIMEOUT_MILLIS = 10000;
+
+    //名字、main类、参数，-D开头的参数作为子进程的jvm参数
+    private static final String[][] SERVERS = {
+            {"bio", "com.wcn.jdk.example.io.bio.ServerSocketTest", "thread"},
+            {"V1", "com.wcn.jdk.example.io.nio.ServerSocketChannelTestV1", "raw"},
+            {"V2", "com.wcn.jdk.example.io.nio.ServerSocketChannelTestV2"},
+            {"V3", "com.wcn.jdk.example.io.nio.ServerSocketChannelTestV3"},
+            {"V4", "com.wcn.jdk.example.io.nio.ServerSocketChannelTestV4"},
+            {"V5", "com.wcn.jdk.example.io.nio.ServerSocketChannelTestV5", "raw"},
+            {"netty", "com.wcn.jdk.example.io.netty.NettyServer"},
+            //NettyServer原来的写法：拷贝到byte[]再写回去
+            {"nettyCopy", "com.wcn.jdk.example.io.netty.NettyServer", "copy"},
+            {"nettyUnpooled", "com.wcn.jdk.example.io.netty.NettyServer", "zerocopy", "unpooled"},
+            //netty默认在linux上用epoll，见NettyTransport
+            {"nettyNio", "com.wcn.jdk.example.io.netty.NettyServer", "-Dnetty.transport=nio"},
+            //每条响应各自flush，和默认的合并flush对比pipelined负载
+            {"nettyNoBatch", "com.wcn.jdk.example.io.netty.NettyServer", "-Dnetty.flushAfterMessages=0"},
+            {"nettyCustom", "com.wcn.jdk.example.io.netty.NettyServerCustom"},
+    };
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length>0 ? Integer.parseInt(args[0]) : 5;
+        List<String> selected = args.length>1 ? Arrays.asList(args[1].split(",")) : null;
+        System.out.println("seconds="+seconds+" cpus="+Runtime.getRuntime().availableProcessors()
+                +" java="+System.getProperty("java.version"));
+        System.out.println(String.format("%-12s %-14s %12s %10s %10s %10s %7s %10s %10s",
+                "server", "workload", "requests/s", "p50(us)", "p99(us)", "p999(us)", "cpu", "alloc MB/s", "B/request"));
+        for(String[] server:SERVERS){
+            if(selected!=null && !selected.contains(server[0])){
+                continue;
+            }
+            try (ServerProcess process = ServerProcess.start(server[1], Arrays.copyOfRange(server, 2, server.length))){
+                run(server[0], "small RPC", process, () -> loadGenerator(process.port, 100, 32, 1, seconds).run());
+                run(server[0], "pipelined", process, () -> loadGenerator(process.port, 10, 32, 16, seconds).run());
+                run(server[0], "large payload", process, () -> loadGenerator(process.port, 10, 16*1024, 1, seconds).run());
+                run(server[0], "churn", process, () -> churn(process.port, seconds));
+            } catch (IOException e) {
+                System.out.println(String.format("%-12s skipped: %s", server[0], e.getMessage()));
+            }
+        }
+    }
+
+    private static LoadGenerator loadGenerator(int port, int connections, int payloadSize, int pipelineDepth, int seconds){
+        return new LoadGenerator()
+                .setPort(port)
+                .setConnections(connections)
+                .setThreads(2)
+                .setMode(LoadGenerator.Mode.CLOSED)
+                .setPipelineDepth(pipelineDepth)
+                .setPayloadSize(payloadSize)
+                .setWarmupSeconds(WARMUP_SECONDS)
+                .setDurationSeconds(seconds);
+    }
+
+    static void run(String server, String workload, ServerProcess process, Workload task) throws Exception {
+        //预热期间的开销也会算进去，按比例扣掉太复杂，这里在预热结束时再取一次
+        Stats[] before = new Stats[1];
+        Thread sampler = new Thread(() -> {
+            try {
+                TimeUnit.SECONDS.sleep(WARMUP_SECONDS);
+                before[0] = process.stats();
+            } catch (Exception e) {
+                //服务端进程已经挂了，下面按失败输出
+            }
+        }, "echo-benchmark-sampler");
+        sampler.start();
+        LoadGenerator.Result result = task.run();
+        Stats after = process.stats();
+        sampler.join();
+        if(before[0]==null){
+            System.out.println(String.format("%-12s %-14s server died, errors=%d", server, workload, result.errors()));
+            return;
+        }
+        double seconds = (after.wallNanos-before[0].wallNanos)/1e9;
+        double cpu = (after.cpuNanos-before[0].cpuNanos)/1e9/seconds;
+        long allocated = after.allocatedBytes-before[0].allocatedBytes;
+        long requests = result.histogram().totalCount();
+        LatencyHistogram histogram = result.histogram();
+        System.out.println(String.format("%-12s %-14s %12.0f %10.1f %10.1f %10.1f %6.0f%% %10.1f %10.0f%s",
+                server, workload, result.throughput(), histogram.percentile(50)/1000.0,
+                histogram.percentile(99)/1000.0, histogram.percentile(99.9)/1000.0,
+                cpu*100, allocated/seconds/1024/1024, requests>0 ? allocated/(double)requests : 0,
+                result.errors()>0 ? " errors="+result.errors() : ""));
+    }
+
+    /**
+     * 短连接：CHURN_THREADS个线程不停地建连、一问一答、关闭
+     */
+    private static LoadGenerator.Result churn(int port, int seconds) throws InterruptedException {
+        InetSocketAddress target = new InetSocketAddress("127.0.0.1", port);
+        long begin = System.nanoTime()+TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+        long deadline = begin+TimeUnit.SECONDS.toNanos(seconds);
+        LatencyHistogram[] histograms = new LatencyHistogram[CHURN_THREADS];
+        AtomicLong errors = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(CHURN_THREADS);
+        byte[] request = "ping\n".getBytes(StandardCharsets.UTF_8);
+        for(int t=0;t<CHURN_THREADS;t++){
+            LatencyHistogram histogram = histograms[t] = new LatencyHistogram();
+            new Thread(() -> {
+                byte[] readBuffer = new byte[64];
+                long now;
+                while((now = System.nanoTime())-deadline<0){
+                    try (Socket socket = new Socket()){
+                        socket.setTcpNoDelay(true);
+                        //关闭时直接发RST，避免大量TIME_WAIT把本地端口用完
+                        socket.setSoLinger(true, 0);
+                        socket.setSoTimeout(5000);
+                        socket.connect(target, 5000);
+                        socket.getOutputStream().write(request);
+                        InputStream in = socket.getInputStream();
+                        int read = 0;
+                        while(read==0 || readBuffer[read-1]!='\n'){
+                            int n = in.read(readBuffer, read, readBuffer.length-read);
+                            if(n<0){
+                                throw new IOException("closed by server");
+                            }
+                            read += n;
+                        }
+                        if(now-begin>=0){
+                            histogram.record(System.nanoTime()-now);
+                        }
+                    } catch (IOException e) {
+                        if(now-begin>=0){
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+                done.countDown();
+            }, "echo-benchmark-churn-"+t).start();
+        }
+        done.await();
+        return LoadGenerator.Result.of(histograms, seconds, errors.get());
+    }
+
+    interface Workload {
+        LoadGenerator.Result run() throws Exception;
+    }
+
+    private static class Stats {
+        private long wallNanos;
+        private long cpuNanos;
+        private long allocatedBytes;
+    }
+
+    /**
+     * 运行在子进程中的服务端
+     */
+    static class ServerProcess implements AutoCloseable {
+        private final Process process;
+        final int port;
+        private final PrintStream commands;
+        //子进程输出中stats命令的回复，其它输出丢弃
+        private final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+
+        private ServerProcess(Process process, int port) {
+            this.process = process;
+            this.port = port;
+            this.commands = new PrintStream(process.getOutputStream(), true);
+            Thread reader = new Thread(() -> {
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))){
+                    String line;
+                    while((line = in.readLine())!=null){
+                        if(line.startsWith(ServerLauncher.REPLY_PREFIX)){
+                            replies.add(line);
+                        }else if(Boolean.getBoolean("echo.benchmark.verbose")){
+                            System.out.println("  | "+line);
+                        }
+                    }
+                } catch (IOException e) {
+                    //子进程退出
+                }
+                replies.add(ServerLauncher.REPLY_PREFIX+"exit");
+            }, "echo-benchmark-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        static ServerProcess start(String mainClass, String[] args) throws IOException, InterruptedException {
+            int port = freePort();
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add("-Xms256m");
+            command.add("-Xmx256m");
+            command.add("-Dserver.port="+port);
+            command.add("-Dmynetty.eventlog.level=WARN");
+            List<String> mainArgs = new ArrayList<>();
+            for(String arg:args){
+                if(arg.startsWith("-D")){
+                    command.add(arg);
+                }else{
+                    mainArgs.add(arg);
+                }
+            }
+            command.add(ServerLauncher.class.getName());
+            command.add(mainClass);
+            command.addAll(mainArgs);
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            ServerProcess serverProcess = new ServerProcess(process, port);
+            serverProcess.awaitListening();
+            return serverProcess;
+        }
+
+        /**
+         * 先绑定0端口拿到一个系统分配的空闲端口再关闭，子进程启动前被别人占用的概率很小
+         */
+        private static int freePort() throws IOException {
+            try (ServerSocket socket = new ServerSocket(0)){
+                return socket.getLocalPort();
+            }
+        }
+
+        private void awaitListening() throws IOException, InterruptedException {
+            long deadline = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(STARTUP_TIMEOUT_MILLIS);
+            while(System.nanoTime()<deadline){
+                if(!process.isAlive()){
+                    throw new IOException("server exited: "+replies.poll());
+                }
+                try (Socket socket = new Socket()){
+                    socket.connect(new InetSocketAddress("127.0.0.1", port), 100);
+                    return;
+                } catch (IOException e) {
+                    TimeUnit.MILLISECONDS.sleep(50);
+                }
+            }
+            close();
+            throw new IOException("server not listening on "+port+" after "+STARTUP_TIMEOUT_MILLIS+"ms");
+        }
+
+        Stats stats() throws IOException, InterruptedException {
+            commands.println("stats");
+            String reply = replies.poll(5, TimeUnit.SECONDS);
+            if(reply==null || !reply.startsWith(ServerLauncher.REPLY_PREFIX+"stats ")){
+                throw new IOException("unexpected reply: "+reply);
+            }
+            String[] fields = reply.split(" ");
+            Stats stats = new Stats();
+            stats.wallNanos = System.nanoTime();
+            stats.cpuNanos = Long.parseLong(fields[2]);
+            stats.allocatedBytes = Long.parseLong(fields[3]);
+            return stats;
+        }
+
+        /**
+         * 先让子进程自己退出，5秒没退出就强杀；等待时被中断也强杀，并恢复中断标志交给调用方处理
+         */
+        @Override
+        public void close() {
+            commands.println("exit");
+            try {
+                if(!process.waitFor(5, TimeUnit.SECONDS)){
+                    process.destroyForcibly().waitFor();
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 子进程的入口：java ServerLauncher 服务端main类 参数...
+     * 从stdin读取命令：stats 输出 "#echo-benchmark stats 进程CPU纳秒 累计分配字节数"；exit 退出进程。
+     */
+    public static class ServerLauncher {
+        static final String REPLY_PREFIX = "#echo-benchmark ";
+
+        //每次GC时eden区被回收的字节数累加
+        private static final AtomicLong collectedEden = new AtomicLong();
+
+        public static void main(String[] args) throws Exception {
+            trackAllocations();
+            Thread server = new Thread(() -> {
+                try {
+                    Class.forName(args[0]).getMethod("main", String[].class)
+                            .invoke(null, (Object) Arrays.copyOfRange(args, 1, args.length));
+                } catch (InvocationTargetException e) {
+                    System.out.println(REPLY_PREFIX+"error "+e.getCause());
+                    System.exit(1);
+                } catch (ReflectiveOperationException | LinkageError e) {
+                    //例如netty不在classpath上
+                    System.out.println(REPLY_PREFIX+"error "+e);
+                    System.exit(1);
+                }
+            }, "server-main");
+            server.setDaemon(true);
+            server.start();
+
+            OperatingSystemMXBean os = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            String command;
+            while((command = in.readLine())!=null && !"exit".equals(command)){
+                if("stats".equals(command)){
+                    System.out.println(REPLY_PREFIX+"stats "+os.getProcessCpuTime()+" "+allocatedBytes());
+                }
+            }
+            System.exit(0);
+        }
+
+        /**
+         * 累计分配 = 历次GC回收掉的eden + 当前eden的使用量
+         */
+        private static long allocatedBytes(){
+            long edenUsed = 0;
+            for(MemoryPoolMXBean pool:ManagementFactory.getMemoryPoolMXBeans()){
+                if(pool.getName().contains("Eden")){
+                    edenUsed += pool.getUsage().getUsed();
+                }
+            }
+            return collectedEden.get()+edenUsed;
+        }
+
+        private static void trackAllocations(){
+            for(GarbageCollectorMXBean gc:ManagementFactory.getGarbageCollectorMXBeans()){
+                if(!(gc instanceof NotificationEmitter)){
+                    continue;
+                }
+                ((NotificationEmitter) gc).addNotificationListener((Notification notification, Object handback) -> {
+                    if(!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())){
+                        return;
+                    }
+                    GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                    Map<String, MemoryUsage> beforeGc = info.getGcInfo().getMemoryUsageBeforeGc();
+                    Map<String, MemoryUsage> afterGc = info.getGcInfo().getMemoryUsageAfterGc();
+                    for(Map.Entry<String, MemoryUsage> entry:beforeGc.entrySet()){
+                        if(entry.getKey().contains("Eden")){
+                            MemoryUsage after = afterGc.get(entry.getKey());
+                            collectedEden.addAndGet(entry.getValue().getUsed()-(after!=null ? after.getUsed() : 0));
+                        }
+                    }
+                }, null, null);
+            }
+        }
+    }
+}
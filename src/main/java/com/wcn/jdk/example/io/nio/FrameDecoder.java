@@ -0,0 +1,214 @@
+package com.wcn.jdk.example.io.nio;
+
+import com.wcn.jdk.example.io.mynetty.MyByteBufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
+
+/**
+ * 拆包器，类似于netty中的ByteToMessageDecoder。
+ *
+ * TCP是字节流，一次read()读到的数据和客户端一次write()的数据并不是一一对应的：
+ * 客户端连续发的多个请求可能一次就读到了（粘包），一个请求也可能分好几次才读完（半包）。
+ * 所以每个连接都需要一个累积buffer（cumulation），read到的数据先追加到cumulation里，
+ * 再从中切分出完整的帧，剩下不完整的数据留在cumulation里，等下次read再拼接。
+ *
+ * 切分出来的帧是cumulation的一个视图，不拷贝数据，所以只在FrameHandler.onFrame回调期间有效，
+ * 回调返回后cumulation就会被compact或者归还，如果需要保留帧的数据，要自己拷贝一份。
+ *
+ * 每个连接一个实例，有状态，不是线程安全的，只能在连接所属的reactor线程中使用。
+ */
+public abstract class FrameDecoder {
+    public interface FrameHandler {
+        /**
+         * 解码出了一个完整的帧，frame的position到limit之间就是帧的内容
+         */
+        void onFrame(ConnectionContext context, ByteBuffer frame) throws IOException;
+    }
+
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024;
+
+    private ByteBuffer cumulation;//写模式
+    private ByteBuffer frameView;//cumulation的视图，复用该对象，避免每个帧都duplicate一次
+
+    /**
+     * 获取一个可写入的buffer给socketChannel.read()使用，里面可能已经有上次剩下的半包数据了
+     * @param minWritable 至少需要的可写空间
+     */
+    public ByteBuffer readBuffer(int minWritable){
+        if(cumulation==null){
+            cumulation = MyByteBufferPool.DEFAULT.allocate(minWritable);
+        }else if(cumulation.remaining()<minWritable){
+            //空间不够了，扩容
+            ByteBuffer old = cumulation;
+            cumulation = MyByteBufferPool.DEFAULT.allocate(Math.max(old.capacity()<<1, old.position()+minWritable));
+            old.flip();
+            cumulation.put(old);
+            MyByteBufferPool.DEFAULT.release(old);
+            frameView = null;
+        }
+        return cumulation;
+    }
+
+    /**
+     * read之后调用，切分出cumulation中所有完整的帧，依次回调handler
+     * @return 本次解码出的帧数
+     */
+    public int decode(ConnectionContext context, FrameHandler handler) throws IOException {
+        if(cumulation==null){
+            return 0;
+        }
+        cumulation.flip();
+        if(frameView==null){
+            frameView = cumulation.duplicate();
+        }
+        int frames = 0;
+        try{
+            while(cumulation.hasRemaining()){
+                frameView.clear();
+                if(!decodeFrame(cumulation, frameView)){
+                    //半包，等待更多数据
+                    break;
+                }
+                frames++;
+                handler.onFrame(context, frameView);
+                if(cumulation==null){
+                    //handler中关闭了连接
+                    break;
+                }
+            }
+        }finally {
+            if(cumulation==null){
+                //已经归还了
+            }else if(cumulation.hasRemaining()){
+                cumulation.compact();
+            }else{
+                //全部消费完了，归还cumulation，空闲的连接不占用buffer
+                release();
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * 从in中解码一个帧，in处于读模式，frame是in的一个视图（共享内存，已经clear过）。
+     * 解码成功时，设置frame的position和limit为帧内容的范围，
+     * 并把in的position移动到该帧（包括长度字段、分隔符等）之后，返回true；
+     * 数据不够一个完整的帧时，不要修改in的position，返回false。
+     */
+    protected abstract boolean decodeFrame(ByteBuffer in, ByteBuffer frame) throws IOException;
+
+    /**
+     * 刚解码出来的帧是不是这个连接上的最后一个请求（例如http请求带了Connection: close），
+     * 是的话该请求的响应写完之后关闭连接。只在onFrame期间有效
+     */
+    public boolean isLastFrame(){
+        return false;
+    }
+
+    /**
+     * 帧内容复制一份之后能不能交给业务线程处理。
+     * 请求的解析结果保存在decoder字段里、只在onFrame期间有效的拆包器（例如HttpRequestDecoder）返回false
+     */
+    public boolean supportsBusinessThreads(){
+        return true;
+    }
+
+    /**
+     * 编码响应时，帧头和帧尾一共占用多少字节
+     */
+    public abstract int frameOverhead();
+
+    /**
+     * 编码响应时，在帧内容之前写入帧头
+     */
+    public abstract void writeHeader(ByteBuffer out, int frameLength);
+
+    /**
+     * 编码响应时，在帧内容之后写入帧尾
+     */
+    public abstract void writeTrailer(ByteBuffer out);
+
+    /**
+     * cumulation里没有数据时归还，例如TLS握手阶段unwrap没有产生应用数据，不用等到decode
+     */
+    public void releaseIfEmpty(){
+        if(cumulation!=null && cumulation.position()==0){
+            release();
+        }
+    }
+
+    /**
+     * 连接关闭时调用，归还cumulation
+     */
+    public void release(){
+        if(cumulation!=null){
+            MyByteBufferPool.DEFAULT.release(cumulation);
+            cumulation = null;
+            frameView = null;
+        }
+    }
+
+    /**
+     * 不拆包，每次read到的所有数据作为一个帧，和之前V1的行为一样
+     */
+    public static FrameDecoder raw(){
+        return new Raw();
+    }
+
+    /**
+     * 4个字节的长度字段 + 帧内容
+     */
+    public static FrameDecoder lengthField(int maxFrameLength){
+        return new LengthFieldFrameDecoder(maxFrameLength);
+    }
+
+    /**
+     * 以\n结尾的文本行，兼容\r\n，帧内容不包括行尾
+     */
+    public static FrameDecoder line(int maxFrameLength){
+        return new DelimiterFrameDecoder(maxFrameLength, DelimiterFrameDecoder.LINE_DELIMITER);
+    }
+
+    /**
+     * 按名字获取拆包器的工厂：raw、line、length、http
+     */
+    public static Supplier<FrameDecoder> factory(String name){
+        switch (name){
+            case "raw":
+                return FrameDecoder::raw;
+            case "line":
+                return () -> line(DEFAULT_MAX_FRAME_LENGTH);
+            case "length":
+                return () -> lengthField(DEFAULT_MAX_FRAME_LENGTH);
+            case "http":
+                return HttpRequestDecoder::new;
+            default:
+                throw new IllegalArgumentException("unknown frame decoder: "+name);
+        }
+    }
+
+    static class Raw extends FrameDecoder{
+        @Override
+        protected boolean decodeFrame(ByteBuffer in, ByteBuffer frame) {
+            frame.limit(in.limit());
+            frame.position(in.position());
+            in.position(in.limit());
+            return true;
+        }
+
+        @Override
+        public int frameOverhead() {
+            return 0;
+        }
+
+        @Override
+        public void writeHeader(ByteBuffer out, int frameLength) {
+        }
+
+        @Override
+        public void writeTrailer(ByteBuffer out) {
+        }
+    }
+}
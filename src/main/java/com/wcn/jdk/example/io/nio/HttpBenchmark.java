@@ -0,0 +1,76 @@
+package com.wcn.jdk.example.io.nio;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * http服务端的横向对比：ServerSocketChannelTestV5的http模式（HttpRequestDecoder+HttpServerHandler）
+ * 和netty的HttpServerCodec（NettyHttpServer）。
+ *
+ * 和EchoBenchmark一样，每个服务端在单独的子进程中启动，统计服务端进程的CPU和分配；
+ * 压测客户端是LoadGenerator的Protocol.HTTP，相当于本机跑wrk：keep-alive的连接上闭环发送 GET /plaintext。
+ * 两种负载，都先预热再统计：
+ * 1. keep-alive：100个连接，每个连接一问一答，相当于 wrk -c 100；
+ * 2. pipelined：100个连接，每个连接同时有16个请求在路上，相当于wrk加pipeline.lua，
+ *    一次read能读到多个请求，看解析和合并写的效率。
+ *
+ * 运行：java HttpBenchmark [seconds] [服务端名字，逗号分隔，默认全部]，netty需要在classpath上。
+ *
+ * 1核、jdk17、每个负载5秒（压测客户端和服务端抢同一个核，只能看相对值）：
+ * <pre>
+ * server       workload         requests/s    p50(us)    p99(us)   p999(us)     cpu alloc MB/s  B/request
+ * V5           keep-alive            50331     1392.6     8912.9    14417.9     54%        4.7         97
+ * V5           pipelined            460266     3047.4     9568.3    12582.9     56%        2.7          6
+ * netty        keep-alive            22283     3538.9    20185.1    33030.1     76%       38.0       1782
+ * netty        pipelined            111485    14286.8    27787.3    35127.3     84%      164.9       1559
+ * nettyNio     keep-alive            18748     3768.3    35651.6    76546.0     77%       31.9       1784
+ * nettyNio     pipelined            111411    14024.7    31195.1    37224.4     85%      168.8       1594
+ * </pre>
+ * 1. netty的每个请求要分配1.5KB以上：请求行的String、DefaultHttpHeaders和它的每个entry、
+ *    HttpObjectAggregator的FullHttpRequest和CompositeByteBuf、响应对象和编码时的ByteBuf；
+ *    V5的请求直接在cumulation上解析，响应头是预先编码好的byte[]，buffer都从池里来，基本不产生垃圾；
+ * 2. pipelined时V5的差距更大：16个请求一次read拿到，解析完依次写进发送队列，一次writev写出去，
+ *    每个请求只剩下解析和拷贝几十个字节响应的开销；
+ * 3. 两种传输方式下netty的差别不大，瓶颈在http编解码而不是epoll。
+ */
+public class HttpBenchmark {
+    private static final String[][] SERVERS = {
+            {"V5", "com.wcn.jdk.example.io.nio.ServerSocketChannelTestV5", "http"},
+            {"netty", "com.wcn.jdk.example.io.netty.NettyHttpServer"},
+            //和V5一样用jdk的Selector
+            {"nettyNio", "com.wcn.jdk.example.io.netty.NettyHttpServer", "-Dnetty.transport=nio"},
+    };
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length>0 ? Integer.parseInt(args[0]) : 5;
+        List<String> selected = args.length>1 ? Arrays.asList(args[1].split(",")) : null;
+        System.out.println("seconds="+seconds+" cpus="+Runtime.getRuntime().availableProcessors()
+                +" java="+System.getProperty("java.version"));
+        System.out.println(String.format("%-12s %-14s %12s %10s %10s %10s %7s %10s %10s",
+                "server", "workload", "requests/s", "p50(us)", "p99(us)", "p999(us)", "cpu", "alloc MB/s", "B/request"));
+        for(String[] server:SERVERS){
+            if(selected!=null && !selected.contains(server[0])){
+                continue;
+            }
+            try (EchoBenchmark.ServerProcess process = EchoBenchmark.ServerProcess.start(server[1], Arrays.copyOfRange(server, 2, server.length))){
+                EchoBenchmark.run(server[0], "keep-alive", process, () -> loadGenerator(process.port, 100, 1, seconds).run());
+                EchoBenchmark.run(server[0], "pipelined", process, () -> loadGenerator(process.port, 100, 16, seconds).run());
+            } catch (IOException e) {
+                System.out.println(String.format("%-12s skipped: %s", server[0], e.getMessage()));
+            }
+        }
+    }
+
+    private static LoadGenerator loadGenerator(int port, int connections, int pipelineDepth, int seconds){
+        return new LoadGenerator()
+                .setPort(port)
+                .setProtocol(LoadGenerator.Protocol.HTTP)
+                .setConnections(connections)
+                .setThreads(2)
+                .setMode(LoadGenerator.Mode.CLOSED)
+                .setPipelineDepth(pipelineDepth)
+                .setWarmupSeconds(EchoBenchmark.WARMUP_SECONDS)
+                .setDurationSeconds(seconds);
+    }
+}
@@ -0,0 +1,135 @@
+package com.wcn.jdk.example.io.nio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * 预先编码好的http响应头。
+ *
+ * 同一个状态码的响应头除了Date和Content-Length之外都是一样的，每个响应都拼一遍字符串再编码成字节的话，
+ * 一个响应要产生好几个String、StringBuilder和byte[]。
+ * 这里按状态码把 状态行+Server+Content-Type+Date+"Content-Length: " 整段编码成一个byte[]，
+ * 写响应时只需要put这个数组，再直接往ByteBuffer里写Content-Length的数字，没有任何分配。
+ *
+ * Date的精度是秒，所以整组byte[]每秒最多重建一次：第一个发现秒数变了的线程重建，
+ * 通过volatile发布给所有read线程，多个线程同时重建也没关系，结果是一样的。
+ */
+public class HttpHeaderCache {
+    public enum Status {
+        OK(200, "OK"),
+        BAD_REQUEST(400, "Bad Request"),
+        NOT_FOUND(404, "Not Found"),
+        METHOD_NOT_ALLOWED(405, "Method Not Allowed");
+
+        private final int code;
+        private final String reason;
+
+        Status(int code, String reason) {
+            this.code = code;
+            this.reason = reason;
+        }
+
+        public int code() {
+            return code;
+        }
+    }
+
+    private static final Status[] STATUSES = Status.values();
+    //IMF-fixdate，例如 Sun, 06 Nov 1994 08:49:37 GMT，日期固定两位，所以不能用RFC_1123_DATE_TIME
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static final byte[] CRLF = {'\r', '\n'};
+    //Content-Length最多10位数字
+    private static final int MAX_DIGITS = 10;
+    //放在其它静态字段之后，构造时要用到它们
+    public static final HttpHeaderCache DEFAULT = new HttpHeaderCache("V5", "text/plain; charset=UTF-8");
+
+    private final String server;
+    private final String contentType;
+    private volatile Snapshot snapshot;
+
+    public HttpHeaderCache(String server, String contentType) {
+        this.server = server;
+        this.contentType = contentType;
+        this.snapshot = new Snapshot(System.currentTimeMillis()/1000);
+    }
+
+    /**
+     * 写入完整的响应头，包括最后的空行
+     * @param extraHeaders 额外的头，已经编码好并且以\r\n结尾，例如Connection: close，没有时为null
+     */
+    public void writeHeader(ByteBuffer out, Status status, int contentLength, byte[] extraHeaders){
+        if(contentLength<0){
+            throw new IllegalArgumentException("contentLength: "+contentLength+" (expected: >= 0)");
+        }
+        out.put(prefix(status));
+        putDecimal(out, contentLength);
+        out.put(CRLF);
+        if(extraHeaders!=null){
+            out.put(extraHeaders);
+        }
+        out.put(CRLF);
+    }
+
+    /**
+     * 响应头最多占用多少字节（不包括extraHeaders），用来给响应分配buffer
+     */
+    public int maxHeaderLength(Status status){
+        return prefix(status).length+MAX_DIGITS+CRLF.length*2;
+    }
+
+    /**
+     * 当前这一秒的 状态行 ... Content-Length:
+     */
+    private byte[] prefix(Status status){
+        long second = System.currentTimeMillis()/1000;
+        Snapshot current = snapshot;
+        if(current.second!=second){
+            current = new Snapshot(second);
+            snapshot = current;
+        }
+        return current.prefixes[status.ordinal()];
+    }
+
+    /**
+     * 非负整数按十进制写入，不经过String
+     */
+    static void putDecimal(ByteBuffer out, int value){
+        if(value==0){
+            out.put((byte)'0');
+            return;
+        }
+        int digits = 0;
+        for(int v=value;v>0;v/=10){
+            digits++;
+        }
+        int end = out.position()+digits;
+        for(int i=end-1;value>0;i--){
+            out.put(i, (byte)('0'+value%10));
+            value /= 10;
+        }
+        out.position(end);
+    }
+
+    private class Snapshot {
+        private final long second;
+        private final byte[][] prefixes = new byte[STATUSES.length][];
+
+        Snapshot(long second) {
+            this.second = second;
+            String date = DATE_FORMAT.format(Instant.ofEpochSecond(second));
+            for(Status status:STATUSES){
+                String prefix = "HTTP/1.1 "+status.code+" "+status.reason+"\r\n"
+                        +"Server: "+server+"\r\n"
+                        +"Content-Type: "+contentType+"\r\n"
+                        +"Date: "+date+"\r\n"
+                        +"Content-Length: ";
+                prefixes[status.ordinal()] = prefix.getBytes(StandardCharsets.US_ASCII);
+            }
+        }
+    }
+}
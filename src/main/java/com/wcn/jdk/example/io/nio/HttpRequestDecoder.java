@@ -0,0 +1,381 @@
+package com.wcn.jdk.example.io.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HTTP/1.1请求的拆包器，一个帧是一个完整的请求：请求行+请求头+空行+Content-Length个字节的请求体。
+ *
+ * 零拷贝：请求行和请求头直接在cumulation上按字节解析，不创建String和byte[]，
+ * 解析结果（方法、路径在帧里的偏移、Content-Length、keep-alive）保存在字段里，
+ * RequestHandler通过frameDecoder参数读取，见method()、pathEquals()、content()。
+ * 这些字段描述的是刚解码出来的那个请求，只在onFrame期间有效，所以http模式下不能配置businessThreads（见supportsBusinessThreads，V5的start时检查）。
+ *
+ * 增量解析：半包时记住已经扫描过的字节数，下次read之后从上次结束的地方继续找空行（\r\n\r\n）；
+ * 请求头完整了才解析一次，之后只等请求体收齐，不会重复解析。
+ *
+ * keep-alive：HTTP/1.1默认保持连接，除非请求带了Connection: close；HTTP/1.0只有带了Connection: keep-alive才保持。
+ * 不保持连接的请求是这个连接上的最后一个帧（isLastFrame），之后收到的数据都丢弃，响应写完后关闭连接。
+ *
+ * pipeline：客户端不等响应连续发过来的多个请求一次read就能都拿到，decode依次回调每个请求，
+ * 响应按顺序追加到发送队列，read结束后一次writev写出去，天然满足http要求的响应顺序。
+ *
+ * 不支持Transfer-Encoding: chunked的请求体，请求头太大、请求体太大、格式错误时抛IOException，连接会被直接关闭。
+ *
+ * 响应头用HttpHeaderCache预先编码，writeHeader(out, length)写的是200 OK，所以默认的echo逻辑也能直接工作。
+ */
+public class HttpRequestDecoder extends FrameDecoder {
+    public static final int DEFAULT_MAX_HEADER_LENGTH = 8192;
+
+    public enum Method {
+        GET, HEAD, POST, PUT, DELETE, OPTIONS, OTHER;
+
+        private final byte[] bytes = name().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static final Method[] METHODS = Method.values();
+    private static final byte[] HTTP_1_0 = "HTTP/1.0".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_1_1 = "HTTP/1.1".getBytes(StandardCharsets.US_ASCII);
+    //请求头名字都按小写比较
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONNECTION = "connection".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CLOSE = "close".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] KEEP_ALIVE = "keep-alive".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONNECTION_CLOSE = "Connection: close\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONNECTION_KEEP_ALIVE = "Connection: keep-alive\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final int maxHeaderLength;
+    private final int maxContentLength;
+    private final HttpHeaderCache headerCache;
+
+    //下面的偏移都相对于请求的开头（in.position()），cumulation compact之后依然有效
+    //已经扫描过、确定没有空行的字节数
+    private int scannedBytes;
+    //当前请求的请求头已经解析过了，只差请求体
+    private boolean headerParsed;
+    //请求行+请求头+空行的长度，也就是请求体的偏移
+    private int headerLength;
+    private int contentLength;
+    private Method method;
+    private int uriOffset;
+    private int uriLength;
+    private boolean http10;
+    private boolean keepAlive;
+    //已经解码出了不保持连接的请求，之后的数据都丢弃
+    private boolean closing;
+
+    public HttpRequestDecoder() {
+        this(DEFAULT_MAX_HEADER_LENGTH, DEFAULT_MAX_FRAME_LENGTH, HttpHeaderCache.DEFAULT);
+    }
+
+    public HttpRequestDecoder(int maxHeaderLength, int maxContentLength, HttpHeaderCache headerCache) {
+        if(maxHeaderLength<=0){
+            throw new IllegalArgumentException("maxHeaderLength: "+maxHeaderLength+" (expected: > 0)");
+        }
+        if(maxContentLength<0){
+            throw new IllegalArgumentException("maxContentLength: "+maxContentLength+" (expected: >= 0)");
+        }
+        this.maxHeaderLength = maxHeaderLength;
+        this.maxContentLength = maxContentLength;
+        this.headerCache = headerCache;
+    }
+
+    @Override
+    protected boolean decodeFrame(ByteBuffer in, ByteBuffer frame) throws IOException {
+        if(closing){
+            in.position(in.limit());
+            return false;
+        }
+        if(!headerParsed && scannedBytes==0){
+            //请求之间多余的空行（例如有些客户端在POST的请求体后面多发一个\r\n）忽略掉
+            while(in.hasRemaining() && isCrOrLf(in.get(in.position()))){
+                in.position(in.position()+1);
+            }
+        }
+        int start = in.position();
+        int limit = in.limit();
+        if(!headerParsed){
+            //\r\n\r\n可能跨越了上次扫描的边界，往回退3个字节
+            int end = indexOfHeaderEnd(in, start+Math.max(0, scannedBytes-3), limit);
+            if(end<0){
+                scannedBytes = limit-start;
+                if(scannedBytes>maxHeaderLength){
+                    throw new IOException("request header exceeds "+maxHeaderLength);
+                }
+                return false;
+            }
+            headerLength = end+4-start;
+            if(headerLength>maxHeaderLength){
+                throw new IOException("request header length "+headerLength+" exceeds "+maxHeaderLength);
+            }
+            parseHeader(in, start, start+headerLength);
+            headerParsed = true;
+        }
+        int frameLength = headerLength+contentLength;
+        if(limit-start<frameLength){
+            //请求体还没收齐
+            return false;
+        }
+        frame.limit(start+frameLength);
+        frame.position(start);
+        in.position(start+frameLength);
+        //下一个请求从头开始扫描
+        scannedBytes = 0;
+        headerParsed = false;
+        if(!keepAlive){
+            closing = true;
+        }
+        return true;
+    }
+
+    private static int indexOfHeaderEnd(ByteBuffer in, int from, int limit){
+        for(int i=from, last=limit-4;i<=last;i++){
+            if(in.get(i+3)!='\n'){
+                //先比较最后一个字节，大部分位置在这里就排除了
+                continue;
+            }
+            if(in.get(i)=='\r' && in.get(i+1)=='\n' && in.get(i+2)=='\r'){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 解析请求行和请求头，[from, end)是完整的请求头，最后是\r\n\r\n
+     */
+    private void parseHeader(ByteBuffer in, int from, int end) throws IOException {
+        //请求行：方法 SP 请求目标 SP 版本 CRLF
+        int lineEnd = indexOf(in, from, end, (byte)'\r');
+        int methodEnd = indexOf(in, from, lineEnd, (byte)' ');
+        int uriEnd = methodEnd<0 ? -1 : indexOf(in, methodEnd+1, lineEnd, (byte)' ');
+        if(methodEnd<=from || uriEnd<0 || uriEnd==methodEnd+1){
+            throw new IOException("malformed request line");
+        }
+        method = parseMethod(in, from, methodEnd);
+        uriOffset = methodEnd+1-from;
+        uriLength = uriEnd-methodEnd-1;
+        if(regionEquals(in, uriEnd+1, lineEnd, HTTP_1_1)){
+            http10 = false;
+        }else if(regionEquals(in, uriEnd+1, lineEnd, HTTP_1_0)){
+            http10 = true;
+        }else{
+            throw new IOException("unsupported http version");
+        }
+
+        contentLength = 0;
+        boolean connectionClose = false;
+        boolean connectionKeepAlive = false;
+        //请求头：名字: 值 CRLF，直到空行
+        int lineStart = lineEnd+2;
+        int headersEnd = end-2;
+        while(lineStart<headersEnd){
+            lineEnd = indexOf(in, lineStart, headersEnd, (byte)'\r');
+            int colon = indexOf(in, lineStart, lineEnd, (byte)':');
+            if(colon<=lineStart){
+                throw new IOException("malformed header");
+            }
+            int valueStart = colon+1;
+            int valueEnd = lineEnd;
+            while(valueStart<valueEnd && isWhitespace(in.get(valueStart))){
+                valueStart++;
+            }
+            while(valueEnd>valueStart && isWhitespace(in.get(valueEnd-1))){
+                valueEnd--;
+            }
+            if(nameEquals(in, lineStart, colon, CONTENT_LENGTH)){
+                contentLength = parseContentLength(in, valueStart, valueEnd);
+            }else if(nameEquals(in, lineStart, colon, CONNECTION)){
+                connectionClose |= containsToken(in, valueStart, valueEnd, CLOSE);
+                connectionKeepAlive |= containsToken(in, valueStart, valueEnd, KEEP_ALIVE);
+            }else if(nameEquals(in, lineStart, colon, TRANSFER_ENCODING)){
+                throw new IOException("Transfer-Encoding is not supported");
+            }
+            lineStart = lineEnd+2;
+        }
+        keepAlive = http10 ? connectionKeepAlive && !connectionClose : !connectionClose;
+    }
+
+    private static Method parseMethod(ByteBuffer in, int from, int end){
+        for(Method method:METHODS){
+            if(regionEquals(in, from, end, method.bytes)){
+                return method;
+            }
+        }
+        return Method.OTHER;
+    }
+
+    private int parseContentLength(ByteBuffer in, int from, int end) throws IOException {
+        if(from==end){
+            throw new IOException("empty Content-Length");
+        }
+        long value = 0;
+        for(int i=from;i<end;i++){
+            byte b = in.get(i);
+            if(b<'0' || b>'9'){
+                throw new IOException("invalid Content-Length");
+            }
+            value = value*10+(b-'0');
+            if(value>maxContentLength){
+                throw new IOException("Content-Length exceeds "+maxContentLength);
+            }
+        }
+        return (int) value;
+    }
+
+    /**
+     * 逗号分隔的值里有没有token，忽略大小写
+     */
+    private static boolean containsToken(ByteBuffer in, int from, int end, byte[] token){
+        int tokenStart = from;
+        for(int i=from;i<=end;i++){
+            if(i<end && in.get(i)!=','){
+                continue;
+            }
+            int tokenEnd = i;
+            while(tokenStart<tokenEnd && isWhitespace(in.get(tokenStart))){
+                tokenStart++;
+            }
+            while(tokenEnd>tokenStart && isWhitespace(in.get(tokenEnd-1))){
+                tokenEnd--;
+            }
+            if(nameEquals(in, tokenStart, tokenEnd, token)){
+                return true;
+            }
+            tokenStart = i+1;
+        }
+        return false;
+    }
+
+    private static int indexOf(ByteBuffer in, int from, int end, byte b){
+        for(int i=from;i<end;i++){
+            if(in.get(i)==b){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionEquals(ByteBuffer in, int from, int end, byte[] bytes){
+        if(end-from!=bytes.length){
+            return false;
+        }
+        for(int i=0;i<bytes.length;i++){
+            if(in.get(from+i)!=bytes[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 忽略大小写比较，lowerCase必须是小写
+     */
+    private static boolean nameEquals(ByteBuffer in, int from, int end, byte[] lowerCase){
+        if(end-from!=lowerCase.length){
+            return false;
+        }
+        for(int i=0;i<lowerCase.length;i++){
+            byte b = in.get(from+i);
+            if(b>='A' && b<='Z'){
+                b += 'a'-'A';
+            }
+            if(b!=lowerCase[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(byte b){
+        return b==' ' || b=='\t';
+    }
+
+    private static boolean isCrOrLf(byte b){
+        return b=='\r' || b=='\n';
+    }
+
+    public Method method(){
+        return method;
+    }
+
+    /**
+     * 请求目标中?之前的路径是否等于path，不创建String
+     * @param request onFrame回调的帧，position还在请求的开头
+     */
+    public boolean pathEquals(ByteBuffer request, byte[] path){
+        int from = request.position()+uriOffset;
+        int end = from+uriLength;
+        int query = indexOf(request, from, end, (byte)'?');
+        return regionEquals(request, from, query<0 ? end : query, path);
+    }
+
+    /**
+     * 把request的position移到请求体的开头，返回request本身
+     */
+    public ByteBuffer content(ByteBuffer request){
+        request.position(request.position()+headerLength);
+        return request;
+    }
+
+    public int contentLength(){
+        return contentLength;
+    }
+
+    public boolean isKeepAlive(){
+        return keepAlive;
+    }
+
+    @Override
+    public boolean isLastFrame() {
+        return closing;
+    }
+
+    @Override
+    public int frameOverhead() {
+        return frameOverhead(HttpHeaderCache.Status.OK);
+    }
+
+    public int frameOverhead(HttpHeaderCache.Status status) {
+        return headerCache.maxHeaderLength(status)+CONNECTION_KEEP_ALIVE.length;
+    }
+
+    /**
+     * 200 OK的响应头
+     */
+    @Override
+    public void writeHeader(ByteBuffer out, int frameLength) {
+        writeHeader(out, HttpHeaderCache.Status.OK, frameLength);
+    }
+
+    /**
+     * 按当前请求的keep-alive决定要不要带Connection头：
+     * HTTP/1.1默认保持连接不用带，要关闭时带上close；HTTP/1.0要保持连接时带上keep-alive
+     */
+    public void writeHeader(ByteBuffer out, HttpHeaderCache.Status status, int contentLength) {
+        byte[] connection = !keepAlive ? CONNECTION_CLOSE : http10 ? CONNECTION_KEEP_ALIVE : null;
+        headerCache.writeHeader(out, status, contentLength, connection);
+    }
+
+    @Override
+    public void writeTrailer(ByteBuffer out) {
+    }
+
+    /**
+     * 方法、路径等只在onFrame期间有效，请求复制给业务线程之后就对不上了
+     */
+    @Override
+    public boolean supportsBusinessThreads() {
+        return false;
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        //closing不重置：丢弃了剩下的数据之后cumulation也会被归还，连接关闭之前还要继续丢弃
+        scannedBytes = 0;
+        headerParsed = false;
+    }
+}
@@ -0,0 +1,63 @@
+package com.wcn.jdk.example.io.nio;
+
+import com.wcn.jdk.example.io.mynetty.MyByteBufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * V5的http模式的业务处理，配合HttpRequestDecoder使用：
+ * GET/HEAD /plaintext（或者/）返回固定的Hello, World!，类似TechEmpower的plaintext；
+ * POST /echo 把请求体原样返回；其它路径404，/plaintext、/echo的其它方法405。
+ *
+ * 请求的方法、路径、请求体都是通过HttpRequestDecoder在cumulation上直接读的，
+ * 响应从MyByteBufferPool分配，响应头是HttpHeaderCache预先编码好的，整个请求处理过程不产生垃圾。
+ * 依赖frameDecoder中当前请求的解析结果，所以只能在read线程中调用，不能配置businessThreads（V5的start时检查）。
+ */
+public class HttpServerHandler implements RequestHandler {
+    private static final byte[] ROOT = "/".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PLAINTEXT = "/plaintext".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ECHO = "/echo".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HELLO = "Hello, World!".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EMPTY = new byte[0];
+
+    @Override
+    public ByteBuffer handle(FrameDecoder frameDecoder, ByteBuffer request) throws IOException {
+        HttpRequestDecoder http = (HttpRequestDecoder) frameDecoder;
+        HttpRequestDecoder.Method method = http.method();
+        if(http.pathEquals(request, PLAINTEXT) || http.pathEquals(request, ROOT)){
+            if(method==HttpRequestDecoder.Method.GET){
+                return response(http, HttpHeaderCache.Status.OK, HELLO, true);
+            }
+            if(method==HttpRequestDecoder.Method.HEAD){
+                //HEAD的Content-Length和GET一样，但是没有响应体
+                return response(http, HttpHeaderCache.Status.OK, HELLO, false);
+            }
+            return response(http, HttpHeaderCache.Status.METHOD_NOT_ALLOWED, EMPTY, false);
+        }
+        if(http.pathEquals(request, ECHO)){
+            if(method!=HttpRequestDecoder.Method.POST){
+                return response(http, HttpHeaderCache.Status.METHOD_NOT_ALLOWED, EMPTY, false);
+            }
+            ByteBuffer content = http.content(request);
+            ByteBuffer response = MyByteBufferPool.DEFAULT.allocate(http.frameOverhead()+content.remaining());
+            http.writeHeader(response, content.remaining());
+            //直接从读buffer拷贝到写buffer
+            response.put(content);
+            response.flip();
+            return response;
+        }
+        return response(http, HttpHeaderCache.Status.NOT_FOUND, EMPTY, false);
+    }
+
+    private static ByteBuffer response(HttpRequestDecoder http, HttpHeaderCache.Status status, byte[] body, boolean writeBody){
+        ByteBuffer response = MyByteBufferPool.DEFAULT.allocate(http.frameOverhead(status)+body.length);
+        http.writeHeader(response, status, body.length);
+        if(writeBody){
+            response.put(body);
+        }
+        response.flip();
+        return response;
+    }
+}
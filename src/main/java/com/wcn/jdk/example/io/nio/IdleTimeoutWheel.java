@@ -0,0 +1,233 @@
+package com.wcn.jdk.example.io.nio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 连接空闲超时检测，一个reactor线程一个，只能在该线程中使用，所以不需要任何同步。
+ * 类似于netty的HashedWheelTimer和IdleStateHandler的结合。
+ *
+ * 时间轮：一个数组，每个格子（bucket）是一个双向链表，代表tickNanos长的一段时间，
+ * 连接按超时时间放到对应的格子里，指针每过一个tick前进一格，处理该格子里的连接。
+ * 放入、删除都是链表操作，O(1)，链表节点IdleState每个连接只创建一个。
+ *
+ * 超时时间的更新是惰性的：
+ * 读写的时候只更新IdleState中的lastReadNanos/lastWriteNanos，不移动节点（读写非常频繁，不能每次都操作链表）。
+ * 格子到期时再根据最新的时间戳重新计算超时时间，还没到就重新放到新的格子里，到了就关闭连接。
+ * 所以一个一直活跃的连接，每个超时周期只会被检查一次。
+ *
+ * 三种超时，0表示不检测：
+ * 1. readTimeout：多久没有读到数据，例如客户端进程挂了但是没有发FIN（断电、网线断了），TCP层面是发现不了的。
+ * 2. writeTimeout：有数据待发送，但是多久都没能写出去一个字节，客户端不读了，连接卡在那里占着buffer。
+ * 3. idleTimeout：读写都没有的时间。
+ */
+public final class IdleTimeoutWheel {
+    private static final int TICKS_PER_WHEEL = 512;//必须是2的幂
+    private static final int MASK = TICKS_PER_WHEEL-1;
+
+    private final IdleState[] buckets = new IdleState[TICKS_PER_WHEEL];
+    private final long tickNanos;
+    private final long readTimeoutNanos;
+    private final long writeTimeoutNanos;
+    private final long idleTimeoutNanos;
+    private final long startNanos;
+    private long tick;//下一个要处理的格子
+    private long nowNanos;//每次select之后更新，读写时直接使用，避免每次都调用System.nanoTime()
+    private int size;
+    private volatile long reaped;//只有reactor线程写，其它线程读取用于统计
+    private final List<ConnectionContext> expired = new ArrayList<>();
+
+    /**
+     * @param tickMillis 检测精度，超时的连接最多晚tickMillis被关闭
+     */
+    public IdleTimeoutWheel(long tickMillis, long readTimeoutMillis, long writeTimeoutMillis, long idleTimeoutMillis) {
+        if(tickMillis<=0){
+            throw new IllegalArgumentException("tickMillis: "+tickMillis+" (expected: > 0)");
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.startNanos = System.nanoTime();
+        this.nowNanos = startNanos;
+    }
+
+    public long tickMillis(){
+        return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+    }
+
+    public int size(){
+        return size;
+    }
+
+    /**
+     * 因为超时被关闭的连接总数
+     */
+    public long reaped(){
+        return reaped;
+    }
+
+    public long updateNow(){
+        return nowNanos = System.nanoTime();
+    }
+
+    /**
+     * 新连接注册之后调用
+     */
+    public void add(ConnectionContext context){
+        IdleState state = new IdleState(this, context);
+        state.lastReadNanos = nowNanos;
+        state.lastWriteNanos = nowNanos;
+        context.idleState(state);
+        schedule(state, deadline(state));
+        size++;
+    }
+
+    /**
+     * 连接关闭时调用，可以重复调用
+     */
+    void remove(IdleState state){
+        if(state.bucket<0){
+            return;
+        }
+        unlink(state);
+        size--;
+    }
+
+    /**
+     * 处理从上次调用到现在所有到期的格子，超时的连接统一关闭。
+     * 调用前先updateNow()
+     * @return 本次关闭的连接数
+     */
+    public int expireTimeouts(){
+        long now = nowNanos;
+        long targetTick = (now-startNanos)/tickNanos;
+        while(tick<=targetTick){
+            int index = (int)(tick & MASK);
+            IdleState state = buckets[index];
+            buckets[index] = null;
+            tick++;
+            while(state!=null){
+                IdleState next = state.next;
+                state.prev = null;
+                state.next = null;
+                state.bucket = -1;
+                long deadline = deadline(state);
+                if(deadline-now<=0){
+                    size--;
+                    expired.add(state.context);
+                }else{
+                    schedule(state, deadline);
+                }
+                state = next;
+            }
+        }
+        int count = expired.size();
+        if(count==0){
+            return 0;
+        }
+        //攒到一起批量关闭，关闭时context.close()调用remove，此时节点已经不在链表里了
+        for(int i=0;i<count;i++){
+            try {
+                expired.get(i).close();
+            } catch (Exception e) {
+                //ignore
+            }
+        }
+        expired.clear();
+        reaped += count;
+        return count;
+    }
+
+    /**
+     * 根据最新的读写时间计算该连接最早的超时时间
+     */
+    private long deadline(IdleState state){
+        long deadline = Long.MAX_VALUE;
+        if(readTimeoutNanos>0){
+            deadline = state.lastReadNanos+readTimeoutNanos;
+        }
+        if(writeTimeoutNanos>0 && !state.context.outboundBuffer().isEmpty()){
+            deadline = min(deadline, state.lastWriteNanos+writeTimeoutNanos);
+        }
+        if(idleTimeoutNanos>0){
+            long lastActive = state.lastReadNanos-state.lastWriteNanos>0 ? state.lastReadNanos : state.lastWriteNanos;
+            deadline = min(deadline, lastActive+idleTimeoutNanos);
+        }
+        return deadline;
+    }
+
+    //nanoTime可能溢出，要用差值比较，Long.MAX_VALUE表示没有超时时间
+    private static long min(long a, long b){
+        if(a==Long.MAX_VALUE){
+            return b;
+        }
+        return a-b<0 ? a : b;
+    }
+
+    private void schedule(IdleState state, long deadline){
+        long deadlineTick;
+        if(deadline==Long.MAX_VALUE){
+            //只配置了writeTimeout并且当前没有待发送的数据，放到最远的格子，到时候再检查
+            deadlineTick = tick+MASK;
+        }else{
+            deadlineTick = (deadline-startNanos+tickNanos-1)/tickNanos;
+            //已经过去的时间放到下一个要处理的格子；超过一圈的放到最远的格子，到时候重新计算
+            deadlineTick = Math.max(tick, Math.min(deadlineTick, tick+MASK));
+        }
+        int index = (int)(deadlineTick & MASK);
+        IdleState head = buckets[index];
+        state.next = head;
+        state.prev = null;
+        if(head!=null){
+            head.prev = state;
+        }
+        buckets[index] = state;
+        state.bucket = index;
+    }
+
+    private void unlink(IdleState state){
+        if(state.prev!=null){
+            state.prev.next = state.next;
+        }else{
+            buckets[state.bucket] = state.next;
+        }
+        if(state.next!=null){
+            state.next.prev = state.prev;
+        }
+        state.prev = null;
+        state.next = null;
+        state.bucket = -1;
+    }
+
+    /**
+     * 时间轮中的节点，同时保存连接最后一次读写的时间
+     */
+    static final class IdleState {
+        private final IdleTimeoutWheel wheel;
+        private final ConnectionContext context;
+        private long lastReadNanos;
+        private long lastWriteNanos;
+        private IdleState prev;
+        private IdleState next;
+        private int bucket = -1;//-1表示不在时间轮中
+
+        private IdleState(IdleTimeoutWheel wheel, ConnectionContext context) {
+            this.wheel = wheel;
+            this.context = context;
+        }
+
+        void touchRead(){
+            lastReadNanos = wheel.nowNanos;
+        }
+
+        void touchWrite(){
+            lastWriteNanos = wheel.nowNanos;
+        }
+
+        void remove(){
+            wheel.remove(this);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.wcn.jdk.example.io.nio;
+
+/**
+ * 延迟直方图，简化版的HdrHistogram，单位纳秒。
+ *
+ * 对数-线性分桶：小于128的值每个值一个桶；之后每翻一倍（一个数量级）再分成64个桶，
+ * 所以任何值的误差都不超过1/64（约1.6%），整个long范围只需要不到4000个桶，记录就是一次数组自增，不分配内存。
+ *
+ * 不是线程安全的，每个线程记录自己的，最后用add合并。
+ *
+ * 协调遗漏（coordinated omission）：闭环压测时客户端要等响应回来才发下一个请求，
+ * 服务端卡住1秒，这1秒里本来应该发出去的请求根本没有发，于是只记录了一个1秒的样本，
+ * 其它请求的延迟都正常，p99看起来很好看。copyCorrectedForCoordinatedOmission按HdrHistogram的做法，
+ * 对每个大于expectedInterval的样本，补上这段时间里本应发出的请求的延迟（value-interval, value-2*interval, ...）。
+ * 开环压测（按固定速率发送，延迟从计划发送时间算起）本身没有这个问题，不需要修正。
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1<<SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT>>1;
+    private static final int BUCKET_COUNT = (64-SUB_BUCKET_BITS+1)*SUB_BUCKET_HALF_COUNT+SUB_BUCKET_HALF_COUNT;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long totalCount;
+    private long min = Long.MAX_VALUE;
+    private long max;
+    private double sum;
+
+    public void record(long value){
+        record(value, 1);
+    }
+
+    private void record(long value, long count){
+        if(value<0){
+            value = 0;
+        }
+        counts[indexOf(value)] += count;
+        totalCount += count;
+        sum += (double) value*count;
+        if(value<min){
+            min = value;
+        }
+        if(value>max){
+            max = value;
+        }
+    }
+
+    /**
+     * 合并另一个直方图
+     */
+    public void add(LatencyHistogram other){
+        for(int i=0;i<BUCKET_COUNT;i++){
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @param expectedInterval 同一个发送者两次请求之间的预期间隔，小于等于0时不修正
+     * @return 修正了协调遗漏的新直方图
+     */
+    public LatencyHistogram copyCorrectedForCoordinatedOmission(long expectedInterval){
+        LatencyHistogram corrected = new LatencyHistogram();
+        for(int i=0;i<BUCKET_COUNT;i++){
+            long count = counts[i];
+            if(count==0){
+                continue;
+            }
+            long value = valueOf(i);
+            corrected.record(value, count);
+            if(expectedInterval<=0){
+                continue;
+            }
+            for(long missing = value-expectedInterval;missing>=expectedInterval;missing -= expectedInterval){
+                corrected.record(missing, count);
+            }
+        }
+        //桶的下界会比原来的最大值小一点
+        corrected.max = Math.max(corrected.max, max);
+        return corrected;
+    }
+
+    public long totalCount(){
+        return totalCount;
+    }
+
+    public long max(){
+        return max;
+    }
+
+    public long min(){
+        return totalCount==0 ? 0 : min;
+    }
+
+    public double mean(){
+        return totalCount==0 ? 0 : sum/totalCount;
+    }
+
+    /**
+     * @param percentile 0~100
+     * @return 该分位所在桶的上界
+     */
+    public long percentile(double percentile){
+        if(totalCount==0){
+            return 0;
+        }
+        long target = Math.max(1, (long)Math.ceil(percentile/100*totalCount));
+        long seen = 0;
+        for(int i=0;i<BUCKET_COUNT;i++){
+            seen += counts[i];
+            if(seen>=target){
+                return Math.min(highestEquivalentValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * p50/p99/p999/max，单位微秒
+     */
+    public String summary(){
+        return String.format("p50=%9.1fus p99=%9.1fus p999=%9.1fus max=%9.1fus",
+                percentile(50)/1000.0, percentile(99)/1000.0, percentile(99.9)/1000.0, max/1000.0);
+    }
+
+    static int indexOf(long value){
+        if(value<SUB_BUCKET_COUNT){
+            return (int) value;
+        }
+        //右移之后落在[64, 128)
+        int shift = 63-Long.numberOfLeadingZeros(value)-(SUB_BUCKET_BITS-1);
+        return shift*SUB_BUCKET_HALF_COUNT+(int)(value>>>shift);
+    }
+
+    //桶的下界
+    static long valueOf(int index){
+        if(index<SUB_BUCKET_COUNT){
+            return index;
+        }
+        int shift = index/SUB_BUCKET_HALF_COUNT-1;
+        return (long)(index-shift*SUB_BUCKET_HALF_COUNT)<<shift;
+    }
+
+    private static long highestEquivalentValue(int index){
+        if(index<SUB_BUCKET_COUNT){
+            return index;
+        }
+        int shift = index/SUB_BUCKET_HALF_COUNT-1;
+        return valueOf(index)+(1L<<shift)-1;
+    }
+}
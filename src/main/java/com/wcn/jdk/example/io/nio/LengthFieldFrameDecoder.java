@@ -0,0 +1,57 @@
+package com.wcn.jdk.example.io.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 长度字段拆包器，类似于netty中的LengthFieldBasedFrameDecoder。
+ * 帧格式：4个字节的长度（大端，不包括长度字段本身） + 帧内容，解码后的帧只有帧内容。
+ */
+public class LengthFieldFrameDecoder extends FrameDecoder {
+    public static final int LENGTH_FIELD_LENGTH = 4;
+
+    private final int maxFrameLength;
+
+    public LengthFieldFrameDecoder(int maxFrameLength) {
+        if(maxFrameLength<=0){
+            throw new IllegalArgumentException("maxFrameLength: "+maxFrameLength+" (expected: > 0)");
+        }
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    protected boolean decodeFrame(ByteBuffer in, ByteBuffer frame) throws IOException {
+        if(in.remaining()<LENGTH_FIELD_LENGTH){
+            return false;
+        }
+        int start = in.position();
+        //绝对位置读取，不移动position
+        int length = in.getInt(start);
+        if(length<0 || length>maxFrameLength){
+            //长度非法的话后面的数据都没法解析了，只能关闭连接
+            throw new IOException("invalid frame length: "+length+" (maxFrameLength: "+maxFrameLength+")");
+        }
+        int frameStart = start+LENGTH_FIELD_LENGTH;
+        if(in.limit()-frameStart<length){
+            return false;
+        }
+        frame.limit(frameStart+length);
+        frame.position(frameStart);
+        in.position(frameStart+length);
+        return true;
+    }
+
+    @Override
+    public int frameOverhead() {
+        return LENGTH_FIELD_LENGTH;
+    }
+
+    @Override
+    public void writeHeader(ByteBuffer out, int frameLength) {
+        out.putInt(frameLength);
+    }
+
+    @Override
+    public void writeTrailer(ByteBuffer out) {
+    }
+}
@@ -0,0 +1,641 @@
+package com.wcn.jdk.example.io.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 压测客户端：几个selector线程驱动大量非阻塞连接，每个连接上可以同时有多个请求（pipeline）。
+ *
+ * 协议：请求是以'\n'结尾的一行（payloadSize字节），响应里每出现一个'\n'就算一个请求完成，
+ * 同一个连接上按先进先出对应。io.nio的V1~V5（原样echo）、io.bio的ServerSocketTest（按行响应）、
+ * io.netty的两个服务端（原样echo）都满足，所以可以用同样的负载对比它们。
+ * 注意V1~V5、netty的echo是按一次read回一个响应的，多个请求被合并读到时会合成一个响应，但里面的'\n'个数不变。
+ * Protocol.HTTP时类似wrk：请求是 GET /plaintext 的HTTP/1.1 keep-alive请求（忽略payloadSize），
+ * 按响应头里的Content-Length数出完整的响应，pipelineDepth大于1时相当于wrk的pipeline脚本，见HttpBenchmark。
+ *
+ * 两种模式：
+ * 1. CLOSED（闭环）：每个连接保持pipelineDepth个请求在途，收到一个响应立即补发一个，测的是最大吞吐。
+ *    延迟从实际发送时间算起，服务端卡住时客户端也跟着不发了，会有协调遗漏，
+ *    所以另外输出一份用平均发送间隔（平均延迟/pipelineDepth）修正过的结果。
+ * 2. OPEN（开环）：所有连接合计按rate个请求/秒的固定速率发送，不管响应有没有回来，
+ *    延迟从计划发送时间算起（类似wrk2），服务端卡住期间本该发出的请求都会体现在延迟里，没有协调遗漏。
+ *    rate超过服务端处理能力时，延迟会随时间一直增长，这正是开环压测要暴露的。
+ *
+ * 统计：先预热warmupSeconds，之后durationSeconds内完成的请求计入吞吐和延迟直方图（LatencyHistogram）。
+ * 每个线程一个直方图，结束后合并，记录时没有任何同步。
+ *
+ * 运行（通过SocketChannelTest）：
+ * java SocketChannelTest load [host] [port] [connections] [threads] [closed|open] [depth|rate] [seconds] [payloadSize] [line|http]
+ * 例如 java SocketChannelTest load 127.0.0.1 8080 1000 2 closed 4 10
+ *
+ * 1核机器上压 ServerSocketChannelTestV5 line（2个read线程）的结果，客户端和服务端抢同一个核：
+ * closed connections=1000 depth=4   requests/s=151594 p50=22806us p99=75497us p999=91226us
+ *                                   修正后 p50=18612us p99=69206us p999=87031us
+ * open   connections=1000 rate=20000 requests/s=19996 p50= 1245us p99=17301us p999=25952us
+ * 修正后的p50反而更低，是因为补上的是"本应发出的请求"，它们的等待时间比实际样本短；尾部延迟才是修正要看的。
+ */
+public class LoadGenerator {
+    public enum Mode {
+        CLOSED, OPEN
+    }
+
+    public enum Protocol {
+        LINE {
+            @Override
+            byte[] request(String host, int port, int payloadSize) {
+                byte[] request = new byte[payloadSize];
+                Arrays.fill(request, (byte)'x');
+                request[payloadSize-1] = '\n';
+                return request;
+            }
+
+            @Override
+            ResponseCounter newResponseCounter() {
+                return (buffer, length) -> {
+                    int completed = 0;
+                    for(int i=0;i<length;i++){
+                        if(buffer.get(i)=='\n'){
+                            completed++;
+                        }
+                    }
+                    return completed;
+                };
+            }
+        },
+        HTTP {
+            @Override
+            byte[] request(String host, int port, int payloadSize) {
+                return ("GET /plaintext HTTP/1.1\r\nHost: "+host+":"+port+"\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            }
+
+            @Override
+            ResponseCounter newResponseCounter() {
+                return new HttpResponseCounter();
+            }
+        };
+
+        abstract byte[] request(String host, int port, int payloadSize);
+
+        /**
+         * 每个连接一个
+         */
+        abstract ResponseCounter newResponseCounter();
+    }
+
+    /**
+     * 数出读到的数据里完成了几个响应，一个响应可能分好几次读到，所以是有状态的
+     */
+    interface ResponseCounter {
+        int count(ByteBuffer buffer, int length);
+    }
+
+    private String host = "127.0.0.1";
+    private int port = 8080;
+    private int connections = 100;
+    private int threads = 2;
+    private Mode mode = Mode.CLOSED;
+    private Protocol protocol = Protocol.LINE;
+    //CLOSED模式下每个连接在途的请求数
+    private int pipelineDepth = 1;
+    //OPEN模式下所有连接合计每秒发送的请求数
+    private long rate = 10000;
+    private int payloadSize = 16;
+    private int warmupSeconds = 1;
+    private int durationSeconds = 10;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        if(args.length>0){
+            generator.setHost(args[0]);
+        }
+        if(args.length>1){
+            generator.setPort(Integer.parseInt(args[1]));
+        }
+        if(args.length>2){
+            generator.setConnections(Integer.parseInt(args[2]));
+        }
+        if(args.length>3){
+            generator.setThreads(Integer.parseInt(args[3]));
+        }
+        if(args.length>4){
+            generator.setMode(Mode.valueOf(args[4].toUpperCase()));
+        }
+        if(args.length>5){
+            if(generator.mode==Mode.OPEN){
+                generator.setRate(Long.parseLong(args[5]));
+            }else{
+                generator.setPipelineDepth(Integer.parseInt(args[5]));
+            }
+        }
+        if(args.length>6){
+            generator.setDurationSeconds(Integer.parseInt(args[6]));
+        }
+        if(args.length>7){
+            generator.setPayloadSize(Integer.parseInt(args[7]));
+        }
+        if(args.length>8){
+            generator.setProtocol(Protocol.valueOf(args[8].toUpperCase()));
+        }
+        System.out.println(generator);
+        System.out.println(generator.run());
+    }
+
+    public LoadGenerator setHost(String host) {
+        this.host = host;
+        return this;
+    }
+
+    public LoadGenerator setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public LoadGenerator setConnections(int connections) {
+        if(connections<=0){
+            throw new IllegalArgumentException("connections: "+connections+" (expected: > 0)");
+        }
+        this.connections = connections;
+        return this;
+    }
+
+    public LoadGenerator setThreads(int threads) {
+        if(threads<=0){
+            throw new IllegalArgumentException("threads: "+threads+" (expected: > 0)");
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    public LoadGenerator setMode(Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    public LoadGenerator setProtocol(Protocol protocol) {
+        this.protocol = protocol;
+        return this;
+    }
+
+    public LoadGenerator setPipelineDepth(int pipelineDepth) {
+        if(pipelineDepth<=0){
+            throw new IllegalArgumentException("pipelineDepth: "+pipelineDepth+" (expected: > 0)");
+        }
+        this.pipelineDepth = pipelineDepth;
+        return this;
+    }
+
+    public LoadGenerator setRate(long rate) {
+        if(rate<=0){
+            throw new IllegalArgumentException("rate: "+rate+" (expected: > 0)");
+        }
+        this.rate = rate;
+        return this;
+    }
+
+    public LoadGenerator setPayloadSize(int payloadSize) {
+        if(payloadSize<=0){
+            throw new IllegalArgumentException("payloadSize: "+payloadSize+" (expected: > 0)");
+        }
+        this.payloadSize = payloadSize;
+        return this;
+    }
+
+    public LoadGenerator setWarmupSeconds(int warmupSeconds) {
+        this.warmupSeconds = warmupSeconds;
+        return this;
+    }
+
+    public LoadGenerator setDurationSeconds(int durationSeconds) {
+        this.durationSeconds = durationSeconds;
+        return this;
+    }
+
+    /**
+     * 阻塞到压测结束
+     */
+    public Result run() throws IOException, InterruptedException {
+        byte[] request = protocol.request(host, port, payloadSize);
+        InetSocketAddress target = new InetSocketAddress(host, port);
+        int threads = Math.min(this.threads, connections);
+
+        long startNanos = System.nanoTime();
+        long measureBeginNanos = startNanos+TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long measureEndNanos = measureBeginNanos+TimeUnit.SECONDS.toNanos(durationSeconds);
+        Worker[] workers = new Worker[threads];
+        CountDownLatch done = new CountDownLatch(threads);
+        for(int i=0;i<threads;i++){
+            int from = connections*i/threads;
+            int to = connections*(i+1)/threads;
+            workers[i] = new Worker(target, to-from, request, measureBeginNanos, measureEndNanos, done);
+        }
+        for(int i=0;i<threads;i++){
+            new Thread(workers[i], "load-generator-"+i).start();
+        }
+        done.await();
+
+        Result result = new Result();
+        for(Worker worker:workers){
+            result.histogram.add(worker.histogram);
+            result.connectErrors += worker.connectErrors;
+            result.ioErrors += worker.ioErrors;
+            result.connected += worker.connected;
+        }
+        result.throughput = result.histogram.totalCount()/(double)durationSeconds;
+        if(mode==Mode.CLOSED){
+            //闭环时每个连接平均每隔 平均延迟/pipelineDepth 发一个请求
+            long expectedInterval = (long)(result.histogram.mean()/pipelineDepth);
+            result.corrected = result.histogram.copyCorrectedForCoordinatedOmission(expectedInterval);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "target="+host+":"+port+" protocol="+protocol+" connections="+connections+" threads="+threads+" mode="+mode
+                +(mode==Mode.CLOSED ? " pipelineDepth="+pipelineDepth : " rate="+rate+"/s")
+                +" payloadSize="+payloadSize+" warmup="+warmupSeconds+"s duration="+durationSeconds+"s";
+    }
+
+    public static class Result {
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        //只有CLOSED模式有
+        private LatencyHistogram corrected;
+        private double throughput;
+        private int connected;
+        private long connectErrors;
+        private long ioErrors;
+
+        /**
+         * 合并其它压测方式（例如短连接）的结果
+         */
+        static Result of(LatencyHistogram[] histograms, int seconds, long errors){
+            Result result = new Result();
+            for(LatencyHistogram histogram:histograms){
+                result.histogram.add(histogram);
+            }
+            result.throughput = result.histogram.totalCount()/(double)seconds;
+            result.ioErrors = errors;
+            return result;
+        }
+
+        public LatencyHistogram histogram() {
+            return histogram;
+        }
+
+        public double throughput() {
+            return throughput;
+        }
+
+        public long errors(){
+            return connectErrors+ioErrors;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("requests/s=%10.1f %s connected=%d connectErrors=%d ioErrors=%d",
+                    throughput, histogram.summary(), connected, connectErrors, ioErrors));
+            if(corrected!=null){
+                sb.append("\ncorrected for coordinated omission: ").append(corrected.summary());
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * 按Content-Length数http响应：逐字节找响应头结尾的空行，顺便解析Content-Length，再跳过这么多字节的响应体。
+     * 不支持chunked的响应，压测的服务端都会带Content-Length。
+     */
+    static class HttpResponseCounter implements ResponseCounter {
+        private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.US_ASCII);
+
+        //当前这一行的长度，不包括\r
+        private int lineLength;
+        //当前这一行的开头已经匹配了CONTENT_LENGTH的几个字节
+        private int nameMatched;
+        private int contentLength;
+        //还没读到的响应体字节数，大于0时在读响应体
+        private int contentRemaining;
+
+        @Override
+        public int count(ByteBuffer buffer, int length) {
+            int completed = 0;
+            int i = 0;
+            while(i<length){
+                if(contentRemaining>0){
+                    int skip = Math.min(contentRemaining, length-i);
+                    i += skip;
+                    contentRemaining -= skip;
+                    if(contentRemaining==0){
+                        completed++;
+                    }
+                    continue;
+                }
+                byte b = buffer.get(i++);
+                if(b=='\n'){
+                    if(lineLength==0){
+                        //空行，响应头结束
+                        if(contentLength>0){
+                            contentRemaining = contentLength;
+                        }else{
+                            completed++;
+                        }
+                        contentLength = 0;
+                    }
+                    lineLength = 0;
+                    nameMatched = 0;
+                    continue;
+                }
+                if(b=='\r'){
+                    continue;
+                }
+                if(nameMatched==CONTENT_LENGTH.length){
+                    if(b>='0' && b<='9'){
+                        contentLength = contentLength*10+(b-'0');
+                    }
+                }else if(nameMatched==lineLength && Character.toLowerCase(b)==CONTENT_LENGTH[nameMatched]){
+                    nameMatched++;
+                }
+                lineLength++;
+            }
+            return completed;
+        }
+    }
+
+    /**
+     * 一个selector线程，负责一组连接
+     */
+    private class Worker implements Runnable {
+        private final InetSocketAddress target;
+        private final int connectionCount;
+        private final byte[] request;
+        private final long measureBeginNanos;
+        private final long measureEndNanos;
+        private final CountDownLatch done;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64*1024);
+        private final List<Connection> connectionList = new ArrayList<>();
+        private Selector selector;
+        private int connected;
+        private long connectErrors;
+        private long ioErrors;
+
+        Worker(InetSocketAddress target, int connectionCount, byte[] request,
+               long measureBeginNanos, long measureEndNanos, CountDownLatch done) {
+            this.target = target;
+            this.connectionCount = connectionCount;
+            this.request = request;
+            this.measureBeginNanos = measureBeginNanos;
+            this.measureEndNanos = measureEndNanos;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                selector = Selector.open();
+                //OPEN模式下每个连接的发送间隔
+                long intervalNanos = mode==Mode.OPEN ? Math.max(1, TimeUnit.SECONDS.toNanos(1)*connections/rate) : 0;
+                long now = System.nanoTime();
+                for(int i=0;i<connectionCount;i++){
+                    try {
+                        SocketChannel channel = SocketChannel.open();
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        Connection connection = new Connection(channel, intervalNanos);
+                        //各个连接的发送时间错开，避免所有连接同时发
+                        connection.nextSendNanos = now+(intervalNanos*i/connectionCount);
+                        connectionList.add(connection);
+                        if(channel.connect(target)){
+                            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                            onConnected(connection);
+                        }else{
+                            connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                        }
+                    } catch (IOException e) {
+                        connectErrors++;
+                    }
+                }
+                loop();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for(Connection connection:connectionList){
+                    connection.close();
+                }
+                try {
+                    if(selector!=null){
+                        selector.close();
+                    }
+                } catch (IOException e) {
+                    //ignore
+                }
+                done.countDown();
+            }
+        }
+
+        private void loop() throws IOException {
+            while(true){
+                long now = System.nanoTime();
+                if(now-measureEndNanos>=0){
+                    return;
+                }
+                if(mode==Mode.OPEN){
+                    now = schedule(now);
+                }
+                //OPEN模式下最多阻塞1ms，到点发送下一批请求
+                int selected = mode==Mode.OPEN ? selector.select(1) : selector.select(100);
+                if(selected==0){
+                    continue;
+                }
+                for(SelectionKey key:selector.selectedKeys()){
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if(!key.isValid()){
+                            continue;
+                        }
+                        if(key.isConnectable()){
+                            connection.channel.finishConnect();
+                            key.interestOps(SelectionKey.OP_READ);
+                            onConnected(connection);
+                            continue;
+                        }
+                        if(key.isReadable()){
+                            read(connection);
+                        }
+                        if(key.isValid() && key.isWritable()){
+                            connection.flush();
+                        }
+                    } catch (IOException e) {
+                        if(connection.connected){
+                            ioErrors++;
+                        }else{
+                            connectErrors++;
+                        }
+                        connection.close();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+
+        private void onConnected(Connection connection) throws IOException {
+            connection.connected = true;
+            connected++;
+            if(mode==Mode.CLOSED){
+                long now = System.nanoTime();
+                for(int i=0;i<pipelineDepth;i++){
+                    connection.enqueue(now);
+                }
+                connection.flush();
+            }
+        }
+
+        /**
+         * 把到了计划时间的请求放入各个连接的发送队列，延迟从计划时间算起
+         */
+        private long schedule(long now){
+            for(Connection connection:connectionList){
+                if(!connection.connected){
+                    continue;
+                }
+                boolean added = false;
+                while(connection.nextSendNanos-now<=0){
+                    connection.enqueue(connection.nextSendNanos);
+                    connection.nextSendNanos += connection.intervalNanos;
+                    added = true;
+                }
+                if(added){
+                    try {
+                        connection.flush();
+                    } catch (IOException e) {
+                        ioErrors++;
+                        connection.close();
+                    }
+                }
+            }
+            return System.nanoTime();
+        }
+
+        private void read(Connection connection) throws IOException {
+            readBuffer.clear();
+            int readNum = connection.channel.read(readBuffer);
+            if(readNum<0){
+                throw new IOException("closed by server");
+            }
+            long now = System.nanoTime();
+            boolean measuring = now-measureBeginNanos>=0;
+            int completed = connection.responseCounter.count(readBuffer, readNum);
+            for(int i=0;i<completed;i++){
+                long sendNanos = connection.complete();
+                if(measuring && sendNanos-measureBeginNanos>=0){
+                    histogram.record(now-sendNanos);
+                }
+            }
+            if(mode==Mode.CLOSED && completed>0){
+                for(int i=0;i<completed;i++){
+                    connection.enqueue(now);
+                }
+                connection.flush();
+            }
+        }
+
+        /**
+         * 一个连接，在途请求的发送时间存在一个环形数组里
+         */
+        private class Connection {
+            private final SocketChannel channel;
+            private final long intervalNanos;
+            private SelectionKey key;
+            private final ResponseCounter responseCounter = protocol.newResponseCounter();
+            private boolean connected;
+            private long nextSendNanos;
+            //在途请求的发送时间（OPEN模式下是计划发送时间），先进先出
+            private long[] sendTimes = new long[16];
+            private int head;
+            private int size;
+            //已经排队但还没放进outbound的请求数
+            private int unsent;
+            private final ByteBuffer outbound = ByteBuffer.allocate(Math.max(4096, request.length*4));
+
+            Connection(SocketChannel channel, long intervalNanos) {
+                this.channel = channel;
+                this.intervalNanos = intervalNanos;
+            }
+
+            void enqueue(long sendNanos){
+                if(size==sendTimes.length){
+                    //按head展开到新数组
+                    long[] newTimes = new long[size<<1];
+                    for(int i=0;i<size;i++){
+                        newTimes[i] = sendTimes[(head+i)&(sendTimes.length-1)];
+                    }
+                    sendTimes = newTimes;
+                    head = 0;
+                }
+                sendTimes[(head+size)&(sendTimes.length-1)] = sendNanos;
+                size++;
+                unsent++;
+            }
+
+            /**
+             * @return 最早的在途请求的发送时间
+             */
+            long complete() throws IOException {
+                if(size==0){
+                    throw new IOException("unexpected response");
+                }
+                long sendNanos = sendTimes[head];
+                head = (head+1)&(sendTimes.length-1);
+                size--;
+                return sendNanos;
+            }
+
+            /**
+             * 尽量把排队的请求写出去，写不完就关注OP_WRITE
+             */
+            void flush() throws IOException {
+                while(true){
+                    while(unsent>0 && outbound.remaining()>=request.length){
+                        outbound.put(request);
+                        unsent--;
+                    }
+                    outbound.flip();
+                    int written = channel.write(outbound);
+                    outbound.compact();
+                    if(outbound.position()>0 || unsent>0){
+                        if(written>0){
+                            continue;
+                        }
+                        key.interestOps(SelectionKey.OP_READ|SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    if((key.interestOps() & SelectionKey.OP_WRITE)!=0){
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                    return;
+                }
+            }
+
+            void close(){
+                connected = false;
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    //ignore
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.wcn.jdk.example.io.nio;
+
+import com.wcn.jdk.example.io.mynetty.MyByteBufferPool;
+import com.wcn.jdk.example.io.mynetty.MyEventLog;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比V5在read线程中直接处理请求和交给业务线程池处理时，慢请求对其它连接延迟的影响。
+ *
+ * 只有一个read线程，所有连接都在它上面：
+ * 1个连接不停地发送慢请求（以slow开头，业务处理sleep SLOW_MILLIS），
+ * 其它连接发送普通请求，统计普通请求的延迟。
+ *
+ * 运行：java OffloadBenchmark [fastClients] [seconds]
+ *
+ * 1核机器上 fastClients=8 seconds=5 的结果：
+ * inline            fast requests=     2247 p50=  20838.5us p99=  28449.0us p999=  34148.4us
+ * businessThreads=4 fast requests=   136469 p50=    142.3us p99=   3695.6us p999=   5032.9us
+ * 直接处理时read线程每处理一个慢请求就卡住20ms，同一个线程上的普通请求都要排在后面；
+ * 交给业务线程后read线程只做io，慢请求只影响发送它的那个连接。
+ */
+public class OffloadBenchmark {
+    private static final long SLOW_MILLIS = 20;
+    private static final byte[] SLOW_REQUEST = "slow\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FAST_REQUEST = "fast\n".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        int fastClients = args.length>0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length>1 ? Integer.parseInt(args[1]) : 5;
+        //压测期间只输出WARN日志
+        MyEventLog.setLevel(MyEventLog.Level.WARN);
+        System.out.println(run("inline", 0, fastClients, seconds));
+        System.out.println(run("businessThreads=4", 4, fastClients, seconds));
+    }
+
+    private static String run(String name, int businessThreads, int fastClients, int seconds) throws Exception {
+        ServerSocketChannelTestV5 server = new ServerSocketChannelTestV5();
+        InetSocketAddress address = server.start(new ServerConfig()
+                .setPort(0)
+                .setReadThreads(1)
+                .setBusinessThreads(businessThreads)
+                .setFrameDecoderFactory(() -> FrameDecoder.line(1024))
+                .setRequestHandler((frameDecoder, request) -> {
+                    if(request.remaining()>=4 && request.get(request.position())=='s'){
+                        try {
+                            TimeUnit.MILLISECONDS.sleep(SLOW_MILLIS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    ByteBuffer response = MyByteBufferPool.DEFAULT.allocate(request.remaining()+frameDecoder.frameOverhead());
+                    response.put(request);
+                    frameDecoder.writeTrailer(response);
+                    response.flip();
+                    return response;
+                }));
+        InetSocketAddress target = new InetSocketAddress("127.0.0.1", address.getPort());
+        long deadline = System.nanoTime()+TimeUnit.SECONDS.toNanos(seconds);
+
+        CountDownLatch done = new CountDownLatch(fastClients+1);
+        new Thread(() -> {
+            try {
+                call(target, SLOW_REQUEST, deadline);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            done.countDown();
+        }, "slow-client").start();
+        long[][] latencies = new long[fastClients][];
+        for(int i=0;i<fastClients;i++){
+            int index = i;
+            new Thread(() -> {
+                try {
+                    latencies[index] = call(target, FAST_REQUEST, deadline);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    latencies[index] = new long[0];
+                }
+                done.countDown();
+            }, "fast-client-"+i).start();
+        }
+        done.await();
+        server.shutdown();
+
+        long[] sorted = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        return String.format("%-17s fast requests=%9d p50=%9.1fus p99=%9.1fus p999=%9.1fus",
+                name, sorted.length, percentile(sorted, 0.50)/1000.0,
+                percentile(sorted, 0.99)/1000.0, percentile(sorted, 0.999)/1000.0);
+    }
+
+    /**
+     * 一问一答，直到deadline
+     * @return 每个请求的延迟
+     */
+    private static long[] call(InetSocketAddress target, byte[] request, long deadline) throws IOException {
+        long[] samples = new long[1024];
+        int count = 0;
+        ByteBuffer readBuffer = ByteBuffer.allocate(64);
+        try (SocketChannel channel = SocketChannel.open(target)){
+            while(System.nanoTime()<deadline){
+                long begin = System.nanoTime();
+                channel.write(ByteBuffer.wrap(request));
+                readBuffer.clear();
+                while(readBuffer.position()==0 || readBuffer.get(readBuffer.position()-1)!='\n'){
+                    if(channel.read(readBuffer)<0){
+                        throw new IOException("closed by server");
+                    }
+                }
+                if(count==samples.length){
+                    samples = Arrays.copyOf(samples, count<<1);
+                }
+                samples[count++] = System.nanoTime()-begin;
+            }
+        }
+        return Arrays.copyOf(samples, count);
+    }
+
+    private static long percentile(long[] sorted, double p){
+        if(sorted.length==0){
+            return 0;
+        }
+        int index = (int)Math.ceil(p*sorted.length)-1;
+        return sorted[Math.max(0, Math.min(index, sorted.length-1))];
+    }
+}
@@ -0,0 +1,172 @@
+package com.wcn.jdk.example.io.nio;
+
+import com.wcn.jdk.example.io.mynetty.MyByteBufferPool;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * 一个连接待发送数据的队列，类似于netty中的ChannelOutboundBuffer。
+ *
+ * socketChannel.write()是非阻塞的，socket的发送缓冲区满了的时候只会写入一部分甚至0个字节，
+ * 没写完的数据必须保存下来，等OP_WRITE就绪后再接着写，否则数据就丢了。
+ *
+ * 1. 写入时使用gathering write（writev系统调用），一次系统调用写出多个buffer。
+ * 2. 高低水位线：待发送字节数超过高水位线时变为不可写，降到低水位线以下后才恢复可写，
+ *    调用方根据isWritable()暂停读取，防止慢客户端把服务端内存撑爆。
+ *
+ * 该类不是线程安全的，只能在连接所属的reactor线程中使用。
+ * 加入队列的buffer归该队列所有，写完后会归还到MyByteBufferPool。
+ */
+public class OutboundBuffer {
+    public static final int DEFAULT_HIGH_WATER_MARK = 64 * 1024;
+    public static final int DEFAULT_LOW_WATER_MARK = 32 * 1024;
+    //一次writev最多写多少个buffer，linux的IOV_MAX是1024，这里取小一点
+    private static final int MAX_GATHERING_BUFFERS = 64;
+
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+    private final int highWaterMark;
+    private final int lowWaterMark;
+    private ByteBuffer[] gatheringArray;
+    private long pendingBytes;
+    private boolean writable = true;
+
+    public OutboundBuffer() {
+        this(DEFAULT_HIGH_WATER_MARK, DEFAULT_LOW_WATER_MARK);
+    }
+
+    public OutboundBuffer(int highWaterMark, int lowWaterMark) {
+        if(lowWaterMark<0 || highWaterMark<lowWaterMark){
+            throw new IllegalArgumentException("highWaterMark: "+highWaterMark+", lowWaterMark: "+lowWaterMark);
+        }
+        this.highWaterMark = highWaterMark;
+        this.lowWaterMark = lowWaterMark;
+    }
+
+    /**
+     * 加入一个已经flip过的buffer
+     */
+    public void add(ByteBuffer buffer){
+        int size = buffer.remaining();
+        if(size==0){
+            MyByteBufferPool.DEFAULT.release(buffer);
+            return;
+        }
+        queue.addLast(buffer);
+        pendingBytes += size;
+        if(writable && pendingBytes>highWaterMark){
+            writable = false;
+        }
+    }
+
+    /**
+     * 尽可能多的写出数据
+     * @return true表示全部写完了，false表示socket发送缓冲区满了，还有数据没写完
+     */
+    public boolean flushTo(SocketChannel socketChannel) throws IOException {
+        while(!queue.isEmpty()){
+            long attempted;
+            long written;
+            if(queue.size()==1){
+                ByteBuffer buffer = queue.peekFirst();
+                attempted = buffer.remaining();
+                written = socketChannel.write(buffer);
+            }else{
+                ByteBuffer[] array = gatheringArray();
+                int count = 0;
+                attempted = 0;
+                Iterator<ByteBuffer> iterator = queue.iterator();
+                while(count<array.length && iterator.hasNext()){
+                    ByteBuffer buffer = iterator.next();
+                    attempted += buffer.remaining();
+                    array[count++] = buffer;
+                }
+                written = socketChannel.write(array, 0, count);
+                Arrays.fill(array, 0, count, null);
+            }
+            pendingBytes -= written;
+            removeWritten();
+            if(written<attempted){
+                //没有全部写出去，说明发送缓冲区满了，等下一次OP_WRITE
+                break;
+            }
+        }
+        updateWritable();
+        return queue.isEmpty();
+    }
+
+    /**
+     * TLS连接用：把队列里的明文加密到dst中，和flushTo一样一次传入多个buffer（gathering），
+     * 一次wrap最多产生一条TLS记录（16KB明文），加密过的明文从队列中移除。
+     * 队列为空时也可以调用，用来产生握手消息。
+     */
+    public SSLEngineResult wrapTo(SSLEngine engine, ByteBuffer dst) throws SSLException {
+        ByteBuffer[] array = gatheringArray();
+        int count = 0;
+        Iterator<ByteBuffer> iterator = queue.iterator();
+        while(count<array.length && iterator.hasNext()){
+            array[count++] = iterator.next();
+        }
+        SSLEngineResult result;
+        try {
+            result = engine.wrap(array, 0, count, dst);
+        } finally {
+            Arrays.fill(array, 0, count, null);
+        }
+        pendingBytes -= result.bytesConsumed();
+        removeWritten();
+        updateWritable();
+        return result;
+    }
+
+    private void updateWritable(){
+        if(!writable && pendingBytes<lowWaterMark){
+            writable = true;
+        }
+    }
+
+    private void removeWritten(){
+        ByteBuffer buffer;
+        while((buffer = queue.peekFirst())!=null && !buffer.hasRemaining()){
+            queue.pollFirst();
+            MyByteBufferPool.DEFAULT.release(buffer);
+        }
+    }
+
+    private ByteBuffer[] gatheringArray(){
+        if(gatheringArray==null){
+            gatheringArray = new ByteBuffer[MAX_GATHERING_BUFFERS];
+        }
+        return gatheringArray;
+    }
+
+    public boolean isEmpty(){
+        return queue.isEmpty();
+    }
+
+    public boolean isWritable(){
+        return writable;
+    }
+
+    public long pendingBytes(){
+        return pendingBytes;
+    }
+
+    /**
+     * 连接关闭时调用，归还所有未发送的buffer
+     */
+    public void release(){
+        ByteBuffer buffer;
+        while((buffer = queue.pollFirst())!=null){
+            MyByteBufferPool.DEFAULT.release(buffer);
+        }
+        pendingBytes = 0;
+    }
+}
@@ -0,0 +1,18 @@
+package com.wcn.jdk.example.io.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 业务处理逻辑，默认是ServerSocketChannelTestV1.handleRequest的echo，
+ * 通过ServerConfig.setRequestHandler替换。
+ * 配置了业务线程池时在业务线程中调用，所以实现必须是线程安全的。
+ */
+public interface RequestHandler {
+    /**
+     * @param frameDecoder 只用来编码响应的帧头帧尾
+     * @param request 一个完整的请求，只在该方法执行期间有效
+     * @return 已经flip过的响应，从MyByteBufferPool中分配
+     */
+    ByteBuffer handle(FrameDecoder frameDecoder, ByteBuffer request) throws IOException;
+}
@@ -0,0 +1,368 @@
+package com.wcn.jdk.example.io.nio;
+
+import com.wcn.jdk.example.io.mynetty.MyEventExecutorChooser;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.function.Supplier;
+
+/**
+ * ServerSocketChannelTestV5的启动参数，类似于netty中ServerBootstrap的option/childOption。
+ * 所有setter都返回this，可以链式调用。
+ */
+public class ServerConfig {
+    //默认8080，可以通过-Dserver.port修改
+    private int port = Integer.getInteger("server.port", 8080);
+    //内核为该端口保留的已完成三次握手、还没被accept的连接数，实际值还受/proc/sys/net/core/somaxconn限制
+    private int backlog = 1024;
+    //accept线程每次被唤醒后最多accept多少个连接，剩下的下次select再处理，避免一直accept饿死同一selector上的其它事件
+    private int acceptBudget = 64;
+    private int readThreads = 2;
+    private MyEventExecutorChooser.Strategy chooserStrategy = MyEventExecutorChooser.Strategy.ROUND_ROBIN;
+    private Supplier<FrameDecoder> frameDecoderFactory = FrameDecoder::raw;
+    //空闲检测，单位毫秒，0表示不检测，都为0时不创建IdleTimeoutWheel
+    private long readTimeoutMillis;
+    private long writeTimeoutMillis;
+    private long idleTimeoutMillis;
+    private long idleCheckTickMillis = 100;
+    //业务线程数，0表示在read线程中直接处理请求
+    private int businessThreads;
+    //开启了业务线程池时，每个连接最多有多少个请求在业务线程中还没写回响应
+    private int maxInFlightRequests = 128;
+    //为null时使用默认的echo
+    private RequestHandler requestHandler;
+    //准入控制：连接数上限，0表示不限制
+    private int maxConnections;
+    //准入控制：单个read线程待处理的任务（待注册的连接+待写出的响应）上限，超过时不再给它分配新连接，0表示不限制
+    private int maxPendingTasksPerLoop;
+    private RejectMode rejectMode = RejectMode.CLOSE;
+    //PAUSE_ACCEPT模式下暂停多久之后重新检查是否可以恢复accept
+    private long acceptPauseMillis = 10;
+    //不为null时所有连接都走TLS，见TlsSession
+    private SSLContext sslContext;
+    //执行SSLEngine的delegated task（握手中的签名、证书验证等）的线程数
+    private int tlsTaskThreads = Runtime.getRuntime().availableProcessors();
+
+    //ServerSocketChannel的参数
+    private boolean reuseAddress = true;
+    //每个read线程绑定一个自己的ServerSocketChannel，由内核把连接分散到各个线程，不再有单独的accept线程
+    private boolean reusePort;
+    //accept到的SocketChannel的参数，0表示使用系统默认值
+    private boolean tcpNoDelay = true;
+    private boolean keepAlive = false;
+    private int receiveBufferSize;
+    private int sendBufferSize;
+
+    public int getPort() {
+        return port;
+    }
+
+    public ServerConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public ServerConfig setBacklog(int backlog) {
+        this.backlog = backlog;
+        return this;
+    }
+
+    public int getAcceptBudget() {
+        return acceptBudget;
+    }
+
+    public ServerConfig setAcceptBudget(int acceptBudget) {
+        if(acceptBudget<=0){
+            throw new IllegalArgumentException("acceptBudget: "+acceptBudget+" (expected: > 0)");
+        }
+        this.acceptBudget = acceptBudget;
+        return this;
+    }
+
+    public int getReadThreads() {
+        return readThreads;
+    }
+
+    public ServerConfig setReadThreads(int readThreads) {
+        if(readThreads<=0){
+            throw new IllegalArgumentException("readThreads: "+readThreads+" (expected: > 0)");
+        }
+        this.readThreads = readThreads;
+        return this;
+    }
+
+    public MyEventExecutorChooser.Strategy getChooserStrategy() {
+        return chooserStrategy;
+    }
+
+    public ServerConfig setChooserStrategy(MyEventExecutorChooser.Strategy chooserStrategy) {
+        this.chooserStrategy = chooserStrategy;
+        return this;
+    }
+
+    public Supplier<FrameDecoder> getFrameDecoderFactory() {
+        return frameDecoderFactory;
+    }
+
+    public ServerConfig setFrameDecoderFactory(Supplier<FrameDecoder> frameDecoderFactory) {
+        this.frameDecoderFactory = frameDecoderFactory;
+        return this;
+    }
+
+    public long getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    public ServerConfig setReadTimeoutMillis(long readTimeoutMillis) {
+        this.readTimeoutMillis = readTimeoutMillis;
+        return this;
+    }
+
+    public long getWriteTimeoutMillis() {
+        return writeTimeoutMillis;
+    }
+
+    public ServerConfig setWriteTimeoutMillis(long writeTimeoutMillis) {
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        return this;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public ServerConfig setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        return this;
+    }
+
+    public long getIdleCheckTickMillis() {
+        return idleCheckTickMillis;
+    }
+
+    public ServerConfig setIdleCheckTickMillis(long idleCheckTickMillis) {
+        this.idleCheckTickMillis = idleCheckTickMillis;
+        return this;
+    }
+
+    public int getBusinessThreads() {
+        return businessThreads;
+    }
+
+    /**
+     * 大于0时，解码出来的请求交给业务线程池处理，同一个连接的请求按顺序执行，
+     * 业务处理慢的时候不会阻塞read线程上的其它连接。
+     * 不能和HttpRequestDecoder这种supportsBusinessThreads()返回false的拆包器一起使用，V5的start时检查
+     */
+    public ServerConfig setBusinessThreads(int businessThreads) {
+        if(businessThreads<0){
+            throw new IllegalArgumentException("businessThreads: "+businessThreads+" (expected: >= 0)");
+        }
+        this.businessThreads = businessThreads;
+        return this;
+    }
+
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    /**
+     * 配置了businessThreads时才有用。一个连接交给业务线程、还没写回响应的请求达到这个数时暂停读（取消OP_READ），
+     * 写回一个响应之后恢复。不限制的话一个pipeline的客户端可以让请求和复制请求用的buffer无限积压，
+     * outboundBuffer的高水位线只在响应写回来之后才起作用，管不到这里。0表示不限制
+     */
+    public ServerConfig setMaxInFlightRequests(int maxInFlightRequests) {
+        if(maxInFlightRequests<0){
+            throw new IllegalArgumentException("maxInFlightRequests: "+maxInFlightRequests+" (expected: >= 0)");
+        }
+        this.maxInFlightRequests = maxInFlightRequests;
+        return this;
+    }
+
+    public RequestHandler getRequestHandler() {
+        return requestHandler;
+    }
+
+    public ServerConfig setRequestHandler(RequestHandler requestHandler) {
+        this.requestHandler = requestHandler;
+        return this;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public ServerConfig setMaxConnections(int maxConnections) {
+        if(maxConnections<0){
+            throw new IllegalArgumentException("maxConnections: "+maxConnections+" (expected: >= 0)");
+        }
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    public int getMaxPendingTasksPerLoop() {
+        return maxPendingTasksPerLoop;
+    }
+
+    public ServerConfig setMaxPendingTasksPerLoop(int maxPendingTasksPerLoop) {
+        if(maxPendingTasksPerLoop<0){
+            throw new IllegalArgumentException("maxPendingTasksPerLoop: "+maxPendingTasksPerLoop+" (expected: >= 0)");
+        }
+        this.maxPendingTasksPerLoop = maxPendingTasksPerLoop;
+        return this;
+    }
+
+    public RejectMode getRejectMode() {
+        return rejectMode;
+    }
+
+    public ServerConfig setRejectMode(RejectMode rejectMode) {
+        this.rejectMode = rejectMode;
+        return this;
+    }
+
+    public long getAcceptPauseMillis() {
+        return acceptPauseMillis;
+    }
+
+    public ServerConfig setAcceptPauseMillis(long acceptPauseMillis) {
+        if(acceptPauseMillis<=0){
+            throw new IllegalArgumentException("acceptPauseMillis: "+acceptPauseMillis+" (expected: > 0)");
+        }
+        this.acceptPauseMillis = acceptPauseMillis;
+        return this;
+    }
+
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    /**
+     * 设置之后V5变成TLS服务端，每个连接用sslContext创建一个服务端模式的SSLEngine，
+     * 例如SslContexts.server(keyStore, password)
+     */
+    public ServerConfig setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+        return this;
+    }
+
+    public int getTlsTaskThreads() {
+        return tlsTaskThreads;
+    }
+
+    public ServerConfig setTlsTaskThreads(int tlsTaskThreads) {
+        if(tlsTaskThreads<=0){
+            throw new IllegalArgumentException("tlsTaskThreads: "+tlsTaskThreads+" (expected: > 0)");
+        }
+        this.tlsTaskThreads = tlsTaskThreads;
+        return this;
+    }
+
+    /**
+     * @return 没有配置任何超时时返回null
+     */
+    IdleTimeoutWheel newIdleTimeoutWheel(){
+        if(readTimeoutMillis<=0 && writeTimeoutMillis<=0 && idleTimeoutMillis<=0){
+            return null;
+        }
+        return new IdleTimeoutWheel(idleCheckTickMillis, readTimeoutMillis, writeTimeoutMillis, idleTimeoutMillis);
+    }
+
+    public ServerConfig setReuseAddress(boolean reuseAddress) {
+        this.reuseAddress = reuseAddress;
+        return this;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * SO_REUSEPORT是jdk9才加入StandardSocketOptions的，
+     * 为了还能用jdk8编译，通过反射获取，运行时不支持的话V5会退回到单个accept线程
+     */
+    public ServerConfig setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+        return this;
+    }
+
+    public ServerConfig setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    public ServerConfig setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    public ServerConfig setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+        return this;
+    }
+
+    public ServerConfig setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+        return this;
+    }
+
+    /**
+     * bind之前调用。
+     * SO_RCVBUF要在listen之前设置到ServerSocketChannel上，accept出来的连接才能继承，
+     * 因为TCP窗口扩大因子是在三次握手时协商的。
+     */
+    void configure(ServerSocketChannel serverSocketChannel) throws IOException {
+        serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEADDR, reuseAddress);
+        if(receiveBufferSize>0){
+            serverSocketChannel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
+    }
+
+    /**
+     * @return StandardSocketOptions.SO_REUSEPORT，jdk8或者该平台不支持时返回null
+     */
+    @SuppressWarnings("unchecked")
+    static SocketOption<Boolean> reusePortOption(){
+        try {
+            SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            try (ServerSocketChannel channel = ServerSocketChannel.open()){
+                return channel.supportedOptions().contains(option) ? option : null;
+            }
+        } catch (NoSuchFieldException | IllegalAccessException | IOException e) {
+            return null;
+        }
+    }
+
+    void configure(SocketChannel socketChannel) throws IOException {
+        socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+        socketChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+        if(sendBufferSize>0){
+            socketChannel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+        }
+    }
+
+    /**
+     * 达到maxConnections或者maxPendingTasksPerLoop时怎么拒绝新连接
+     */
+    public enum RejectMode {
+        /**
+         * accept之后立即关闭（SO_LINGER=0，直接发RST），客户端马上收到Connection reset，
+         * 可以快速失败、去重试别的节点，代价是每个被拒绝的连接还是要走一遍accept
+         */
+        CLOSE,
+        /**
+         * 取消OP_ACCEPT，新连接留在内核的全连接队列里等待，队列满了之后内核丢弃SYN，
+         * 客户端表现为建连变慢、超时，服务端不再为拒绝连接花任何CPU。
+         * 每隔acceptPauseMillis检查一次，低于上限时恢复accept
+         */
+        PAUSE_ACCEPT
+    }
+}
@@ -1,5 +1,9 @@
 package com.wcn.jdk.example.io.nio;
 
+import com.wcn.jdk.example.io.mynetty.MyByteBufferPool;
+import com.wcn.jdk.example.io.mynetty.MyEventLog;
+import com.wcn.jdk.example.io.mynetty.MySelector;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
@@ -10,6 +14,7 @@ import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.function.Supplier;
 
 /**
  * 一个selector、一个线程处理所有的accept和read操作
@@ -20,8 +25,32 @@ import java.util.Set;
  * 2. accept操作过多过慢，read处理不及时
  */
 public class ServerSocketChannelTestV1 {
+    protected static final byte[] RESPONSE_PREFIX = "response_".getBytes(StandardCharsets.UTF_8);
+    protected static final int READ_BUFFER_SIZE = 1024;
+    //-Dserver.port=xxx 修改监听端口，EchoBenchmark用它把各个服务端启动在不同的端口上
+    protected static final int PORT = Integer.getInteger("server.port", 8080);
+
+    //io线程中的日志都通过MyEventLog异步输出，每次select、read的日志是DEBUG级别，默认不输出
+    protected static final MyEventLog.Event SELECT_NUM_ACCEPT = MyEventLog.event(MyEventLog.Level.DEBUG, "selectNumAccept:{}");
+    protected static final MyEventLog.Event SELECT_NUM_READ = MyEventLog.event(MyEventLog.Level.DEBUG, "selectNumRead:{}");
+    private static final MyEventLog.Event SELECTED_NUM = MyEventLog.event(MyEventLog.Level.DEBUG, "selectedNum:{}");
+    private static final MyEventLog.Event KEY_CANCEL = MyEventLog.event(MyEventLog.Level.DEBUG, "key cancel.");
+    private static final MyEventLog.Event SOCKET_ACCEPT = MyEventLog.event(MyEventLog.Level.INFO, "socket accept:{}");
+    private static final MyEventLog.Event READ_BYTES = MyEventLog.event(MyEventLog.Level.DEBUG, "readBytesNum: {}");
+    private static final MyEventLog.Event CLIENT_CLOSE = MyEventLog.event(MyEventLog.Level.INFO, "clint close: {}");
+    private static final MyEventLog.Event RECEIVE_MSG = MyEventLog.event(MyEventLog.Level.DEBUG, "receive msg:{}");
+
+    //每个连接一个拆包器，默认不拆包，每次read到的数据作为一个请求
+    private Supplier<FrameDecoder> frameDecoderFactory = FrameDecoder::raw;
+    //作为字段保存，避免每次read都创建一个方法引用对象
+    private final FrameDecoder.FrameHandler frameHandler = this::onFrame;
+
     public static void main(String[] args) throws Exception{
         ServerSocketChannelTestV1 test = new ServerSocketChannelTestV1();
+        if(args.length>0){
+            //raw、line、length、http
+            test.setFrameDecoderFactory(FrameDecoder.factory(args[0]));
+        }
         test.start();;
     }
 
@@ -31,11 +60,11 @@ public class ServerSocketChannelTestV1 {
         ServerSocketChannel ssc = ServerSocketChannel.open();
         ssc.configureBlocking(false);//设置未非阻塞模式
         ssc.register(selector, SelectionKey.OP_ACCEPT);//注册accept事件
-        ssc.bind(new InetSocketAddress(8080), 1);//backlog为操作系统可以为进程保留多少个未accept的连接
+        ssc.bind(new InetSocketAddress(PORT), 1);//backlog为操作系统可以为进程保留多少个未accept的连接
 
         while(true){
             int selectedNum = selector.select();//阻塞永久等待
-            System.out.println("selectedNum:"+selectedNum);
+            MyEventLog.log(SELECTED_NUM, selectedNum);
             Set<SelectionKey> keys = selector.selectedKeys();
             Iterator<SelectionKey> iterator = keys.iterator();
             while(iterator.hasNext()){
@@ -45,11 +74,11 @@ public class ServerSocketChannelTestV1 {
                 if(key.isValid()){
                     if(key.isAcceptable()){
                         accept(selector, key);
-                    }else if(key.isReadable()){
-                        read(key);
+                    }else{
+                        processIoOrClose(key);
                     }
                 }else{
-                    System.out.println("key cancel.");
+                    MyEventLog.log(KEY_CANCEL);
                 }
             }
         }
@@ -58,36 +87,123 @@ public class ServerSocketChannelTestV1 {
     protected SocketChannel accept(Selector selector, SelectionKey key) throws IOException {
         ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
         SocketChannel socketChannel = serverSocketChannel.accept();
-        System.out.println("socket accept:"+socketChannel.socket().getInetAddress()+" port:"+socketChannel.socket().getPort());
+        if(socketChannel==null){
+            //非阻塞模式下全连接队列已经空了
+            return null;
+        }
+        MyEventLog.log(SOCKET_ACCEPT, socketChannel.socket().getRemoteSocketAddress());
         socketChannel.configureBlocking(false);//socketChannel设置为非阻塞
         if(selector!=null){
-            socketChannel.register(selector, SelectionKey.OP_READ);//注册到register
+            register(selector, socketChannel);//注册到register
         }
         return socketChannel;
     }
 
+    /**
+     * 注册OP_READ事件，并创建该连接的ConnectionContext作为attachment。
+     * attachment在register时一起设置，key一出现在selector里就带着context，不会被select到一个还没有attachment的key
+     */
+    protected SelectionKey register(Selector selector, SocketChannel socketChannel) throws IOException {
+        ConnectionContext context = new ConnectionContext(socketChannel, null, frameDecoderFactory.get());
+        SelectionKey key = socketChannel.register(selector, SelectionKey.OP_READ, context);
+        context.selectionKeyChanged(key);
+        return key;
+    }
+
+    /**
+     * 处理已连接socket的io事件，先写后读：
+     * 先把之前没写完的数据写出去，可能会因此恢复读取
+     */
+    protected void processIo(SelectionKey key) throws IOException {
+        ConnectionContext context = (ConnectionContext) key.attachment();
+        if(key.isWritable()){
+            context.flush();
+        }
+        if(key.isValid() && key.isReadable()){
+            read(key);
+        }
+    }
+
+    /**
+     * 单线程的select循环里调用：某个连接的io异常（例如客户端重置了连接，Broken pipe）只关闭这个连接，
+     * 不能让异常跑出循环把整个服务端带走
+     */
+    protected void processIoOrClose(SelectionKey key){
+        try {
+            processIo(key);
+        } catch (IOException e) {
+            MySelector.closeQuietly(key);
+        }
+    }
+
+    /**
+     * 设置拆包方式，例如FrameDecoder.line(8192)、FrameDecoder.lengthField(1024*1024)，
+     * 只对之后accept的连接生效
+     */
+    public void setFrameDecoderFactory(Supplier<FrameDecoder> frameDecoderFactory) {
+        this.frameDecoderFactory = frameDecoderFactory;
+    }
+
     protected void read(SelectionKey key) throws IOException {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-        ByteBuffer byteBuffer = ByteBuffer.allocate(1024);
-        int readNum = socketChannel.read(byteBuffer);
-        System.out.println(Thread.currentThread().getName()+" readBytesNum: "+readNum);
+        ConnectionContext context = (ConnectionContext) key.attachment();
+        SocketChannel socketChannel = context.channel();
+        FrameDecoder frameDecoder = context.frameDecoder();
+        TlsSession tls = context.tls();
+        int readNum;
+        if(tls==null){
+            //读到该连接的累积buffer中（从pool中借的DirectByteBuffer），上次剩下的半包数据也在里面
+            ByteBuffer byteBuffer = frameDecoder.readBuffer(READ_BUFFER_SIZE);
+            readNum = socketChannel.read(byteBuffer);
+        }else{
+            //读到的是密文，解密后追加到累积buffer中，readNum是解密出来的字节数，握手阶段一般为0
+            readNum = tls.read(context);
+        }
+        MyEventLog.log(READ_BYTES, readNum);
         if(readNum>0){
-            //读取到了数据
-            byte[] bytes = new byte[readNum];
-            byteBuffer.flip();
-            byteBuffer.get(bytes);
-            System.out.println(Thread.currentThread().getName()+" receive msg:"+new String(bytes));
-
-            //读取到的数据原样返回给客户端
-            byteBuffer.compact();
-            byteBuffer.put("response_".getBytes(StandardCharsets.UTF_8));
-            byteBuffer.put(bytes);
-            byteBuffer.flip();
-            socketChannel.write(byteBuffer);
+            context.touchRead();
+            //读取到了数据，切分出0个或多个完整的请求，每个请求回调一次onFrame
+            int frames = frameDecoder.decode(context, frameHandler);
+            if(frames>0){
+                //多个请求的响应合并成一次writev写出
+                context.flush();
+            }
         }else if(readNum<0){
             //-1表示客户端关闭
-            System.out.println(Thread.currentThread().getName()+" clint close: "+socketChannel.getRemoteAddress());
-            socketChannel.close();
+            MyEventLog.log(CLIENT_CLOSE, socketChannel.socket().getRemoteSocketAddress());
+            context.close();
         }
     }
+
+    /**
+     * 处理一个完整的请求，frame只在该方法执行期间有效
+     */
+    protected void onFrame(ConnectionContext context, ByteBuffer frame) throws IOException {
+        ByteBuffer response = handleRequest(context.frameDecoder(), frame);
+        //只放入发送队列，read结束后统一flush
+        context.write(response);
+        if(context.frameDecoder().isLastFrame()){
+            context.closeAfterFlush();
+        }
+    }
+
+    /**
+     * 业务处理，返回已经加上了帧头帧尾、flip过的响应，从pool中分配，由发送队列负责归还。
+     * 只依赖frameDecoder的编码方法，不访问连接的其它状态，所以也可以在业务线程中调用。
+     */
+    protected ByteBuffer handleRequest(FrameDecoder frameDecoder, ByteBuffer frame) throws IOException {
+        if(MyEventLog.isEnabled(MyEventLog.Level.DEBUG)){
+            //解码成字符串要分配内存，只在开启了DEBUG时才做
+            MyEventLog.log(RECEIVE_MSG, StandardCharsets.UTF_8.decode(frame.duplicate()).toString());
+        }
+
+        //读取到的数据原样返回给客户端，直接从读buffer拷贝到写buffer，不经过byte[]
+        int length = RESPONSE_PREFIX.length+frame.remaining();
+        ByteBuffer response = MyByteBufferPool.DEFAULT.allocate(frameDecoder.frameOverhead()+length);
+        frameDecoder.writeHeader(response, length);
+        response.put(RESPONSE_PREFIX);
+        response.put(frame);
+        frameDecoder.writeTrailer(response);
+        response.flip();
+        return response;
+    }
 }
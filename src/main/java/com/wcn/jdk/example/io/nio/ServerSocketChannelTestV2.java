@@ -1,5 +1,7 @@
 package com.wcn.jdk.example.io.nio;
 
+import com.wcn.jdk.example.io.mynetty.MyEventLog;
+
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
@@ -29,11 +31,11 @@ public class ServerSocketChannelTestV2 extends ServerSocketChannelTestV1{
         ServerSocketChannel ssc = ServerSocketChannel.open();
         ssc.configureBlocking(false);//设置未非阻塞模式
         ssc.register(selectorAccept, SelectionKey.OP_ACCEPT);//注册accept事件
-        ssc.bind(new InetSocketAddress(8080), 1);//backlog为操作系统可以为进程保留多少个未accept的连接
+        ssc.bind(new InetSocketAddress(PORT), 1);//backlog为操作系统可以为进程保留多少个未accept的连接
 
         while(true){
             int selectNum = selectorAccept.select(500);//带超时时间
-            System.out.println("selectNumAccept:"+selectNum);
+            MyEventLog.log(SELECT_NUM_ACCEPT, selectNum);
             if(selectNum>0){
                 //有新的连接accept
                 Set<SelectionKey> keys = selectorAccept.selectedKeys();
@@ -48,17 +50,16 @@ public class ServerSocketChannelTestV2 extends ServerSocketChannelTestV1{
             }
 
             selectNum = selectorRead.selectNow();//立马返回，不阻塞
-            System.out.println("selectNumRead:"+selectNum);
+            MyEventLog.log(SELECT_NUM_READ, selectNum);
             if(selectNum>0){
                 //有新的数据发送过来，可以read了
                 Set<SelectionKey> keys = selectorRead.selectedKeys();
                 Iterator<SelectionKey> iterator = keys.iterator();
                 while(iterator.hasNext()){
                     SelectionKey key = iterator.next();
-                    //必定是read事件，因为是从selectorRead中select出来的
-                    assert key.isReadable();
+                    //selectorRead上只注册了read和write事件
                     iterator.remove();
-                    super.read(key);
+                    super.processIoOrClose(key);
                 }
             }
         }
@@ -1,5 +1,7 @@
 package com.wcn.jdk.example.io.nio;
 
+import com.wcn.jdk.example.io.mynetty.MyEventLog;
+
 import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -13,6 +15,7 @@ import java.util.Set;
  * 无法调用进行register(), 也会进入阻塞等待。
  */
 public class ServerSocketChannelTestV3 extends ServerSocketChannelTestV1{
+    private static final MyEventLog.Event WAKEUP_READ_SELECTOR = MyEventLog.event(MyEventLog.Level.DEBUG, "wakeup read selector.");
     public static void main(String[] args) throws Exception{
         ServerSocketChannelTestV3 test = new ServerSocketChannelTestV3();
         test.start();
@@ -25,7 +28,7 @@ public class ServerSocketChannelTestV3 extends ServerSocketChannelTestV1{
         ServerSocketChannel ssc = ServerSocketChannel.open();
         ssc.configureBlocking(false);//设置未非阻塞模式
         ssc.register(selectorAccept, SelectionKey.OP_ACCEPT);//注册accept事件
-        ssc.bind(new InetSocketAddress(8080), 1);//backlog为操作系统可以为进程保留多少个未accept的连接
+        ssc.bind(new InetSocketAddress(PORT), 1);//backlog为操作系统可以为进程保留多少个未accept的连接
 
         //accept线程
         Thread threadAccept = new Thread(new AcceptRunnable(selectorAccept, selectorRead));
@@ -51,7 +54,7 @@ public class ServerSocketChannelTestV3 extends ServerSocketChannelTestV1{
             while(true){
                 try {
                     int selectNum = selectorAccept.select();
-                    System.out.println("selectNumAccept:"+selectNum);
+                    MyEventLog.log(SELECT_NUM_ACCEPT, selectNum);
                     if(selectNum>0){
                         //有新的连接accept
                         Set<SelectionKey> keys = selectorAccept.selectedKeys();
@@ -63,7 +66,7 @@ public class ServerSocketChannelTestV3 extends ServerSocketChannelTestV1{
                             assert key.isAcceptable();
 //                            selectorRead.wakeup(); 这里wakeup唤醒也是没用的，因为可能threadRead比该线程运行的快，又调用了select()方法。
                             super.accept(selectorRead, key);
-                            System.out.println("wakeup read selector.");
+                            MyEventLog.log(WAKEUP_READ_SELECTOR);
                         }
                     }
                 } catch (Exception e) {
@@ -86,17 +89,17 @@ public class ServerSocketChannelTestV3 extends ServerSocketChannelTestV1{
                 int selectNumRead = 0;
                 try {
                     selectNumRead = selectorRead.select();
-                    System.out.println("selectNumRead:"+selectNumRead);
+                    MyEventLog.log(SELECT_NUM_READ, selectNumRead);
                     if(selectNumRead>0){
                         //有新的数据发送过来，可以read了
                         Set<SelectionKey> keys = selectorRead.selectedKeys();
                         Iterator<SelectionKey> iterator = keys.iterator();
                         while(iterator.hasNext()){
                             SelectionKey key = iterator.next();
-                            //必定是read事件，因为是从selectorRead中select出来的
-                            assert key.isReadable();
+                            //selectorRead上只注册了read和write事件
                             iterator.remove();
-                            super.read(key);
+                            //io异常时关闭这个连接，否则key一直有效，每次select都立即返回它，线程空转
+                            super.processIoOrClose(key);
                         }
                     }
                 } catch (Exception e) {
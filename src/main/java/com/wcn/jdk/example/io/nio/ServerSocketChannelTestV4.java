@@ -1,5 +1,11 @@
 package com.wcn.jdk.example.io.nio;
 
+import com.wcn.jdk.example.io.mynetty.MyChannelHandler;
+import com.wcn.jdk.example.io.mynetty.MyEventLog;
+import com.wcn.jdk.example.io.mynetty.MySelector;
+
+import java.io.IOException;
+
 import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -19,6 +25,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  * 一个线程和一个selector处理所有连接的read就显得力不从心了。
  */
 public class ServerSocketChannelTestV4 extends ServerSocketChannelTestV1{
+    private static final MyEventLog.Event WAKEUP_STATS = MyEventLog.event(MyEventLog.Level.DEBUG, "wakeups:{} avoidedWakeups:{}");
     //加入一个队列，用于保存threadAccept线程accept到的SocketChannel，
     //然后threadRead线程自己进行channel.register操作
     private static ConcurrentLinkedQueue<SocketChannel> queue = new ConcurrentLinkedQueue<>();
@@ -29,12 +36,12 @@ public class ServerSocketChannelTestV4 extends ServerSocketChannelTestV1{
 
     private void start() throws Exception{
         Selector selectorAccept = Selector.open();//单独用于注册accept事件
-        Selector selectorRead = Selector.open();//单独用于注册read事件
+        MySelector selectorRead = MySelector.open();//单独用于注册read事件，包装了一下用于合并wakeup
 
         ServerSocketChannel ssc = ServerSocketChannel.open();
         ssc.configureBlocking(false);//设置未非阻塞模式
         ssc.register(selectorAccept, SelectionKey.OP_ACCEPT);//注册accept事件
-        ssc.bind(new InetSocketAddress(8080), 1);//backlog为操作系统可以为进程保留多少个未accept的连接
+        ssc.bind(new InetSocketAddress(PORT), 1);//backlog为操作系统可以为进程保留多少个未accept的连接
 
         //accept线程
         Thread threadAccept = new Thread(new AcceptRunnable(selectorAccept, selectorRead));
@@ -48,9 +55,9 @@ public class ServerSocketChannelTestV4 extends ServerSocketChannelTestV1{
 
     static class AcceptRunnable extends ServerSocketChannelTestV1 implements Runnable{
         private Selector selectorAccept;
-        private Selector selectorRead;
+        private MySelector selectorRead;
 
-        public AcceptRunnable(Selector selectorAccept, Selector selectorRead) {
+        public AcceptRunnable(Selector selectorAccept, MySelector selectorRead) {
             this.selectorAccept = selectorAccept;
             this.selectorRead = selectorRead;
         }
@@ -60,7 +67,7 @@ public class ServerSocketChannelTestV4 extends ServerSocketChannelTestV1{
             while(true){
                 try {
                     int selectNum = selectorAccept.select();
-                    System.out.println("selectNumAccept:"+selectNum);
+                    MyEventLog.log(SELECT_NUM_ACCEPT, selectNum);
                     if(selectNum>0){
                         //有新的连接accept
                         Set<SelectionKey> keys = selectorAccept.selectedKeys();
@@ -73,12 +80,16 @@ public class ServerSocketChannelTestV4 extends ServerSocketChannelTestV1{
 
                             //此处的selectorRead传入null，为了不再此线程进行register操作
                             SocketChannel socketChannel = super.accept(null, key);
+                            if(socketChannel==null){
+                                continue;
+                            }
                             //将accept到的SocketChannel放入到队列
                             queue.add(socketChannel);
                             //唤醒selectorRead，让其处理队列里的Channel，进行注册
+                            //threadRead醒着的时候（例如正在处理上一个连接）不会真的调用wakeup
                             selectorRead.wakeup();
-                            System.out.println("wakeup read selector.");
                         }
+                        MyEventLog.log(WAKEUP_STATS, selectorRead.wakeups(), selectorRead.avoidedWakeups());
                     }
                 } catch (Exception e) {
                     e.printStackTrace();
@@ -87,41 +98,41 @@ public class ServerSocketChannelTestV4 extends ServerSocketChannelTestV1{
         }
     }
 
-    static class ReadRunnable extends ServerSocketChannelTestV1 implements Runnable{
-        private Selector selectorRead;
+    static class ReadRunnable extends ServerSocketChannelTestV1 implements Runnable, MyChannelHandler{
+        //selector可能因为空轮询被重建，所以每次都通过mySelector.unwrap()获取
+        private MySelector mySelector;
 
-        public ReadRunnable(Selector selectorRead) {
-            this.selectorRead = selectorRead;
+        public ReadRunnable(MySelector mySelector) {
+            this.mySelector = mySelector;
         }
 
         @Override
         public void run() {
             while(true){
                 try {
-                    int selectNumRead = selectorRead.select();
-                    System.out.println("selectNumRead:"+selectNumRead);
+                    //队列里有待注册的channel时不阻塞
+                    int selectNumRead = mySelector.select(() -> !queue.isEmpty());
+                    MyEventLog.log(SELECT_NUM_READ, selectNumRead);
                     if(selectNumRead>0){
                         //有新的数据发送过来，可以read了
-                        Set<SelectionKey> keys = selectorRead.selectedKeys();
-                        Iterator<SelectionKey> iterator = keys.iterator();
-                        while(iterator.hasNext()){
-                            SelectionKey key = iterator.next();
-                            //必定是read事件，因为是从selectorRead中select出来的
-                            assert key.isReadable();
-                            iterator.remove();
-                            super.read(key);
-                        }
+                        mySelector.processSelectedKeys(this);
                     }
 
                     //处理队列里的SocketChannel
                     SocketChannel socketChannel = null;
                     while((socketChannel = queue.poll())!=null){
-                        socketChannel.register(selectorRead, SelectionKey.OP_READ);
+                        super.register(mySelector.unwrap(), socketChannel);
                     }
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
             }
         }
+
+        @Override
+        public void channelReady(SelectionKey key) throws IOException {
+            //selectorRead上只注册了read和write事件
+            super.processIo(key);
+        }
     }
 }
@@ -1,15 +1,32 @@
 package com.wcn.jdk.example.io.nio;
 
+import com.wcn.jdk.example.io.mynetty.MyByteBufferPool;
+import com.wcn.jdk.example.io.mynetty.MyChannelHandler;
+import com.wcn.jdk.example.io.mynetty.MyEventExecutorChooser;
+import com.wcn.jdk.example.io.mynetty.MyEventLog;
+import com.wcn.jdk.example.io.mynetty.MySelector;
+import com.wcn.jdk.example.io.mynetty.MySerialExecutor;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
 
 /**
  * 总体结构类似于Netty了。
@@ -21,39 +38,216 @@ import java.util.concurrent.atomic.AtomicLong;
  * 多个线程：
  * 1：acceptSelector拥有一个独立的线程。
  * 2：每个readSelector都拥有一个独立的线程。
+ *
+ * 端口、backlog、read线程数、socket参数等通过ServerConfig配置。
+ * accept线程每次唤醒批量accept（见AcceptRunnable.channelReady），accept统计见AcceptMetrics。
+ *
+ * SO_REUSEPORT模式（ServerConfig.setReusePort(true)，linux 3.9+、jdk9+）：
+ * 只有一个accept线程时，大量短连接的情况下accept线程本身会成为瓶颈，accept到的连接还要经过队列交给read线程。
+ * 该模式下没有accept线程，每个read线程绑定一个自己的ServerSocketChannel（同一个端口），注册到自己的selector上，
+ * 内核按四元组hash把新连接分到各个ServerSocketChannel的全连接队列，accept和read在同一个线程，不需要队列和wakeup。
+ * 代价是连接的分配由内核决定，不再经过chooser，某个read线程卡住时分给它的新连接也会一直等待。
+ * 两种方式的accept吞吐对比见AcceptBenchmark。
+ *
+ * 空闲连接检测：配置了read/write/idle超时时，每个read线程有一个IdleTimeoutWheel，
+ * select最多阻塞一个tick，每轮处理完io事件后关闭超时的连接，避免半死的连接一直占着文件描述符。
+ *
+ * 业务线程池（半同步/半异步）：默认请求在read线程中直接处理，一个慢请求会拖慢该线程上所有连接。
+ * 配置了businessThreads后，read线程只负责io和拆包，请求复制一份交给该连接的MySerialExecutor，
+ * 同一个连接的请求在线程池中按顺序执行，不同连接并行；
+ * 响应不能在业务线程中直接写（ConnectionContext只能在所属的read线程中使用），
+ * 而是作为任务放回所属ReadRunnable的任务队列，由read线程写出。
+ * 每个连接在业务线程中的请求数达到maxInFlightRequests时暂停读，写回响应后恢复，pipeline的客户端不能无限积压请求。
+ *
+ * 准入控制（过载保护）：不加限制的话，过载时连接数、read线程的注册队列和任务队列都会无限增长，
+ * 内存和延迟跟着涨，最后所有连接一起超时。配置了maxConnections、maxPendingTasksPerLoop之后，
+ * 达到上限的新连接按RejectMode直接拒绝（accept之后RST），或者暂停OP_ACCEPT让连接留在内核队列里，
+ * 已经建立的连接不受影响，拒绝次数见AcceptMetrics。
+ *
+ * http模式（main的第一个参数为http）：HttpRequestDecoder拆出完整的HTTP/1.1请求，HttpServerHandler处理，
+ * keep-alive的连接上可以pipeline，Connection: close的请求响应写完后关闭连接。
+ * 和netty的HttpServerCodec的对比见HttpBenchmark。
+ *
+ * TLS（ServerConfig.setSslContext，main中用 -Dserver.tls=true 开启）：每个连接一个TlsSession（SSLEngine），
+ * 读到的密文先解密再拆包，响应在flush时加密，握手和加解密都在read线程中，
+ * 握手中的delegated task交给单独的线程池（tlsTaskThreads）。握手速度和加密吞吐见TlsBenchmark。
  */
 public class ServerSocketChannelTestV5 extends ServerSocketChannelTestV1{
+    private ServerConfig config;
+    private ServerSocketChannel ssc;
+    private MySelector selectorAccept;
+    private ReadThreadGroup readThreadGroup;
+    private AcceptRunnable acceptRunnable;
+    private Thread threadAccept;
+    private ScheduledExecutorService reporter;
+    private ExecutorService businessPool;
+    private TlsSession.Factory tlsFactory;
+    private final AcceptMetrics acceptMetrics = new AcceptMetrics();
+
     public static void main(String[] args) throws Exception{
+        ServerConfig config = new ServerConfig();
+        if(args.length>0){
+            //raw、line、length、http
+            config.setFrameDecoderFactory(FrameDecoder.factory(args[0]));
+            if("http".equals(args[0])){
+                config.setRequestHandler(new HttpServerHandler());
+            }
+        }
+        if(args.length>1){
+            config.setBacklog(Integer.parseInt(args[1]));
+        }
+        if(args.length>2){
+            config.setReusePort(Boolean.parseBoolean(args[2]));
+        }
+        if(args.length>3){
+            config.setMaxConnections(Integer.parseInt(args[3]));
+        }
+        if(Boolean.getBoolean("server.tls")){
+            //-Dserver.tls.keystore、-Dserver.tls.password指定证书，没有指定时用自签名证书
+            config.setSslContext(SslContexts.serverFromSystemProperties());
+        }
         ServerSocketChannelTestV5 test = new ServerSocketChannelTestV5();
-        test.start(2);
+        test.start(config);
+    }
+
+    /**
+     * @return 实际绑定的地址，port配置为0时由系统分配一个空闲端口
+     */
+    public InetSocketAddress start(ServerConfig config) throws IOException {
+        this.config = config;
+        if(config.getBusinessThreads()>0){
+            //创建一个decoder看看拆包器支不支持，看完归还它可能持有的buffer
+            FrameDecoder probe = config.getFrameDecoderFactory().get();
+            try {
+                if(!probe.supportsBusinessThreads()){
+                    throw new IllegalArgumentException("businessThreads can not be used with "+probe.getClass().getSimpleName());
+                }
+            } finally {
+                probe.release();
+            }
+        }
+        if(config.getBusinessThreads()>0){
+            AtomicInteger index = new AtomicInteger();
+            businessPool = Executors.newFixedThreadPool(config.getBusinessThreads(), r -> {
+                Thread thread = new Thread(r, "v5-business-"+index.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        if(config.getSslContext()!=null){
+            tlsFactory = new TlsSession.Factory(config.getSslContext(), config.getTlsTaskThreads());
+        }
+        //read线程组
+        readThreadGroup = new ReadThreadGroup(config, businessPool, tlsFactory);
+
+        SocketOption<Boolean> reusePort = config.isReusePort() ? ServerConfig.reusePortOption() : null;
+        InetSocketAddress localAddress;
+        if(reusePort!=null){
+            //每个read线程自己accept
+            localAddress = readThreadGroup.bindReusePort(config, reusePort, acceptMetrics);
+            readThreadGroup.start();
+        }else{
+            if(config.isReusePort()){
+                System.out.println("SO_REUSEPORT is not supported, fall back to a single accept thread");
+            }
+            localAddress = startAcceptThread(config);
+        }
+
+        //定时打印buffer池的命中率、wakeup次数和accept统计
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "v5-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(()->{
+            System.out.println(MyByteBufferPool.DEFAULT.stats());
+            System.out.println(readThreadGroup.selectorStats());
+            System.out.println(acceptMetrics.report());
+            if(tlsFactory!=null){
+                System.out.println(tlsFactory.metrics());
+            }
+        }, 10, 10, TimeUnit.SECONDS);
+        return localAddress;
     }
 
-    private void start(int readThreadNum) throws Exception{
-        Selector selectorAccept = Selector.open();//单独用于注册accept事件
+    private InetSocketAddress startAcceptThread(ServerConfig config) throws IOException {
+        selectorAccept = MySelector.open();//单独用于注册accept事件
 
-        ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc = ServerSocketChannel.open();
         ssc.configureBlocking(false);//设置未非阻塞模式
-        ssc.register(selectorAccept, SelectionKey.OP_ACCEPT);//注册accept事件
-        ssc.bind(new InetSocketAddress(8080), 1);//backlog为操作系统可以为进程保留多少个未accept的连接
+        config.configure(ssc);
+        ssc.register(selectorAccept.unwrap(), SelectionKey.OP_ACCEPT);//注册accept事件
+        //backlog为操作系统可以为进程保留多少个未accept的连接，
+        //之前的1在短时间大量建连时全连接队列马上就满了，客户端会出现连接超时或者Connection refused
+        ssc.bind(new InetSocketAddress(config.getPort()), config.getBacklog());
 
-        //read线程组
-        ReadThreadGroup readThreadGroup = new ReadThreadGroup(2);
         readThreadGroup.start();
 
         //accept线程
-        Thread threadAccept = new Thread(new AcceptRunnable(selectorAccept, readThreadGroup));
+        acceptRunnable = new AcceptRunnable(selectorAccept,
+                socketChannel -> readThreadGroup.register(socketChannel, config.getMaxPendingTasksPerLoop()),
+                readThreadGroup::connectionCount, config, acceptMetrics);
+        threadAccept = new Thread(acceptRunnable, "v5-accept");
         threadAccept.start();
+        return (InetSocketAddress) ssc.getLocalAddress();
+    }
+
+    public AcceptMetrics acceptMetrics(){
+        return acceptMetrics;
+    }
+
+    /**
+     * @return 没有配置TLS时返回null
+     */
+    public TlsSession.Metrics tlsMetrics(){
+        return tlsFactory!=null ? tlsFactory.metrics() : null;
+    }
+
+    /**
+     * 先停止accept，再停止read线程并关闭所有连接
+     */
+    public void shutdown() throws InterruptedException {
+        reporter.shutdownNow();
+        if(acceptRunnable!=null){
+            acceptRunnable.running = false;
+            //不能用合并过的wakeup()：线程刚检查完running、还没把awake设为false时那次wakeup会被丢掉，select一直阻塞
+            selectorAccept.unwrap().wakeup();
+            threadAccept.join();
+            try {
+                ssc.close();
+                selectorAccept.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        //SO_REUSEPORT模式下各自的ServerSocketChannel由read线程关闭
+        readThreadGroup.shutdown();
+        if(businessPool!=null){
+            businessPool.shutdownNow();
+        }
+        if(tlsFactory!=null){
+            tlsFactory.shutdown();
+        }
     }
 
     static class ReadThreadGroup{
         private ReadThread[] readThreadArray;
-        private AtomicLong atomicLong = new AtomicLong(0);
+        private MyEventExecutorChooser<ReadThread> chooser;
 
         public ReadThreadGroup(int readThreadNum) throws IOException {
-            readThreadArray = new ReadThread[readThreadNum];
+            this(new ServerConfig().setReadThreads(readThreadNum), null, null);
+        }
+
+        /**
+         * @param businessPool 为null时在read线程中处理请求
+         * @param tlsFactory 为null时不使用TLS
+         */
+        public ReadThreadGroup(ServerConfig config, Executor businessPool, TlsSession.Factory tlsFactory) throws IOException {
+            readThreadArray = new ReadThread[config.getReadThreads()];
             for(int i=0;i<readThreadArray.length;i++){
-                readThreadArray[i] = new ReadThread();
+                readThreadArray[i] = new ReadThread("v5-read-"+i, config, businessPool, tlsFactory);
             }
+            chooser = MyEventExecutorChooser.newChooser(config.getChooserStrategy(), readThreadArray);
         }
 
         public void start(){
@@ -66,21 +260,99 @@ public class ServerSocketChannelTestV5 extends ServerSocketChannelTestV1{
             next().register(socketChannel);
         }
 
+        /**
+         * @param maxPendingTasks 选中的ReadThread待处理任务达到该值时不注册，0表示不限制
+         * @return false表示被拒绝，由调用者关闭socketChannel
+         */
+        public boolean register(SocketChannel socketChannel, int maxPendingTasks){
+            ReadThread thread = next();
+            if(maxPendingTasks>0 && thread.pendingTasks()>=maxPendingTasks){
+                return false;
+            }
+            thread.register(socketChannel);
+            return true;
+        }
+
+        /**
+         * 所有read线程上的连接数（包括还在队列里等待注册的），各线程的计数不是同一时刻的，只是近似值
+         */
+        public int connectionCount(){
+            int count = 0;
+            for(ReadThread thread:readThreadArray){
+                count += thread.connectionCount();
+            }
+            return count;
+        }
+
+        /**
+         * 每个ReadThread用SO_REUSEPORT绑定同一个端口，要在start之前调用
+         * @return 实际绑定的地址
+         */
+        public InetSocketAddress bindReusePort(ServerConfig config, SocketOption<Boolean> reusePort,
+                                               AcceptMetrics acceptMetrics) throws IOException {
+            InetSocketAddress localAddress = new InetSocketAddress(config.getPort());
+            for(ReadThread thread:readThreadArray){
+                ServerSocketChannel ssc = ServerSocketChannel.open();
+                ssc.configureBlocking(false);
+                config.configure(ssc);
+                ssc.setOption(reusePort, true);
+                ssc.bind(localAddress, config.getBacklog());
+                //port为0时，后面的ServerSocketChannel要绑定到第一个分配到的端口上
+                localAddress = (InetSocketAddress) ssc.getLocalAddress();
+                thread.readRunnable.listen(ssc, config, acceptMetrics, this::connectionCount);
+            }
+            return localAddress;
+        }
+
+        public void shutdown() throws InterruptedException {
+            for(ReadThread thread:readThreadArray){
+                thread.shutdown();
+            }
+        }
+
+        public String selectorStats(){
+            long wakeups = 0;
+            long avoidedWakeups = 0;
+            long rebuilds = 0;
+            long idleReaped = 0;
+            for(ReadThread thread:readThreadArray){
+                wakeups += thread.selector.wakeups();
+                avoidedWakeups += thread.selector.avoidedWakeups();
+                rebuilds += thread.selector.rebuilds();
+                IdleTimeoutWheel idleWheel = thread.readRunnable.idleWheel;
+                idleReaped += idleWheel!=null ? idleWheel.reaped() : 0;
+            }
+            return "wakeups:"+wakeups+" avoidedWakeups:"+avoidedWakeups+" selectorRebuilds:"+rebuilds
+                    +" optimizedSelectedKeys:"+readThreadArray[0].selector.isOptimized()+" idleReaped:"+idleReaped;
+        }
+
         //选择一个下次使用到的ReadThread,类似于netty中 EventExecutorChooser的作用
         private ReadThread next(){
-            return readThreadArray[(int)(Math.abs(atomicLong.getAndIncrement()%readThreadArray.length))];
+            return chooser.next();
         }
     }
 
     //类似于Netty中的NioEventLoop了
-    static class ReadThread{
-        private Selector selector;
+    static class ReadThread implements MyEventExecutorChooser.LoadAware{
+        private MySelector selector;
         private Thread thread;
         private ConcurrentLinkedQueue<SocketChannel> queue;
-        public ReadThread() throws IOException {
-            selector = Selector.open();
+        private ReadRunnable readRunnable;
+        public ReadThread(String name, ServerConfig config, Executor businessPool, TlsSession.Factory tlsFactory) throws IOException {
+            selector = MySelector.open();
             queue = new ConcurrentLinkedQueue<>();
-            thread = new Thread(new ReadRunnable(selector, queue));
+            readRunnable = new ReadRunnable(selector, queue, config, businessPool, tlsFactory);
+            thread = new Thread(readRunnable, name);
+        }
+
+        @Override
+        public int connectionCount() {
+            return readRunnable.registeredChannels+readRunnable.pendingRegistrations.get();
+        }
+
+        @Override
+        public int pendingTasks() {
+            return readRunnable.pendingRegistrations.get()+readRunnable.pendingTasks.get();
         }
 
         public void start(){
@@ -88,87 +360,467 @@ public class ServerSocketChannelTestV5 extends ServerSocketChannelTestV1{
         }
 
         public void register(SocketChannel socketChannel){
+            readRunnable.pendingRegistrations.incrementAndGet();
             queue.add(socketChannel);
-            //添加到queue中后，及时的wakeup
+            //添加到queue中后，及时的wakeup，ReadThread醒着的时候不会真的调用selector.wakeup()
             selector.wakeup();
         }
+
+        public void shutdown() throws InterruptedException {
+            readRunnable.running = false;
+            //和AcceptRunnable一样直接唤醒jdk的Selector，见ServerSocketChannelTestV5.shutdown
+            selector.unwrap().wakeup();
+            thread.join();
+        }
     }
 
-    static class AcceptRunnable extends ServerSocketChannelTestV1 implements Runnable{
-        private Selector selectorAccept;
-        private ReadThreadGroup readThreadGroup;
+    static class AcceptRunnable extends ServerSocketChannelTestV1 implements Runnable, MyChannelHandler{
+        private static final MyEventLog.Event ACCEPT_FAILED = MyEventLog.event(MyEventLog.Level.WARN, "accept failed: {}");
+        private static final MyEventLog.Event ACCEPT_PAUSED = MyEventLog.event(MyEventLog.Level.INFO, "accept paused, connections:{}");
+        private static final MyEventLog.Event ACCEPT_RESUMED = MyEventLog.event(MyEventLog.Level.INFO, "accept resumed, connections:{}");
+        private MySelector selectorAccept;
+        //accept到的连接交给谁：单个accept线程时是ReadThreadGroup，SO_REUSEPORT模式下直接注册到当前read线程，
+        //返回false表示目标read线程过载，连接被拒绝
+        private Predicate<SocketChannel> childRegistrar;
+        //当前的连接总数，用于maxConnections判断
+        private IntSupplier connectionCount;
+        private ServerConfig config;
+        private AcceptMetrics acceptMetrics;
+        private volatile boolean running = true;
+        //PAUSE_ACCEPT模式下被暂停的ServerSocketChannel，selector重建后key会变，所以保存channel
+        private ServerSocketChannel pausedChannel;
+        private long resumeNanos;
 
-        public AcceptRunnable(Selector selectorAccept, ReadThreadGroup readThreadGroup) {
+        public AcceptRunnable(MySelector selectorAccept, Predicate<SocketChannel> childRegistrar, IntSupplier connectionCount,
+                              ServerConfig config, AcceptMetrics acceptMetrics) {
             this.selectorAccept = selectorAccept;
-            this.readThreadGroup = readThreadGroup;
+            this.childRegistrar = childRegistrar;
+            this.connectionCount = connectionCount;
+            this.config = config;
+            this.acceptMetrics = acceptMetrics;
         }
 
         @Override
         public void run() {
-            while(true){
+            while(running){
                 try {
-                    int selectNum = selectorAccept.select();
-                    System.out.println("selectNumAccept:"+selectNum);
+                    //暂停accept期间定时醒来检查是否可以恢复
+                    int selectNum = selectorAccept.select(null, selectTimeoutMillis());
+                    resumeIfPossible();
                     if(selectNum>0){
-                        //有新的连接accept
-                        Set<SelectionKey> keys = selectorAccept.selectedKeys();
-                        Iterator<SelectionKey> iterator = keys.iterator();
-                        while(iterator.hasNext()){
-                            SelectionKey key = iterator.next();
-                            //因为是从selectorAccept中select出来的key，所以必定是accept事件，因为该selector上只注册了accept事件
-                            iterator.remove();
-                            assert key.isAcceptable();
-
-                            //此处的selectorRead传入null，为了不再此线程进行register操作
-                            SocketChannel socketChannel = super.accept(null, key);
-                            //将accept到的SocketChannel添加到ReadThreadGroup中，具体是那个ReadThread此处不关心
-                            readThreadGroup.register(socketChannel);
-                        }
+                        //有新的连接accept，逐个回调channelReady
+                        selectorAccept.processSelectedKeys(this);
                     }
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
             }
         }
+
+        /**
+         * 一次OP_ACCEPT就绪时全连接队列里可能有很多连接，每次select只accept一个的话，
+         * 每个连接都要多一次epoll_wait，建连风暴时accept跟不上，队列溢出。
+         * 所以这里循环accept，直到accept返回null（队列空了）或者达到acceptBudget，
+         * 达到budget时剩下的连接留给下一次select（水平触发，还会再就绪）。
+         * SO_REUSEPORT模式下该方法在read线程中执行，budget同时也避免了accept饿死该线程上已有连接的读写。
+         */
+        @Override
+        public void channelReady(SelectionKey key) throws IOException {
+            //因为是从selectorAccept中select出来的key，所以必定是accept事件，因为该selector上只注册了accept事件
+            assert key.isAcceptable();
+
+            boolean pauseOnReject = config.getRejectMode()==ServerConfig.RejectMode.PAUSE_ACCEPT;
+            int budget = config.getAcceptBudget();
+            int accepted = 0;
+            while(accepted<budget){
+                if(pauseOnReject && reachMaxConnections()){
+                    //不accept，连接留在全连接队列里
+                    pause(key);
+                    return;
+                }
+                SocketChannel socketChannel;
+                try {
+                    //此处的selectorRead传入null，为了不再此线程进行register操作
+                    socketChannel = super.accept(null, key);
+                } catch (IOException e) {
+                    //例如文件描述符用完了（Too many open files），不能抛出去，否则MySelector会把ServerSocketChannel关掉
+                    acceptMetrics.acceptError();
+                    MyEventLog.log(ACCEPT_FAILED, e);
+                    return;
+                }
+                if(socketChannel==null){
+                    return;
+                }
+                accepted++;
+                acceptMetrics.accepted();
+                if(reachMaxConnections()){
+                    //CLOSE模式，不分配内存、不注册，直接关闭
+                    acceptMetrics.rejectedMaxConnections();
+                    reject(socketChannel);
+                    continue;
+                }
+                try {
+                    config.configure(socketChannel);
+                } catch (IOException e) {
+                    //连接可能已经被客户端重置了
+                    socketChannel.close();
+                    continue;
+                }
+                //将accept到的SocketChannel添加到ReadThreadGroup中，具体是那个ReadThread此处不关心
+                if(!childRegistrar.test(socketChannel)){
+                    acceptMetrics.rejectedPendingTasks();
+                    reject(socketChannel);
+                    if(pauseOnReject){
+                        //已经accept的这个只能关闭，后面的先不accept，等read线程把积压的任务处理掉
+                        pause(key);
+                        return;
+                    }
+                }
+            }
+            acceptMetrics.budgetExhausted();
+        }
+
+        private boolean reachMaxConnections(){
+            int maxConnections = config.getMaxConnections();
+            return maxConnections>0 && connectionCount.getAsInt()>=maxConnections;
+        }
+
+        /**
+         * SO_LINGER设置为0，close时直接发送RST：客户端立即感知到被拒绝，服务端也不会留下TIME_WAIT
+         */
+        private static void reject(SocketChannel socketChannel){
+            try {
+                socketChannel.setOption(StandardSocketOptions.SO_LINGER, 0);
+            } catch (IOException e) {
+                //ignore
+            }
+            try {
+                socketChannel.close();
+            } catch (IOException e) {
+                //ignore
+            }
+        }
+
+        private void pause(SelectionKey key){
+            key.interestOps(0);
+            pausedChannel = (ServerSocketChannel) key.channel();
+            resumeNanos = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(config.getAcceptPauseMillis());
+            acceptMetrics.acceptPaused();
+            MyEventLog.log(ACCEPT_PAUSED, connectionCount.getAsInt());
+        }
+
+        boolean isPaused(){
+            return pausedChannel!=null;
+        }
+
+        /**
+         * @return 暂停期间select最多阻塞多久，没有暂停时返回0（一直阻塞）
+         */
+        long selectTimeoutMillis(){
+            return isPaused() ? config.getAcceptPauseMillis() : 0;
+        }
+
+        /**
+         * 在selectorAccept所属的线程中，每次select返回后调用。
+         * 因为pendingTasks导致的暂停，到时间就恢复，还过载的话下一个连接会再次触发暂停
+         */
+        void resumeIfPossible(){
+            if(pausedChannel==null || System.nanoTime()-resumeNanos<0){
+                return;
+            }
+            if(reachMaxConnections()){
+                resumeNanos = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(config.getAcceptPauseMillis());
+                return;
+            }
+            SelectionKey key = pausedChannel.keyFor(selectorAccept.unwrap());
+            pausedChannel = null;
+            if(key!=null && key.isValid()){
+                key.interestOps(SelectionKey.OP_ACCEPT);
+                MyEventLog.log(ACCEPT_RESUMED, connectionCount.getAsInt());
+            }
+        }
     }
 
-    static class ReadRunnable extends ServerSocketChannelTestV1 implements Runnable{
-        private Selector selectorRead;
+    static class ReadRunnable extends ServerSocketChannelTestV1 implements Runnable, MyChannelHandler, Executor{
+        private static final MyEventLog.Event REQUEST_FAILED = MyEventLog.event(MyEventLog.Level.WARN, "business handler failed, close connection: {}");
+        //selector可能因为空轮询被重建，所以每次都通过mySelector.unwrap()获取，不要缓存jdk的Selector
+        private MySelector mySelector;
         private ConcurrentLinkedQueue<SocketChannel> queue;
+        private BooleanSupplier hasTasks;
+        //queue.size()需要遍历，单独计数
+        private final AtomicInteger pendingRegistrations = new AtomicInteger();
+        //selector上注册的连接数，只有该线程会更新，accept线程读取用来选择ReadThread
+        private volatile int registeredChannels;
+        private volatile boolean running = true;
+        //SO_REUSEPORT模式下该线程自己的acceptor，否则为null
+        private AcceptRunnable acceptor;
+        //没有配置空闲超时时为null
+        private final IdleTimeoutWheel idleWheel;
+        //其它线程提交给该线程执行的任务，例如业务线程处理完之后写响应
+        private final ConcurrentLinkedQueue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingTasks = new AtomicInteger();
+        //为null时在该线程中直接处理请求
+        private final Executor businessPool;
+        private final RequestHandler requestHandler;
+        private final int maxInFlightRequests;
+        //为null时不使用TLS
+        private final TlsSession.Factory tlsFactory;
 
-        public ReadRunnable(Selector selectorRead, ConcurrentLinkedQueue<SocketChannel> queue) {
-            this.selectorRead = selectorRead;
+        public ReadRunnable(MySelector mySelector, ConcurrentLinkedQueue<SocketChannel> queue,
+                            ServerConfig config, Executor businessPool, TlsSession.Factory tlsFactory) {
+            this.mySelector = mySelector;
             this.queue = queue;
+            this.hasTasks = () -> !queue.isEmpty() || !taskQueue.isEmpty();
+            this.idleWheel = config.newIdleTimeoutWheel();
+            this.businessPool = businessPool;
+            this.requestHandler = config.getRequestHandler();
+            this.maxInFlightRequests = config.getMaxInFlightRequests();
+            this.tlsFactory = tlsFactory;
+            setFrameDecoderFactory(config.getFrameDecoderFactory());
         }
 
         @Override
         public void run() {
-            while(true){
+            while(running){
                 try {
-                    int selectNumRead = selectorRead.select();
-                    System.out.println("selectNumRead:"+selectNumRead);
+                    //队列里有待注册的channel时不阻塞
+                    //开启了空闲检测时最多阻塞一个tick，到点检查时间轮
+                    int selectNumRead = mySelector.select(hasTasks, selectTimeoutMillis());
+                    if(idleWheel!=null){
+                        //本轮读写都使用这个时间，不用每次都调用System.nanoTime()
+                        idleWheel.updateNow();
+                    }
+                    if(acceptor!=null){
+                        acceptor.resumeIfPossible();
+                    }
+                    MyEventLog.log(SELECT_NUM_READ, selectNumRead);
+                    updateRegisteredChannels();
                     if(selectNumRead>0){
-                        //有新的数据发送过来，可以read了
-                        Set<SelectionKey> keys = selectorRead.selectedKeys();
-                        Iterator<SelectionKey> iterator = keys.iterator();
-                        while(iterator.hasNext()){
-                            SelectionKey key = iterator.next();
-                            //必定是read事件，因为是从selectorRead中select出来的
-                            assert key.isReadable();
-                            iterator.remove();
-                            super.read(key);
-                        }
+                        //有新的数据发送过来，可以read了，selectedKeys是数组实现的话直接遍历数组，不创建Iterator
+                        mySelector.processSelectedKeys(this);
                     }
 
                     //处理队列里的SocketChannel
                     SocketChannel socketChannel = null;
                     while((socketChannel = queue.poll())!=null){
-                        socketChannel.register(selectorRead, SelectionKey.OP_READ);
+                        pendingRegistrations.decrementAndGet();
+                        register(mySelector.unwrap(), socketChannel);
+                    }
+                    runAllTasks();
+                    if(idleWheel!=null){
+                        //关闭超时的连接
+                        idleWheel.expireTimeouts();
                     }
+                    updateRegisteredChannels();
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
             }
+            closeAll();
+        }
+
+        /**
+         * 开启了空闲检测时最多阻塞一个tick，SO_REUSEPORT模式下暂停了accept时也要定时醒来检查是否可以恢复
+         */
+        private long selectTimeoutMillis(){
+            long timeoutMillis = idleWheel!=null ? idleWheel.tickMillis() : 0;
+            long acceptTimeoutMillis = acceptor!=null ? acceptor.selectTimeoutMillis() : 0;
+            if(acceptTimeoutMillis>0 && (timeoutMillis==0 || acceptTimeoutMillis<timeoutMillis)){
+                timeoutMillis = acceptTimeoutMillis;
+            }
+            return timeoutMillis;
+        }
+
+        private void updateRegisteredChannels(){
+            int keys = mySelector.unwrap().keys().size();
+            //SO_REUSEPORT模式下自己的ServerSocketChannel不算连接
+            registeredChannels = acceptor!=null ? keys-1 : keys;
+        }
+
+        /**
+         * 可以在任意线程中调用，任务在该read线程中执行
+         */
+        @Override
+        public void execute(Runnable task) {
+            pendingTasks.incrementAndGet();
+            taskQueue.add(task);
+            mySelector.wakeup();
+        }
+
+        private void runAllTasks(){
+            Runnable task;
+            while((task = taskQueue.poll())!=null){
+                pendingTasks.decrementAndGet();
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+        }
+
+        private void closeAll(){
+            //还没执行的任务里可能有从pool分配的响应，执行掉，连接随后都会被关闭
+            runAllTasks();
+            SocketChannel socketChannel;
+            while((socketChannel = queue.poll())!=null){
+                try {
+                    socketChannel.close();
+                } catch (IOException e) {
+                    //ignore
+                }
+            }
+            for(SelectionKey key:mySelector.unwrap().keys()){
+                MySelector.closeQuietly(key);
+            }
+            try {
+                mySelector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * SO_REUSEPORT模式下把自己的ServerSocketChannel注册到selector上，要在线程启动之前调用
+         */
+        void listen(ServerSocketChannel ssc, ServerConfig config, AcceptMetrics acceptMetrics,
+                    IntSupplier connectionCount) throws IOException {
+            int maxPendingTasks = config.getMaxPendingTasksPerLoop();
+            acceptor = new AcceptRunnable(mySelector, socketChannel -> registerAccepted(socketChannel, maxPendingTasks),
+                    connectionCount, config, acceptMetrics);
+            ssc.register(mySelector.unwrap(), SelectionKey.OP_ACCEPT);
+        }
+
+        /**
+         * 注册之后把连接加入时间轮
+         */
+        @Override
+        protected SelectionKey register(Selector selector, SocketChannel socketChannel) throws IOException {
+            SelectionKey key = super.register(selector, socketChannel);
+            ConnectionContext context = (ConnectionContext) key.attachment();
+            if(idleWheel!=null){
+                idleWheel.add(context);
+            }
+            if(businessPool!=null){
+                context.businessExecutor(new MySerialExecutor(businessPool));
+                context.maxInFlightRequests(maxInFlightRequests);
+            }
+            if(tlsFactory!=null){
+                context.tls(tlsFactory.newSession(this, () -> readOrClose(context)));
+            }
+            return key;
+        }
+
+        /**
+         * TLS的delegated task执行完之后，在本线程中接着读
+         */
+        private void readOrClose(ConnectionContext context){
+            SelectionKey key = context.key();
+            if(!key.isValid()){
+                return;
+            }
+            try {
+                read(key);
+            } catch (IOException e) {
+                MySelector.closeQuietly(key);
+            }
+        }
+
+        @Override
+        protected void onFrame(ConnectionContext context, ByteBuffer frame) throws IOException {
+            Executor businessExecutor = context.businessExecutor();
+            if(businessExecutor==null){
+                super.onFrame(context, frame);
+                return;
+            }
+            //frame只在onFrame期间有效，复制一份交给业务线程
+            ByteBuffer request = MyByteBufferPool.DEFAULT.allocate(frame.remaining());
+            request.put(frame).flip();
+            FrameDecoder frameDecoder = context.frameDecoder();
+            boolean lastFrame = frameDecoder.isLastFrame();
+            Runnable task = () -> {
+                ByteBuffer response;
+                try {
+                    response = handleRequest(frameDecoder, request);
+                } catch (Throwable t) {
+                    MyEventLog.log(REQUEST_FAILED, t);
+                    execute(() -> {
+                        context.requestCompleted();
+                        MySelector.closeQuietly(context.key());
+                    });
+                    return;
+                } finally {
+                    MyByteBufferPool.DEFAULT.release(request);
+                }
+                //回到所属的read线程写出响应
+                execute(() -> writeResponse(context, response, lastFrame));
+            };
+            //达到maxInFlightRequests时暂停读，writeResponse里恢复
+            context.requestStarted();
+            try {
+                businessExecutor.execute(task);
+            } catch (RejectedExecutionException e) {
+                //业务线程池已经关闭，服务端正在停止
+                context.requestCompleted();
+                MyByteBufferPool.DEFAULT.release(request);
+                throw new IOException("business pool rejected the request", e);
+            }
+        }
+
+        private void writeResponse(ConnectionContext context, ByteBuffer response, boolean lastFrame){
+            context.requestCompleted();
+            if(!context.channel().isOpen()){
+                //业务处理期间连接已经关闭了
+                MyByteBufferPool.DEFAULT.release(response);
+                return;
+            }
+            try {
+                if(lastFrame){
+                    context.closeAfterFlush();
+                }
+                context.writeAndFlush(response);
+            } catch (IOException e) {
+                MySelector.closeQuietly(context.key());
+            }
+        }
+
+        @Override
+        protected ByteBuffer handleRequest(FrameDecoder frameDecoder, ByteBuffer frame) throws IOException {
+            if(requestHandler!=null){
+                return requestHandler.handle(frameDecoder, frame);
+            }
+            return super.handleRequest(frameDecoder, frame);
+        }
+
+        //在本线程accept到的连接直接注册，不经过queue
+        private boolean registerAccepted(SocketChannel socketChannel, int maxPendingTasks){
+            if(maxPendingTasks>0 && pendingTasks.get()>=maxPendingTasks){
+                //业务线程写回来的响应还积压着
+                return false;
+            }
+            try {
+                register(mySelector.unwrap(), socketChannel);
+                //同一批accept的后续连接判断maxConnections时要算上这个
+                updateRegisteredChannels();
+            } catch (IOException e) {
+                try {
+                    socketChannel.close();
+                } catch (IOException ignore) {
+                    //ignore
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void channelReady(SelectionKey key) throws IOException {
+            if(key.isAcceptable()){
+                //SO_REUSEPORT模式下才会有accept事件
+                acceptor.channelReady(key);
+                return;
+            }
+            //抛出IOException时MySelector会关闭该连接
+            super.processIo(key);
         }
     }
 }
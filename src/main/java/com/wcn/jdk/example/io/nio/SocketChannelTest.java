@@ -7,9 +7,18 @@ import java.nio.ByteBuffer;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
+/**
+ * 不带参数时：3个线程各自用阻塞的SocketChannel发送一条消息。
+ * 第一个参数为load时：作为压测客户端，大量非阻塞连接、pipeline，见LoadGenerator。
+ */
 public class SocketChannelTest {
     public static void main(String[] args) throws Exception{
+        if(args.length>0 && "load".equals(args[0])){
+            LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         for(int i=0;i<3;i++){
             int finalI = i;
             Thread thread = new Thread(()->{
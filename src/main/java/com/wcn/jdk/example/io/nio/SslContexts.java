@@ -0,0 +1,106 @@
+package com.wcn.jdk.example.io.nio;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 创建TLS服务端、客户端用的SSLContext。
+ *
+ * 本地测试没有证书时用selfSignedKeyStore()：调用jdk自带的keytool生成一个自签名证书（PKCS12，CN=localhost），
+ * 放在临时目录里，之后的运行直接复用。jdk没有公开的生成证书的api，所以这里通过子进程调用keytool。
+ * 默认用EC P-256的密钥，握手时的签名比RSA 2048快得多。
+ */
+public class SslContexts {
+    public static final String SELF_SIGNED_PASSWORD = "changeit";
+    private static final String PROTOCOL = "TLS";
+
+    /**
+     * 用keyStore里的证书和私钥创建服务端的SSLContext
+     */
+    public static SSLContext server(Path keyStore, char[] password) throws IOException, GeneralSecurityException {
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(load(keyStore, password), password);
+        SSLContext context = SSLContext.getInstance(PROTOCOL);
+        context.init(keyManagerFactory.getKeyManagers(), null, null);
+        return context;
+    }
+
+    /**
+     * 信任trustStore里的证书（可以直接用服务端的keyStore，里面私钥对应的证书也会被信任）
+     */
+    public static SSLContext client(Path trustStore, char[] password) throws IOException, GeneralSecurityException {
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(load(trustStore, password));
+        SSLContext context = SSLContext.getInstance(PROTOCOL);
+        context.init(null, trustManagerFactory.getTrustManagers(), null);
+        return context;
+    }
+
+    /**
+     * -Dserver.tls.keystore、-Dserver.tls.password，没有指定keystore时用自签名证书
+     */
+    public static SSLContext serverFromSystemProperties() throws IOException, GeneralSecurityException {
+        String keyStore = System.getProperty("server.tls.keystore");
+        if(keyStore==null){
+            return server(selfSignedKeyStore(), SELF_SIGNED_PASSWORD.toCharArray());
+        }
+        return server(Paths.get(keyStore), System.getProperty("server.tls.password", "").toCharArray());
+    }
+
+    /**
+     * @return 自签名证书的keyStore，密码是SELF_SIGNED_PASSWORD
+     */
+    public static synchronized Path selfSignedKeyStore() throws IOException {
+        Path path = Paths.get(System.getProperty("java.io.tmpdir"), "v5-self-signed.p12");
+        if(Files.exists(path)){
+            return path;
+        }
+        //先生成到临时文件再改名，多个进程同时生成时不会读到写了一半的文件
+        Path tmp = Files.createTempFile(path.getParent(), "v5-self-signed", ".tmp");
+        Files.delete(tmp);
+        Process process = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "v5", "-keyalg", "EC", "-keysize", "256",
+                "-dname", "CN=localhost", "-validity", "3650",
+                "-storetype", "PKCS12", "-keystore", tmp.toString(),
+                "-storepass", SELF_SIGNED_PASSWORD, "-keypass", SELF_SIGNED_PASSWORD)
+                .redirectErrorStream(true)
+                .start();
+        try {
+            if(!process.waitFor(30, TimeUnit.SECONDS)){
+                process.destroyForcibly();
+                throw new IOException("keytool timeout");
+            }
+            if(process.exitValue()!=0){
+                throw new IOException("keytool failed, exit value: "+process.exitValue());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while running keytool", e);
+        }
+        try {
+            Files.move(tmp, path);
+        } catch (IOException e) {
+            //别的进程已经生成好了
+            Files.deleteIfExists(tmp);
+        }
+        return path;
+    }
+
+    private static KeyStore load(Path path, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(path)){
+            keyStore.load(in, password);
+        }
+        return keyStore;
+    }
+}
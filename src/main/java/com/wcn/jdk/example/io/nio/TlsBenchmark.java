@@ -0,0 +1,235 @@
+package com.wcn.jdk.example.io.nio;
+
+import com.wcn.jdk.example.io.mynetty.MyByteBufferPool;
+import com.wcn.jdk.example.io.mynetty.MyEventLog;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * V5开启TLS（TlsSession）之后的压测，服务端在本进程中启动，客户端用jdk的SSLSocket。
+ *
+ * 1. 握手：HANDSHAKE_CLIENTS个线程不停地 建连->握手->发一行->收到回显->断开，统计每秒握手数和每次的耗时。
+ *    full每次都是完整握手（客户端把session作废），resumed复用客户端缓存的session（TLS1.3的PSK），
+ *    不用再做证书签名和验证；
+ * 2. 吞吐：THROUGHPUT_CONNECTIONS个长连接，每个连接一个线程一直发16KB的行，另一个线程读回显，
+ *    对比明文和TLS的MB/s（发送和接收方向各算一次）；jsse-bio是对照，jdk的SSLServerSocket一个连接一个线程原样回写。
+ * 每一项都先预热WARMUP_SECONDS。
+ *
+ * 运行：java TlsBenchmark [seconds]
+ *
+ * 1核、jdk17、TLS1.3（TLS_AES_256_GCM_SHA384）、EC P-256自签名证书、每项5秒
+ * （客户端的握手和加解密和服务端抢同一个核，只能看相对值）：
+ * <pre>
+ * throughput plaintext  MB/s=    709.6
+ * handshake full        handshakes/s=     58 p50=  68157.4us p99=  95420.4us p999= 100134.0us max= 100134.0us
+ * handshake resumed     handshakes/s=    116 p50=  32768.0us p99=  65011.7us p999=  87597.1us max=  87597.1us
+ * throughput tls        MB/s=    114.8
+ * tls handshakes=1271 failures=0 avgHandshake=41631.7us delegatedTasks=1271
+ * throughput jsse-bio   MB/s=    582.2
+ * </pre>
+ * 1. 完整握手的开销主要在非对称运算（服务端ECDSA签名、ECDHE，客户端验签），服务端的部分是delegated task，
+ *    在task线程池中执行，read线程同时还在处理其它连接的读写；resumed省掉了证书相关的运算，每秒握手数翻倍；
+ * 2. 密文buffer一开始用的是DirectByteBuffer，tls吞吐只有18MB/s，profile里八成时间在GHASH.processBlocksDirect：
+ *    jdk17的AES-GCM对DirectByteBuffer不走intrinsic。换成MyByteBufferPool.HEAP之后到了100MB/s以上；
+ * 3. 和jsse-bio的差距主要不在TLS：V5按行拆包，read线程最多的时间花在DelimiterFrameDecoder逐字节找换行上，
+ *    jsse-bio只是原样回写，明文时V5也有这部分开销。
+ */
+public class TlsBenchmark {
+    private static final int HANDSHAKE_CLIENTS = 4;
+    private static final int THROUGHPUT_CONNECTIONS = 4;
+    private static final int LINE_SIZE = 16*1024;
+    //每一项都先预热再统计。只有一个核时C2要和压测线程抢cpu，加解密的intrinsic编译得很晚，
+    //没有预热的话前几秒AES、GHASH都是解释执行的java代码，结果忽高忽低
+    private static final int WARMUP_SECONDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length>0 ? Integer.parseInt(args[0]) : 5;
+        //压测期间只输出WARN日志
+        MyEventLog.setLevel(MyEventLog.Level.WARN);
+        Path keyStore = SslContexts.selfSignedKeyStore();
+        char[] password = SslContexts.SELF_SIGNED_PASSWORD.toCharArray();
+        SSLContext serverContext = SslContexts.server(keyStore, password);
+
+        ServerSocketChannelTestV5 plain = new ServerSocketChannelTestV5();
+        InetSocketAddress plainAddress = plain.start(config(null));
+        System.out.println(throughput("plaintext", SocketFactory.getDefault(), plainAddress.getPort(), seconds));
+        plain.shutdown();
+
+        ServerSocketChannelTestV5 tls = new ServerSocketChannelTestV5();
+        int port = tls.start(config(serverContext)).getPort();
+        //每一项用新的客户端SSLContext，session缓存互不影响
+        System.out.println(handshake("full", SslContexts.client(keyStore, password), port, false, seconds));
+        System.out.println(handshake("resumed", SslContexts.client(keyStore, password), port, true, seconds));
+        System.out.println(throughput("tls", SslContexts.client(keyStore, password).getSocketFactory(), port, seconds));
+        System.out.println(tls.tlsMetrics());
+        tls.shutdown();
+
+        //对照：jdk的SSLServerSocket，一个连接一个线程阻塞读写
+        try (ServerSocket blocking = startBlockingEchoServer(serverContext)){
+            System.out.println(throughput("jsse-bio", SslContexts.client(keyStore, password).getSocketFactory(),
+                    blocking.getLocalPort(), seconds));
+        }
+    }
+
+    private static ServerSocket startBlockingEchoServer(SSLContext sslContext) throws IOException {
+        ServerSocket serverSocket = sslContext.getServerSocketFactory().createServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            try {
+                while(true){
+                    Socket socket = serverSocket.accept();
+                    Thread handler = new Thread(() -> {
+                        byte[] buffer = new byte[LINE_SIZE];
+                        try (Socket s = socket){
+                            InputStream in = s.getInputStream();
+                            OutputStream out = s.getOutputStream();
+                            int n;
+                            while((n = in.read(buffer))>0){
+                                out.write(buffer, 0, n);
+                            }
+                        } catch (IOException e) {
+                            //客户端断开
+                        }
+                    }, "jsse-bio-handler");
+                    handler.setDaemon(true);
+                    handler.start();
+                }
+            } catch (IOException e) {
+                //serverSocket关闭
+            }
+        }, "jsse-bio-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return serverSocket;
+    }
+
+    private static ServerConfig config(SSLContext sslContext){
+        return new ServerConfig()
+                .setPort(0)
+                .setSslContext(sslContext)
+                .setFrameDecoderFactory(() -> FrameDecoder.line(LINE_SIZE*2))
+                .setRequestHandler((frameDecoder, request) -> {
+                    ByteBuffer response = MyByteBufferPool.DEFAULT.allocate(request.remaining()+frameDecoder.frameOverhead());
+                    response.put(request);
+                    frameDecoder.writeTrailer(response);
+                    response.flip();
+                    return response;
+                });
+    }
+
+    private static String handshake(String name, SSLContext clientContext, int port, boolean resume, int seconds) throws Exception {
+        long measureBegin = System.nanoTime()+TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+        long deadline = measureBegin+TimeUnit.SECONDS.toNanos(seconds);
+        LatencyHistogram[] histograms = new LatencyHistogram[HANDSHAKE_CLIENTS];
+        CountDownLatch done = new CountDownLatch(HANDSHAKE_CLIENTS);
+        for(int i=0;i<HANDSHAKE_CLIENTS;i++){
+            LatencyHistogram histogram = histograms[i] = new LatencyHistogram();
+            new Thread(() -> {
+                try {
+                    while(System.nanoTime()<deadline){
+                        long begin = System.nanoTime();
+                        try (SSLSocket socket = (SSLSocket) clientContext.getSocketFactory().createSocket("127.0.0.1", port)){
+                            socket.setTcpNoDelay(true);
+                            socket.startHandshake();
+                            //收到回显说明服务端也完成了握手
+                            OutputStream out = socket.getOutputStream();
+                            out.write(new byte[]{'p', 'i', 'n', 'g', '\n'});
+                            out.flush();
+                            readLine(socket.getInputStream());
+                            if(!resume){
+                                socket.getSession().invalidate();
+                            }
+                        }
+                        if(begin>=measureBegin){
+                            histogram.record(System.nanoTime()-begin);
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                done.countDown();
+            }, "handshake-client-"+i).start();
+        }
+        done.await();
+        LatencyHistogram total = new LatencyHistogram();
+        for(LatencyHistogram histogram:histograms){
+            total.add(histogram);
+        }
+        return String.format("handshake %-11s handshakes/s=%7d %s",
+                name, total.totalCount()/seconds, total.summary());
+    }
+
+    private static void readLine(InputStream in) throws IOException {
+        int b;
+        while((b = in.read())!='\n'){
+            if(b<0){
+                throw new IOException("closed by server");
+            }
+        }
+    }
+
+    private static String throughput(String name, SocketFactory socketFactory, int port, int seconds) throws Exception {
+        byte[] line = new byte[LINE_SIZE];
+        Arrays.fill(line, (byte) 'a');
+        line[LINE_SIZE-1] = '\n';
+        AtomicLong received = new AtomicLong();
+        long measureBegin = System.nanoTime()+TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+        long deadline = measureBegin+TimeUnit.SECONDS.toNanos(seconds);
+        Socket[] sockets = new Socket[THROUGHPUT_CONNECTIONS];
+        CountDownLatch done = new CountDownLatch(THROUGHPUT_CONNECTIONS);
+        for(int i=0;i<THROUGHPUT_CONNECTIONS;i++){
+            Socket socket = sockets[i] = socketFactory.createSocket("127.0.0.1", port);
+            socket.setTcpNoDelay(true);
+            new Thread(() -> {
+                try {
+                    OutputStream out = socket.getOutputStream();
+                    while(System.nanoTime()<deadline){
+                        out.write(line);
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    //读线程关闭了连接
+                }
+            }, "throughput-writer-"+i).start();
+            new Thread(() -> {
+                byte[] buffer = new byte[LINE_SIZE];
+                try {
+                    InputStream in = socket.getInputStream();
+                    int n;
+                    while((n = in.read(buffer))>0){
+                        long now = System.nanoTime();
+                        if(now>=deadline){
+                            break;
+                        }
+                        if(now>=measureBegin){
+                            received.addAndGet(n);
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                done.countDown();
+            }, "throughput-reader-"+i).start();
+        }
+        done.await();
+        for(Socket socket:sockets){
+            socket.close();
+        }
+        //发送和接收各算一次
+        double mb = received.get()*2/1024.0/1024.0;
+        return String.format("throughput %-10s MB/s=%9.1f", name, mb/seconds);
+    }
+}
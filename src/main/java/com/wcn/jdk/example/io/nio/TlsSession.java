@@ -0,0 +1,406 @@
+package com.wcn.jdk.example.io.nio;
+
+import com.wcn.jdk.example.io.mynetty.MyByteBufferPool;
+import com.wcn.jdk.example.io.mynetty.MyEventLog;
+import com.wcn.jdk.example.io.mynetty.MySelector;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一个连接的TLS状态，基于jdk的SSLEngine，类似于netty中的SslHandler。
+ *
+ * SSLEngine只负责加解密和握手的状态机，不做io：
+ * 读：socket读到的密文放在netIn里，unwrap解密后直接追加到frameDecoder的cumulation中，之后照常拆包；
+ *    一条TLS记录最大16KB，不完整的记录（BUFFER_UNDERFLOW）留在netIn里等下次read。
+ * 写：ConnectionContext的outboundBuffer里放的是明文，flush时把队列里的多个buffer一次传给wrap（gathering），
+ *    加密到netOut里，一个netOut可以装下好几条记录，写满或者明文加密完之后一次write写出去。
+ *
+ * 握手和wrap/unwrap都在连接所属的read线程中执行。
+ * 握手中需要做签名、验证证书、密钥交换这样的慢操作时SSLEngine返回NEED_TASK，
+ * 这些delegated task交给Factory的线程池执行，期间取消OP_READ，执行完之后回到read线程继续握手，
+ * 不会因为一个连接的握手卡住同一个read线程上的其它连接。task抛出异常时回到read线程关闭这个连接。
+ *
+ * buffer：netIn、netOut都从MyByteBufferPool.HEAP借（64KB，一次系统调用读写多条记录），用完（全部解密、全部写出）就归还，
+ * 空闲连接不占用密文buffer，和cumulation的处理方式一样。
+ * 密文用HeapByteBuffer而不是DirectByteBuffer：jdk17的AES-GCM在DirectByteBuffer上算GHASH走的是慢路径，
+ * TlsBenchmark的吞吐从18MB/s提高到100MB/s以上，socket读写多一次拷贝的代价小得多。
+ *
+ * 只能在连接所属的read线程中使用。
+ */
+public class TlsSession {
+    private static final MyEventLog.Event TASK_FAILED = MyEventLog.event(MyEventLog.Level.WARN, "tls delegated task failed, close connection: {}");
+    //netIn、netOut的大小，一次read、write能处理好几条记录，MyByteBufferPool池化的最大规格
+    private static final int NET_BUFFER_SIZE = 64*1024;
+
+    private final SSLEngine engine;
+    private final Factory factory;
+    //连接所属的read线程，delegated task执行完后在这里继续
+    private final Executor loop;
+    //delegated task执行完后重新走一遍读流程
+    private final Runnable resume;
+    private final long createNanos = System.nanoTime();
+    private int packetBufferSize;
+    private int applicationBufferSize;
+    //写模式，里面是还没解密的密文，没有时为null
+    private ByteBuffer netIn;
+    //读模式，里面是还没写出去的密文，没有时为null
+    private ByteBuffer netOut;
+    private boolean handshakeDone;
+    private boolean taskRunning;
+
+    TlsSession(SSLEngine engine, Factory factory, Executor loop, Runnable resume) {
+        this.engine = engine;
+        this.factory = factory;
+        this.loop = loop;
+        this.resume = resume;
+        this.packetBufferSize = engine.getSession().getPacketBufferSize();
+        this.applicationBufferSize = engine.getSession().getApplicationBufferSize();
+    }
+
+    /**
+     * 从socket读取密文并解密到frameDecoder的cumulation中
+     * @return 解密出来的明文字节数，-1表示对端关闭了连接
+     */
+    public int read(ConnectionContext context) throws IOException {
+        if(taskRunning){
+            return 0;
+        }
+        if(netIn==null){
+            netIn = MyByteBufferPool.HEAP.allocate(Math.max(packetBufferSize, NET_BUFFER_SIZE));
+        }
+        int readNum = context.channel().read(netIn);
+        if(readNum<0){
+            //没有收到close_notify就断开了，不再尝试解密剩下的数据
+            return -1;
+        }
+        try {
+            return unwrap(context);
+        } catch (SSLException e) {
+            if(!handshakeDone){
+                factory.metrics.failures.increment();
+            }
+            throw e;
+        }
+    }
+
+    private int unwrap(ConnectionContext context) throws IOException {
+        FrameDecoder frameDecoder = context.frameDecoder();
+        int produced = 0;
+        netIn.flip();
+        try {
+            while(!taskRunning){
+                SSLEngineResult.HandshakeStatus handshakeStatus = engine.getHandshakeStatus();
+                if(handshakeStatus==SSLEngineResult.HandshakeStatus.NEED_TASK){
+                    runDelegatedTasks(context);
+                    break;
+                }
+                if(handshakeStatus==SSLEngineResult.HandshakeStatus.NEED_WRAP){
+                    context.flush();
+                    if(!context.channel().isOpen() || engine.getHandshakeStatus()==SSLEngineResult.HandshakeStatus.NEED_WRAP){
+                        //发送缓冲区满了，等OP_WRITE
+                        break;
+                    }
+                    continue;
+                }
+                if(!netIn.hasRemaining()){
+                    break;
+                }
+                //cumulation至少留出一条记录解密后的空间
+                ByteBuffer app = frameDecoder.readBuffer(applicationBufferSize);
+                int before = app.position();
+                SSLEngineResult result = engine.unwrap(netIn, app);
+                produced += app.position()-before;
+                if(result.getHandshakeStatus()==SSLEngineResult.HandshakeStatus.FINISHED){
+                    handshakeFinished();
+                }
+                switch (result.getStatus()){
+                    case OK:
+                        continue;
+                    case BUFFER_UNDERFLOW:
+                        //不够一条完整的记录
+                        packetBufferSize = engine.getSession().getPacketBufferSize();
+                        return produced;
+                    case BUFFER_OVERFLOW:
+                        //握手之后协商出的记录可能更大，按新的大小再来一次
+                        applicationBufferSize = engine.getSession().getApplicationBufferSize();
+                        continue;
+                    case CLOSED:
+                        //收到了close_notify，回一个close_notify之后关闭
+                        context.closeAfterFlush();
+                        context.flush();
+                        return produced;
+                    default:
+                        throw new SSLException("unexpected unwrap status: "+result.getStatus());
+                }
+            }
+            return produced;
+        } finally {
+            //连接可能在上面的flush里已经关闭了，netIn也已经归还
+            if(netIn!=null){
+                compactNetIn();
+            }
+            if(produced==0){
+                frameDecoder.releaseIfEmpty();
+            }
+        }
+    }
+
+    private void compactNetIn(){
+        if(!netIn.hasRemaining()){
+            MyByteBufferPool.HEAP.release(netIn);
+            netIn = null;
+            return;
+        }
+        if(netIn.capacity()<packetBufferSize){
+            //装不下一条完整的记录了，换一个大的
+            ByteBuffer old = netIn;
+            netIn = MyByteBufferPool.HEAP.allocate(packetBufferSize);
+            netIn.put(old);
+            MyByteBufferPool.HEAP.release(old);
+            return;
+        }
+        netIn.compact();
+    }
+
+    /**
+     * 由ConnectionContext.flush调用：先写完上次剩下的密文，再加密outboundBuffer里的明文或者产生握手消息
+     * @return true表示现在没有要写的了，false表示发送缓冲区满了，要等OP_WRITE
+     */
+    boolean flush(ConnectionContext context) throws IOException {
+        OutboundBuffer outboundBuffer = context.outboundBuffer();
+        while(true){
+            if(netOut!=null){
+                context.channel().write(netOut);
+                if(netOut.hasRemaining()){
+                    return false;
+                }
+                MyByteBufferPool.HEAP.release(netOut);
+                netOut = null;
+            }
+            if(taskRunning){
+                //task执行完之后会重新flush
+                return true;
+            }
+            if(engine.getHandshakeStatus()==SSLEngineResult.HandshakeStatus.NEED_TASK){
+                runDelegatedTasks(context);
+                return true;
+            }
+            if(!needWrap(outboundBuffer)){
+                return true;
+            }
+            netOut = MyByteBufferPool.HEAP.allocate(NET_BUFFER_SIZE);
+            try {
+                wrap(outboundBuffer);
+            } finally {
+                netOut.flip();
+            }
+            if(!netOut.hasRemaining()){
+                //例如已经发送过close_notify了，什么也没产生
+                MyByteBufferPool.HEAP.release(netOut);
+                netOut = null;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 握手要发消息，或者握手完成后有明文要发
+     */
+    private boolean needWrap(OutboundBuffer outboundBuffer){
+        if(engine.getHandshakeStatus()==SSLEngineResult.HandshakeStatus.NEED_WRAP){
+            return true;
+        }
+        return handshakeDone && !outboundBuffer.isEmpty() && !engine.isOutboundDone();
+    }
+
+    /**
+     * 一次wrap产生一条记录，netOut还能装下一条完整的记录时继续，多条记录一次write写出去
+     */
+    private void wrap(OutboundBuffer outboundBuffer) throws SSLException {
+        do {
+            SSLEngineResult result = outboundBuffer.wrapTo(engine, netOut);
+            if(result.getHandshakeStatus()==SSLEngineResult.HandshakeStatus.FINISHED){
+                handshakeFinished();
+            }
+            if(result.getStatus()!=SSLEngineResult.Status.OK || result.bytesProduced()==0){
+                //CLOSED：close_notify已经产生了；BUFFER_OVERFLOW：netOut装不下了，先写出去
+                return;
+            }
+        } while(netOut.remaining()>=packetBufferSize && needWrap(outboundBuffer));
+    }
+
+    private void handshakeFinished(){
+        if(handshakeDone){
+            return;
+        }
+        handshakeDone = true;
+        factory.metrics.handshakes.increment();
+        factory.metrics.handshakeNanos.add(System.nanoTime()-createNanos);
+        packetBufferSize = engine.getSession().getPacketBufferSize();
+        applicationBufferSize = engine.getSession().getApplicationBufferSize();
+    }
+
+    /**
+     * delegated task交给线程池执行，期间不读这个连接，执行完回到read线程继续
+     */
+    private void runDelegatedTasks(ConnectionContext context){
+        taskRunning = true;
+        SelectionKey key = context.key();
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        try {
+            factory.taskPool.execute(() -> {
+                try {
+                    Runnable task;
+                    while((task = engine.getDelegatedTask())!=null){
+                        task.run();
+                        factory.metrics.delegatedTasks.increment();
+                    }
+                } catch (RuntimeException e) {
+                    //握手没法继续了，不能让连接一直停在取消了OP_READ的状态
+                    loop.execute(() -> closeAfterTaskFailure(context, e));
+                    return;
+                }
+                loop.execute(() -> resumeAfterTasks(context));
+            });
+        } catch (RejectedExecutionException e) {
+            //服务端正在关闭
+            taskRunning = false;
+        }
+    }
+
+    private void closeAfterTaskFailure(ConnectionContext context, RuntimeException cause){
+        taskRunning = false;
+        if(!handshakeDone){
+            factory.metrics.failures.increment();
+        }
+        MyEventLog.log(TASK_FAILED, cause);
+        MySelector.closeQuietly(context.key());
+    }
+
+    private void resumeAfterTasks(ConnectionContext context){
+        taskRunning = false;
+        SelectionKey key = context.key();
+        if(!key.isValid()){
+            return;
+        }
+        if(!context.isReadPaused()){
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+        //netIn里可能还有没解密的数据，也可能轮到自己发握手消息了
+        resume.run();
+    }
+
+    /**
+     * delegated task执行期间不读这个连接，其它地方恢复OP_READ之前要检查
+     */
+    boolean isTaskRunning(){
+        return taskRunning;
+    }
+
+    public boolean isHandshakeDone(){
+        return handshakeDone;
+    }
+
+    /**
+     * 准备发送close_notify
+     * @return false表示已经发送过了
+     */
+    boolean closeOutbound(){
+        if(engine.isOutboundDone()){
+            return false;
+        }
+        engine.closeOutbound();
+        return true;
+    }
+
+    /**
+     * 连接关闭时调用，归还密文buffer
+     */
+    void release(){
+        MyByteBufferPool.HEAP.release(netIn);
+        netIn = null;
+        MyByteBufferPool.HEAP.release(netOut);
+        netOut = null;
+        engine.closeOutbound();
+    }
+
+    /**
+     * 所有连接共用：用同一个SSLContext创建服务端模式的SSLEngine，delegated task在同一个线程池中执行
+     */
+    public static class Factory {
+        private final SSLContext sslContext;
+        private final ExecutorService taskPool;
+        private final Metrics metrics = new Metrics();
+
+        public Factory(SSLContext sslContext, int taskThreads) {
+            if(taskThreads<=0){
+                throw new IllegalArgumentException("taskThreads: "+taskThreads+" (expected: > 0)");
+            }
+            this.sslContext = sslContext;
+            AtomicInteger index = new AtomicInteger();
+            this.taskPool = Executors.newFixedThreadPool(taskThreads, r -> {
+                Thread thread = new Thread(r, "v5-tls-task-"+index.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        /**
+         * @param loop 连接所属的read线程
+         * @param resume 在loop中调用，delegated task执行完后继续读
+         */
+        TlsSession newSession(Executor loop, Runnable resume) throws SSLException {
+            SSLEngine engine = sslContext.createSSLEngine();
+            engine.setUseClientMode(false);
+            engine.beginHandshake();
+            return new TlsSession(engine, this, loop, resume);
+        }
+
+        public Metrics metrics(){
+            return metrics;
+        }
+
+        public void shutdown(){
+            taskPool.shutdownNow();
+        }
+    }
+
+    public static class Metrics {
+        private final LongAdder handshakes = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        //从连接注册到握手完成的时间，包括等待客户端的时间
+        private final LongAdder handshakeNanos = new LongAdder();
+        private final LongAdder delegatedTasks = new LongAdder();
+
+        public long handshakes(){
+            return handshakes.sum();
+        }
+
+        public long failures(){
+            return failures.sum();
+        }
+
+        public long delegatedTasks(){
+            return delegatedTasks.sum();
+        }
+
+        @Override
+        public String toString() {
+            long handshakes = handshakes();
+            return String.format("tls handshakes=%d failures=%d avgHandshake=%.1fus delegatedTasks=%d",
+                    handshakes, failures(), handshakes==0 ? 0 : handshakeNanos.sum()/1000.0/handshakes, delegatedTasks());
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.wcn.jdk.example.proxy.rpc;
+
+import com.wcn.jdk.example.io.nio.ServerConfig;
+import com.wcn.jdk.example.proxy.Calculator;
+
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 对比Calculator.add在进程内调用和通过CalculatorRpcClient远程调用（loopback）的每秒调用数。
+ *
+ * 1. direct：直接调用实现类；jdk-proxy：通过jdk动态代理，InvocationHandler里反射调用实现类；
+ * 2. rpc-sync：N个线程各自同步调用add，每个线程同一时刻只有一个请求在途，吞吐受往返延迟限制；
+ * 3. rpc-async：一个线程用addAsync不停地发，用Semaphore限制最多window个请求在途，
+ *    响应在客户端loop线程里校验结果并释放名额。
+ * 每项先预热WARMUP_SECONDS秒，再统计seconds秒。服务端在同一个进程里，2个read线程。
+ *
+ * 运行：java CalculatorRpcBenchmark [seconds]
+ *
+ * 1核机器上（客户端、服务端、压测线程抢同一个核）每项3秒的结果：
+ * <pre>
+ * direct                   calls/s= 2,121,105,899
+ * jdk-proxy                calls/s=   125,134,866
+ * rpc-sync threads=1       calls/s=        31,001
+ * rpc-sync threads=4       calls/s=        51,882
+ * rpc-sync threads=16      calls/s=       134,232
+ * rpc-async window=64      calls/s=       594,627
+ * rpc-async window=256     calls/s=     1,124,099
+ * rpc-async window=1024    calls/s=     1,631,737
+ * rpc-async window=4096    calls/s=     1,623,173
+ * </pre>
+ * 1. 进程内直接调用被JIT内联之后几乎没有开销，动态代理多了反射和参数装箱，慢了一个数量级多，但仍然是每次几纳秒；
+ * 2. 同步远程调用每次都要经过两次loopback往返的线程切换和系统调用，单线程只有3万次/秒，比进程内调用慢5个数量级。
+ *    加线程能让更多请求同时在途，但1核上线程之间的切换本身就很贵；
+ * 3. pipelining之后一次write/read、一次唤醒摊到几百上千个请求上，吞吐随window增长到160万次/秒左右，
+ *    window超过1024之后不再增长，瓶颈变成了每个请求自身的开销（future、装箱、服务端每个响应一个buffer），
+ *    采样看不到单独的热点；
+ * 4. 多核机器上客户端loop、服务端read线程和压测线程不再抢同一个核，可以调大ioThreads、readThreads和connections。
+ */
+public class CalculatorRpcBenchmark {
+    private static final int WARMUP_SECONDS = 1;
+    private static final int[] SYNC_THREADS = {1, 4, 16};
+    private static final int[] ASYNC_WINDOWS = {64, 256, 1024, 4096};
+
+    //防止JIT把进程内调用整个消除掉
+    private static volatile int sink;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length>0 ? Integer.parseInt(args[0]) : 3;
+        System.out.println("seconds="+seconds+" cpus="+Runtime.getRuntime().availableProcessors());
+
+        Calculator target = Integer::sum;
+        report("direct", seconds, deadline -> inProcess(target, deadline));
+        Calculator proxy = (Calculator) Proxy.newProxyInstance(Calculator.class.getClassLoader(),
+                new Class<?>[]{Calculator.class}, (p, method, methodArgs) -> method.invoke(target, methodArgs));
+        report("jdk-proxy", seconds, deadline -> inProcess(proxy, deadline));
+
+        CalculatorRpcServer server = new CalculatorRpcServer();
+        InetSocketAddress address = server.start(new ServerConfig().setPort(0).setReadThreads(2), target);
+        try (CalculatorRpcClient client = new CalculatorRpcClient().setConnections(2).start(address)) {
+            for(int threads:SYNC_THREADS){
+                report("rpc-sync threads="+threads, seconds, deadline -> sync(client, threads, deadline));
+            }
+            for(int window:ASYNC_WINDOWS){
+                report("rpc-async window="+window, seconds, deadline -> async(client, window, deadline));
+            }
+            System.out.println("rejected="+client.rejected()+" timeouts="+client.timeouts());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private static void report(String name, int seconds, Run run) throws Exception {
+        run.run(System.nanoTime()+TimeUnit.SECONDS.toNanos(WARMUP_SECONDS));
+        long begin = System.nanoTime();
+        long calls = run.run(begin+TimeUnit.SECONDS.toNanos(seconds));
+        double elapsed = (System.nanoTime()-begin)/1e9;
+        System.out.printf("%-24s calls/s=%,14.0f%n", name, calls/elapsed);
+    }
+
+    private static long inProcess(Calculator calculator, long deadline){
+        long calls = 0;
+        int sum = 0;
+        while(System.nanoTime()<deadline){
+            //每次检查时间之间调用一批，nanoTime本身比add慢得多
+            for(int i=0;i<1000;i++){
+                sum += calculator.add(i, 1);
+            }
+            calls += 1000;
+        }
+        sink = sum;
+        return calls;
+    }
+
+    private static long sync(CalculatorRpcClient client, int threads, long deadline) throws InterruptedException {
+        LongAdder calls = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        for(int t=0;t<threads;t++){
+            int a = t;
+            new Thread(() -> {
+                try {
+                    long count = 0;
+                    while(System.nanoTime()<deadline){
+                        if(client.add(a, 1)!=a+1){
+                            throw new IllegalStateException("wrong result");
+                        }
+                        count++;
+                    }
+                    calls.add(count);
+                } finally {
+                    done.countDown();
+                }
+            }, "rpc-sync-"+t).start();
+        }
+        done.await();
+        return calls.sum();
+    }
+
+    private static long async(CalculatorRpcClient client, int window, long deadline) throws InterruptedException {
+        Semaphore permits = new Semaphore(window);
+        AtomicLong errors = new AtomicLong();
+        long calls = 0;
+        while(System.nanoTime()<deadline){
+            permits.acquire();
+            int a = (int) calls;
+            client.addAsync(a, 1).whenComplete((result, cause) -> {
+                if(cause!=null || result!=a+1){
+                    errors.incrementAndGet();
+                }
+                permits.release();
+            });
+            calls++;
+        }
+        //等在途的都回来，下一项不受影响
+        permits.acquire(window);
+        if(errors.get()>0){
+            throw new IllegalStateException(errors.get()+" calls failed");
+        }
+        return calls;
+    }
+
+    interface Run {
+        long run(long deadline) throws Exception;
+    }
+}
@@ -0,0 +1,509 @@
+package com.wcn.jdk.example.proxy.rpc;
+
+import com.wcn.jdk.example.io.mynetty.MyChannelHandler;
+import com.wcn.jdk.example.io.mynetty.MyEventLoop;
+import com.wcn.jdk.example.io.mynetty.MyEventLoopGroup;
+import com.wcn.jdk.example.io.mynetty.MySelector;
+import com.wcn.jdk.example.proxy.Calculator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Calculator的远程代理：和StaticProxy、jdk动态代理一样实现Calculator接口，
+ * 只是add不在本进程里执行，而是按RpcProtocol发给CalculatorRpcServer。
+ *
+ * 1. 固定connections个长连接，分布在ioThreads个MyEventLoop上。每次调用按轮询选一个在途请求没满的连接，
+ *    一个连接上最多同时有maxPendingPerConnection个请求在途（pipelining），靠请求id匹配响应，
+ *    所有连接都满了直接以RejectedExecutionException失败，不排队；
+ * 2. add是同步的，调用线程等到响应回来；addAsync返回CompletableFuture，一个线程就可以让很多请求同时在途。
+ *    future在loop线程中complete，回调里不能阻塞；
+ * 3. 调用线程只把请求放进连接的写队列，每个连接同一时刻最多挂一个drain任务（和NettyPooledClient一样），
+ *    loop线程把队列里的请求依次编码进同一个写buffer，一次write发出去，几千个请求只需要几次系统调用；
+ * 4. 在途请求表只在loop线程里访问：数组加空闲槽位栈，请求id的低位是槽位、高位是序号，
+ *    收到响应按下标直接找到请求，不需要ConcurrentHashMap，也不用把id装箱；槽位被复用之后，迟到的响应序号对不上直接丢弃；
+ * 5. 每TIMEOUT_SCAN_MILLIS扫一遍在途请求，超过requestTimeoutMillis的以TimeoutException失败；
+ *    连接断开时它上面的请求以ClosedChannelException失败，这个连接之后不再使用，不重连。
+ */
+public class CalculatorRpcClient implements Calculator, Closeable {
+    private static final long TIMEOUT_SCAN_MILLIS = 100;
+    //每个连接一个读buffer一个写buffer，连接的生命周期内一直使用，直接分配不走pool
+    private static final int BUFFER_SIZE = 64*1024;
+    private static final int MAX_REQUEST_LENGTH =
+            RpcProtocol.LENGTH_FIELD_LENGTH+RpcProtocol.REQUEST_HEADER_LENGTH+RpcProtocol.ADD_ARGS_LENGTH;
+
+    private int connections = 2;
+    private int ioThreads = 1;
+    private int maxPendingPerConnection = 4096;
+    private long requestTimeoutMillis = 3000;
+
+    private MyEventLoopGroup group;
+    private Connection[] connectionArray = new Connection[0];
+    private ScheduledExecutorService timeoutScanner;
+    private final AtomicInteger next = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private volatile boolean closed;
+
+    public CalculatorRpcClient setConnections(int connections) {
+        if(connections<=0){
+            throw new IllegalArgumentException("connections: "+connections+" (expected: > 0)");
+        }
+        this.connections = connections;
+        return this;
+    }
+
+    public CalculatorRpcClient setIoThreads(int ioThreads) {
+        if(ioThreads<=0){
+            throw new IllegalArgumentException("ioThreads: "+ioThreads+" (expected: > 0)");
+        }
+        this.ioThreads = ioThreads;
+        return this;
+    }
+
+    public CalculatorRpcClient setMaxPendingPerConnection(int maxPendingPerConnection) {
+        if(maxPendingPerConnection<=0 || maxPendingPerConnection>1<<20){
+            throw new IllegalArgumentException("maxPendingPerConnection: "+maxPendingPerConnection+" (expected: 0 < n <= 2^20)");
+        }
+        this.maxPendingPerConnection = maxPendingPerConnection;
+        return this;
+    }
+
+    public CalculatorRpcClient setRequestTimeoutMillis(long requestTimeoutMillis) {
+        if(requestTimeoutMillis<=0){
+            throw new IllegalArgumentException("requestTimeoutMillis: "+requestTimeoutMillis+" (expected: > 0)");
+        }
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * 设置完参数之后调用一次，建立所有连接
+     */
+    public CalculatorRpcClient start(InetSocketAddress address) throws IOException {
+        group = new MyEventLoopGroup(ioThreads);
+        Connection[] array = new Connection[connections];
+        try {
+            for(int i=0;i<array.length;i++){
+                //阻塞connect，连上之后再改成非阻塞注册到loop上
+                SocketChannel channel = SocketChannel.open(address);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.configureBlocking(false);
+                MyEventLoop loop = group.next();
+                Connection connection = new Connection(channel, loop);
+                connection.key = loop.register(channel, SelectionKey.OP_READ, connection).join();
+                array[i] = connection;
+            }
+        } catch (IOException | CompletionException e) {
+            //已经注册的连接由loop关闭时一起关闭
+            group.shutdown();
+            throw e instanceof IOException ? (IOException) e : new IOException(e.getCause());
+        }
+        connectionArray = array;
+        timeoutScanner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "rpc-client-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timeoutScanner.scheduleWithFixedDelay(() -> {
+            for(Connection connection:connectionArray){
+                connection.scheduleExpire();
+            }
+        }, TIMEOUT_SCAN_MILLIS, TIMEOUT_SCAN_MILLIS, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * 同步调用，失败时抛出RpcException
+     */
+    @Override
+    public int add(int a, int b) {
+        try {
+            return call(RpcProtocol.METHOD_ADD, a, b).join();
+        } catch (CompletionException e) {
+            throw new RpcException("add("+a+", "+b+") failed: "+e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * 异步调用，返回的future在loop线程中complete
+     */
+    public CompletableFuture<Integer> addAsync(int a, int b){
+        return call(RpcProtocol.METHOD_ADD, a, b);
+    }
+
+    private Call call(byte method, int a, int b){
+        Call call = new Call(method, a, b, System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(requestTimeoutMillis));
+        if(closed){
+            call.completeExceptionally(new ClosedChannelException());
+            return call;
+        }
+        Connection connection = acquire();
+        if(connection==null){
+            if(allClosed()){
+                call.completeExceptionally(new ClosedChannelException());
+            }else{
+                rejected.increment();
+                call.completeExceptionally(new RejectedExecutionException("too many pending calls"));
+            }
+            return call;
+        }
+        connection.send(call);
+        return call;
+    }
+
+    /**
+     * 从轮询的位置开始找一个在途请求没满的连接，并占一个名额
+     * @return 都满了或者都断开了返回null
+     */
+    private Connection acquire(){
+        Connection[] array = connectionArray;
+        int start = next.getAndIncrement();
+        for(int i=0;i<array.length;i++){
+            Connection connection = array[Math.floorMod(start+i, array.length)];
+            if(connection.tryReserve()){
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    private boolean allClosed(){
+        for(Connection connection:connectionArray){
+            if(!connection.closed){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 因为在途请求太多被拒绝的调用数
+     */
+    public long rejected(){
+        return rejected.sum();
+    }
+
+    public long timeouts(){
+        return timeouts.sum();
+    }
+
+    /**
+     * 关闭所有连接，还没有响应的调用以ClosedChannelException失败
+     */
+    @Override
+    public void close(){
+        if(closed){
+            return;
+        }
+        closed = true;
+        if(timeoutScanner!=null){
+            timeoutScanner.shutdownNow();
+        }
+        if(group!=null){
+            //loop退出前关闭所有channel，attachment（Connection）的close会让在途的调用失败
+            group.shutdown();
+            try {
+                group.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 调用本身就是返回给调用方的future，少一个对象
+     */
+    static final class Call extends CompletableFuture<Integer> {
+        final byte method;
+        final int a;
+        final int b;
+        final long deadlineNanos;
+        //写出去之前由loop线程分配
+        int id;
+
+        Call(byte method, int a, int b, long deadlineNanos) {
+            this.method = method;
+            this.a = a;
+            this.b = b;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        void encode(ByteBuffer out){
+            out.putInt(RpcProtocol.REQUEST_HEADER_LENGTH+RpcProtocol.ADD_ARGS_LENGTH)
+                    .putInt(id)
+                    .put(method)
+                    .putInt(a)
+                    .putInt(b);
+        }
+    }
+
+    /**
+     * 一个连接，除了写队列和在途计数之外的状态都只在所属的loop线程中访问
+     */
+    final class Connection implements MyChannelHandler, Closeable, MySelector.KeyAware {
+        private final SocketChannel channel;
+        private final MyEventLoop loop;
+        private SelectionKey key;
+        private final Queue<Call> writeQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean drainScheduled = new AtomicBoolean();
+        private final Runnable drainTask = this::drain;
+        private final Runnable expireTask = this::expire;
+        //已经占了名额的调用数，包括还在写队列里的
+        private final AtomicInteger pendingCount = new AtomicInteger();
+        private volatile boolean closed;
+
+        //在途请求表，下标就是请求id的低slotBits位
+        private final Call[] slots;
+        private final int[] freeSlots;
+        private int freeCount;
+        private final int slotBits;
+        private int sequence;
+        //写模式，里面是编码好还没写出去的请求
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        //写模式，里面是还不完整的响应
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private boolean waitingForWritable;
+
+        Connection(SocketChannel channel, MyEventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            int capacity = Integer.highestOneBit(maxPendingPerConnection-1)<<1;
+            capacity = Math.max(capacity, 1);
+            this.slotBits = Integer.numberOfTrailingZeros(capacity);
+            this.slots = new Call[capacity];
+            this.freeSlots = new int[capacity];
+            for(int i=0;i<capacity;i++){
+                freeSlots[i] = capacity-1-i;
+            }
+            this.freeCount = capacity;
+        }
+
+        boolean tryReserve(){
+            while(!closed){
+                int count = pendingCount.get();
+                if(count>=maxPendingPerConnection){
+                    return false;
+                }
+                if(pendingCount.compareAndSet(count, count+1)){
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * 任意线程调用：放进写队列，由loop线程统一编码写出
+         */
+        void send(Call call){
+            writeQueue.offer(call);
+            if(drainScheduled.compareAndSet(false, true)){
+                try {
+                    loop.execute(drainTask);
+                } catch (IllegalStateException e) {
+                    //loop已经退出了
+                    failQueued(new ClosedChannelException());
+                }
+            }
+        }
+
+        /**
+         * 先清标记再取队列，看到标记还在、没有再调度的线程，它放进队列的请求一定会被这次drain取到
+         */
+        private void drain(){
+            drainScheduled.set(false);
+            if(closed){
+                failQueued(new ClosedChannelException());
+                return;
+            }
+            try {
+                writeQueued();
+            } catch (IOException e) {
+                MySelector.closeQuietly(key);
+            }
+        }
+
+        private void writeQueued() throws IOException {
+            if(waitingForWritable){
+                //OP_WRITE就绪时会接着写
+                return;
+            }
+            while(true){
+                Call call;
+                while(writeBuffer.remaining()>=MAX_REQUEST_LENGTH && (call = writeQueue.poll())!=null){
+                    int slot = freeSlots[--freeCount];
+                    call.id = (++sequence<<slotBits) | slot;
+                    slots[slot] = call;
+                    call.encode(writeBuffer);
+                }
+                if(!flush() || writeQueue.isEmpty()){
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return false表示发送缓冲区满了，在等OP_WRITE
+         */
+        private boolean flush() throws IOException {
+            writeBuffer.flip();
+            if(writeBuffer.hasRemaining()){
+                channel.write(writeBuffer);
+            }
+            boolean done = !writeBuffer.hasRemaining();
+            writeBuffer.compact();
+            if(done==waitingForWritable){
+                waitingForWritable = !done;
+                key.interestOps(done ? key.interestOps() & ~SelectionKey.OP_WRITE : key.interestOps() | SelectionKey.OP_WRITE);
+            }
+            return done;
+        }
+
+        @Override
+        public void channelReady(SelectionKey key) throws IOException {
+            if(key.isReadable()){
+                read();
+            }
+            if(key.isValid() && key.isWritable() && flush()){
+                writeQueued();
+            }
+        }
+
+        private void read() throws IOException {
+            int readNum = channel.read(readBuffer);
+            if(readNum<0){
+                MySelector.closeQuietly(key);
+                return;
+            }
+            readBuffer.flip();
+            try {
+                while(readBuffer.remaining()>=RpcProtocol.LENGTH_FIELD_LENGTH){
+                    int start = readBuffer.position();
+                    int length = readBuffer.getInt(start);
+                    if(length<RpcProtocol.RESPONSE_HEADER_LENGTH || length>BUFFER_SIZE-RpcProtocol.LENGTH_FIELD_LENGTH){
+                        throw new IOException("invalid frame length: "+length);
+                    }
+                    if(readBuffer.remaining()<RpcProtocol.LENGTH_FIELD_LENGTH+length){
+                        break;
+                    }
+                    int end = start+RpcProtocol.LENGTH_FIELD_LENGTH+length;
+                    readBuffer.position(start+RpcProtocol.LENGTH_FIELD_LENGTH);
+                    int id = readBuffer.getInt();
+                    byte status = readBuffer.get();
+                    //先从表里移除再complete，回调里发起的新调用可以用这个名额
+                    Call call = remove(id);
+                    if(call!=null){
+                        if(status==RpcProtocol.STATUS_OK && length==RpcProtocol.RESPONSE_HEADER_LENGTH+4){
+                            call.complete(readBuffer.getInt());
+                        }else{
+                            byte[] message = new byte[end-readBuffer.position()];
+                            readBuffer.get(message);
+                            call.completeExceptionally(new RpcException(status==RpcProtocol.STATUS_OK
+                                    ? "malformed response, length: "+length
+                                    : new String(message, StandardCharsets.UTF_8)));
+                        }
+                    }
+                    readBuffer.position(end);
+                }
+            } finally {
+                readBuffer.compact();
+            }
+        }
+
+        /**
+         * @return 请求id对应的在途调用，已经超时移除了（或者id非法）返回null
+         */
+        private Call remove(int id){
+            int slot = id & (slots.length-1);
+            Call call = slots[slot];
+            if(call==null || call.id!=id){
+                return null;
+            }
+            slots[slot] = null;
+            freeSlots[freeCount++] = slot;
+            pendingCount.decrementAndGet();
+            return call;
+        }
+
+        void scheduleExpire(){
+            if(pendingCount.get()>0 && !closed){
+                try {
+                    loop.execute(expireTask);
+                } catch (IllegalStateException e) {
+                    //loop已经退出了
+                }
+            }
+        }
+
+        private void expire(){
+            long now = System.nanoTime();
+            TimeoutException cause = null;
+            for(Call call:slots){
+                if(call!=null && now-call.deadlineNanos>=0){
+                    remove(call.id);
+                    timeouts.increment();
+                    if(cause==null){
+                        cause = new TimeoutException("no response in "+requestTimeoutMillis+"ms from "+channel);
+                    }
+                    call.completeExceptionally(cause);
+                }
+            }
+        }
+
+        private void failQueued(Throwable cause){
+            Call call;
+            while((call = writeQueue.poll())!=null){
+                pendingCount.decrementAndGet();
+                call.completeExceptionally(cause);
+            }
+        }
+
+        /**
+         * 在loop线程中调用：MySelector.closeQuietly或者loop退出时
+         */
+        @Override
+        public void close(){
+            if(closed){
+                return;
+            }
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                //ignore
+            }
+            ClosedChannelException cause = new ClosedChannelException();
+            for(Call call:slots){
+                if(call!=null){
+                    remove(call.id);
+                    call.completeExceptionally(cause);
+                }
+            }
+            failQueued(cause);
+        }
+
+        @Override
+        public void selectionKeyChanged(SelectionKey newKey) {
+            this.key = newKey;
+        }
+    }
+}
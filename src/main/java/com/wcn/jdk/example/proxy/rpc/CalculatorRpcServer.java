@@ -0,0 +1,44 @@
+package com.wcn.jdk.example.proxy.rpc;
+
+import com.wcn.jdk.example.io.nio.FrameDecoder;
+import com.wcn.jdk.example.io.nio.ServerConfig;
+import com.wcn.jdk.example.io.nio.ServerSocketChannelTestV5;
+import com.wcn.jdk.example.proxy.Calculator;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * 把Calculator通过RpcProtocol暴露出去的服务端，就是ServerSocketChannelTestV5换了拆包方式和RequestHandler：
+ * 一个accept线程，多个read线程（多reactor），每个连接固定在一个read线程上，
+ * 一次read拆出的多个请求依次在read线程里调用CalculatorSkeleton，响应放进发送队列，read结束后一次writev写出。
+ * add这种纳秒级的方法不需要业务线程池，交给别的线程再切回来的开销比方法本身大得多。
+ *
+ * 运行：java CalculatorRpcServer [readThreads]，端口用 -Dserver.port 指定，默认8080。
+ * 客户端见CalculatorRpcClient，压测见CalculatorRpcBenchmark。
+ */
+public class CalculatorRpcServer {
+    private final ServerSocketChannelTestV5 server = new ServerSocketChannelTestV5();
+
+    public static void main(String[] args) throws Exception {
+        int readThreads = args.length>0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        //服务端的实现不打印日志，DefaultCalculator每次调用都会打印
+        CalculatorRpcServer server = new CalculatorRpcServer();
+        InetSocketAddress address = server.start(new ServerConfig().setReadThreads(readThreads), Integer::sum);
+        System.out.println("calculator rpc server started on "+address);
+    }
+
+    /**
+     * @param config 端口、read线程数等，拆包方式和RequestHandler会被覆盖
+     * @return 实际监听的地址，端口为0时可以从这里拿到分配的端口
+     */
+    public InetSocketAddress start(ServerConfig config, Calculator target) throws IOException {
+        config.setFrameDecoderFactory(() -> FrameDecoder.lengthField(RpcProtocol.MAX_FRAME_LENGTH))
+                .setRequestHandler(new CalculatorSkeleton(target));
+        return server.start(config);
+    }
+
+    public void shutdown() throws InterruptedException {
+        server.shutdown();
+    }
+}
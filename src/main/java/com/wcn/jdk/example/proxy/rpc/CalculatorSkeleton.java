@@ -0,0 +1,65 @@
+package com.wcn.jdk.example.proxy.rpc;
+
+import com.wcn.jdk.example.io.mynetty.MyByteBufferPool;
+import com.wcn.jdk.example.io.nio.FrameDecoder;
+import com.wcn.jdk.example.io.nio.RequestHandler;
+import com.wcn.jdk.example.proxy.Calculator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 服务端的分发逻辑（RMI里叫skeleton），作为V5的RequestHandler：
+ * 按方法id解码参数，调用真正的Calculator，把返回值编码成响应。
+ * 和StaticProxy一样是手写的，没有反射，参数也不装箱。
+ *
+ * 请求格式错误（例如请求头不完整）时抛出IOException关闭连接，
+ * 方法id不认识、参数长度不对或者Calculator抛出了异常时返回STATUS_ERROR，连接继续可用。
+ */
+public class CalculatorSkeleton implements RequestHandler {
+    private final Calculator target;
+
+    public CalculatorSkeleton(Calculator target) {
+        this.target = target;
+    }
+
+    @Override
+    public ByteBuffer handle(FrameDecoder frameDecoder, ByteBuffer request) throws IOException {
+        if(request.remaining()<RpcProtocol.REQUEST_HEADER_LENGTH){
+            throw new IOException("truncated request: "+request.remaining()+" bytes");
+        }
+        int requestId = request.getInt();
+        byte method = request.get();
+        if(method!=RpcProtocol.METHOD_ADD){
+            return error(frameDecoder, requestId, "unknown method: "+method);
+        }
+        if(request.remaining()!=RpcProtocol.ADD_ARGS_LENGTH){
+            return error(frameDecoder, requestId, "add expects "+RpcProtocol.ADD_ARGS_LENGTH+" bytes of args, got "+request.remaining());
+        }
+        int result;
+        try {
+            result = target.add(request.getInt(), request.getInt());
+        } catch (RuntimeException e) {
+            return error(frameDecoder, requestId, e.toString());
+        }
+        int length = RpcProtocol.RESPONSE_HEADER_LENGTH+4;
+        ByteBuffer response = MyByteBufferPool.DEFAULT.allocate(frameDecoder.frameOverhead()+length);
+        frameDecoder.writeHeader(response, length);
+        response.putInt(requestId).put(RpcProtocol.STATUS_OK).putInt(result);
+        frameDecoder.writeTrailer(response);
+        response.flip();
+        return response;
+    }
+
+    private static ByteBuffer error(FrameDecoder frameDecoder, int requestId, String message){
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        int length = RpcProtocol.RESPONSE_HEADER_LENGTH+bytes.length;
+        ByteBuffer response = MyByteBufferPool.DEFAULT.allocate(frameDecoder.frameOverhead()+length);
+        frameDecoder.writeHeader(response, length);
+        response.putInt(requestId).put(RpcProtocol.STATUS_ERROR).put(bytes);
+        frameDecoder.writeTrailer(response);
+        response.flip();
+        return response;
+    }
+}
@@ -0,0 +1,17 @@
+package com.wcn.jdk.example.proxy.rpc;
+
+/**
+ * 远程调用失败：服务端返回了错误、超时、连接断开等。
+ * Calculator.add没有声明受检异常，所以同步调用时失败原因都包装成这个运行时异常抛出。
+ */
+public class RpcException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public RpcException(String message) {
+        super(message);
+    }
+
+    public RpcException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
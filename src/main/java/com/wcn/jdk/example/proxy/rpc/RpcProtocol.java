@@ -0,0 +1,32 @@
+package com.wcn.jdk.example.proxy.rpc;
+
+/**
+ * Calculator远程调用的二进制协议，所有整数都是大端。
+ *
+ * 请求：[int 长度][int 请求id][byte 方法id][参数...]
+ * 响应：[int 长度][int 请求id][byte 状态][结果...]
+ * 长度不包括自己这4个字节，和LengthFieldFrameDecoder的格式一样，服务端直接用V5的lengthField拆包。
+ *
+ * 1. 请求id由客户端分配，服务端原样带回，同一个连接上可以有很多个请求在途，响应不要求按请求的顺序返回；
+ * 2. 方法id代替方法名，参数只有基本类型，按方法签名的顺序定长编码，不需要类型信息，
+ *    add(int,int)一个请求17字节、一个响应13字节；
+ * 3. 状态为STATUS_OK时结果是返回值，STATUS_ERROR时结果是UTF-8编码的错误信息。
+ */
+public final class RpcProtocol {
+    public static final int LENGTH_FIELD_LENGTH = 4;
+    //请求id+方法id
+    public static final int REQUEST_HEADER_LENGTH = 5;
+    //请求id+状态
+    public static final int RESPONSE_HEADER_LENGTH = 5;
+    public static final int MAX_FRAME_LENGTH = 64*1024;
+
+    public static final byte METHOD_ADD = 1;
+    //add的参数：两个int
+    public static final int ADD_ARGS_LENGTH = 8;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+
+    private RpcProtocol() {
+    }
+}